@@ -69,6 +69,7 @@ public class Bank {
         if (batchFile == null) {
             this.gui = new GUIManager(this);
             this.batch = null;
+            this.data.getEvents().subscribe(this.control, true);
         } else {
             this.gui = null;
             this.batch = new BatchManager(this, batchFile);
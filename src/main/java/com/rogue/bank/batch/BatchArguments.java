@@ -0,0 +1,204 @@
+/*
+ * Copyright (C) 2013 Spencer Alderman
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.rogue.bank.batch;
+
+import com.rogue.bank.util.ByteTokenizer;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * Reusable holder for the arguments of one batch command. Arguments are
+ * kept as byte ranges of the batch file buffer and parsed in place when a
+ * command asks for them, so no Strings are made for a batch line.
+ *
+ * @since 1.0.0
+ * @author 1Rogue
+ * @version 1.0.0
+ */
+public class BatchArguments {
+
+    private ByteBuffer buf;
+    private int[] starts = new int[8];
+    private int[] ends = new int[8];
+    private int size;
+
+    /**
+     * Creates arguments from Strings, for commands executed outside of a
+     * batch file.
+     *
+     * @since 1.0.0
+     * @version 1.0.0
+     *
+     * @param args The command arguments
+     * @return The arguments as a {@link BatchArguments}
+     */
+    public static BatchArguments of(String[] args) {
+        int length = 0;
+        for (String arg : args) {
+            length += arg.length();
+        }
+        ByteBuffer buf = ByteBuffer.allocate(length);
+        BatchArguments out = new BatchArguments();
+        out.clear(buf);
+        for (String arg : args) {
+            int start = buf.position();
+            for (int i = 0; i < arg.length(); i++) {
+                buf.put((byte) arg.charAt(i));
+            }
+            out.add(start, buf.position());
+        }
+        return out;
+    }
+
+    /**
+     * Clears the arguments, ready to read a new line from a buffer.
+     *
+     * @since 1.0.0
+     * @version 1.0.0
+     *
+     * @param buffer The buffer the next arguments are read from
+     */
+    void clear(ByteBuffer buffer) {
+        this.buf = buffer;
+        this.size = 0;
+    }
+
+    /**
+     * Adds the next argument.
+     *
+     * @since 1.0.0
+     * @version 1.0.0
+     *
+     * @param start The buffer index of the start of the argument
+     * @param end The buffer index just after the argument
+     */
+    void add(int start, int end) {
+        if (this.size == this.starts.length) {
+            this.starts = Arrays.copyOf(this.starts, this.size * 2);
+            this.ends = Arrays.copyOf(this.ends, this.size * 2);
+        }
+        this.starts[this.size] = start;
+        this.ends[this.size++] = end;
+    }
+
+    /**
+     * Replaces the arguments with the arguments of another holder, read
+     * from the same buffer.
+     *
+     * @since 1.0.0
+     * @version 1.0.0
+     *
+     * @param from The arguments to copy
+     */
+    void copy(BatchArguments from) {
+        this.clear(from.buf);
+        for (int i = 0; i < from.size; i++) {
+            this.add(from.starts[i], from.ends[i]);
+        }
+    }
+
+    /**
+     * Returns the number of arguments.
+     *
+     * @since 1.0.0
+     * @version 1.0.0
+     *
+     * @return The number of arguments
+     */
+    public int size() {
+        return this.size;
+    }
+
+    /**
+     * Returns the first character of an argument.
+     *
+     * @since 1.0.0
+     * @version 1.0.0
+     *
+     * @param index The argument index
+     * @return The first character of the argument
+     * @throws NumberFormatException If the argument is missing or empty
+     */
+    public char getChar(int index) {
+        this.check(index);
+        if (this.ends[index] == this.starts[index]) {
+            throw new NumberFormatException("Empty argument " + index);
+        }
+        return (char) (this.buf.get(this.starts[index]) & 0xFF);
+    }
+
+    /**
+     * Parses an argument as an int.
+     *
+     * @since 1.0.0
+     * @version 1.0.0
+     *
+     * @param index The argument index
+     * @return The parsed int
+     * @throws NumberFormatException If the argument is missing or not an int
+     */
+    public int getInt(int index) {
+        this.check(index);
+        return ByteTokenizer.parseInt(this.buf, this.starts[index], this.ends[index]);
+    }
+
+    /**
+     * Parses an argument as a decimal number.
+     *
+     * @since 1.0.0
+     * @version 1.0.0
+     *
+     * @param index The argument index
+     * @return The parsed number
+     * @throws NumberFormatException If the argument is missing or not a
+     *                               number
+     */
+    public double getDouble(int index) {
+        this.check(index);
+        return ByteTokenizer.parseDecimal(this.buf, this.starts[index], this.ends[index]);
+    }
+
+    /**
+     * Returns an argument as a String.
+     *
+     * @since 1.0.0
+     * @version 1.0.0
+     *
+     * @param index The argument index
+     * @return The argument
+     * @throws NumberFormatException If the argument is missing
+     */
+    public String getString(int index) {
+        this.check(index);
+        return ByteTokenizer.toString(this.buf, this.starts[index], this.ends[index]);
+    }
+
+    /**
+     * Checks an argument index exists.
+     *
+     * @since 1.0.0
+     * @version 1.0.0
+     *
+     * @param index The argument index
+     * @throws NumberFormatException If the argument is missing
+     */
+    private void check(int index) {
+        if (index < 0 || index >= this.size) {
+            throw new NumberFormatException("Missing argument " + index);
+        }
+    }
+}
@@ -17,6 +17,7 @@
 package com.rogue.bank.batch;
 
 import com.rogue.bank.control.BankController;
+import com.rogue.bank.util.ReportSink;
 
 /**
  * Interface all commands shall implement.
@@ -39,6 +40,35 @@ public interface BatchCommand {
      */
     public boolean execute(BankController bankController, String[] args);
 
+    /**
+     * Executes this command with given {@link BankController} and arguments
+     * read from a batch file, writing its report lines to a sink.
+     * 
+     * @since 1.0.0
+     * @version 1.0.0
+     * 
+     * @param bankController The BankController used in modification.
+     * @param args The command arguments, parsed in place.
+     * @param out The sink the command reports to.
+     * @return If the command was executed without errors.
+     */
+    public boolean execute(BankController bankController, BatchArguments args, ReportSink out);
+
+    /**
+     * Adds this command, with its arguments read from a batch file, to a
+     * compiled {@link BatchProgram}. Arguments are read exactly as
+     * {@link #execute(BankController, BatchArguments, ReportSink)} reads
+     * them, and a command whose arguments cannot be read adds nothing.
+     *
+     * @since 1.0.0
+     * @version 1.0.0
+     *
+     * @param args The command arguments, parsed in place.
+     * @param program The program the command is added to.
+     * @return If the command was added.
+     */
+    public boolean compile(BatchArguments args, BatchProgram program);
+
     /**
      * Returns the character used to execute this command.
      * 
@@ -48,4 +78,17 @@ public interface BatchCommand {
      * @return The character used to execute this command.
      */
     public char getChar();
+
+    /**
+     * Returns the index of the argument holding the id of the one account
+     * this command touches. Commands on different accounts may be executed
+     * at the same time.
+     * 
+     * @since 1.0.0
+     * @version 1.0.0
+     * 
+     * @return The argument index, or -1 if this command may touch any
+     *         account.
+     */
+    public int getAccountArgument();
 }
@@ -0,0 +1,316 @@
+/*
+ * Copyright (C) 2013 Spencer Alderman
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.rogue.bank.batch;
+
+import com.rogue.bank.control.BankController;
+import com.rogue.bank.util.ByteTokenizer;
+import com.rogue.bank.util.ReportSink;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Executes a batch file by compiling it into {@link BatchProgram}s. The
+ * file is read as {@link BatchManager} reads it, but each command is
+ * compiled to an opcode rather than executed, and once a program is full
+ * it is run and compiled over with the next commands, so a batch file of
+ * any size is held a program at a time.
+ *
+ * Unless {@code bank.batch.compileCache} is false, each program is also
+ * written to a compiled batch file beside the batch file, named for it
+ * with {@code .compiled} added. The compiled file records the length and
+ * last modified time of the batch file, and while both still match, the
+ * next run reads its programs back instead of reading the batch file.
+ *
+ * @since 1.0.0
+ * @author 1Rogue
+ * @version 1.0.0
+ */
+class BatchCompiler {
+
+    private static final int MAGIC = 0x424E4B50;
+    private static final int VERSION = 1;
+    private static final boolean CACHE = Boolean.parseBoolean(System.getProperty("bank.batch.compileCache", "true"));
+    private static final int PROGRAM_SIZE = 64 * 1024;
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    private final BatchManager manager;
+    private final BankController controller;
+    private final File batchFile;
+    private final File compiledFile;
+    private final BatchProgram program = new BatchProgram(PROGRAM_SIZE);
+    private File tmp;
+    private DataOutputStream saving;
+    private long commandCount;
+    private long programCount;
+
+    /**
+     * BatchCompiler constructor
+     *
+     * @since 1.0.0
+     * @version 1.0.0
+     *
+     * @param manager The BatchManager reading commands
+     * @param controller The BankController commands are executed with
+     * @param batchFile The batch file
+     */
+    BatchCompiler(BatchManager manager, BankController controller, File batchFile) {
+        this.manager = manager;
+        this.controller = controller;
+        this.batchFile = batchFile;
+        this.compiledFile = new File(batchFile.getPath() + ".compiled");
+    }
+
+    /**
+     * Executes every command of the batch file, from its compiled file if
+     * that is still current.
+     *
+     * @since 1.0.0
+     * @version 1.0.0
+     *
+     * @param channel The batch file
+     * @param windowSize The number of bytes to map at a time
+     * @param out The sink commands report to
+     * @throws IOException If the batch file or compiled file could not be
+     *                     read
+     */
+    void run(FileChannel channel, long windowSize, ReportSink out) throws IOException {
+        long began = System.nanoTime();
+        boolean cached = CACHE && this.runCompiled(out);
+        if (!cached) {
+            if (CACHE) {
+                this.startSave();
+            }
+            try {
+                this.compileAll(channel, windowSize, out);
+                this.finishSave();
+            } finally {
+                this.abandonSave();
+            }
+        }
+        if (Boolean.getBoolean("bank.stats")) {
+            long time = System.nanoTime() - began;
+            System.err.format("Compiled batch: %d commands in %d programs, %s in %.1f ms%n",
+                    this.commandCount, this.programCount, cached ? "read from cache" : "compiled",
+                    time / 1e6);
+        }
+    }
+
+    /**
+     * Reads and runs the programs of the compiled file, if it was compiled
+     * from the batch file as it is now.
+     *
+     * @since 1.0.0
+     * @version 1.0.0
+     *
+     * @param out The sink commands report to
+     * @return False if there is no current compiled file, and nothing was
+     *         run
+     * @throws IOException If the compiled file could not be read part way
+     */
+    private boolean runCompiled(ReportSink out) throws IOException {
+        if (!this.compiledFile.isFile()) {
+            return false;
+        }
+        DataInputStream in = new DataInputStream(new BufferedInputStream(
+                new FileInputStream(this.compiledFile), BUFFER_SIZE));
+        try {
+            try {
+                if (in.readInt() != MAGIC || in.readByte() != VERSION
+                        || in.readLong() != this.batchFile.length()
+                        || in.readLong() != this.batchFile.lastModified()) {
+                    return false;
+                }
+            } catch (EOFException ex) {
+                return false;
+            }
+            while (this.program.read(in) > 0) {
+                this.run(out);
+            }
+            return true;
+        } catch (EOFException ex) {
+            throw new IOException(this.compiledFile.getPath() + " is truncated");
+        } finally {
+            in.close();
+        }
+    }
+
+    /**
+     * Compiles every line of the batch file, running each program once it
+     * is full.
+     *
+     * @since 1.0.0
+     * @version 1.0.0
+     *
+     * @param channel The batch file
+     * @param windowSize The number of bytes to map at a time
+     * @param out The sink commands report to
+     * @throws IOException If the file could not be read
+     */
+    private void compileAll(FileChannel channel, long windowSize, ReportSink out) throws IOException {
+        long size = channel.size();
+        long position = 0;
+        long window = windowSize;
+        ByteTokenizer tok = new ByteTokenizer();
+        BatchArguments args = new BatchArguments();
+        while (position < size) {
+            int length = (int) Math.min(window, size - position);
+            boolean eof = position + length == size;
+            MappedByteBuffer buf = channel.map(FileChannel.MapMode.READ_ONLY, position, length);
+            int consumed = 0;
+            tok.reset(buf, 0, length);
+            while (tok.nextLine() && (eof || tok.isLineTerminated())) {
+                consumed = tok.getPosition();
+                BatchCommand command = this.manager.parse(tok, args);
+                if (command != null && command.compile(args, this.program) && this.program.isFull()) {
+                    this.save();
+                    this.run(out);
+                }
+            }
+            if (eof) {
+                break;
+            }
+            if (consumed == 0) {
+                // a line longer than the window
+                window = Math.min(Integer.MAX_VALUE, window * 2);
+            }
+            position += consumed;
+        }
+        if (this.program.size() > 0) {
+            this.save();
+            this.run(out);
+        }
+    }
+
+    /**
+     * Runs the current program, then clears it.
+     *
+     * @since 1.0.0
+     * @version 1.0.0
+     *
+     * @param out The sink commands report to
+     */
+    private void run(ReportSink out) {
+        this.program.run(this.controller, out);
+        this.commandCount += this.program.size();
+        this.programCount++;
+        this.program.clear();
+    }
+
+    /**
+     * Starts writing a new compiled file, beside the current one until it
+     * is finished.
+     *
+     * @since 1.0.0
+     * @version 1.0.0
+     */
+    private void startSave() {
+        this.tmp = new File(this.compiledFile.getPath() + ".tmp");
+        try {
+            this.saving = new DataOutputStream(new BufferedOutputStream(
+                    new FileOutputStream(this.tmp), BUFFER_SIZE));
+            this.saving.writeInt(MAGIC);
+            this.saving.writeByte(VERSION);
+            this.saving.writeLong(this.batchFile.length());
+            this.saving.writeLong(this.batchFile.lastModified());
+        } catch (IOException ex) {
+            this.warn(ex);
+        }
+    }
+
+    /**
+     * Writes the current program to the compiled file being saved, if any.
+     *
+     * @since 1.0.0
+     * @version 1.0.0
+     */
+    private void save() {
+        if (this.saving == null) {
+            return;
+        }
+        try {
+            this.program.write(this.saving);
+        } catch (IOException ex) {
+            this.warn(ex);
+        }
+    }
+
+    /**
+     * Ends the compiled file being saved, if any, and swaps it in for the
+     * current one.
+     *
+     * @since 1.0.0
+     * @version 1.0.0
+     */
+    private void finishSave() {
+        if (this.saving == null) {
+            return;
+        }
+        try {
+            this.saving.writeInt(0);
+            this.saving.close();
+            this.saving = null;
+            this.compiledFile.delete();
+            if (!this.tmp.renameTo(this.compiledFile)) {
+                throw new IOException("Could not replace " + this.compiledFile.getPath());
+            }
+        } catch (IOException ex) {
+            this.warn(ex);
+        }
+    }
+
+    /**
+     * Warns that the compiled file could not be saved, and stops saving it.
+     *
+     * @since 1.0.0
+     * @version 1.0.0
+     *
+     * @param ex The reason it could not be saved
+     */
+    private void warn(IOException ex) {
+        System.err.println("Warning: could not save the compiled batch file: " + ex.getMessage());
+        this.abandonSave();
+    }
+
+    /**
+     * Closes and deletes an unfinished compiled file, if any.
+     *
+     * @since 1.0.0
+     * @version 1.0.0
+     */
+    private void abandonSave() {
+        if (this.saving != null) {
+            try {
+                this.saving.close();
+            } catch (IOException ex) {
+                // the file is deleted regardless
+            }
+            this.saving = null;
+        }
+        if (this.tmp != null) {
+            this.tmp.delete();
+        }
+    }
+}
@@ -18,13 +18,15 @@ package com.rogue.bank.batch;
 
 import com.rogue.bank.Bank;
 import com.rogue.bank.batch.commands.*;
-import java.io.BufferedReader;
+import com.rogue.bank.control.BankController;
+import com.rogue.bank.util.ByteTokenizer;
+import com.rogue.bank.util.ReportSink;
 import java.io.File;
+import java.io.FileInputStream;
 import java.io.FileNotFoundException;
-import java.io.FileReader;
 import java.io.IOException;
-import java.util.HashMap;
-import java.util.Map;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
 
 /**
  * Managing class for batch mode execution
@@ -35,9 +37,15 @@ import java.util.Map;
  */
 public class BatchManager {
 
+    private static final long WINDOW_SIZE = Math.min(Integer.MAX_VALUE, Long.getLong("bank.batch.windowSize", 64L << 20));
+    private static final int THREADS = Integer.getInteger("bank.batch.threads", 1);
+    private static final boolean PIPELINE = Boolean.getBoolean("bank.batch.pipeline");
+    private static final boolean COMPILE = Boolean.getBoolean("bank.batch.compile");
+    private static final byte SEPARATOR = ' ';
+
     private final Bank project;
     private final File batchFile;
-    private final Map<Character, BatchCommand> commands;
+    private final BatchCommand[] commands = new BatchCommand[256];
 
     /**
      * Construct a new BatchManager with given file name.
@@ -51,12 +59,12 @@ public class BatchManager {
     public BatchManager(Bank project, String fileName) {
         this.project = project;
         this.batchFile = new File(fileName);
-        this.commands = new HashMap<Character, BatchCommand>();
         this.registerCommands();
     }
 
     /**
-     * Registers the map of commands used in execution.
+     * Registers the commands used in execution, indexed by their
+     * character.
      *
      * @since 1.0.0
      * @version 1.0.0
@@ -71,12 +79,34 @@ public class BatchManager {
         };
 
         for (BatchCommand cmd : cmds) {
-            this.commands.put(cmd.getChar(), cmd);
+            this.commands[cmd.getChar()] = cmd;
         }
     }
 
     /**
-     * Executes the batch file, running all commands.
+     * Executes the batch file, running all commands. The file is mapped
+     * into memory a window of {@code bank.batch.windowSize} bytes at a time,
+     * each window starting at the first line the last one did not finish,
+     * and each line is tokenized in place into a reusable
+     * {@link BatchArguments}, so batch files of any size are read without
+     * copying. Commands report to one {@link ReportSink}, written to
+     * standard output whenever its buffer fills.
+     *
+     * With {@code bank.batch.threads} above 1, commands on one account are
+     * executed by {@link BatchWorkers} in parallel with commands on other
+     * accounts. A command which may touch every account waits for all
+     * commands before it, and the report is printed in batch file order.
+     *
+     * With {@code bank.batch.pipeline} set, reading, parsing, executing and
+     * printing each run on their own thread, as a {@link BatchPipeline}.
+     *
+     * With {@code bank.batch.compile} set, commands are compiled into
+     * {@link BatchProgram}s and run in turn by a {@link BatchCompiler},
+     * which saves the programs so the next run of an unchanged batch file
+     * need not read it.
+     *
+     * Journal records are deferred while the file runs, and the run waits
+     * once for all of them to be durable before the final report.
      *
      * @since 1.0.0
      * @version 1.0.0
@@ -85,22 +115,37 @@ public class BatchManager {
         
         this.project.getDataManager().displayBankData("Initial");
         
-        BufferedReader reader = null;
-        String line;
+        FileChannel channel = null;
+        BatchWorkers workers = null;
+        ReportSink out = null;
+        BankController controller = this.project.getBankController();
+        boolean deferring = false;
         try {
-            reader = new BufferedReader(new FileReader(this.batchFile));
-            while ((line = reader.readLine()) != null) {
-                BatchCommand command = this.commands.get(line.charAt(0));
-                if (command != null) {
-                    String[] args;
-                    if (line.length() < 2) {
-                        args = new String[0];
-                    } else {
-                        args = line.substring(2).split(" ");
-                    }
-                    command.execute(this.project.getBankController(), args);
+            channel = new FileInputStream(this.batchFile).getChannel();
+            controller.startDeferring();
+            deferring = true;
+            if (COMPILE) {
+                if (PIPELINE || THREADS > 1) {
+                    System.err.println("Warning: bank.batch.compile runs commands in turn, "
+                            + "ignoring bank.batch.threads and bank.batch.pipeline");
+                }
+                out = ReportSink.stdout();
+                new BatchCompiler(this, controller, this.batchFile)
+                        .run(channel, WINDOW_SIZE, out);
+                out.flush();
+            } else if (PIPELINE) {
+                new BatchPipeline(this, channel, WINDOW_SIZE).run();
+            } else {
+                out = ReportSink.stdout();
+                workers = this.newWorkers();
+                this.executeAll(channel, out, workers);
+                if (workers != null) {
+                    workers.drain(out);
                 }
+                out.flush();
             }
+            deferring = false;
+            controller.stopDeferring();
             this.project.getDataManager().displayBankData("Final");
         } catch (FileNotFoundException ex) {
             System.err.println("File does not exist.");
@@ -108,6 +153,126 @@ public class BatchManager {
         } catch (IOException e) {
             System.err.println("Error reading the batch file.");
             System.exit(1);
+        } finally {
+            if (deferring) {
+                controller.stopDeferring();
+            }
+            if (workers != null) {
+                workers.shutdown();
+            }
+            if (out != null) {
+                out.flush();
+            }
+            if (channel != null) {
+                try {
+                    channel.close();
+                } catch (IOException ex) {
+                    System.err.println("Error: " + ex.getMessage());
+                }
+            }
+        }
+    }
+
+    /**
+     * Reads and executes every line of the batch file on this thread.
+     *
+     * @since 1.0.0
+     * @version 1.0.0
+     *
+     * @param channel The batch file
+     * @param out The sink commands report to
+     * @param workers The workers for commands on one account, or null to
+     *                execute every command in turn
+     * @throws IOException If the file could not be read
+     */
+    private void executeAll(FileChannel channel, ReportSink out, BatchWorkers workers) throws IOException {
+        long size = channel.size();
+        long position = 0;
+        long window = WINDOW_SIZE;
+        ByteTokenizer tok = new ByteTokenizer();
+        BatchArguments args = new BatchArguments();
+        while (position < size) {
+            int length = (int) Math.min(window, size - position);
+            boolean eof = position + length == size;
+            MappedByteBuffer buf = channel.map(FileChannel.MapMode.READ_ONLY, position, length);
+            int consumed = 0;
+            tok.reset(buf, 0, length);
+            while (tok.nextLine() && (eof || tok.isLineTerminated())) {
+                consumed = tok.getPosition();
+                BatchCommand command = this.parse(tok, args);
+                if (command != null) {
+                    this.dispatch(command, args, out, workers);
+                }
+            }
+            if (eof) {
+                break;
+            }
+            if (consumed == 0) {
+                // a line longer than the window
+                window = Math.min(Integer.MAX_VALUE, window * 2);
+            }
+            position += consumed;
+        }
+    }
+
+    /**
+     * Makes the workers for commands on one account, if
+     * {@code bank.batch.threads} is above 1.
+     *
+     * @since 1.0.0
+     * @version 1.0.0
+     *
+     * @return The workers, or null to execute every command in turn
+     */
+    BatchWorkers newWorkers() {
+        return THREADS > 1 ? new BatchWorkers(this.project.getBankController(), THREADS) : null;
+    }
+
+    /**
+     * Reads the batch command on the current line of a tokenizer.
+     *
+     * @since 1.0.0
+     * @version 1.0.0
+     *
+     * @param tok The tokenizer positioned on the line
+     * @param args Filled with the command arguments
+     * @return The command, or null if the line holds none
+     */
+    BatchCommand parse(ByteTokenizer tok, BatchArguments args) {
+        if (tok.getLineLength() == 0 || !tok.nextField(SEPARATOR)) {
+            return null;
+        }
+        char c = tok.firstChar();
+        BatchCommand command = c < this.commands.length ? this.commands[c] : null;
+        if (command != null) {
+            args.clear(tok.getBuffer());
+            while (tok.nextField(SEPARATOR)) {
+                args.add(tok.getFieldStart(), tok.getFieldEnd());
+            }
+        }
+        return command;
+    }
+
+    /**
+     * Executes a batch command, or gives it to the workers.
+     *
+     * @since 1.0.0
+     * @version 1.0.0
+     *
+     * @param command The command
+     * @param args The command arguments
+     * @param out The sink commands report to
+     * @param workers The workers for commands on one account, or null to
+     *                execute every command in turn
+     */
+    void dispatch(BatchCommand command, BatchArguments args, ReportSink out, BatchWorkers workers) {
+        if (workers == null) {
+            command.execute(this.project.getBankController(), args, out);
+        } else if (command.getAccountArgument() >= 0) {
+            workers.add(command, args, out);
+        } else {
+            workers.drain(out);
+            command.execute(this.project.getBankController(), args, out);
         }
     }
 }
@@ -0,0 +1,381 @@
+/*
+ * Copyright (C) 2013 Spencer Alderman
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.rogue.bank.batch;
+
+import com.rogue.bank.util.ByteTokenizer;
+import com.rogue.bank.util.ReportSink;
+import com.rogue.bank.util.RingBuffer;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Executes a batch file in four stages, each on its own thread. A reader
+ * maps windows of the file, cut after their last whole line, and loads
+ * them into memory; a parser reads the commands of each window; an
+ * executor runs them; and a writer prints their report lines. The stages
+ * are joined by {@link RingBuffer}s, so each one works on the next part of
+ * the file while the stage after it works on the last. Parsed lines and
+ * report text are passed in reusable batches, which are handed back to
+ * the stage filling them once used.
+ *
+ * The executor is the calling thread, and runs commands in batch file
+ * order, handing them to {@link BatchWorkers} as it would without a
+ * pipeline. With {@code bank.stats} set, the throughput of each stage and
+ * the depth of the queue after it are printed once the file is done. A
+ * stage's throughput counts only the time it was not waiting on a queue.
+ *
+ * @since 1.0.0
+ * @author 1Rogue
+ * @version 1.0.0
+ */
+class BatchPipeline {
+
+    private static final int WINDOWS = 4;
+    private static final int BATCHES = 8;
+    private static final int BATCH_LINES = 1024;
+    private static final int REPORT_SIZE = 64 * 1024;
+    private static final ByteBuffer LAST_WINDOW = ByteBuffer.allocate(0);
+    private static final ReportSink LAST_REPORT = new ReportSink();
+
+    private final BatchManager manager;
+    private final FileChannel channel;
+    private final long windowSize;
+    private final RingBuffer<ByteBuffer> windows = new RingBuffer<ByteBuffer>(WINDOWS);
+    private final RingBuffer<Lines> parsed = new RingBuffer<Lines>(BATCHES);
+    private final RingBuffer<Lines> freeLines = new RingBuffer<Lines>(BATCHES);
+    private final RingBuffer<ReportSink> reports = new RingBuffer<ReportSink>(BATCHES);
+    private final RingBuffer<ReportSink> freeReports = new RingBuffer<ReportSink>(BATCHES);
+    private volatile Exception failure;
+    private long windowCount;
+    private long bytes;
+    private long lineCount;
+    private long commandCount;
+    private long written;
+    private long readTime;
+    private long parseTime;
+    private long executeTime;
+    private long writeTime;
+
+    /**
+     * BatchPipeline constructor
+     *
+     * @since 1.0.0
+     * @version 1.0.0
+     *
+     * @param manager The BatchManager reading and executing commands
+     * @param channel The batch file
+     * @param windowSize The number of bytes to map at a time
+     */
+    BatchPipeline(BatchManager manager, FileChannel channel, long windowSize) {
+        this.manager = manager;
+        this.channel = channel;
+        this.windowSize = windowSize;
+        for (int i = 0; i < BATCHES; i++) {
+            this.freeLines.put(new Lines());
+            this.freeReports.put(new ReportSink(null, REPORT_SIZE * 2));
+        }
+    }
+
+    /**
+     * Executes every command of the batch file, returning once all of the
+     * report has been printed.
+     *
+     * @since 1.0.0
+     * @version 1.0.0
+     *
+     * @throws IOException If the file could not be read
+     */
+    void run() throws IOException {
+        Thread reader = this.start("Bank-BatchReader", new Runnable() {
+
+            public void run() {
+                read();
+            }
+
+        });
+        Thread parser = this.start("Bank-BatchParser", new Runnable() {
+
+            public void run() {
+                parse();
+            }
+
+        });
+        Thread writer = this.start("Bank-BatchWriter", new Runnable() {
+
+            public void run() {
+                write();
+            }
+
+        });
+        try {
+            this.execute();
+            parser.join();
+            reader.join();
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        } finally {
+            try {
+                writer.join();
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        if (this.failure instanceof IOException) {
+            throw (IOException) this.failure;
+        }
+        if (this.failure != null) {
+            throw (RuntimeException) this.failure;
+        }
+        if (Boolean.getBoolean("bank.stats")) {
+            this.printStats();
+        }
+    }
+
+    /**
+     * Starts a stage thread.
+     *
+     * @since 1.0.0
+     * @version 1.0.0
+     *
+     * @param name The thread name
+     * @param stage The stage to run
+     * @return The started thread
+     */
+    private Thread start(String name, Runnable stage) {
+        Thread thread = new Thread(stage, name);
+        thread.setDaemon(true);
+        thread.start();
+        return thread;
+    }
+
+    /**
+     * The reader stage: maps each window of the file, ending it after the
+     * last whole line it holds, and loads it into memory.
+     *
+     * @since 1.0.0
+     * @version 1.0.0
+     */
+    private void read() {
+        long began = System.nanoTime();
+        try {
+            long size = this.channel.size();
+            long position = 0;
+            long window = this.windowSize;
+            while (position < size) {
+                int length = (int) Math.min(window, size - position);
+                MappedByteBuffer buf = this.channel.map(FileChannel.MapMode.READ_ONLY, position, length);
+                if (position + length < size) {
+                    while (length > 0 && buf.get(length - 1) != '\n') {
+                        length--;
+                    }
+                    if (length == 0) {
+                        // a line longer than the window
+                        window = Math.min(Integer.MAX_VALUE, window * 2);
+                        continue;
+                    }
+                    buf.limit(length);
+                }
+                buf.load();
+                this.windows.put(buf);
+                this.windowCount++;
+                this.bytes += length;
+                position += length;
+            }
+        } catch (IOException ex) {
+            this.failure = ex;
+        } catch (RuntimeException ex) {
+            this.failure = ex;
+        } finally {
+            this.windows.put(LAST_WINDOW);
+            this.readTime = System.nanoTime() - began;
+        }
+    }
+
+    /**
+     * The parser stage: reads the commands of each window into batches of
+     * lines.
+     *
+     * @since 1.0.0
+     * @version 1.0.0
+     */
+    private void parse() {
+        long began = System.nanoTime();
+        ByteTokenizer tok = new ByteTokenizer();
+        Lines lines = this.freeLines.take();
+        try {
+            for (ByteBuffer buf = this.windows.take(); buf != LAST_WINDOW; buf = this.windows.take()) {
+                tok.reset(buf, 0, buf.limit());
+                while (tok.nextLine()) {
+                    this.lineCount++;
+                    BatchCommand command = this.manager.parse(tok, lines.args[lines.size]);
+                    if (command != null) {
+                        lines.commands[lines.size++] = command;
+                        if (lines.size == BATCH_LINES) {
+                            this.parsed.put(lines);
+                            lines = this.freeLines.take();
+                        }
+                    }
+                }
+            }
+        } catch (RuntimeException ex) {
+            this.failure = ex;
+        } finally {
+            lines.last = true;
+            this.parsed.put(lines);
+            this.parseTime = System.nanoTime() - began;
+        }
+    }
+
+    /**
+     * The executor stage: runs each command in turn, gathering the report
+     * lines into chunks for the writer.
+     *
+     * @since 1.0.0
+     * @version 1.0.0
+     */
+    private void execute() {
+        long began = System.nanoTime();
+        ReportSink out = this.freeReports.take();
+        BatchWorkers workers = this.manager.newWorkers();
+        try {
+            boolean last = false;
+            while (!last) {
+                Lines lines = this.parsed.take();
+                for (int i = 0; i < lines.size; i++) {
+                    this.manager.dispatch(lines.commands[i], lines.args[i], out, workers);
+                }
+                this.commandCount += lines.size;
+                last = lines.last;
+                lines.clear();
+                this.freeLines.put(lines);
+                if (out.size() >= REPORT_SIZE) {
+                    this.reports.put(out);
+                    out = this.freeReports.take();
+                }
+            }
+            if (workers != null) {
+                workers.drain(out);
+            }
+        } finally {
+            if (workers != null) {
+                workers.shutdown();
+            }
+            this.reports.put(out);
+            this.reports.put(LAST_REPORT);
+            this.executeTime = System.nanoTime() - began;
+        }
+    }
+
+    /**
+     * The writer stage: prints each chunk of the report.
+     *
+     * @since 1.0.0
+     * @version 1.0.0
+     */
+    private void write() {
+        long began = System.nanoTime();
+        ReportSink stdout = ReportSink.stdout();
+        for (ReportSink chunk = this.reports.take(); chunk != LAST_REPORT; chunk = this.reports.take()) {
+            stdout.append(chunk, 0, chunk.size());
+            this.written += chunk.size();
+            chunk.clear();
+            this.freeReports.put(chunk);
+        }
+        stdout.flush();
+        this.writeTime = System.nanoTime() - began;
+    }
+
+    /**
+     * Prints the throughput of each stage and the depth of its queue.
+     *
+     * @since 1.0.0
+     * @version 1.0.0
+     */
+    private void printStats() {
+        long read = this.readTime - this.windows.getPutWait();
+        long parse = this.parseTime - this.windows.getTakeWait() - this.freeLines.getTakeWait()
+                - this.parsed.getPutWait();
+        long execute = this.executeTime - this.parsed.getTakeWait() - this.freeReports.getTakeWait()
+                - this.reports.getPutWait();
+        long write = this.writeTime - this.reports.getTakeWait() - this.freeReports.getPutWait();
+        System.err.format("Pipeline read: %d windows, %.1f MB in %.1f ms (%.1f MB/s), queue %.1f avg %d max of %d%n",
+                this.windowCount, this.bytes / 1048576.0, read / 1e6, rate(this.bytes / 1048576.0, read),
+                this.windows.getAverageDepth(), this.windows.getMaxDepth(), this.windows.getCapacity());
+        System.err.format("Pipeline parse: %d lines in %.1f ms (%.1f K/s), queue %.1f avg %d max of %d%n",
+                this.lineCount, parse / 1e6, rate(this.lineCount / 1000.0, parse),
+                this.parsed.getAverageDepth(), this.parsed.getMaxDepth(), this.parsed.getCapacity());
+        System.err.format("Pipeline execute: %d commands in %.1f ms (%.1f K/s), queue %.1f avg %d max of %d%n",
+                this.commandCount, execute / 1e6, rate(this.commandCount / 1000.0, execute),
+                this.reports.getAverageDepth(), this.reports.getMaxDepth(), this.reports.getCapacity());
+        System.err.format("Pipeline write: %.1f MB in %.1f ms (%.1f MB/s)%n",
+                this.written / 1048576.0, write / 1e6, rate(this.written / 1048576.0, write));
+    }
+
+    /**
+     * Returns an amount per second.
+     *
+     * @since 1.0.0
+     * @version 1.0.0
+     *
+     * @param amount The amount
+     * @param nanos The time taken in nanoseconds
+     * @return The amount per second
+     */
+    private static double rate(double amount, long nanos) {
+        return amount * 1e9 / Math.max(1, nanos);
+    }
+
+    /**
+     * A batch of parsed lines
+     *
+     * @since 1.0.0
+     * @author 1Rogue
+     * @version 1.0.0
+     */
+    private static final class Lines {
+
+        private final BatchCommand[] commands = new BatchCommand[BATCH_LINES];
+        private final BatchArguments[] args = new BatchArguments[BATCH_LINES];
+        private int size;
+        private boolean last;
+
+        /**
+         * Lines constructor
+         *
+         * @since 1.0.0
+         * @version 1.0.0
+         */
+        Lines() {
+            for (int i = 0; i < BATCH_LINES; i++) {
+                this.args[i] = new BatchArguments();
+            }
+        }
+
+        /**
+         * Empties the batch, ready to be filled again.
+         *
+         * @since 1.0.0
+         * @version 1.0.0
+         */
+        void clear() {
+            this.size = 0;
+            this.last = false;
+        }
+    }
+}
@@ -0,0 +1,287 @@
+/*
+ * Copyright (C) 2013 Spencer Alderman
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.rogue.bank.batch;
+
+import com.rogue.bank.batch.commands.ApplyInterestCommand;
+import com.rogue.bank.batch.commands.CloseCommand;
+import com.rogue.bank.batch.commands.DepositCommand;
+import com.rogue.bank.batch.commands.OpenCommand;
+import com.rogue.bank.batch.commands.WithdrawCommand;
+import com.rogue.bank.control.BankController;
+import com.rogue.bank.util.ReportSink;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+
+/**
+ * A run of batch commands compiled to opcodes. Each command is one opcode,
+ * with its arguments held in primitive operand arrays at the same index,
+ * so running the program reads no text and makes no calls through
+ * {@link BatchCommand}: one loop switches on each opcode and calls the
+ * static operation of its command.
+ *
+ * A program holds a fixed number of commands. Longer batch files are
+ * compiled and run a program at a time, and each program can be written
+ * to and read back from a compiled batch file.
+ *
+ * @since 1.0.0
+ * @author 1Rogue
+ * @version 1.0.0
+ */
+public final class BatchProgram {
+
+    private static final byte OPEN = 1;
+    private static final byte CLOSE = 2;
+    private static final byte DEPOSIT = 3;
+    private static final byte WITHDRAW = 4;
+    private static final byte INTEREST = 5;
+
+    private final byte[] ops;
+    private final byte[] types;
+    private final int[] ids;
+    private final int[] pins;
+    private final double[] amounts;
+    private int size;
+
+    /**
+     * BatchProgram constructor
+     *
+     * @since 1.0.0
+     * @version 1.0.0
+     *
+     * @param capacity The number of commands the program holds
+     */
+    public BatchProgram(int capacity) {
+        this.ops = new byte[capacity];
+        this.types = new byte[capacity];
+        this.ids = new int[capacity];
+        this.pins = new int[capacity];
+        this.amounts = new double[capacity];
+    }
+
+    /**
+     * Adds a command opening an account.
+     *
+     * @since 1.0.0
+     * @version 1.0.0
+     *
+     * @param type The account type character, which must be one byte
+     * @param id The account id
+     * @param pin The account PIN
+     * @param balance The opening balance
+     */
+    public void addOpen(char type, int id, int pin, double balance) {
+        this.types[this.size] = (byte) type;
+        this.pins[this.size] = pin;
+        this.add(OPEN, id, balance);
+    }
+
+    /**
+     * Adds a command closing an account.
+     *
+     * @since 1.0.0
+     * @version 1.0.0
+     *
+     * @param id The account id
+     */
+    public void addClose(int id) {
+        this.add(CLOSE, id, 0);
+    }
+
+    /**
+     * Adds a command depositing into an account.
+     *
+     * @since 1.0.0
+     * @version 1.0.0
+     *
+     * @param id The account id
+     * @param amount The amount to deposit
+     */
+    public void addDeposit(int id, double amount) {
+        this.add(DEPOSIT, id, amount);
+    }
+
+    /**
+     * Adds a command withdrawing from an account.
+     *
+     * @since 1.0.0
+     * @version 1.0.0
+     *
+     * @param id The account id
+     * @param amount The amount to withdraw
+     */
+    public void addWithdraw(int id, double amount) {
+        this.add(WITHDRAW, id, amount);
+    }
+
+    /**
+     * Adds a command compiling interest to all accounts.
+     *
+     * @since 1.0.0
+     * @version 1.0.0
+     */
+    public void addInterest() {
+        this.add(INTEREST, 0, 0);
+    }
+
+    /**
+     * Returns the number of commands in the program.
+     *
+     * @since 1.0.0
+     * @version 1.0.0
+     *
+     * @return The number of commands
+     */
+    public int size() {
+        return this.size;
+    }
+
+    /**
+     * Returns whether the program holds as many commands as it can.
+     *
+     * @since 1.0.0
+     * @version 1.0.0
+     *
+     * @return True if no more commands can be added
+     */
+    public boolean isFull() {
+        return this.size == this.ops.length;
+    }
+
+    /**
+     * Removes every command, ready to compile the next run.
+     *
+     * @since 1.0.0
+     * @version 1.0.0
+     */
+    public void clear() {
+        this.size = 0;
+    }
+
+    /**
+     * Executes every command in order.
+     *
+     * @since 1.0.0
+     * @version 1.0.0
+     *
+     * @param bankController The BankController used in modification
+     * @param out The sink commands report to
+     */
+    public void run(BankController bankController, ReportSink out) {
+        byte[] op = this.ops;
+        int[] id = this.ids;
+        double[] amount = this.amounts;
+        for (int i = 0; i < this.size; i++) {
+            switch (op[i]) {
+                case DEPOSIT:
+                    DepositCommand.deposit(bankController, id[i], amount[i], out);
+                    break;
+                case WITHDRAW:
+                    WithdrawCommand.withdraw(bankController, id[i], amount[i], out);
+                    break;
+                case OPEN:
+                    OpenCommand.open(bankController, (char) (this.types[i] & 0xFF), id[i], this.pins[i], amount[i], out);
+                    break;
+                case CLOSE:
+                    CloseCommand.close(bankController, id[i], out);
+                    break;
+                case INTEREST:
+                    ApplyInterestCommand.applyInterest(bankController, out);
+                    break;
+                default:
+                    throw new IllegalStateException("Unknown opcode " + op[i]);
+            }
+        }
+    }
+
+    /**
+     * Writes the program: the number of commands, then each opcode
+     * followed by only the operands it uses.
+     *
+     * @since 1.0.0
+     * @version 1.0.0
+     *
+     * @param out The stream to write to
+     * @throws IOException If the program could not be written
+     */
+    public void write(DataOutputStream out) throws IOException {
+        out.writeInt(this.size);
+        for (int i = 0; i < this.size; i++) {
+            byte op = this.ops[i];
+            out.writeByte(op);
+            if (op == OPEN) {
+                out.writeByte(this.types[i]);
+                out.writeInt(this.pins[i]);
+            }
+            if (op != INTEREST) {
+                out.writeInt(this.ids[i]);
+            }
+            if (op != INTEREST && op != CLOSE) {
+                out.writeDouble(this.amounts[i]);
+            }
+        }
+    }
+
+    /**
+     * Replaces the commands with a program written by
+     * {@link #write(DataOutputStream)}.
+     *
+     * @since 1.0.0
+     * @version 1.0.0
+     *
+     * @param in The stream to read from
+     * @return The number of commands read
+     * @throws IOException If the program could not be read, or does not fit
+     */
+    public int read(DataInputStream in) throws IOException {
+        int count = in.readInt();
+        if (count < 0 || count > this.ops.length) {
+            throw new IOException("Compiled program of " + count + " commands is too large");
+        }
+        this.clear();
+        for (int i = 0; i < count; i++) {
+            byte op = in.readByte();
+            if (op < OPEN || op > INTEREST) {
+                throw new IOException("Unknown opcode " + op);
+            }
+            if (op == OPEN) {
+                this.types[i] = in.readByte();
+                this.pins[i] = in.readInt();
+            }
+            int id = op != INTEREST ? in.readInt() : 0;
+            double amount = op != INTEREST && op != CLOSE ? in.readDouble() : 0;
+            this.add(op, id, amount);
+        }
+        return count;
+    }
+
+    /**
+     * Adds a command.
+     *
+     * @since 1.0.0
+     * @version 1.0.0
+     *
+     * @param op The opcode
+     * @param id The account id operand
+     * @param amount The amount operand
+     */
+    private void add(byte op, int id, double amount) {
+        this.ops[this.size] = op;
+        this.ids[this.size] = id;
+        this.amounts[this.size++] = amount;
+    }
+}
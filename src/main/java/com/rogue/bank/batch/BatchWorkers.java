@@ -0,0 +1,333 @@
+/*
+ * Copyright (C) 2013 Spencer Alderman
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.rogue.bank.batch;
+
+import com.rogue.bank.control.BankController;
+import com.rogue.bank.util.ReportSink;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Executes batch commands which each touch one account on a pool of
+ * worker threads. Each command is given to the worker chosen by its
+ * account id, and a worker executes its commands in the order they were
+ * added, so the commands on any one account run in batch file order.
+ *
+ * Commands are gathered into blocks. While the workers execute one block
+ * the next is filled, and once a block is done its report lines are
+ * printed in the order the commands were added, so the report reads the
+ * same as one executed a command at a time. A command which may touch any
+ * account must wait for {@link #drain(ReportSink)} before it is executed.
+ * Each worker defers the journal records of its part of a block, and waits
+ * once for them to be durable before the block is done.
+ *
+ * @since 1.0.0
+ * @author 1Rogue
+ * @version 1.0.0
+ */
+class BatchWorkers {
+
+    private static final int BLOCK_SIZE = 4096;
+
+    private final BankController controller;
+    private final ExecutorService pool;
+    private final List<Future<Void>> running = new ArrayList<Future<Void>>();
+    private Block filling;
+    private Block executing;
+    private Block idle;
+
+    /**
+     * BatchWorkers constructor
+     *
+     * @since 1.0.0
+     * @version 1.0.0
+     *
+     * @param controller The BankController commands are executed with
+     * @param threads The number of workers
+     */
+    BatchWorkers(BankController controller, int threads) {
+        this.controller = controller;
+        this.pool = Executors.newFixedThreadPool(threads);
+        this.filling = new Block(threads);
+        this.idle = new Block(threads);
+    }
+
+    /**
+     * Adds a command to be executed by the worker for its account. A
+     * command whose account id cannot be read fails wherever it runs, so
+     * it is given to the first worker.
+     *
+     * @since 1.0.0
+     * @version 1.0.0
+     *
+     * @param command The command, which touches one account
+     * @param args The command arguments, copied before this returns
+     * @param out The sink report lines of earlier blocks are printed to
+     */
+    void add(BatchCommand command, BatchArguments args, ReportSink out) {
+        int worker;
+        try {
+            worker = Math.abs(args.getInt(command.getAccountArgument()) % this.filling.workers.length);
+        } catch (NumberFormatException ex) {
+            worker = 0;
+        }
+        this.filling.add(worker, command, args);
+        if (this.filling.size == BLOCK_SIZE) {
+            this.flush(out);
+        }
+    }
+
+    /**
+     * Waits for every added command to be executed and its report lines
+     * printed.
+     *
+     * @since 1.0.0
+     * @version 1.0.0
+     *
+     * @param out The sink report lines are printed to
+     */
+    void drain(ReportSink out) {
+        this.flush(out);
+        this.finish(out);
+    }
+
+    /**
+     * Stops the workers once they are idle.
+     *
+     * @since 1.0.0
+     * @version 1.0.0
+     */
+    void shutdown() {
+        this.pool.shutdown();
+    }
+
+    /**
+     * Waits for the executing block, then starts the block being filled.
+     *
+     * @since 1.0.0
+     * @version 1.0.0
+     *
+     * @param out The sink report lines are printed to
+     */
+    private void flush(ReportSink out) {
+        this.finish(out);
+        if (this.filling.size == 0) {
+            return;
+        }
+        for (Worker worker : this.filling.workers) {
+            if (worker.size > 0) {
+                this.running.add(this.pool.submit(worker));
+            }
+        }
+        this.executing = this.filling;
+        this.filling = this.idle;
+        this.idle = null;
+    }
+
+    /**
+     * Waits for the executing block and prints its report lines.
+     *
+     * @since 1.0.0
+     * @version 1.0.0
+     *
+     * @param out The sink report lines are printed to
+     * @throws IllegalStateException If interrupted while waiting
+     */
+    private void finish(ReportSink out) {
+        if (this.executing == null) {
+            return;
+        }
+        try {
+            for (Future<Void> future : this.running) {
+                future.get();
+            }
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted executing the batch file");
+        } catch (ExecutionException ex) {
+            if (ex.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) ex.getCause();
+            }
+            if (ex.getCause() instanceof Error) {
+                throw (Error) ex.getCause();
+            }
+            throw new IllegalStateException(ex.getCause());
+        } finally {
+            this.running.clear();
+        }
+        this.executing.print(out);
+        this.executing.clear();
+        this.idle = this.executing;
+        this.executing = null;
+    }
+
+    /**
+     * A block of commands, with the worker each was given to in the order
+     * they were added
+     *
+     * @since 1.0.0
+     * @author 1Rogue
+     * @version 1.0.0
+     */
+    private final class Block {
+
+        private final Worker[] workers;
+        private final int[] owners = new int[BLOCK_SIZE];
+        private int size;
+
+        /**
+         * Block constructor
+         *
+         * @since 1.0.0
+         * @version 1.0.0
+         *
+         * @param threads The number of workers
+         */
+        Block(int threads) {
+            this.workers = new Worker[threads];
+            for (int i = 0; i < threads; i++) {
+                this.workers[i] = new Worker();
+            }
+        }
+
+        /**
+         * Adds a command to a worker.
+         *
+         * @since 1.0.0
+         * @version 1.0.0
+         *
+         * @param worker The worker
+         * @param command The command
+         * @param args The command arguments
+         */
+        void add(int worker, BatchCommand command, BatchArguments args) {
+            this.workers[worker].add(command, args);
+            this.owners[this.size++] = worker;
+        }
+
+        /**
+         * Prints the report lines of every command, in the order they were
+         * added.
+         *
+         * @since 1.0.0
+         * @version 1.0.0
+         *
+         * @param out The sink to print to
+         */
+        void print(ReportSink out) {
+            for (int i = 0; i < this.size; i++) {
+                this.workers[this.owners[i]].print(out);
+            }
+        }
+
+        /**
+         * Empties the block, ready to be filled again.
+         *
+         * @since 1.0.0
+         * @version 1.0.0
+         */
+        void clear() {
+            for (Worker worker : this.workers) {
+                worker.clear();
+            }
+            this.size = 0;
+        }
+    }
+
+    /**
+     * The commands of one worker in a block, and their report lines
+     *
+     * @since 1.0.0
+     * @author 1Rogue
+     * @version 1.0.0
+     */
+    private final class Worker implements Callable<Void> {
+
+        private BatchCommand[] commands = new BatchCommand[16];
+        private BatchArguments[] args = new BatchArguments[16];
+        private int[] ends = new int[16];
+        private int size;
+        private int printed;
+        private final ReportSink lines = new ReportSink();
+
+        /**
+         * Adds a command.
+         *
+         * @since 1.0.0
+         * @version 1.0.0
+         *
+         * @param command The command
+         * @param from The command arguments, which are copied
+         */
+        void add(BatchCommand command, BatchArguments from) {
+            if (this.size == this.commands.length) {
+                this.commands = Arrays.copyOf(this.commands, this.size * 2);
+                this.args = Arrays.copyOf(this.args, this.size * 2);
+                this.ends = Arrays.copyOf(this.ends, this.size * 2);
+            }
+            if (this.args[this.size] == null) {
+                this.args[this.size] = new BatchArguments();
+            }
+            this.args[this.size].copy(from);
+            this.commands[this.size++] = command;
+        }
+
+        public Void call() {
+            controller.startDeferring();
+            try {
+                for (int i = 0; i < this.size; i++) {
+                    this.commands[i].execute(controller, this.args[i], this.lines);
+                    this.ends[i] = this.lines.size();
+                }
+            } finally {
+                controller.stopDeferring();
+            }
+            return null;
+        }
+
+        /**
+         * Prints the report lines of the next command not yet printed.
+         *
+         * @since 1.0.0
+         * @version 1.0.0
+         *
+         * @param out The sink to print to
+         */
+        void print(ReportSink out) {
+            int start = this.printed == 0 ? 0 : this.ends[this.printed - 1];
+            out.append(this.lines, start, this.ends[this.printed++]);
+        }
+
+        /**
+         * Empties the worker, ready for the next block.
+         *
+         * @since 1.0.0
+         * @version 1.0.0
+         */
+        void clear() {
+            this.size = 0;
+            this.printed = 0;
+            this.lines.clear();
+        }
+    }
+}
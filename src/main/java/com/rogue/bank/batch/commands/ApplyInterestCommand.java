@@ -16,40 +16,65 @@
  */
 package com.rogue.bank.batch.commands;
 
+import com.rogue.bank.batch.BatchArguments;
 import com.rogue.bank.batch.BatchCommand;
+import com.rogue.bank.batch.BatchProgram;
 import com.rogue.bank.control.BankController;
 import com.rogue.bank.data.Account;
+import com.rogue.bank.data.AccountStore;
+import com.rogue.bank.data.InterestKernel;
+import com.rogue.bank.util.ReportSink;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
 
 /**
  * Command for compiling interest and penalties to all accounts.
  *
+ * Accounts are taken in id order from the slots of the bank's
+ * {@link AccountStore}, sorted by the id column, and large banks are split
+ * into runs of slots which are compiled in parallel on a shared
+ * {@link ForkJoinPool} of {@code bank.interest.threads} threads. Each run formats its own lines of
+ * the report, and the runs are printed in order, so the report reads the
+ * same as one compiled an account at a time. Within a run, balances are
+ * compiled an account at a time, or with {@code bank.interest.kernel} set,
+ * a type at a time by an {@link InterestKernel} reading the store's
+ * columns. The journal records of each run are deferred, and waited for
+ * once the run is done.
+ *
+ * With {@code bank.interest.lazy} set, the command only starts a new
+ * interest period, which each account compiles when it is next used, and
+ * the report lists no accounts.
+ *
  * @since 1.0.0
  * @author Robert Carmosino
  * @version 1.0.0
  */
 public class ApplyInterestCommand implements BatchCommand {
 
+    private static final int THREADS = Integer.getInteger("bank.interest.threads",
+            Runtime.getRuntime().availableProcessors());
+    private static final int CHUNK_SIZE = 4096;
+    private static final boolean LAZY = Boolean.getBoolean("bank.interest.lazy");
+    private static final boolean KERNEL = Boolean.getBoolean("bank.interest.kernel");
+    private static ForkJoinPool pool;
+
     public boolean execute(BankController bankController, String[] args) {
-        System.out.println();
-        System.out.println("============== Interest Report ==============");
-        System.out.println("Account Adjustment      New Balance");
-        System.out.println("------- -----------     -----------");
-
-        List<Account> accounts = new ArrayList<Account>(bankController.getAccounts());
-        Collections.sort(accounts);
-        for (Account account : accounts) {
-            double prevBalance = account.getBalance();
-            double newBalance = account.compileInterest();
-            double diff = newBalance - prevBalance;
-            System.out.format("%-7d $ %9.2f     $ %9.2f", account.getID(), diff, account.getBalance());
-            System.out.println();
-        }
-
-        System.out.println("=============================================");
-        System.out.println();
+        ReportSink out = ReportSink.stdout();
+        boolean executed = this.execute(bankController, BatchArguments.of(args), out);
+        out.flush();
+        return executed;
+    }
+
+    public boolean execute(BankController bankController, BatchArguments args, ReportSink out) {
+        applyInterest(bankController, out);
+        return true;
+    }
+
+    public boolean compile(BatchArguments args, BatchProgram program) {
+        program.addInterest();
         return true;
     }
 
@@ -57,4 +82,186 @@ public class ApplyInterestCommand implements BatchCommand {
         return 'a';
     }
 
+    public int getAccountArgument() {
+        return -1;
+    }
+
+    /**
+     * Compiles interest and penalties to all accounts and reports each
+     * adjustment.
+     *
+     * @since 1.0.0
+     * @version 1.0.0
+     *
+     * @param bankController The BankController used in modification.
+     * @param out The sink the command reports to.
+     */
+    public static void applyInterest(BankController bankController, ReportSink out) {
+        out.newline().text("============== Interest Report ==============").newline();
+        if (LAZY) {
+            if (bankController.accrueInterest()) {
+                out.text("Interest accrues to each account when next used").newline();
+                out.text("=============================================").newline().newline();
+                return;
+            }
+            System.err.println("Warning: bank.interest.lazy needs every account loaded, compiling interest now");
+        }
+        out.text("Account Adjustment      New Balance").newline();
+        out.text("------- -----------     -----------").newline();
+
+        AccountStore store = bankController.getAccountStore();
+        ReportTask task;
+        if (store != null) {
+            int[] slots = store.slotsById();
+            task = new ReportTask(bankController, store, slots, null, 0, slots.length);
+        } else {
+            List<Account> accounts = new ArrayList<Account>(bankController.getAccounts());
+            Collections.sort(accounts);
+            task = new ReportTask(bankController, null, null, accounts, 0, accounts.size());
+        }
+        List<ReportSink> report;
+        if (task.end <= CHUNK_SIZE || THREADS <= 1) {
+            report = task.compute();
+        } else {
+            report = pool().invoke(task);
+        }
+        for (ReportSink lines : report) {
+            out.append(lines, 0, lines.size());
+        }
+
+        out.text("=============================================").newline().newline();
+    }
+
+    /**
+     * Returns the pool interest is compiled on, made the first time a bank
+     * too large for one chunk compiles interest and kept for every later
+     * interest command. Its threads are daemons, so it is never shut down.
+     *
+     * @since 1.0.0
+     * @version 1.0.0
+     *
+     * @return The pool
+     */
+    private static synchronized ForkJoinPool pool() {
+        if (pool == null) {
+            pool = new ForkJoinPool(THREADS);
+        }
+        return pool;
+    }
+
+    /**
+     * Compiles interest on a run of accounts, splitting it in two while it
+     * is larger than the chunk size. The result holds the report lines of
+     * each chunk, in account order. The accounts are slots of a store, or
+     * for a bank loaded through a cache, a list.
+     *
+     * @since 1.0.0
+     * @author 1Rogue
+     * @version 1.0.0
+     */
+    private static class ReportTask extends RecursiveTask<List<ReportSink>> {
+
+        private static final long serialVersionUID = 1L;
+
+        private final BankController controller;
+        private final AccountStore store;
+        private final int[] slots;
+        private final List<Account> accounts;
+        private final int start;
+        private final int end;
+
+        /**
+         * ReportTask constructor
+         *
+         * @since 1.0.0
+         * @version 1.0.0
+         *
+         * @param controller The BankController journaling the changes
+         * @param store The store holding the accounts, or null
+         * @param slots The slots of the store, sorted by id, or null
+         * @param accounts The accounts sorted by id, if there is no store
+         * @param start The first account of the run
+         * @param end The account after the last of the run
+         */
+        ReportTask(BankController controller, AccountStore store, int[] slots, List<Account> accounts, int start, int end) {
+            this.controller = controller;
+            this.store = store;
+            this.slots = slots;
+            this.accounts = accounts;
+            this.start = start;
+            this.end = end;
+        }
+
+        /**
+         * Makes a task for part of this run.
+         *
+         * @since 1.0.0
+         * @version 1.0.0
+         *
+         * @param from The first account of the part
+         * @param to The account after the last of the part
+         * @return The task
+         */
+        private ReportTask part(int from, int to) {
+            return new ReportTask(this.controller, this.store, this.slots, this.accounts, from, to);
+        }
+
+        @Override
+        protected List<ReportSink> compute() {
+            if (this.end - this.start <= CHUNK_SIZE) {
+                List<ReportSink> report = new ArrayList<ReportSink>();
+                report.add(this.compile());
+                return report;
+            }
+            int mid = (this.start + this.end) >>> 1;
+            ReportTask later = this.part(mid, this.end);
+            later.fork();
+            List<ReportSink> report = this.part(this.start, mid).compute();
+            report.addAll(later.join());
+            return report;
+        }
+
+        /**
+         * Compiles interest on every account of the run.
+         *
+         * @since 1.0.0
+         * @version 1.0.0
+         *
+         * @return The report lines for the run
+         */
+        private ReportSink compile() {
+            int n = this.end - this.start;
+            long[] before = new long[n];
+            long[] after = new long[n];
+            this.controller.startDeferring();
+            try {
+                if (KERNEL && this.store != null) {
+                    InterestKernel.compile(this.store, this.slots, this.start, this.end, before, after);
+                } else {
+                    for (int i = 0; i < n; i++) {
+                        Account account = this.store != null ? this.store.view(this.slots[this.start + i])
+                                : this.accounts.get(this.start + i);
+                        if (account != null) {
+                            before[i] = account.getCents();
+                            account.compileInterest();
+                            after[i] = account.getCents();
+                        }
+                    }
+                }
+            } finally {
+                this.controller.stopDeferring();
+            }
+            ReportSink lines = new ReportSink(null, n * 40);
+            for (int i = 0; i < n; i++) {
+                int k = this.start + i;
+                double prevBalance = before[i] / 100.0;
+                double newBalance = after[i] / 100.0;
+                double diff = newBalance - prevBalance;
+                int id = this.store != null ? this.store.getId(this.slots[k]) : this.accounts.get(k).getID();
+                lines.left(id, 7).text(" $ ").money(diff, 9).text("     $ ").money(newBalance, 9).newline();
+            }
+            return lines;
+        }
+    }
+
 }
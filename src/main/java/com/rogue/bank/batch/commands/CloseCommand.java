@@ -16,9 +16,12 @@
  */
 package com.rogue.bank.batch.commands;
 
+import com.rogue.bank.batch.BatchArguments;
 import com.rogue.bank.batch.BatchCommand;
+import com.rogue.bank.batch.BatchProgram;
 import com.rogue.bank.control.BankController;
 import com.rogue.bank.data.Account;
+import com.rogue.bank.util.ReportSink;
 
 /**
  * Command for closing an account.
@@ -30,23 +33,56 @@ import com.rogue.bank.data.Account;
 public class CloseCommand implements BatchCommand {
 
     public boolean execute(BankController bankController, String[] args) {
+        ReportSink out = ReportSink.stdout();
+        boolean executed = this.execute(bankController, BatchArguments.of(args), out);
+        out.flush();
+        return executed;
+    }
+
+    public boolean execute(BankController bankController, BatchArguments args, ReportSink out) {
+        try {
+            close(bankController, args.getInt(0), out);
+            return true;
+        } catch (NumberFormatException e) {
+            return false;
+        }
+    }
+
+    public boolean compile(BatchArguments args, BatchProgram program) {
         try {
-            int id = Integer.valueOf(args[0]);
-            Account account = bankController.deleteAccount(id);
-            if (account != null) {
-                System.out.format("%-7d c       Closed: Success $ %9.2f", id, account.getBalance());
-            } else {
-                System.out.format("%-7d o       Closed: Failed", id);
-            }
-            System.out.println();
+            program.addClose(args.getInt(0));
             return true;
         } catch (NumberFormatException e) {
             return false;
         }
     }
 
+    /**
+     * Closes an account and reports its final balance.
+     * 
+     * @since 1.0.0
+     * @version 1.0.0
+     * 
+     * @param bankController The BankController used in modification.
+     * @param id The account id.
+     * @param out The sink the command reports to.
+     */
+    public static void close(BankController bankController, int id, ReportSink out) {
+        Account account = bankController.deleteAccount(id);
+        if (account != null) {
+            out.left(id, 7).text(" c       Closed: Success $ ").money(account.getBalance(), 9);
+        } else {
+            out.left(id, 7).text(" o       Closed: Failed");
+        }
+        out.newline();
+    }
+
     public char getChar() {
         return 'c';
     }
 
+    public int getAccountArgument() {
+        return 0;
+    }
+
 }
@@ -16,8 +16,11 @@
  */
 package com.rogue.bank.batch.commands;
 
+import com.rogue.bank.batch.BatchArguments;
 import com.rogue.bank.batch.BatchCommand;
+import com.rogue.bank.batch.BatchProgram;
 import com.rogue.bank.control.BankController;
+import com.rogue.bank.util.ReportSink;
 
 /**
  * Command for opening an account.
@@ -29,30 +32,63 @@ import com.rogue.bank.control.BankController;
 public class OpenCommand implements BatchCommand {
 
     public boolean execute(BankController bankController, String[] args) {
+        ReportSink out = ReportSink.stdout();
+        boolean executed = this.execute(bankController, BatchArguments.of(args), out);
+        out.flush();
+        return executed;
+    }
+
+    public boolean execute(BankController bankController, BatchArguments args, ReportSink out) {
+        try {
+            open(bankController, args.getChar(0), args.getInt(1), args.getInt(2), args.getDouble(3), out);
+            return true;
+        } catch (NumberFormatException e) {
+            return false;
+        }
+    }
+
+    public boolean compile(BatchArguments args, BatchProgram program) {
         try {
-            char c = args[0].charAt(0);
-            int id = Integer.valueOf(args[1]);
-            int pin = Integer.valueOf(args[2]);
-            double balance = Double.valueOf(args[3]);
-            boolean success;
-            try {
-                success = bankController.createAccount(c, id, pin, balance);
-            } catch (Exception e) {
-                success = false;
-            }
-            if (success) {
-                System.out.format("%-7d o   " + c + "   Open: Success   $ %9.2f", id, balance);
-            } else {
-                System.out.format("%-7d o   " + c + "   Open: Failed", id);
-            }
-            System.out.println();
+            program.addOpen(args.getChar(0), args.getInt(1), args.getInt(2), args.getDouble(3));
             return true;
         } catch (NumberFormatException e) {
             return false;
         }
     }
 
+    /**
+     * Opens an account and reports whether it was opened.
+     * 
+     * @since 1.0.0
+     * @version 1.0.0
+     * 
+     * @param bankController The BankController used in modification.
+     * @param c The account type character.
+     * @param id The account id.
+     * @param pin The account PIN.
+     * @param balance The opening balance.
+     * @param out The sink the command reports to.
+     */
+    public static void open(BankController bankController, char c, int id, int pin, double balance, ReportSink out) {
+        boolean success;
+        try {
+            success = bankController.createAccount(c, id, pin, balance);
+        } catch (Exception e) {
+            success = false;
+        }
+        if (success) {
+            out.left(id, 7).text(" o   ").text(c).text("   Open: Success   $ ").money(balance, 9);
+        } else {
+            out.left(id, 7).text(" o   ").text(c).text("   Open: Failed");
+        }
+        out.newline();
+    }
+
     public char getChar() {
         return 'o';
     }
+
+    public int getAccountArgument() {
+        return 1;
+    }
 }
@@ -16,9 +16,12 @@
  */
 package com.rogue.bank.batch.commands;
 
+import com.rogue.bank.batch.BatchArguments;
 import com.rogue.bank.batch.BatchCommand;
+import com.rogue.bank.batch.BatchProgram;
 import com.rogue.bank.control.BankController;
 import com.rogue.bank.data.Account;
+import com.rogue.bank.util.ReportSink;
 
 /**
  * Command for withdrawing from an an account.
@@ -30,25 +33,57 @@ import com.rogue.bank.data.Account;
 public class WithdrawCommand implements BatchCommand {
 
     public boolean execute(BankController bankController, String[] args) {
+        ReportSink out = ReportSink.stdout();
+        boolean executed = this.execute(bankController, BatchArguments.of(args), out);
+        out.flush();
+        return executed;
+    }
+
+    public boolean execute(BankController bankController, BatchArguments args, ReportSink out) {
+        try {
+            withdraw(bankController, args.getInt(0), args.getDouble(1), out);
+            return true;
+        } catch (NumberFormatException e) {
+            return false;
+        }
+    }
+
+    public boolean compile(BatchArguments args, BatchProgram program) {
         try {
-            int id = Integer.valueOf(args[0]);
-            double amount = Double.valueOf(args[1]);
-            Account account = bankController.getAccount(id);
-            if (account != null && account.canWithdraw(amount)) {
-                account.withdraw(amount);
-                System.out.format("%-7d w       $ %9.2f     $ %9.2f", id, amount, account.getBalance());
-            } else {
-                System.out.format("%-7d w       $ %9.2f     Failed", id, amount);
-            }
-            System.out.println();
+            program.addWithdraw(args.getInt(0), args.getDouble(1));
             return true;
         } catch (NumberFormatException e) {
             return false;
         }
     }
 
+    /**
+     * Withdraws from an account and reports the new balance.
+     *
+     * @since 1.0.0
+     * @version 1.0.0
+     *
+     * @param bankController The BankController used in modification.
+     * @param id The account id.
+     * @param amount The amount to withdraw.
+     * @param out The sink the command reports to.
+     */
+    public static void withdraw(BankController bankController, int id, double amount, ReportSink out) {
+        Account account = bankController.getAccount(id);
+        if (account != null && account.tryWithdraw(amount)) {
+            out.left(id, 7).text(" w       $ ").money(amount, 9).text("     $ ").money(account.getBalance(), 9);
+        } else {
+            out.left(id, 7).text(" w       $ ").money(amount, 9).text("     Failed");
+        }
+        out.newline();
+    }
+
     public char getChar() {
         return 'w';
     }
 
+    public int getAccountArgument() {
+        return 0;
+    }
+
 }
@@ -18,10 +18,11 @@ package com.rogue.bank.control;
 
 import com.rogue.bank.Bank;
 import com.rogue.bank.data.Account;
+import com.rogue.bank.data.AccountListener;
+import com.rogue.bank.data.AccountStore;
 import com.rogue.bank.data.UpdatePacket;
 import java.util.Collection;
-import java.util.Observable;
-import java.util.Observer;
+import javax.swing.SwingUtilities;
 
 /**
  * Controls interactions for the Bank
@@ -30,7 +31,7 @@ import java.util.Observer;
  * @author 1Rogue
  * @version 1.0.0
  */
-public class BankController implements Observer {
+public class BankController implements AccountListener {
 
     private final Bank project;
 
@@ -91,7 +92,7 @@ public class BankController implements Observer {
      * @param id The id to access the Account of
      * @return The Account with a given id
      */
-    public synchronized Account getAccount(int id) {
+    public Account getAccount(int id) {
         return this.project.getDataManager().getAccount(id);
     }
 
@@ -103,10 +104,60 @@ public class BankController implements Observer {
      *
      * @return A Collection of all loaded Accounts.
      */
-    public synchronized Collection<Account> getAccounts() {
+    public Collection<Account> getAccounts() {
         return this.project.getDataManager().getAccounts();
     }
 
+    /**
+     * Returns the store holding every account, which whole-bank passes read
+     * a slot at a time instead of viewing each account.
+     *
+     * @since 1.0.0
+     * @version 1.0.0
+     *
+     * @return The {@link AccountStore}, or null if accounts are loaded
+     *         through a cache
+     */
+    public AccountStore getAccountStore() {
+        return this.project.getDataManager().getAccountStore();
+    }
+
+    /**
+     * Starts a new interest period, compiled into each account when it is
+     * next used.
+     *
+     * @since 1.0.0
+     * @version 1.0.0
+     *
+     * @return False if interest can not accrue and must be compiled now
+     */
+    public boolean accrueInterest() {
+        return this.project.getDataManager().accrueInterest();
+    }
+
+    /**
+     * Starts deferring the journal records of changes made on the current
+     * thread, so a run of changes waits for the disk once instead of once
+     * per change. Each call must be matched by {@link #stopDeferring()}.
+     *
+     * @since 1.0.0
+     * @version 1.0.0
+     */
+    public void startDeferring() {
+        this.project.getDataManager().getJournal().startDeferring();
+    }
+
+    /**
+     * Waits until the changes deferred on the current thread are durable,
+     * and ends the deferral.
+     *
+     * @since 1.0.0
+     * @version 1.0.0
+     */
+    public void stopDeferring() {
+        this.project.getDataManager().getJournal().stopDeferring();
+    }
+
     /**
      * Creates an account with given parameters
      *
@@ -119,8 +170,8 @@ public class BankController implements Observer {
      * @param bal The account balance
      * @return If the account was successfully created
      */
-    public synchronized boolean createAccount(char acc, int aid, int pin, double bal) {
-        if (this.validAccount(aid)) {
+    public boolean createAccount(char acc, int aid, int pin, double bal) {
+        if (this.validAccount(aid) || !Account.inRange(bal)) {
             return false;
         } else {
             Account account = this.project.getDataManager().makeAccount(acc, aid, pin, bal);
@@ -141,7 +192,7 @@ public class BankController implements Observer {
      * @param id The id of the account to delete
      * @return If the account was found and deleted
      */
-    public synchronized Account deleteAccount(int id) {
+    public Account deleteAccount(int id) {
         return this.project.getDataManager().unregisterAccount(id);
     }
 
@@ -155,14 +206,8 @@ public class BankController implements Observer {
      * @param amount The amount to deposit
      * @return If the deposit was successful
      */
-    public synchronized boolean deposit(Session sess, double amount) {
-        Account acc = sess.getAccount();
-        if (acc.canDeposit(amount)) {
-            acc.deposit(amount);
-            return true;
-        } else {
-            return false;
-        }
+    public boolean deposit(Session sess, double amount) {
+        return sess.getAccount().tryDeposit(amount);
     }
 
     /**
@@ -174,7 +219,7 @@ public class BankController implements Observer {
      * @param sess The session relevant to this transaction
      * @return The current {@link Account} balance
      */
-    public synchronized double getBalance(Session sess) {
+    public double getBalance(Session sess) {
         return sess.getAccount().getBalance();
     }
 
@@ -188,24 +233,21 @@ public class BankController implements Observer {
      * @param amount The amount of money to withdraw
      * @return True if withdrawn, false if invalid amount or prevented
      */
-    public synchronized boolean withdraw(Session sess, double amount) {
-        Account acc = sess.getAccount();
-        if (acc.canWithdraw(amount)) {
-            acc.withdraw(amount);
-            return true;
-        } else {
-            return false;
-        }
+    public boolean withdraw(Session sess, double amount) {
+        return sess.getAccount().tryWithdraw(amount);
     }
 
-    public void update(Observable o, Object arg) {
-        if (!(o instanceof Account) || !(arg instanceof UpdatePacket)) {
+    public void accountChanged(final Account account, final UpdatePacket type, long cents) {
+        if (this.project.getGUIManager() == null) {
             return;
         }
+        SwingUtilities.invokeLater(new Runnable() {
+
+            public void run() {
+                project.getGUIManager().getBankFrame().updateAccount(account, type);
+            }
 
-        Account acc = (Account) o;
-        UpdatePacket packet = (UpdatePacket) arg;
-        this.project.getGUIManager().getBankFrame().updateAccount(acc, packet);
+        });
     }
 
 }
@@ -16,24 +16,48 @@
  */
 package com.rogue.bank.data;
 
-import java.util.Observable;
-
 /**
  * Account superclass
  *
+ * An account is a view of one slot of an {@link AccountStore}, which holds
+ * the id, PIN and balance; the subclass only supplies the behaviour of the
+ * account type. Two views of the same slot are equal.
+ *
+ * Balances are held in cents and changed with compare-and-set, so checking
+ * and applying a change is a single atomic step and no lock is taken. The
+ * balance shares its word with the {@link Snapshot} epoch it was last
+ * changed in: the low 44 bits hold the cents (up to about $87 billion
+ * either way), the high 20 bits the epoch. The first change in a new epoch
+ * publishes the balance it replaced as a pre-image for the open snapshot.
+ * Deposits and withdrawals of amounts outside that range, or which would
+ * take the balance outside it, fail and leave the balance alone.
+ *
+ * Changes are published to the {@link EventBus} of the store the account is
+ * held in, if any, until the account is closed.
+ *
+ * Interest periods started by the store are compiled into the balance the
+ * first time it is read or changed after they start, so the balance is
+ * always as if each period had been compiled when it began.
+ *
  * @since 1.0.0
  * @author 1Rogue
  * @author CrypticStorm
  * @version 1.0.0
  */
-public abstract class Account extends Observable implements Comparable<Account> {
+public abstract class Account implements Comparable<Account> {
+
+    private static final int CENTS_BITS = 44;
+    private static final long CENTS_LIMIT = 1L << (CENTS_BITS - 1);
+    private static final int EPOCH_MASK = (1 << (64 - CENTS_BITS)) - 1;
 
-    protected final int id;
-    protected final int pin;
-    protected double balance;
+    private final AccountPage page;
+    private final int slot;
 
     /**
-     * Account constructor
+     * Account constructor, for an account held in a store of its own. The
+     * store costs about 300 bytes more than a slot of a bank's store; see
+     * {@link AccountStore#add(char, int, int, double)} for accounts made in
+     * bulk.
      *
      * @since 1.0.0
      * @version 1.0.0
@@ -43,13 +67,42 @@ public abstract class Account extends Observable implements Comparable<Account>
      * @param balance Account balance (Non-negative)
      */
     protected Account(final int id, final int pin, double balance) {
-        this.id = id;
-        this.pin = pin;
-        this.balance = balance;
+        AccountStore store = AccountStore.single();
+        int at = store.append(AccountStore.tag(this.getDisplayCharacter()), id, pin, toCents(balance));
+        this.page = store.page(at);
+        this.slot = store.offset(at);
+    }
+
+    /**
+     * Account constructor, for a view of a slot of a store
+     *
+     * @since 1.0.0
+     * @version 1.0.0
+     *
+     * @param store The store holding the account
+     * @param slot The slot the account is held in
+     */
+    protected Account(final AccountStore store, final int slot) {
+        this.page = store.page(slot);
+        this.slot = store.offset(slot);
     }
 
     public int compareTo(Account other) {
-        return this.id - other.id;
+        return this.getID() - other.getID();
+    }
+
+    @Override
+    public boolean equals(Object other) {
+        if (!(other instanceof Account)) {
+            return false;
+        }
+        Account account = (Account) other;
+        return this.page == account.page && this.slot == account.slot;
+    }
+
+    @Override
+    public int hashCode() {
+        return this.getID();
     }
 
     /**
@@ -61,7 +114,7 @@ public abstract class Account extends Observable implements Comparable<Account>
      * @return Account ID number
      */
     public final int getID() {
-        return this.id;
+        return this.page.getId(this.slot);
     }
 
     /**
@@ -73,7 +126,7 @@ public abstract class Account extends Observable implements Comparable<Account>
      * @return Account PIN number
      */
     public final int getPIN() {
-        return this.pin;
+        return this.page.getPin(this.slot);
     }
 
     /**
@@ -85,7 +138,19 @@ public abstract class Account extends Observable implements Comparable<Account>
      * @return Account balance
      */
     public final double getBalance() {
-        return this.balance;
+        return this.getCents() / 100.0;
+    }
+
+    /**
+     * Returns the Account balance in cents.
+     *
+     * @since 1.0.0
+     * @version 1.0.0
+     *
+     * @return Account balance in cents
+     */
+    public final long getCents() {
+        return cents(this.state());
     }
 
     /**
@@ -98,7 +163,7 @@ public abstract class Account extends Observable implements Comparable<Account>
      * @return If this account can deposit the given amount.
      */
     public boolean canDeposit(final double amount) {
-        return amount >= 0;
+        return amount >= 0 && inRange(amount);
     }
 
     /**
@@ -109,12 +174,48 @@ public abstract class Account extends Observable implements Comparable<Account>
      *
      * @param amount The amount to deposit.
      * @return The new account balance.
+     * @throws ArithmeticException If the amount or the new balance is out
+     *                             of range; use {@link #tryDeposit(double)}
+     *                             to fail instead
      */
     public final double deposit(final double amount) {
-        this.balance += amount;
-        this.setChanged();
-        this.notifyObservers(this.balance);
-        return this.balance;
+        long delta = toCents(amount);
+        long s;
+        long cents;
+        do {
+            s = this.state();
+            cents = add(cents(s), delta);
+        } while (!this.commit(s, cents));
+        return this.changed(cents);
+    }
+
+    /**
+     * Deposits a given value into an account if it can be deposited, and
+     * the new balance is in range. The check and the deposit are one atomic
+     * step.
+     *
+     * @since 1.0.0
+     * @version 1.0.0
+     *
+     * @param amount The amount to deposit.
+     * @return If the amount was deposited.
+     */
+    public final boolean tryDeposit(final double amount) {
+        if (!this.canDeposit(amount)) {
+            return false;
+        }
+        long delta = toCents(amount);
+        long s;
+        long cents;
+        do {
+            s = this.state();
+            cents = cents(s) + delta;
+            if (!inRange(cents)) {
+                return false;
+            }
+        } while (!this.commit(s, cents));
+        this.changed(cents);
+        return true;
     }
 
     /**
@@ -127,7 +228,22 @@ public abstract class Account extends Observable implements Comparable<Account>
      * @return If this account can withdraw the given amount.
      */
     public boolean canWithdraw(final double amount) {
-        return amount >= 0 && amount <= this.balance;
+        return inRange(amount) && this.canWithdraw(this.getCents(), toCents(amount));
+    }
+
+    /**
+     * Return if an account with the given balance can withdraw the given
+     * amount. Defined by individual account type.
+     *
+     * @since 1.0.0
+     * @version 1.0.0
+     *
+     * @param balance The balance in cents
+     * @param amount The amount to withdraw in cents
+     * @return If the amount can be withdrawn
+     */
+    protected boolean canWithdraw(final long balance, final long amount) {
+        return amount >= 0 && amount <= balance;
     }
 
     /**
@@ -140,10 +256,39 @@ public abstract class Account extends Observable implements Comparable<Account>
      * @return The new account balance.
      */
     public final double withdraw(final double amount) {
-        this.balance -= amount;
-        this.setChanged();
-        this.notifyObservers(this.balance);
-        return this.balance;
+        return this.deposit(-amount);
+    }
+
+    /**
+     * Withdraws a given value from an account if it can be withdrawn. The
+     * check and the withdrawal are one atomic step, so concurrent
+     * withdrawals can not overdraw the account.
+     *
+     * @since 1.0.0
+     * @version 1.0.0
+     *
+     * @param amount The amount to withdraw.
+     * @return If the amount was withdrawn.
+     */
+    public final boolean tryWithdraw(final double amount) {
+        if (!inRange(amount)) {
+            return false;
+        }
+        long delta = toCents(amount);
+        long s;
+        long cents;
+        do {
+            s = this.state();
+            if (!this.canWithdraw(cents(s), delta)) {
+                return false;
+            }
+            cents = cents(s) - delta;
+            if (!inRange(cents)) {
+                return false;
+            }
+        } while (!this.commit(s, cents));
+        this.changed(cents);
+        return true;
     }
 
     /**
@@ -180,15 +325,27 @@ public abstract class Account extends Observable implements Comparable<Account>
     public abstract double getMinimumBalance();
 
     /**
-     * Returns the monthly interest rate for an account. Defined by individual
-     * account type.
+     * Returns the monthly interest rate for an account.
      *
      * @since 1.0.0
      * @version 1.0.0
      *
      * @return the monthly interest rate.
      */
-    public abstract double getMonthlyInterestRate();
+    public double getMonthlyInterestRate() {
+        return this.getInterestRule().getRate();
+    }
+
+    /**
+     * Returns the monthly interest and fees for an account. Defined by
+     * individual account type, and the same for every account of a type.
+     *
+     * @since 1.0.0
+     * @version 1.0.0
+     *
+     * @return the interest rule.
+     */
+    public abstract InterestRule getInterestRule();
 
     /**
      * Compiles interest on an account. Responsible for monthly fees.
@@ -198,11 +355,370 @@ public abstract class Account extends Observable implements Comparable<Account>
      *
      * @return the new account balance.
      */
-    public double compileInterest() {
-        this.balance += this.balance * this.getMonthlyInterestRate();
-        this.setChanged();
-        this.notifyObservers(this.balance);
-        return this.balance;
+    public final double compileInterest() {
+        long s;
+        long cents;
+        do {
+            s = this.state();
+            cents = this.applyInterest(cents(s));
+            if (cents == cents(s)) {
+                return cents / 100.0;
+            }
+        } while (!this.commit(s, cents));
+        return this.changed(cents);
+    }
+
+    /**
+     * Sets the balance compiled for this account by an
+     * {@link InterestKernel}, unless it has changed since it was read.
+     *
+     * @since 1.0.0
+     * @version 1.0.0
+     *
+     * @param state The state word the balance was compiled from
+     * @param cents The new balance in cents
+     * @return False if the balance had changed, and was left alone
+     * @throws ArithmeticException If the new balance is out of range
+     */
+    final boolean compileInterest(long state, long cents) {
+        check(cents);
+        if (cents == cents(state)) {
+            return this.page.getState(this.slot) == state;
+        }
+        if (!this.commit(state, cents)) {
+            return false;
+        }
+        this.changed(cents);
+        return true;
+    }
+
+    /**
+     * Returns the balance after a month of interest and fees, by the
+     * {@link InterestRule} of the account type.
+     *
+     * @since 1.0.0
+     * @version 1.0.0
+     *
+     * @param balance The balance in cents
+     * @return The new balance in cents
+     */
+    protected final long applyInterest(final long balance) {
+        return check(this.getInterestRule().apply(balance));
+    }
+
+    /**
+     * Sets the account balance without notifying observers. Used when
+     * replaying the journal at load time.
+     *
+     * @since 1.0.0
+     * @version 1.0.0
+     *
+     * @param balance The restored account balance
+     */
+    final void restoreBalance(final double balance) {
+        this.page.setPeriod(this.slot, this.page.store.getPeriod());
+        long s;
+        do {
+            s = this.page.getState(this.slot);
+        } while (!this.page.compareAndSetState(this.slot, s, pack(epoch(s), toCents(balance))));
+    }
+
+    /**
+     * Returns the state word, first compiling any interest periods the
+     * store has started since the balance was last brought up to date.
+     *
+     * @since 1.0.0
+     * @version 1.0.0
+     *
+     * @return The state word
+     */
+    private long state() {
+        int period = this.page.store.getPeriod();
+        // the period is written after the balance it was compiled into
+        if (this.page.getPeriod(this.slot) == period) {
+            return this.page.getState(this.slot);
+        }
+        return this.accrue(period);
+    }
+
+    /**
+     * Compiles the interest periods an account has missed, one period at a
+     * time as if each had been compiled when it began, so fees below the
+     * minimum balance are charged for every period they apply to. A period
+     * that leaves the balance unchanged leaves every later one unchanged
+     * too, so compiling stops there.
+     *
+     * Accounts only accrue when first used in a new period, so one lock per
+     * page is held while they do.
+     *
+     * @since 1.0.0
+     * @version 1.0.0
+     *
+     * @param period The interest period to bring the balance up to
+     * @return The new state word
+     */
+    private long accrue(int period) {
+        synchronized (this.page) {
+            int from = this.page.getPeriod(this.slot);
+            while (from - period < 0) {
+                long s = this.page.getState(this.slot);
+                long cents = cents(s);
+                for (int n = from; n != period; n++) {
+                    long next = this.applyInterest(cents);
+                    if (next == cents) {
+                        break;
+                    }
+                    cents = next;
+                }
+                if (cents == cents(s) || this.commit(s, cents)) {
+                    this.page.setPeriod(this.slot, period);
+                    break;
+                }
+            }
+            return this.page.getState(this.slot);
+        }
+    }
+
+    /**
+     * Returns the balance this account had when a {@link Snapshot} epoch
+     * began. The account is sealed into the epoch as it is read, so a change
+     * racing the read either lands before it or is kept out of the snapshot.
+     *
+     * @since 1.0.0
+     * @version 1.0.0
+     *
+     * @param epoch The snapshot epoch
+     * @return The balance in cents at the start of the epoch
+     */
+    final long balanceAt(int epoch) {
+        return balanceAt(this.page, this.slot, epoch);
+    }
+
+    /**
+     * Returns the balance the account in a slot of a page had when a
+     * {@link Snapshot} epoch began, as {@link #balanceAt(int)} does.
+     *
+     * @since 1.0.0
+     * @version 1.0.0
+     *
+     * @param page The page holding the account
+     * @param i The slot in the page
+     * @param epoch The snapshot epoch
+     * @return The balance in cents at the start of the epoch
+     */
+    static long balanceAt(AccountPage page, int i, int epoch) {
+        int e = epoch & EPOCH_MASK;
+        while (true) {
+            long s = page.getState(i);
+            if (epoch(s) == e) {
+                long pre = page.getPreImage(i);
+                if (epoch(pre) == e) {
+                    return cents(pre);
+                }
+                // the change that began the epoch is publishing its pre-image
+                Thread.yield();
+            } else if (page.compareAndSetState(i, s, pack(e, cents(s)))) {
+                page.setPreImage(i, pack(e, cents(s)));
+                return cents(s);
+            }
+        }
+    }
+
+    /**
+     * Replaces the balance if it has not changed since it was read, tagging
+     * it with the current {@link Snapshot} epoch. The first change in an
+     * epoch publishes the balance it replaced as the pre-image.
+     *
+     * @since 1.0.0
+     * @version 1.0.0
+     *
+     * @param expect The state the new balance was computed from
+     * @param cents The new balance in cents
+     * @return False if the balance changed first and the update must retry
+     */
+    private boolean commit(long expect, long cents) {
+        int epoch = Snapshot.currentEpoch() & EPOCH_MASK;
+        if (!this.page.compareAndSetState(this.slot, expect, pack(epoch, cents))) {
+            return false;
+        }
+        if (epoch(expect) != epoch) {
+            this.page.setPreImage(this.slot, pack(epoch, cents(expect)));
+        }
+        return true;
+    }
+
+    /**
+     * Returns the store holding this account.
+     *
+     * @since 1.0.0
+     * @version 1.0.0
+     *
+     * @return The {@link AccountStore}
+     */
+    final AccountStore getStore() {
+        return this.page.store;
+    }
+
+    /**
+     * Stops publishing changes to this account, once it has been closed.
+     *
+     * @since 1.0.0
+     * @version 1.0.0
+     */
+    final void detach() {
+        this.page.setType(this.slot, (byte) 0);
+    }
+
+    /**
+     * Returns whether a new account of this type may be opened with a
+     * balance. Any balance is allowed unless the account type says
+     * otherwise.
+     *
+     * @since 1.0.0
+     * @version 1.0.0
+     *
+     * @param balance The opening balance in cents
+     * @return True if the account may be opened
+     */
+    protected boolean canOpen(final long balance) {
+        return true;
+    }
+
+    /**
+     * Records a balance change in the store's log, then publishes it.
+     *
+     * @since 1.0.0
+     * @version 1.0.0
+     *
+     * @param cents The new balance in cents
+     * @return The new account balance
+     */
+    private double changed(long cents) {
+        AccountStore store = this.page.store;
+        AccountListener log = store.getLog();
+        EventBus bus = store.getEvents();
+        if ((log != null || bus != null) && this.page.getType(this.slot) != 0) {
+            if (log != null) {
+                log.accountChanged(this, UpdatePacket.MODIFY, cents);
+            }
+            if (bus != null) {
+                bus.publish(this, UpdatePacket.MODIFY, cents);
+            }
+        }
+        return cents / 100.0;
+    }
+
+    /**
+     * Returns whether an amount, rounded to the nearest cent, can be held
+     * as a balance.
+     *
+     * @since 1.0.0
+     * @version 1.0.0
+     *
+     * @param amount The amount in dollars
+     * @return False if the amount is out of range, or not a number
+     */
+    public static boolean inRange(double amount) {
+        return !Double.isNaN(amount) && inRange(Math.round(amount * 100));
+    }
+
+    /**
+     * Converts an amount to the nearest cent.
+     *
+     * @since 1.0.0
+     * @version 1.0.0
+     *
+     * @param amount The amount in dollars
+     * @return The amount in cents
+     * @throws ArithmeticException If the amount is out of range
+     */
+    protected static long toCents(double amount) {
+        return check(Math.round(amount * 100));
+    }
+
+    /**
+     * Adds two amounts of cents.
+     *
+     * @since 1.0.0
+     * @version 1.0.0
+     *
+     * @param a The first amount
+     * @param b The second amount
+     * @return The sum
+     * @throws ArithmeticException If the sum is out of range
+     */
+    protected static long add(long a, long b) {
+        return check(a + b);
+    }
+
+    /**
+     * Checks a balance fits in the cents field.
+     *
+     * @since 1.0.0
+     * @version 1.0.0
+     *
+     * @param cents The balance in cents
+     * @return The balance
+     * @throws ArithmeticException If the balance is out of range
+     */
+    private static long check(long cents) {
+        if (!inRange(cents)) {
+            throw new ArithmeticException("Balance out of range: " + cents);
+        }
+        return cents;
+    }
+
+    /**
+     * Returns whether a balance fits in the cents field.
+     *
+     * @since 1.0.0
+     * @version 1.0.0
+     *
+     * @param cents The balance in cents
+     * @return False if the balance is out of range
+     */
+    private static boolean inRange(long cents) {
+        return cents < CENTS_LIMIT && cents >= -CENTS_LIMIT;
+    }
+
+    /**
+     * Packs an epoch and a balance into a state word.
+     *
+     * @since 1.0.0
+     * @version 1.0.0
+     *
+     * @param epoch The snapshot epoch
+     * @param cents The balance in cents
+     * @return The state word
+     */
+    static long pack(int epoch, long cents) {
+        return ((long) epoch << CENTS_BITS) | (cents & ((1L << CENTS_BITS) - 1));
+    }
+
+    /**
+     * Unpacks the balance from a state word.
+     *
+     * @since 1.0.0
+     * @version 1.0.0
+     *
+     * @param state The state word
+     * @return The balance in cents
+     */
+    static long cents(long state) {
+        return (state << (64 - CENTS_BITS)) >> (64 - CENTS_BITS);
+    }
+
+    /**
+     * Unpacks the epoch from a state word.
+     *
+     * @since 1.0.0
+     * @version 1.0.0
+     *
+     * @param state The state word
+     * @return The snapshot epoch
+     */
+    static int epoch(long state) {
+        return (int) (state >>> CENTS_BITS);
     }
 
     /**
@@ -215,10 +731,25 @@ public abstract class Account extends Observable implements Comparable<Account>
      * @return A formatted string of the information
      */
     public String formatWith(char delimiter) {
+        return this.formatWith(delimiter, this.getBalance());
+    }
+
+    /**
+     * Formats the account information using a delimiter, with a balance
+     * read from a {@link Snapshot}
+     *
+     * @since 1.0.0
+     * @version 1.0.0
+     *
+     * @param delimiter The delimiter to use
+     * @param balance The balance to format
+     * @return A formatted string of the information
+     */
+    public String formatWith(char delimiter, double balance) {
         return new StringBuilder()
                 .append(this.getID()).append(delimiter)
                 .append(this.getDisplayCharacter()).append(delimiter)
                 .append(this.getPIN()).append(delimiter)
-                .append(this.getBalance()).toString();
+                .append(balance).toString();
     }
 }
@@ -0,0 +1,445 @@
+/*
+ * Copyright (C) 2013 Spencer Alderman
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.rogue.bank.data;
+
+import com.rogue.bank.data.storage.IndexedAccountFile;
+import com.rogue.bank.util.IntMap;
+import java.io.IOException;
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+
+/**
+ * Accounts loaded on demand from an {@link IndexedAccountFile}, keeping up
+ * to a fixed number of recently used accounts in memory. The least recently
+ * used account is evicted when the cache is full, and written back to the
+ * file first if it has changed.
+ *
+ * An evicted account may still be held elsewhere, by an open session for
+ * instance. Evicted accounts are remembered weakly, and a lookup revives the
+ * same object while it is still reachable, so there is never more than one
+ * live {@link Account} for an id.
+ *
+ * @since 1.0.0
+ * @author 1Rogue
+ * @version 1.0.0
+ */
+public class AccountCache extends AbstractMap<Integer, Account> implements IntMap<Account> {
+
+    private final IndexedAccountFile store;
+    private final DataManager data;
+    private final int capacity;
+    private final Map<Integer, Account> cached;
+    private final Map<Integer, Evicted> evicted = new HashMap<Integer, Evicted>();
+    private final ReferenceQueue<Account> collected = new ReferenceQueue<Account>();
+    private final Set<Integer> dirty = new HashSet<Integer>();
+    private final Set<Map.Entry<Integer, Account>> entries = new Entries();
+
+    private long hits;
+    private long misses;
+    private long evictions;
+    private long writeBacks;
+
+    /**
+     * AccountCache constructor
+     *
+     * @since 1.0.0
+     * @version 1.0.0
+     *
+     * @param store The file to load accounts from, with its index open
+     * @param data The {@link DataManager} which tracks loaded accounts
+     * @param capacity The most accounts to keep in memory
+     */
+    public AccountCache(IndexedAccountFile store, DataManager data, int capacity) {
+        this.store = store;
+        this.data = data;
+        this.capacity = Math.max(1, capacity);
+        this.cached = new LinkedHashMap<Integer, Account>(16, 0.75f, true) {
+
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Integer, Account> eldest) {
+                if (size() > AccountCache.this.capacity) {
+                    evict(eldest.getValue());
+                    return true;
+                }
+                return false;
+            }
+
+        };
+    }
+
+    /**
+     * Returns an account, loading it from the file if it is not in memory.
+     *
+     * @since 1.0.0
+     * @version 1.0.0
+     *
+     * @param key The account id
+     * @return The account, or null if no account exists
+     */
+    @Override
+    public synchronized Account get(Object key) {
+        if (!(key instanceof Integer)) {
+            return null;
+        }
+        Integer id = (Integer) key;
+        Account acc = this.cached.get(id);
+        if (acc != null) {
+            this.hits++;
+            return acc;
+        }
+        this.expunge();
+        Evicted ref = this.evicted.remove(id);
+        acc = ref == null ? null : ref.get();
+        if (acc != null) {
+            this.hits++;
+        } else {
+            acc = this.store.read(id);
+            if (acc == null) {
+                return null;
+            }
+            this.misses++;
+            this.data.track(acc);
+        }
+        this.cached.put(id, acc);
+        return acc;
+    }
+
+    /**
+     * Adds an account, writing it to the file straight away.
+     *
+     * @since 1.0.0
+     * @version 1.0.0
+     *
+     * @param id The account id
+     * @param account The account
+     * @return The account previously held for the id, if it was in memory
+     */
+    @Override
+    public synchronized Account put(Integer id, Account account) {
+        this.evicted.remove(id);
+        this.dirty.remove(id);
+        try {
+            this.store.update(account);
+        } catch (IOException ex) {
+            System.err.println("Error: " + ex.getMessage());
+        }
+        this.data.track(account);
+        return this.cached.put(id, account);
+    }
+
+    /**
+     * Removes an account from memory and from the file.
+     *
+     * @since 1.0.0
+     * @version 1.0.0
+     *
+     * @param key The account id
+     * @return The removed account, or null if no account existed
+     */
+    @Override
+    public synchronized Account remove(Object key) {
+        if (!(key instanceof Integer)) {
+            return null;
+        }
+        Integer id = (Integer) key;
+        Account acc = this.get(id);
+        if (acc != null) {
+            this.cached.remove(id);
+            this.dirty.remove(id);
+            try {
+                this.store.remove(id);
+            } catch (IOException ex) {
+                System.err.println("Error: " + ex.getMessage());
+            }
+        }
+        return acc;
+    }
+
+    public Account get(int id) {
+        return this.get((Object) id);
+    }
+
+    public Account put(int id, Account account) {
+        return this.put((Integer) id, account);
+    }
+
+    public Account remove(int id) {
+        return this.remove((Object) id);
+    }
+
+    public boolean containsKey(int id) {
+        return this.containsKey((Object) id);
+    }
+
+    @Override
+    public synchronized boolean containsKey(Object key) {
+        if (!(key instanceof Integer)) {
+            return false;
+        }
+        return this.cached.containsKey(key) || this.store.contains((Integer) key);
+    }
+
+    @Override
+    public synchronized int size() {
+        return this.store.size();
+    }
+
+    /**
+     * Returns every account, loading each through the cache as it is
+     * iterated. Iterating keeps only the current account reachable, so the
+     * whole bank is never in memory at once unless the caller holds on to
+     * it.
+     *
+     * @since 1.0.0
+     * @version 1.0.0
+     *
+     * @return All accounts
+     */
+    @Override
+    public Set<Map.Entry<Integer, Account>> entrySet() {
+        return this.entries;
+    }
+
+    /**
+     * Marks an account as changed, so it is written back when evicted. An
+     * account can be evicted between being changed and being marked, in
+     * which case it is written back straight away, since nothing else would
+     * write it once its weak reference is cleared. Changes to an account
+     * which has since been closed are dropped.
+     *
+     * @since 1.0.0
+     * @version 1.0.0
+     *
+     * @param account The changed account
+     */
+    public synchronized void markDirty(Account account) {
+        if (this.cached.containsKey(account.getID())) {
+            this.dirty.add(account.getID());
+            return;
+        }
+        if (!this.store.contains(account.getID())) {
+            // closed while it was being changed
+            return;
+        }
+        try {
+            this.store.update(account);
+            this.writeBacks++;
+        } catch (IOException ex) {
+            System.err.println("Error: " + ex.getMessage());
+        }
+    }
+
+    /**
+     * Writes every account in memory back to the file.
+     *
+     * @since 1.0.0
+     * @version 1.0.0
+     *
+     * @throws IOException If an account could not be written
+     */
+    public synchronized void flush() throws IOException {
+        for (Account acc : this.cached.values()) {
+            this.store.update(acc);
+        }
+        this.dirty.clear();
+        this.store.flush();
+    }
+
+    /**
+     * Writes an evicted account back if it changed, and remembers it weakly.
+     *
+     * @since 1.0.0
+     * @version 1.0.0
+     *
+     * @param acc The evicted account
+     */
+    private void evict(Account acc) {
+        this.evictions++;
+        if (this.dirty.remove(acc.getID())) {
+            try {
+                this.store.update(acc);
+                this.writeBacks++;
+            } catch (IOException ex) {
+                System.err.println("Error: " + ex.getMessage());
+            }
+        }
+        this.evicted.put(acc.getID(), new Evicted(acc, this.collected));
+    }
+
+    /**
+     * Forgets evicted accounts which have been garbage collected.
+     *
+     * @since 1.0.0
+     * @version 1.0.0
+     */
+    private void expunge() {
+        Evicted ref;
+        while ((ref = (Evicted) this.collected.poll()) != null) {
+            if (this.evicted.get(ref.id) == ref) {
+                this.evicted.remove(ref.id);
+            }
+        }
+    }
+
+    /**
+     * Returns the number of lookups served from memory.
+     *
+     * @since 1.0.0
+     * @version 1.0.0
+     *
+     * @return The number of cache hits
+     */
+    public synchronized long getHits() {
+        return this.hits;
+    }
+
+    /**
+     * Returns the number of lookups read from the file.
+     *
+     * @since 1.0.0
+     * @version 1.0.0
+     *
+     * @return The number of cache misses
+     */
+    public synchronized long getMisses() {
+        return this.misses;
+    }
+
+    /**
+     * Returns the number of accounts evicted from the cache.
+     *
+     * @since 1.0.0
+     * @version 1.0.0
+     *
+     * @return The number of evictions
+     */
+    public synchronized long getEvictions() {
+        return this.evictions;
+    }
+
+    /**
+     * Returns the number of changed accounts written back on eviction.
+     *
+     * @since 1.0.0
+     * @version 1.0.0
+     *
+     * @return The number of write-backs
+     */
+    public synchronized long getWriteBacks() {
+        return this.writeBacks;
+    }
+
+    /**
+     * Returns the most accounts kept in memory.
+     *
+     * @since 1.0.0
+     * @version 1.0.0
+     *
+     * @return The cache capacity
+     */
+    public int getCapacity() {
+        return this.capacity;
+    }
+
+    /**
+     * Weak reference to an evicted account
+     *
+     * @since 1.0.0
+     * @author 1Rogue
+     * @version 1.0.0
+     */
+    private static class Evicted extends WeakReference<Account> {
+
+        private final int id;
+
+        /**
+         * Evicted constructor
+         *
+         * @since 1.0.0
+         * @version 1.0.0
+         *
+         * @param acc The evicted account
+         * @param queue The queue to enqueue on once collected
+         */
+        Evicted(Account acc, ReferenceQueue<Account> queue) {
+            super(acc, queue);
+            this.id = acc.getID();
+        }
+    }
+
+    /**
+     * Entry view over every stored id, loading accounts as they are reached
+     *
+     * @since 1.0.0
+     * @author 1Rogue
+     * @version 1.0.0
+     */
+    private class Entries extends AbstractSet<Map.Entry<Integer, Account>> {
+
+        @Override
+        public int size() {
+            return AccountCache.this.size();
+        }
+
+        @Override
+        public Iterator<Map.Entry<Integer, Account>> iterator() {
+            final int[] ids = store.ids();
+            return new Iterator<Map.Entry<Integer, Account>>() {
+
+                private int next;
+                private Map.Entry<Integer, Account> ahead = this.advance();
+
+                private Map.Entry<Integer, Account> advance() {
+                    while (this.next < ids.length) {
+                        Account acc = get(ids[this.next++]);
+                        if (acc != null) {
+                            return new SimpleImmutableEntry<Integer, Account>(acc.getID(), acc);
+                        }
+                    }
+                    return null;
+                }
+
+                public boolean hasNext() {
+                    return this.ahead != null;
+                }
+
+                public Map.Entry<Integer, Account> next() {
+                    if (this.ahead == null) {
+                        throw new NoSuchElementException();
+                    }
+                    Map.Entry<Integer, Account> out = this.ahead;
+                    this.ahead = this.advance();
+                    return out;
+                }
+
+                public void remove() {
+                    throw new UnsupportedOperationException();
+                }
+
+            };
+        }
+    }
+}
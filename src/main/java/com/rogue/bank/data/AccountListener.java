@@ -0,0 +1,43 @@
+/*
+ * Copyright (C) 2013 Spencer Alderman
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.rogue.bank.data;
+
+/**
+ * Receives account events from an {@link EventBus}
+ *
+ * @since 1.0.0
+ * @author 1Rogue
+ * @version 1.0.0
+ */
+public interface AccountListener {
+
+    /**
+     * Called for each account event. Listeners subscribed for synchronous
+     * delivery are called on the thread that changed the account, and must
+     * not block. Changes are journaled before they are published, so no
+     * listener waits on the journal.
+     *
+     * @since 1.0.0
+     * @version 1.0.0
+     *
+     * @param account The account the event is for
+     * @param type The type of event
+     * @param cents The account balance in cents after the event
+     */
+    public void accountChanged(Account account, UpdatePacket type, long cents);
+
+}
@@ -0,0 +1,413 @@
+/*
+ * Copyright (C) 2013 Spencer Alderman
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.rogue.bank.data;
+
+import com.rogue.bank.util.DirectMemory;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * The columns of one page of {@link AccountStore} slots: ids, PINs, interest
+ * periods, type tags, balance words and snapshot pre-images. A slot holding
+ * no account has a type tag of 0. Interest periods, balance words and
+ * pre-images are read and written with the same ordering as an
+ * {@link AtomicLongArray}; the other columns are written before the balance
+ * word publishes the slot.
+ *
+ * @since 1.0.0
+ * @author 1Rogue
+ * @version 1.0.0
+ */
+abstract class AccountPage {
+
+    AccountStore store;
+
+    /**
+     * AccountPage constructor
+     *
+     * @since 1.0.0
+     * @version 1.0.0
+     *
+     * @param store The store the page belongs to, which only changes when
+     *              stores read from a bank file are joined
+     */
+    AccountPage(AccountStore store) {
+        this.store = store;
+    }
+
+    /**
+     * Makes a page held in arrays on the heap.
+     *
+     * @since 1.0.0
+     * @version 1.0.0
+     *
+     * @param store The store the page belongs to
+     * @param size The number of slots
+     * @return The page
+     */
+    static AccountPage heap(AccountStore store, int size) {
+        return new Heap(store, size);
+    }
+
+    /**
+     * Makes a page held outside the heap.
+     *
+     * @since 1.0.0
+     * @version 1.0.0
+     *
+     * @param store The store the page belongs to
+     * @param size The number of slots, a multiple of 8
+     * @return The page
+     */
+    static AccountPage direct(AccountStore store, int size) {
+        return new Direct(store, size);
+    }
+
+    /**
+     * Returns the id held in a slot.
+     *
+     * @since 1.0.0
+     * @version 1.0.0
+     *
+     * @param i The slot in the page
+     * @return The account id
+     */
+    abstract int getId(int i);
+
+    /**
+     * Returns the PIN held in a slot.
+     *
+     * @since 1.0.0
+     * @version 1.0.0
+     *
+     * @param i The slot in the page
+     * @return The account pin
+     */
+    abstract int getPin(int i);
+
+    /**
+     * Returns the type tag of a slot.
+     *
+     * @since 1.0.0
+     * @version 1.0.0
+     *
+     * @param i The slot in the page
+     * @return The tag, or 0 if the slot is empty
+     */
+    abstract byte getType(int i);
+
+    /**
+     * Sets the type tag of a slot.
+     *
+     * @since 1.0.0
+     * @version 1.0.0
+     *
+     * @param i The slot in the page
+     * @param tag The tag, or 0 to empty the slot
+     */
+    abstract void setType(int i, byte tag);
+
+    /**
+     * Sets the PIN held in a slot.
+     *
+     * @since 1.0.0
+     * @version 1.0.0
+     *
+     * @param i The slot in the page
+     * @param pin The account pin
+     */
+    abstract void setPin(int i, int pin);
+
+    /**
+     * Returns the interest period a slot's balance was last brought up to.
+     *
+     * @since 1.0.0
+     * @version 1.0.0
+     *
+     * @param i The slot in the page
+     * @return The interest period
+     */
+    abstract int getPeriod(int i);
+
+    /**
+     * Sets the interest period a slot's balance was last brought up to.
+     *
+     * @since 1.0.0
+     * @version 1.0.0
+     *
+     * @param i The slot in the page
+     * @param period The interest period
+     */
+    abstract void setPeriod(int i, int period);
+
+    /**
+     * Returns the balance word of a slot.
+     *
+     * @since 1.0.0
+     * @version 1.0.0
+     *
+     * @param i The slot in the page
+     * @return The balance word
+     */
+    abstract long getState(int i);
+
+    /**
+     * Replaces the balance word of a slot if it holds an expected value.
+     *
+     * @since 1.0.0
+     * @version 1.0.0
+     *
+     * @param i The slot in the page
+     * @param expect The expected balance word
+     * @param update The new balance word
+     * @return False if the slot held another balance word
+     */
+    abstract boolean compareAndSetState(int i, long expect, long update);
+
+    /**
+     * Returns the snapshot pre-image of a slot.
+     *
+     * @since 1.0.0
+     * @version 1.0.0
+     *
+     * @param i The slot in the page
+     * @return The pre-image
+     */
+    abstract long getPreImage(int i);
+
+    /**
+     * Sets the snapshot pre-image of a slot.
+     *
+     * @since 1.0.0
+     * @version 1.0.0
+     *
+     * @param i The slot in the page
+     * @param value The pre-image
+     */
+    abstract void setPreImage(int i, long value);
+
+    /**
+     * Fills an unused slot. The balance word is written last, after the
+     * other columns.
+     *
+     * @since 1.0.0
+     * @version 1.0.0
+     *
+     * @param i The slot in the page
+     * @param id The account id
+     * @param pin The account pin
+     * @param tag The account type tag
+     * @param period The interest period the balance is brought up to
+     * @param state The balance word
+     */
+    abstract void fill(int i, int id, int pin, byte tag, int period, long state);
+
+    /**
+     * Returns the number of bytes the page takes outside the heap.
+     *
+     * @since 1.0.0
+     * @version 1.0.0
+     *
+     * @return The direct bytes, or 0 for a page on the heap
+     */
+    abstract long getDirectBytes();
+
+    /**
+     * A page held in arrays
+     *
+     * @since 1.0.0
+     * @author 1Rogue
+     * @version 1.0.0
+     */
+    private static final class Heap extends AccountPage {
+
+        private final int[] ids;
+        private final int[] pins;
+        private final byte[] types;
+        private final AtomicIntegerArray periods;
+        private final AtomicLongArray states;
+        private final AtomicLongArray preImages;
+
+        /**
+         * Heap constructor
+         *
+         * @since 1.0.0
+         * @version 1.0.0
+         *
+         * @param store The store the page belongs to
+         * @param size The number of slots
+         */
+        Heap(AccountStore store, int size) {
+            super(store);
+            this.ids = new int[size];
+            this.pins = new int[size];
+            this.types = new byte[size];
+            this.periods = new AtomicIntegerArray(size);
+            this.states = new AtomicLongArray(size);
+            this.preImages = new AtomicLongArray(size);
+        }
+
+        int getId(int i) {
+            return this.ids[i];
+        }
+
+        int getPin(int i) {
+            return this.pins[i];
+        }
+
+        byte getType(int i) {
+            return this.types[i];
+        }
+
+        void setType(int i, byte tag) {
+            this.types[i] = tag;
+        }
+
+        void setPin(int i, int pin) {
+            this.pins[i] = pin;
+        }
+
+        int getPeriod(int i) {
+            return this.periods.get(i);
+        }
+
+        void setPeriod(int i, int period) {
+            this.periods.set(i, period);
+        }
+
+        long getState(int i) {
+            return this.states.get(i);
+        }
+
+        boolean compareAndSetState(int i, long expect, long update) {
+            return this.states.compareAndSet(i, expect, update);
+        }
+
+        long getPreImage(int i) {
+            return this.preImages.get(i);
+        }
+
+        void setPreImage(int i, long value) {
+            this.preImages.set(i, value);
+        }
+
+        void fill(int i, int id, int pin, byte tag, int period, long state) {
+            this.ids[i] = id;
+            this.pins[i] = pin;
+            this.types[i] = tag;
+            this.periods.lazySet(i, period);
+            this.states.lazySet(i, state);
+        }
+
+        long getDirectBytes() {
+            return 0;
+        }
+    }
+
+    /**
+     * A page held in one direct buffer, column after column
+     *
+     * @since 1.0.0
+     * @author 1Rogue
+     * @version 1.0.0
+     */
+    private static final class Direct extends AccountPage {
+
+        private final DirectMemory memory;
+        private final int pins;
+        private final int periods;
+        private final int types;
+        private final int states;
+        private final int preImages;
+
+        /**
+         * Direct constructor
+         *
+         * @since 1.0.0
+         * @version 1.0.0
+         *
+         * @param store The store the page belongs to
+         * @param size The number of slots, a multiple of 8 so the longs are
+         *             aligned
+         */
+        Direct(AccountStore store, int size) {
+            super(store);
+            this.memory = new DirectMemory(size * 29);
+            this.pins = size * 4;
+            this.periods = this.pins + size * 4;
+            this.types = this.periods + size * 4;
+            this.states = this.types + size;
+            this.preImages = this.states + size * 8;
+        }
+
+        int getId(int i) {
+            return this.memory.getInt(i * 4);
+        }
+
+        int getPin(int i) {
+            return this.memory.getInt(this.pins + i * 4);
+        }
+
+        byte getType(int i) {
+            return this.memory.getByte(this.types + i);
+        }
+
+        void setType(int i, byte tag) {
+            this.memory.putByte(this.types + i, tag);
+        }
+
+        void setPin(int i, int pin) {
+            this.memory.putInt(this.pins + i * 4, pin);
+        }
+
+        int getPeriod(int i) {
+            return this.memory.getIntVolatile(this.periods + i * 4);
+        }
+
+        void setPeriod(int i, int period) {
+            this.memory.putIntVolatile(this.periods + i * 4, period);
+        }
+
+        long getState(int i) {
+            return this.memory.getLongVolatile(this.states + i * 8);
+        }
+
+        boolean compareAndSetState(int i, long expect, long update) {
+            return this.memory.compareAndSetLong(this.states + i * 8, expect, update);
+        }
+
+        long getPreImage(int i) {
+            return this.memory.getLongVolatile(this.preImages + i * 8);
+        }
+
+        void setPreImage(int i, long value) {
+            this.memory.putLongVolatile(this.preImages + i * 8, value);
+        }
+
+        void fill(int i, int id, int pin, byte tag, int period, long state) {
+            this.memory.putInt(i * 4, id);
+            this.memory.putInt(this.pins + i * 4, pin);
+            this.memory.putInt(this.periods + i * 4, period);
+            this.memory.putByte(this.types + i, tag);
+            this.memory.putLongVolatile(this.states + i * 8, state);
+        }
+
+        long getDirectBytes() {
+            return this.memory.capacity();
+        }
+    }
+}
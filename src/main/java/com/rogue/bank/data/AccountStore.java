@@ -0,0 +1,1099 @@
+/*
+ * Copyright (C) 2013 Spencer Alderman
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.rogue.bank.data;
+
+import com.rogue.bank.data.accounts.CDAccount;
+import com.rogue.bank.data.accounts.CheckingAccount;
+import com.rogue.bank.data.accounts.SavingsAccount;
+import com.rogue.bank.util.DirectMemory;
+import com.rogue.bank.util.IntIndex;
+import com.rogue.bank.util.IntMap;
+import java.util.AbstractCollection;
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+
+/**
+ * Column store of accounts. Ids, type tags, PINs and balances are kept in
+ * parallel primitive columns, split into pages of {@value #PAGE_SIZE} slots,
+ * and an {@link Account} is only a view of one slot: looking an account up
+ * makes a short-lived view instead of keeping an object per account, and a
+ * pass over every account reads the columns in order.
+ *
+ * Accounts are appended to the next free slot and found by id through an
+ * {@link IntIndex}. A closed account's slot is tagged as empty, and only
+ * handed out again once {@link #recycle()} has been called twice since it
+ * was closed, after a full checkpoint each time: views of a closed account
+ * must not be kept longer than that, since they would then read the
+ * account opened in its slot. Slots are not reused while a snapshot of the
+ * store is open. Reads take no lock. Slots are handed out one at a time,
+ * but accounts with different ids can otherwise be added and removed at
+ * once; changes to the same id must not race.
+ *
+ * Interest can be left to accrue: {@link #accrue()} starts a new interest
+ * period for the whole store at once, and each account only compiles the
+ * periods it missed the next time its balance is read or changed. Every
+ * slot records the period its balance was last brought up to.
+ *
+ * With {@code bank.offheap} set, the columns and the id index of the
+ * bank's stores are kept outside the heap, in {@link DirectMemory} pages of
+ * {@value #DIRECT_PAGE_SIZE} slots, and only the page directory stays on
+ * it: garbage collection then has nothing to trace or copy for each
+ * account, whatever the size of the bank.
+ *
+ * @since 1.0.0
+ * @author 1Rogue
+ * @version 1.0.0
+ */
+public final class AccountStore extends AbstractMap<Integer, Account> implements IntMap<Account> {
+
+    private static final int PAGE_SHIFT = 10;
+    private static final int PAGE_SIZE = 1 << PAGE_SHIFT;
+    private static final int DIRECT_PAGE_SHIFT = 12;
+    private static final int DIRECT_PAGE_SIZE = 1 << DIRECT_PAGE_SHIFT;
+    private static final boolean OFF_HEAP = Boolean.getBoolean("bank.offheap");
+    private static volatile Account[] kinds;
+
+    private final int shift;
+    private final boolean direct;
+    private volatile IntIndex index;
+    private volatile AccountPage[] pages = new AccountPage[0];
+    private volatile int top;
+    private volatile EventBus events;
+    private volatile AccountListener log;
+    private volatile int period;
+    private volatile int settled;
+    private volatile boolean scanning;
+    private long[] closed = new long[0];
+    private int closedCount;
+    private boolean reading;
+    private int[] freed = new int[0];
+    private int freedCount;
+    private int[] aging = new int[0];
+    private int agingCount;
+    private int[] spare = new int[0];
+    private int spareCount;
+
+    /**
+     * AccountStore constructor
+     *
+     * @since 1.0.0
+     * @version 1.0.0
+     */
+    public AccountStore() {
+        this(true);
+    }
+
+    /**
+     * AccountStore constructor
+     *
+     * @since 1.0.0
+     * @version 1.0.0
+     *
+     * @param indexed False for a store accounts are only appended to, by a
+     *                single thread, such as one a bank file is read into;
+     *                it can not be used as a map until it is indexed
+     */
+    public AccountStore(boolean indexed) {
+        this(indexed, OFF_HEAP);
+    }
+
+    /**
+     * AccountStore constructor
+     *
+     * @since 1.0.0
+     * @version 1.0.0
+     *
+     * @param indexed False for a store accounts are only appended to, by a
+     *                single thread; it can not be used as a map until it is
+     *                indexed
+     * @param direct True to keep the accounts outside the heap
+     */
+    public AccountStore(boolean indexed, boolean direct) {
+        this(direct ? DIRECT_PAGE_SHIFT : PAGE_SHIFT, direct, indexed ? new IntIndex(0, direct) : null);
+    }
+
+    /**
+     * AccountStore constructor
+     *
+     * @since 1.0.0
+     * @version 1.0.0
+     *
+     * @param shift The log2 of the page size
+     * @param direct True to keep the accounts outside the heap
+     * @param index The id index, or null if accounts are not looked up by
+     *              id
+     */
+    private AccountStore(int shift, boolean direct, IntIndex index) {
+        this.shift = shift;
+        this.direct = direct;
+        this.index = index;
+    }
+
+    /**
+     * Makes a store holding a single account which is not part of a bank,
+     * such as one read on its own from a bank file or not yet registered.
+     * It is tracked apart from any other account, and collected along with
+     * the account's views; the store and its one-slot page take about 300
+     * bytes more than a slot of a bank's store, so accounts made in bulk
+     * are added to a store instead.
+     *
+     * @since 1.0.0
+     * @version 1.0.0
+     *
+     * @return A store of one slot, not indexed by id
+     */
+    static AccountStore single() {
+        return new AccountStore(0, false, null);
+    }
+
+    /**
+     * Copies an account into a store of its own.
+     *
+     * @since 1.0.0
+     * @version 1.0.0
+     *
+     * @param account The account to copy
+     * @return The copy
+     */
+    static Account copy(Account account) {
+        AccountStore store = single();
+        return store.view(store.append(tag(account.getDisplayCharacter()), account.getID(),
+                account.getPIN(), account.getCents()));
+    }
+
+    /**
+     * Adds an account to the store, replacing any account with the same id.
+     * A store which is not indexed appends it instead, and the later
+     * account replaces the earlier once the store is indexed.
+     *
+     * @since 1.0.0
+     * @version 1.0.0
+     *
+     * @param type The char-value of the account type
+     * @param id The account id
+     * @param pin The account pin
+     * @param balance The account balance
+     * @return A view of the added account, or null if the type is unknown
+     * @throws IllegalArgumentException If the balance is not valid for a new
+     *                                  account of the type
+     */
+    public Account add(char type, int id, int pin, double balance) {
+        int slot = this.addSlot(type, id, pin, balance);
+        return slot < 0 ? null : this.view(slot);
+    }
+
+    /**
+     * Adds an account like {@link #add(char, int, int, double)}, without
+     * making a view of it. Used by bank files loading a store record by
+     * record.
+     *
+     * @since 1.0.0
+     * @version 1.0.0
+     *
+     * @param type The char-value of the account type
+     * @param id The account id
+     * @param pin The account pin
+     * @param balance The account balance
+     * @return The slot written, or -1 if the type is unknown
+     * @throws IllegalArgumentException If the balance is not valid for a new
+     *                                  account of the type
+     */
+    public int addSlot(char type, int id, int pin, double balance) {
+        byte tag = tag(type);
+        if (tag == 0) {
+            return -1;
+        }
+        long cents = Account.toCents(balance);
+        if (!kind(tag).canOpen(cents)) {
+            throw new IllegalArgumentException("Balance below the minimum for account " + id);
+        }
+        return this.insert(tag, id, pin, cents);
+    }
+
+    /**
+     * Writes an account into the slot for its id, or the next free slot.
+     * A store which is not indexed always takes the next free slot.
+     *
+     * @since 1.0.0
+     * @version 1.0.0
+     *
+     * @param tag The account type tag
+     * @param id The account id
+     * @param pin The account pin
+     * @param cents The account balance in cents
+     * @return The slot written
+     */
+    private int insert(byte tag, int id, int pin, long cents) {
+        IntIndex ids = this.index;
+        if (ids == null) {
+            return this.fill(tag, id, pin, cents);
+        }
+        int slot = ids.get(id);
+        if (slot < 0) {
+            slot = this.append(tag, id, pin, cents);
+            ids.put(id, slot);
+        } else {
+            this.overwrite(slot, tag, pin, cents);
+        }
+        return slot;
+    }
+
+    /**
+     * Grows the id index, if needed, so a number of accounts can be added
+     * without rebuilding it again. Used before adding many accounts at once.
+     *
+     * @since 1.0.0
+     * @version 1.0.0
+     *
+     * @param expected The number of accounts expected
+     */
+    public void ensureCapacity(int expected) {
+        IntIndex ids = this.index;
+        if (ids != null) {
+            ids.ensureCapacity(expected);
+        }
+    }
+
+    /**
+     * Moves the accounts of another store onto the end of this one, in
+     * order. If neither store is indexed, the other store's pages are taken
+     * over without copying the accounts, with any unused slots at the end
+     * of this store's last page left empty; otherwise the accounts are
+     * copied. The other store must not be used afterwards.
+     *
+     * @since 1.0.0
+     * @version 1.0.0
+     *
+     * @param later The store to take the accounts of
+     */
+    public void append(AccountStore later) {
+        if (later == this) {
+            throw new IllegalArgumentException("An account store can not be appended to itself");
+        }
+        if (this.index != null || later.index != null || later.direct != this.direct || later.period != this.period) {
+            later.settle();
+            int end = later.top;
+            for (int slot = 0; slot < end; slot++) {
+                AccountPage page = later.page(slot);
+                int i = later.offset(slot);
+                byte tag = page.getType(i);
+                if (tag != 0) {
+                    this.insert(tag, page.getId(i), page.getPin(i), Account.cents(page.getState(i)));
+                }
+            }
+            return;
+        }
+        synchronized (this) {
+            int size = 1 << this.shift;
+            int used = (this.top + size - 1) >>> this.shift;
+            int added = (later.top + size - 1) >>> this.shift;
+            if ((long) (used + added) << this.shift > Integer.MAX_VALUE) {
+                throw new IllegalStateException("Account store is full");
+            }
+            AccountPage[] p = Arrays.copyOf(this.pages, used + added);
+            for (int n = 0; n < added; n++) {
+                later.pages[n].store = this;
+                p[used + n] = later.pages[n];
+            }
+            this.pages = p;
+            this.top = added == 0 ? this.top : (used + added) << this.shift;
+        }
+    }
+
+    /**
+     * Indexes a store accounts have only been appended to, so it can be
+     * used as a map. Where an id was appended more than once, the later
+     * account replaces the earlier.
+     *
+     * @since 1.0.0
+     * @version 1.0.0
+     */
+    synchronized void index() {
+        if (this.index != null) {
+            return;
+        }
+        int end = this.top;
+        IntIndex ids = new IntIndex(end, this.direct);
+        for (int slot = 0; slot < end; slot++) {
+            AccountPage page = this.page(slot);
+            int i = this.offset(slot);
+            if (page.getType(i) != 0) {
+                int old = ids.put(page.getId(i), slot);
+                if (old >= 0) {
+                    this.page(old).setType(this.offset(old), (byte) 0);
+                    this.free(old);
+                }
+            }
+        }
+        this.index = ids;
+    }
+
+    public Account get(int id) {
+        int slot = this.ids().get(id);
+        return slot < 0 ? null : this.view(slot);
+    }
+
+    public boolean containsKey(int id) {
+        return this.ids().get(id) >= 0;
+    }
+
+    /**
+     * Copies an account into the store. Putting a view of this store's own
+     * slot for the id changes nothing.
+     *
+     * @since 1.0.0
+     * @version 1.0.0
+     *
+     * @param id The account id
+     * @param account The account to copy
+     * @return A copy of the account replaced, or null if there was none
+     */
+    public Account put(int id, Account account) {
+        if (account.getID() != id) {
+            throw new IllegalArgumentException("Account " + account.getID() + " put as " + id);
+        }
+        byte tag = tag(account.getDisplayCharacter());
+        IntIndex ids = this.ids();
+        int slot = ids.get(id);
+        if (slot < 0) {
+            ids.put(id, this.append(tag, id, account.getPIN(), account.getCents()));
+            return null;
+        }
+        Account old = this.view(slot);
+        if (old == null || old.equals(account)) {
+            return null;
+        }
+        Account copy = copy(old);
+        this.overwrite(slot, tag, account.getPIN(), account.getCents());
+        return copy;
+    }
+
+    /**
+     * Removes an account. The returned view stays readable until its slot
+     * is reused, but no longer publishes its changes.
+     *
+     * @since 1.0.0
+     * @version 1.0.0
+     *
+     * @param id The account id
+     * @return A view of the removed account, or null if there was none
+     */
+    public Account remove(int id) {
+        int slot = this.ids().remove(id);
+        if (slot < 0) {
+            return null;
+        }
+        Account account = this.view(slot);
+        if (this.scanning) {
+            this.recordClosed(slot);
+        }
+        this.page(slot).setType(this.offset(slot), (byte) 0);
+        this.free(slot);
+        return account;
+    }
+
+    @Override
+    public Account get(Object key) {
+        return key instanceof Integer ? this.get(((Integer) key).intValue()) : null;
+    }
+
+    @Override
+    public boolean containsKey(Object key) {
+        return key instanceof Integer && this.containsKey(((Integer) key).intValue());
+    }
+
+    @Override
+    public Account put(Integer key, Account value) {
+        return this.put(key.intValue(), value);
+    }
+
+    @Override
+    public Account remove(Object key) {
+        return key instanceof Integer ? this.remove(((Integer) key).intValue()) : null;
+    }
+
+    @Override
+    public int size() {
+        return this.ids().size();
+    }
+
+    /**
+     * Returns the number of bytes the store takes outside the heap.
+     *
+     * @since 1.0.0
+     * @version 1.0.0
+     *
+     * @return The direct bytes, or 0 for a store on the heap
+     */
+    public long getDirectBytes() {
+        long bytes = this.index == null ? 0 : this.index.getDirectBytes();
+        for (AccountPage page : this.pages) {
+            bytes += page == null ? 0 : page.getDirectBytes();
+        }
+        return bytes;
+    }
+
+    /**
+     * Returns the accounts in slot order, which is the order they were
+     * added in. Iteration reads the columns page by page, and is weakly
+     * consistent.
+     *
+     * @since 1.0.0
+     * @version 1.0.0
+     *
+     * @return A live view of the accounts
+     */
+    @Override
+    public Collection<Account> values() {
+        return new AbstractCollection<Account>() {
+
+            @Override
+            public Iterator<Account> iterator() {
+                return new Scan<Account>() {
+
+                    @Override
+                    Account make(Account account) {
+                        return account;
+                    }
+
+                };
+            }
+
+            @Override
+            public int size() {
+                return AccountStore.this.size();
+            }
+
+        };
+    }
+
+    @Override
+    public Set<Map.Entry<Integer, Account>> entrySet() {
+        return new AbstractSet<Map.Entry<Integer, Account>>() {
+
+            @Override
+            public Iterator<Map.Entry<Integer, Account>> iterator() {
+                return new Scan<Map.Entry<Integer, Account>>() {
+
+                    @Override
+                    Map.Entry<Integer, Account> make(Account account) {
+                        return new AbstractMap.SimpleImmutableEntry<Integer, Account>(account.getID(), account);
+                    }
+
+                };
+            }
+
+            @Override
+            public int size() {
+                return AccountStore.this.size();
+            }
+
+        };
+    }
+
+    /**
+     * Sets where changes to this store's accounts are sent. Each change is
+     * first given to the log, on the thread that made it, and then
+     * published to the {@link EventBus}. The log may block, such as until
+     * the change is journaled, which a synchronous listener of the bus must
+     * not.
+     *
+     * @since 1.0.0
+     * @version 1.0.0
+     *
+     * @param events The bus to publish to, or null to stop publishing
+     * @param log The listener recording each change before it is
+     *            published, or null
+     */
+    void setEvents(EventBus events, AccountListener log) {
+        this.log = log;
+        this.events = events;
+    }
+
+    /**
+     * Returns the listener recording changes to this store's accounts
+     * before they are published.
+     *
+     * @since 1.0.0
+     * @version 1.0.0
+     *
+     * @return The log, or null if changes are not recorded
+     */
+    AccountListener getLog() {
+        return this.log;
+    }
+
+    /**
+     * Returns the {@link EventBus} changes to this store's accounts are
+     * published to.
+     *
+     * @since 1.0.0
+     * @version 1.0.0
+     *
+     * @return The bus, or null if changes are not published
+     */
+    EventBus getEvents() {
+        return this.events;
+    }
+
+    /**
+     * Starts a new interest period. Accounts compile interest for it the
+     * next time they are used, or when the store is settled.
+     *
+     * @since 1.0.0
+     * @version 1.0.0
+     */
+    void accrue() {
+        this.period++;
+    }
+
+    /**
+     * Returns the current interest period, counted from when the store was
+     * made.
+     *
+     * @since 1.0.0
+     * @version 1.0.0
+     *
+     * @return The number of interest periods started
+     */
+    int getPeriod() {
+        return this.period;
+    }
+
+    /**
+     * Brings every account up to the current interest period, so their
+     * balances can be read straight from the columns. Does nothing if no
+     * period has started since the store was last settled.
+     *
+     * @since 1.0.0
+     * @version 1.0.0
+     */
+    void settle() {
+        int now = this.period;
+        if (this.settled == now) {
+            return;
+        }
+        for (Account account : this.values()) {
+            account.getCents();
+        }
+        this.settled = now;
+    }
+
+    /**
+     * Returns the slots holding an account, in slot order.
+     *
+     * @since 1.0.0
+     * @version 1.0.0
+     *
+     * @return The filled slots
+     */
+    public int[] slots() {
+        return this.slots(this.top);
+    }
+
+    /**
+     * Returns the slots below a bound holding an account, in slot order.
+     *
+     * @since 1.0.0
+     * @version 1.0.0
+     *
+     * @param end The first slot not to look at
+     * @return The filled slots
+     */
+    int[] slots(int end) {
+        int[] slots = new int[end];
+        int n = 0;
+        for (int slot = 0; slot < end; slot++) {
+            if (this.page(slot).getType(this.offset(slot)) != 0) {
+                slots[n++] = slot;
+            }
+        }
+        return n == end ? slots : Arrays.copyOf(slots, n);
+    }
+
+    /**
+     * Starts recording the slots of accounts as they are removed, so a
+     * snapshot can read the slots after the accounts have been let change
+     * again and still find the accounts it began with. No slot is reused
+     * until {@link #endSnapshot()}. Called while holding every lock
+     * accounts are removed under, if accounts are changing.
+     *
+     * @since 1.0.0
+     * @version 1.0.0
+     *
+     * @return The number of slots handed out so far, which the snapshot
+     *         reads up to
+     */
+    synchronized int beginScan() {
+        this.closedCount = 0;
+        this.scanning = true;
+        this.reading = true;
+        return this.top;
+    }
+
+    /**
+     * Stops recording removed slots.
+     *
+     * @since 1.0.0
+     * @version 1.0.0
+     *
+     * @return The slots removed since {@link #beginScan()}, each shifted
+     *         left a byte and holding its type tag in the low byte
+     */
+    synchronized long[] endScan() {
+        this.scanning = false;
+        long[] removed = Arrays.copyOf(this.closed, this.closedCount);
+        this.closedCount = 0;
+        return removed;
+    }
+
+    /**
+     * Lets closed slots be reused again, once the snapshot which called
+     * {@link #beginScan()} is closed.
+     *
+     * @since 1.0.0
+     * @version 1.0.0
+     */
+    synchronized void endSnapshot() {
+        this.reading = false;
+    }
+
+    /**
+     * Hands out again the slots closed before the previous call, and holds
+     * back those closed since until the next. Called after each full
+     * checkpoint, so a slot is only reused once a whole checkpoint interval
+     * has gone by since its account was closed.
+     *
+     * @since 1.0.0
+     * @version 1.0.0
+     */
+    public synchronized void recycle() {
+        if (this.spareCount + this.agingCount > this.spare.length) {
+            this.spare = Arrays.copyOf(this.spare, this.spareCount + this.agingCount);
+        }
+        System.arraycopy(this.aging, 0, this.spare, this.spareCount, this.agingCount);
+        this.spareCount += this.agingCount;
+        int[] next = this.aging;
+        this.aging = this.freed;
+        this.agingCount = this.freedCount;
+        this.freed = next;
+        this.freedCount = 0;
+    }
+
+    /**
+     * Keeps a closed slot until it can be reused.
+     *
+     * @since 1.0.0
+     * @version 1.0.0
+     *
+     * @param slot The slot, already tagged as empty
+     */
+    private synchronized void free(int slot) {
+        if (this.freedCount == this.freed.length) {
+            this.freed = Arrays.copyOf(this.freed, Math.max(16, this.freedCount * 2));
+        }
+        this.freed[this.freedCount++] = slot;
+    }
+
+    /**
+     * Records a slot being removed while a snapshot is reading the slots.
+     *
+     * @since 1.0.0
+     * @version 1.0.0
+     *
+     * @param slot The slot, still holding its type tag
+     */
+    private synchronized void recordClosed(int slot) {
+        if (!this.scanning) {
+            // the snapshot has read every slot, this one included
+            return;
+        }
+        if (this.closedCount == this.closed.length) {
+            this.closed = Arrays.copyOf(this.closed, Math.max(16, this.closedCount * 2));
+        }
+        this.closed[this.closedCount++] = ((long) slot << 8) | (this.getTag(slot) & 0xFF);
+    }
+
+    /**
+     * Returns the slots holding an account, in account id order. The order
+     * is read from the id column and sorted as primitives, so no account is
+     * viewed.
+     *
+     * @since 1.0.0
+     * @version 1.0.0
+     *
+     * @return The filled slots, ordered by id
+     */
+    public int[] slotsById() {
+        int[] slots = this.slots();
+        this.sortById(slots, null);
+        return slots;
+    }
+
+    /**
+     * Orders slots by the account id each holds.
+     *
+     * @since 1.0.0
+     * @version 1.0.0
+     *
+     * @param slots The slots to order
+     * @param tags The type tag of each slot, reordered with it, or null
+     */
+    void sortById(int[] slots, byte[] tags) {
+        int n = slots.length;
+        int i = 1;
+        // bank files are usually written in id order already
+        while (i < n && this.getId(slots[i - 1]) < this.getId(slots[i])) {
+            i++;
+        }
+        if (i >= n) {
+            return;
+        }
+        long[] keys = new long[n];
+        for (i = 0; i < n; i++) {
+            keys[i] = ((long) this.getId(slots[i]) << 32) | i;
+        }
+        Arrays.sort(keys);
+        int[] from = slots.clone();
+        byte[] tagged = tags == null ? null : tags.clone();
+        for (i = 0; i < n; i++) {
+            int k = (int) keys[i];
+            slots[i] = from[k];
+            if (tags != null) {
+                tags[i] = tagged[k];
+            }
+        }
+    }
+
+    /**
+     * Returns the account id held in a slot.
+     *
+     * @since 1.0.0
+     * @version 1.0.0
+     *
+     * @param slot The slot
+     * @return The account id
+     */
+    public int getId(int slot) {
+        return this.page(slot).getId(this.offset(slot));
+    }
+
+    /**
+     * Returns the type tag of a slot.
+     *
+     * @since 1.0.0
+     * @version 1.0.0
+     *
+     * @param slot The slot
+     * @return The tag, or 0 if the slot is empty
+     */
+    byte getTag(int slot) {
+        return this.page(slot).getType(this.offset(slot));
+    }
+
+    /**
+     * Returns the id index.
+     *
+     * @since 1.0.0
+     * @version 1.0.0
+     *
+     * @return The index
+     * @throws IllegalStateException If the store has not been indexed
+     */
+    private IntIndex ids() {
+        IntIndex ids = this.index;
+        if (ids == null) {
+            throw new IllegalStateException("Account store is not indexed");
+        }
+        return ids;
+    }
+
+    /**
+     * Returns the page holding a slot.
+     *
+     * @since 1.0.0
+     * @version 1.0.0
+     *
+     * @param slot The slot
+     * @return The page
+     */
+    AccountPage page(int slot) {
+        return this.pages[slot >>> this.shift];
+    }
+
+    /**
+     * Returns the position of a slot within its page.
+     *
+     * @since 1.0.0
+     * @version 1.0.0
+     *
+     * @param slot The slot
+     * @return The position in the page's columns
+     */
+    int offset(int slot) {
+        return slot & ((1 << this.shift) - 1);
+    }
+
+    /**
+     * Writes an account into a closed slot which may be reused, or else the
+     * next free slot.
+     *
+     * @since 1.0.0
+     * @version 1.0.0
+     *
+     * @param tag The account type tag
+     * @param id The account id
+     * @param pin The account pin
+     * @param cents The account balance in cents
+     * @return The slot written
+     */
+    synchronized int append(byte tag, int id, int pin, long cents) {
+        if (this.spareCount == 0 || this.reading) {
+            return this.fill(tag, id, pin, cents);
+        }
+        int slot = this.spare[--this.spareCount];
+        AccountPage page = this.page(slot);
+        int i = this.offset(slot);
+        // the pre-image is the closed account's; the slot is published by
+        // the write to the index
+        page.setPreImage(i, 0);
+        page.fill(i, id, pin, tag, this.period, Account.pack(0, cents));
+        return slot;
+    }
+
+    /**
+     * Writes an account into the next free slot, without taking the lock.
+     * Used by the only thread filling a store which is not indexed.
+     *
+     * @since 1.0.0
+     * @version 1.0.0
+     *
+     * @param tag The account type tag
+     * @param id The account id
+     * @param pin The account pin
+     * @param cents The account balance in cents
+     * @return The slot written
+     */
+    private int fill(byte tag, int id, int pin, long cents) {
+        int slot = this.top;
+        if (slot == Integer.MAX_VALUE) {
+            throw new IllegalStateException("Account store is full");
+        }
+        int n = slot >>> this.shift;
+        AccountPage[] p = this.pages;
+        if (n == p.length || p[n] == null) {
+            if (n == p.length) {
+                p = Arrays.copyOf(p, Math.max(1, n * 2));
+            }
+            p[n] = this.direct ? AccountPage.direct(this, 1 << this.shift) : AccountPage.heap(this, 1 << this.shift);
+            this.pages = p;
+        }
+        AccountPage page = p[n];
+        int i = this.offset(slot);
+        // a slot past the top has never been used, so the pre-image is
+        // still zero; the slot is published by the write to top, or to the
+        // index
+        page.fill(i, id, pin, tag, this.period, Account.pack(0, cents));
+        this.top = slot + 1;
+        return slot;
+    }
+
+    /**
+     * Replaces the type, PIN and balance held in a slot.
+     *
+     * @since 1.0.0
+     * @version 1.0.0
+     *
+     * @param slot The slot
+     * @param tag The account type tag
+     * @param pin The account pin
+     * @param cents The account balance in cents
+     */
+    private void overwrite(int slot, byte tag, int pin, long cents) {
+        AccountPage page = this.page(slot);
+        int i = this.offset(slot);
+        page.setType(i, tag);
+        page.setPin(i, pin);
+        page.setPeriod(i, this.period);
+        long s;
+        do {
+            s = page.getState(i);
+        } while (!page.compareAndSetState(i, s, Account.pack(Account.epoch(s), cents)));
+    }
+
+    /**
+     * Makes a view of a slot.
+     *
+     * @since 1.0.0
+     * @version 1.0.0
+     *
+     * @param slot The slot
+     * @return The view, or null if the slot is empty
+     */
+    public Account view(int slot) {
+        return this.create(this.page(slot).getType(this.offset(slot)), slot);
+    }
+
+    /**
+     * Makes a view of a slot for an account type.
+     *
+     * @since 1.0.0
+     * @version 1.0.0
+     *
+     * @param tag The account type tag
+     * @param slot The slot
+     * @return The view, or null for an empty slot
+     */
+    Account create(byte tag, int slot) {
+        switch (tag) {
+            case 's':
+                return new SavingsAccount(this, slot);
+            case 'x':
+                return new CheckingAccount(this, slot);
+            case 'c':
+                return new CDAccount(this, slot);
+        }
+        return null;
+    }
+
+    /**
+     * Returns a view standing for an account type, for checks which only
+     * depend on the type, so they need no view of the slot itself.
+     *
+     * @since 1.0.0
+     * @version 1.0.0
+     *
+     * @param tag The account type tag
+     * @return A view of the type
+     */
+    private static Account kind(byte tag) {
+        Account[] k = kinds;
+        if (k == null) {
+            AccountStore one = single();
+            int slot = one.fill((byte) 0, 0, 0, 0);
+            k = new Account[128];
+            for (byte type : new byte[] { 's', 'x', 'c' }) {
+                k[type] = one.create(type, slot);
+            }
+            kinds = k;
+        }
+        return k[tag];
+    }
+
+    /**
+     * Returns the tag stored for an account type.
+     *
+     * @since 1.0.0
+     * @version 1.0.0
+     *
+     * @param type The char-value of the account type
+     * @return The tag, or 0 if the type is unknown
+     */
+    static byte tag(char type) {
+        switch (Character.toLowerCase(type)) {
+            case 's':
+                return 's';
+            case 'x':
+                return 'x';
+            case 'c':
+                return 'c';
+        }
+        return 0;
+    }
+
+    /**
+     * Iterates over the filled slots in order
+     *
+     * @since 1.0.0
+     * @author 1Rogue
+     * @version 1.0.0
+     */
+    private abstract class Scan<T> implements Iterator<T> {
+
+        private int next = -1;
+        private Account account;
+        private Account last;
+
+        /**
+         * Scan constructor
+         *
+         * @since 1.0.0
+         * @version 1.0.0
+         */
+        Scan() {
+            this.advance();
+        }
+
+        /**
+         * Makes the element returned for an account.
+         *
+         * @since 1.0.0
+         * @version 1.0.0
+         *
+         * @param account A view of the account
+         * @return The element
+         */
+        abstract T make(Account account);
+
+        /**
+         * Moves to the next filled slot.
+         *
+         * @since 1.0.0
+         * @version 1.0.0
+         */
+        private void advance() {
+            int end = top;
+            while (++this.next < end) {
+                Account found = view(this.next);
+                if (found != null) {
+                    this.account = found;
+                    return;
+                }
+            }
+            this.account = null;
+        }
+
+        public boolean hasNext() {
+            return this.account != null;
+        }
+
+        public T next() {
+            if (this.account == null) {
+                throw new NoSuchElementException();
+            }
+            this.last = this.account;
+            this.advance();
+            return this.make(this.last);
+        }
+
+        public void remove() {
+            if (this.last == null) {
+                throw new IllegalStateException();
+            }
+            if (this.last.equals(AccountStore.this.get(this.last.getID()))) {
+                AccountStore.this.remove(this.last.getID());
+            }
+            this.last = null;
+        }
+    }
+}
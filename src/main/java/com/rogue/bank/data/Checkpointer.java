@@ -0,0 +1,344 @@
+/*
+ * Copyright (C) 2013 Spencer Alderman
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.rogue.bank.data;
+
+import com.rogue.bank.data.storage.AccountFile;
+import com.rogue.bank.util.IntIndex;
+import java.io.IOException;
+
+/**
+ * Background checkpointing of changed accounts. Every mutation marks its
+ * account dirty, and a checkpoint thread periodically writes only the dirty
+ * accounts into a bank file that can be updated in place, plus a full
+ * snapshot every few checkpoints.
+ *
+ * A checkpoint first rotates the {@link Journal}, then swaps the dirty set
+ * for an empty one. Because accounts are marked dirty before their journal
+ * record is written, every record in the rotated segment belongs to an
+ * account in the swapped set, so the segment can be dropped once the
+ * checkpoint is durable. The dirty set is an {@link IntIndex}, so ids are
+ * not boxed and a run of ids is marked in an array of its own. Marking an
+ * account already marked takes no lock; only the first mark of an account
+ * since the last checkpoint waits on other first marks.
+ *
+ * Accounts written by a partial checkpoint must be in the same interest
+ * period as the rest of the bank file, so once a new period has started
+ * the next checkpoint is a full one. Interest periods can not start while
+ * a checkpoint is written. Each full checkpoint also lets the bank's
+ * {@link AccountStore} {@link AccountStore#recycle() recycle} the slots of
+ * closed accounts.
+ *
+ * @since 1.0.0
+ * @author 1Rogue
+ * @version 1.0.0
+ */
+public class Checkpointer implements Runnable {
+
+    private final DataManager data;
+    private final long interval;
+    private final int fullEvery;
+    private final Thread thread;
+    private volatile IntIndex dirty = new IntIndex();
+    private volatile boolean running;
+    private boolean changedSinceFull;
+    private int period;
+    private int ticks;
+
+    private long checkpoints;
+    private long fullCheckpoints;
+    private long records;
+    private long totalNanos;
+    private long lastNanos;
+    private long maxNanos;
+    private long maxSwapNanos;
+
+    /**
+     * Checkpointer constructor
+     *
+     * @since 1.0.0
+     * @version 1.0.0
+     *
+     * @param data The {@link DataManager} to checkpoint
+     * @param interval The time between checkpoints in milliseconds, or 0
+     *                 for no background checkpoints
+     * @param fullEvery The number of checkpoints between full snapshots
+     */
+    public Checkpointer(DataManager data, long interval, int fullEvery) {
+        this.data = data;
+        this.interval = interval;
+        this.fullEvery = Math.max(1, fullEvery);
+        this.thread = new Thread(this, "Bank-Checkpoint");
+        this.thread.setDaemon(true);
+    }
+
+    /**
+     * Starts the background checkpoint thread.
+     *
+     * @since 1.0.0
+     * @version 1.0.0
+     */
+    public void start() {
+        if (this.interval > 0) {
+            this.running = true;
+            this.thread.start();
+        }
+    }
+
+    /**
+     * Stops the background checkpoint thread, waiting for a running
+     * checkpoint to finish.
+     *
+     * @since 1.0.0
+     * @version 1.0.0
+     */
+    public void stop() {
+        this.running = false;
+        this.thread.interrupt();
+        try {
+            if (this.thread.isAlive()) {
+                this.thread.join();
+            }
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Marks an account as changed since the last checkpoint.
+     *
+     * @since 1.0.0
+     * @version 1.0.0
+     *
+     * @param id The id of the changed account
+     */
+    public void markDirty(int id) {
+        IntIndex set = this.dirty;
+        mark(set, id);
+        if (set != this.dirty) {
+            // swapped while marking, the checkpoint may have missed it
+            mark(this.dirty, id);
+        }
+    }
+
+    /**
+     * Adds an id to a dirty set, unless it is already there.
+     *
+     * @since 1.0.0
+     * @version 1.0.0
+     *
+     * @param set The dirty set
+     * @param id The account id
+     */
+    private static void mark(IntIndex set, int id) {
+        if (set.get(id) < 0) {
+            set.put(id, 0);
+        }
+    }
+
+    /**
+     * Checkpoint loop
+     *
+     * @since 1.0.0
+     * @version 1.0.0
+     */
+    public void run() {
+        while (this.running) {
+            try {
+                Thread.sleep(this.interval);
+            } catch (InterruptedException ex) {
+                break;
+            }
+            // accounts loaded on demand are never all in memory to snapshot
+            boolean full = ++this.ticks % this.fullEvery == 0 && this.data.getCache() == null;
+            try {
+                this.checkpoint(full);
+            } catch (IOException ex) {
+                System.err.println("Checkpoint error: " + ex.getMessage());
+            }
+        }
+    }
+
+    /**
+     * Runs a checkpoint. Bank files that can not be updated in place are
+     * only written by full checkpoints; between those their changes stay in
+     * the journal.
+     *
+     * @since 1.0.0
+     * @version 1.0.0
+     *
+     * @param full True for a full snapshot, false for dirty accounts only
+     * @throws IOException If the checkpoint could not be written
+     */
+    public synchronized void checkpoint(boolean full) throws IOException {
+        AccountFile store = this.data.getBankFile();
+        Journal journal = this.data.getJournal();
+        int accrued = this.data.getInterestPeriod();
+        if (accrued != this.period) {
+            full = true;
+            this.changedSinceFull = true;
+        }
+        if (!full && !store.isUpdatable()) {
+            if (this.dirty.size() > 0) {
+                this.changedSinceFull = true;
+            }
+            return;
+        }
+        if (this.dirty.size() == 0 && !(full && this.changedSinceFull)) {
+            return;
+        }
+        long start = System.nanoTime();
+        journal.rotate();
+        long swapStart = System.nanoTime();
+        IntIndex swapped = this.dirty;
+        this.dirty = new IntIndex();
+        long swapEnd = System.nanoTime();
+        int written;
+        if (full) {
+            Snapshot snapshot = this.data.snapshot();
+            try {
+                store.save(snapshot);
+            } finally {
+                snapshot.close();
+            }
+            AccountStore accounts = this.data.getAccountStore();
+            if (accounts != null) {
+                accounts.recycle();
+            }
+            written = snapshot.size();
+            this.changedSinceFull = false;
+            this.period = accrued;
+        } else {
+            for (int id : swapped.keys()) {
+                Account acc = this.data.getAccount(id);
+                if (acc != null) {
+                    store.update(acc);
+                } else {
+                    store.remove(id);
+                }
+            }
+            store.flush();
+            written = swapped.size();
+        }
+        journal.dropRotated();
+        long elapsed = System.nanoTime() - start;
+        this.checkpoints++;
+        if (full) {
+            this.fullCheckpoints++;
+        }
+        this.records += written;
+        this.totalNanos += elapsed;
+        this.lastNanos = elapsed;
+        this.maxNanos = Math.max(this.maxNanos, elapsed);
+        this.maxSwapNanos = Math.max(this.maxSwapNanos, swapEnd - swapStart);
+    }
+
+    /**
+     * Returns the configured time between checkpoints.
+     *
+     * @since 1.0.0
+     * @version 1.0.0
+     *
+     * @return The checkpoint interval in milliseconds
+     */
+    public long getInterval() {
+        return this.interval;
+    }
+
+    /**
+     * Returns the number of checkpoints written, including full ones.
+     *
+     * @since 1.0.0
+     * @version 1.0.0
+     *
+     * @return The number of checkpoints
+     */
+    public synchronized long getCheckpoints() {
+        return this.checkpoints;
+    }
+
+    /**
+     * Returns the number of full snapshot checkpoints written.
+     *
+     * @since 1.0.0
+     * @version 1.0.0
+     *
+     * @return The number of full checkpoints
+     */
+    public synchronized long getFullCheckpoints() {
+        return this.fullCheckpoints;
+    }
+
+    /**
+     * Returns the number of account records written by all checkpoints.
+     *
+     * @since 1.0.0
+     * @version 1.0.0
+     *
+     * @return The number of records written
+     */
+    public synchronized long getRecordsWritten() {
+        return this.records;
+    }
+
+    /**
+     * Returns the duration of the last checkpoint.
+     *
+     * @since 1.0.0
+     * @version 1.0.0
+     *
+     * @return The last checkpoint duration in milliseconds
+     */
+    public synchronized double getLastDuration() {
+        return this.lastNanos / 1e6;
+    }
+
+    /**
+     * Returns the average checkpoint duration.
+     *
+     * @since 1.0.0
+     * @version 1.0.0
+     *
+     * @return The average checkpoint duration in milliseconds
+     */
+    public synchronized double getAverageDuration() {
+        return this.checkpoints == 0 ? 0 : this.totalNanos / 1e6 / this.checkpoints;
+    }
+
+    /**
+     * Returns the longest checkpoint duration.
+     *
+     * @since 1.0.0
+     * @version 1.0.0
+     *
+     * @return The longest checkpoint duration in milliseconds
+     */
+    public synchronized double getMaxDuration() {
+        return this.maxNanos / 1e6;
+    }
+
+    /**
+     * Returns the longest time mutations could have raced a dirty set swap.
+     *
+     * @since 1.0.0
+     * @version 1.0.0
+     *
+     * @return The longest swap pause in microseconds
+     */
+    public synchronized double getMaxPause() {
+        return this.maxSwapNanos / 1e3;
+    }
+}
@@ -17,23 +17,22 @@
 package com.rogue.bank.data;
 
 import com.rogue.bank.Bank;
-import com.rogue.bank.control.BankController;
 import com.rogue.bank.data.accounts.CDAccount;
 import com.rogue.bank.data.accounts.CheckingAccount;
 import com.rogue.bank.data.accounts.SavingsAccount;
-import java.io.BufferedReader;
-import java.io.BufferedWriter;
+import com.rogue.bank.data.storage.AccountFile;
+import com.rogue.bank.data.storage.CompactAccountFile;
+import com.rogue.bank.data.storage.IndexedAccountFile;
+import com.rogue.bank.data.storage.MappedAccountFile;
+import com.rogue.bank.data.storage.ShardedAccountFile;
+import com.rogue.bank.data.storage.TextAccountFile;
+import com.rogue.bank.util.IntMap;
+import com.rogue.bank.util.ReportSink;
+import com.rogue.bank.util.StripedLock;
 import java.io.File;
-import java.io.FileNotFoundException;
-import java.io.FileReader;
-import java.io.FileWriter;
 import java.io.IOException;
-import java.util.ArrayList;
 import java.util.Collection;
-import java.util.Collections;
-import java.util.HashMap;
-import java.util.List;
-import java.util.Map;
+import java.util.concurrent.locks.Lock;
 
 /**
  * Manages bank data
@@ -45,9 +44,27 @@ import java.util.Map;
 public class DataManager {
 
     private final Bank project;
-    private final String bankLoc;
-    private final Map<Integer, Account> accounts = new HashMap<Integer, Account>();
-    private final char delimiter = '\t';
+    private IntMap<Account> accounts = new AccountStore();
+    private final AccountFile store;
+    private final Journal journal;
+    private final Checkpointer checkpointer;
+    private final long compactSize = Long.getLong("bank.journal.compactSize", 8L << 20);
+    private final int cacheSize = Integer.getInteger("bank.cache.size", 0);
+    private AccountCache cache;
+    private final EventBus events = new EventBus();
+    private final StripedLock registry = new StripedLock(Integer.getInteger("bank.lock.stripes",
+            Runtime.getRuntime().availableProcessors() * 4));
+    private final AccountListener changes = new AccountListener() {
+
+        public void accountChanged(Account account, UpdatePacket type, long cents) {
+            checkpointer.markDirty(account.getID());
+            if (cache != null) {
+                cache.markDirty(account);
+            }
+            journal.logBalance(account);
+        }
+
+    };
 
     /**
      * DataManager constructor
@@ -60,15 +77,43 @@ public class DataManager {
      */
     public DataManager(Bank project, String bankFile) {
         this.project = project;
-        this.bankLoc = bankFile;
+        this.journal = new Journal(new File(bankFile + ".journal"));
+        AccountFile file;
+        try {
+            file = openBankFile(bankFile);
+        } catch (IOException ex) {
+            System.err.println("Error: " + ex.getMessage());
+            file = new TextAccountFile(bankFile);
+        }
+        this.store = file;
+        this.checkpointer = new Checkpointer(this,
+                Long.getLong("bank.checkpoint.interval", 5000L),
+                Integer.getInteger("bank.checkpoint.fullEvery", 12));
         this.loadAccounts();
+        this.checkpointer.start();
         final Thread main = Thread.currentThread();
         Runtime.getRuntime().addShutdownHook(new Thread() {
 
             @Override
             public void run() {
                 displayBankData("Final");
-                saveAccounts();
+                if (Boolean.getBoolean("bank.stats")) {
+                    System.err.format("Journal: %d commits, %.1f records/commit (max %d), %.1f us/commit%n",
+                            journal.getCommits(), journal.getAverageBatchSize(),
+                            journal.getLargestBatchSize(), journal.getAverageCommitLatency());
+                }
+                closeAccounts();
+                if (Boolean.getBoolean("bank.stats")) {
+                    System.err.format("Checkpoints: %d every %d ms (%d full), %d records, %.1f ms avg, %.1f ms max, %.1f us max pause%n",
+                            checkpointer.getCheckpoints(), checkpointer.getInterval(), checkpointer.getFullCheckpoints(),
+                            checkpointer.getRecordsWritten(), checkpointer.getAverageDuration(),
+                            checkpointer.getMaxDuration(), checkpointer.getMaxPause());
+                    if (cache != null) {
+                        System.err.format("Cache: %d of %d accounts, %d hits, %d misses, %d evictions, %d write-backs%n",
+                                Math.min(cache.getCapacity(), cache.size()), cache.size(), cache.getHits(),
+                                cache.getMisses(), cache.getEvictions(), cache.getWriteBacks());
+                    }
+                }
                 try {
                     main.join();
                 } catch (InterruptedException ex) {
@@ -88,111 +133,347 @@ public class DataManager {
      * @param id The account id
      * @return Account based on id, null if no account exists
      */
-    public synchronized Account getAccount(int id) {
+    public Account getAccount(int id) {
         return this.accounts.get(id);
     }
 
     /**
-     * Returns a Collection of all loaded Accounts.
+     * Returns a Collection of all loaded Accounts. The collection is a live
+     * view which can be iterated while accounts are opened and closed; it
+     * may or may not show changes made after iteration began.
      *
      * @since 1.0.0
      * @version 1.0.0
      *
      * @return A Collection of all loaded Accounts.
      */
-    public synchronized Collection<Account> getAccounts() {
+    public Collection<Account> getAccounts() {
         return this.accounts.values();
     }
 
     /**
-     * Loads accounts from the bank file
+     * Returns the store holding every account, read a slot at a time by
+     * whole-bank passes.
+     *
+     * @since 1.0.0
+     * @version 1.0.0
+     *
+     * @return The {@link AccountStore}, or null if accounts are loaded
+     *         through a cache
+     */
+    public AccountStore getAccountStore() {
+        return this.accounts instanceof AccountStore ? (AccountStore) this.accounts : null;
+    }
+
+    /**
+     * Opens a {@link Snapshot} of every account. Accounts keep changing
+     * while the snapshot is read, but it only sees their balances as of
+     * this call. Interest accrued since the accounts were last used is
+     * compiled first. The snapshot must be closed once read.
+     *
+     * @since 1.0.0
+     * @version 1.0.0
+     *
+     * @return An open {@link Snapshot} of all accounts
+     */
+    public Snapshot snapshot() {
+        synchronized (this.checkpointer) {
+            if (this.accounts instanceof AccountStore) {
+                ((AccountStore) this.accounts).settle();
+                return Snapshot.open((AccountStore) this.accounts, this.registry);
+            }
+            return Snapshot.open(this.accounts.values(), this.registry);
+        }
+    }
+
+    /**
+     * Starts a new interest period without touching any account: each
+     * account compiles the interest it missed when it is next read,
+     * changed or saved. The period is journaled as one record. Checkpoints
+     * are held off while it starts, so a checkpoint's accounts all belong
+     * to the same period.
+     *
+     * @since 1.0.0
+     * @version 1.0.0
+     *
+     * @return False if accounts are loaded through a cache, which can not
+     *         accrue interest, and nothing was done
+     */
+    public boolean accrueInterest() {
+        if (!(this.accounts instanceof AccountStore)) {
+            return false;
+        }
+        synchronized (this.checkpointer) {
+            this.journal.logInterest((AccountStore) this.accounts);
+        }
+        return true;
+    }
+
+    /**
+     * Returns the number of interest periods started by
+     * {@link #accrueInterest()} since the accounts were loaded.
+     *
+     * @since 1.0.0
+     * @version 1.0.0
+     *
+     * @return The interest period, always 0 when accounts are cached
+     */
+    int getInterestPeriod() {
+        return this.accounts instanceof AccountStore ? ((AccountStore) this.accounts).getPeriod() : 0;
+    }
+
+    /**
+     * Returns the {@link Journal} all account mutations are appended to
+     *
+     * @since 1.0.0
+     * @version 1.0.0
+     *
+     * @return The bank {@link Journal}
+     */
+    public Journal getJournal() {
+        return this.journal;
+    }
+
+    /**
+     * Returns the cache accounts are loaded through when only some are kept
+     * in memory.
+     *
+     * @since 1.0.0
+     * @version 1.0.0
+     *
+     * @return The {@link AccountCache}, or null if every account is loaded
+     */
+    public AccountCache getCache() {
+        return this.cache;
+    }
+
+    /**
+     * Returns the {@link Checkpointer} writing changed accounts to the bank
+     * file
+     *
+     * @since 1.0.0
+     * @version 1.0.0
+     *
+     * @return The bank {@link Checkpointer}
+     */
+    public Checkpointer getCheckpointer() {
+        return this.checkpointer;
+    }
+
+    /**
+     * Returns the {@link AccountFile} the bank is stored in
+     *
+     * @since 1.0.0
+     * @version 1.0.0
+     *
+     * @return The bank {@link AccountFile}
+     */
+    public AccountFile getBankFile() {
+        return this.store;
+    }
+
+    /**
+     * Opens a bank file, split into the number of shards set by the
+     * {@code bank.shards} property.
+     *
+     * @since 1.0.0
+     * @version 1.0.0
+     *
+     * @param bankFile String for bank file location
+     * @return The opened {@link AccountFile}
+     * @throws IOException If the file could not be opened
+     */
+    public static AccountFile openBankFile(String bankFile) throws IOException {
+        return openBankFile(bankFile, Integer.getInteger("bank.shards", 1));
+    }
+
+    /**
+     * Opens a bank file in the format it was written in. Files beginning
+     * with the {@link MappedAccountFile} magic number, or new files ending
+     * in ".bin", are mapped binary files. Likewise {@link CompactAccountFile}
+     * snapshots end in ".cbank". Anything else is a text file.
+     * With more than one shard, or when only shards of the bank exist, a
+     * {@link ShardedAccountFile} is opened instead.
+     *
+     * @since 1.0.0
+     * @version 1.0.0
+     *
+     * @param bankFile String for bank file location
+     * @param shards The number of shards to split the bank into
+     * @return The opened {@link AccountFile}
+     * @throws IOException If the file could not be opened
+     */
+    public static AccountFile openBankFile(String bankFile, int shards) throws IOException {
+        File f = new File(bankFile);
+        if (shards > 1) {
+            return new ShardedAccountFile(bankFile, shards);
+        }
+        if (!f.exists() && ShardedAccountFile.countShards(bankFile) > 0) {
+            return new ShardedAccountFile(bankFile, ShardedAccountFile.countShards(bankFile));
+        }
+        if (MappedAccountFile.isMapped(f) || (f.length() == 0 && bankFile.endsWith(".bin"))) {
+            return new MappedAccountFile(bankFile);
+        }
+        if (CompactAccountFile.isCompact(f) || (f.length() == 0 && bankFile.endsWith(".cbank"))) {
+            return new CompactAccountFile(bankFile);
+        }
+        return new TextAccountFile(bankFile);
+    }
+
+    /**
+     * Loads accounts from the bank file, then replays the journal on top of
+     * it. If the journal has grown past the compaction size, or the bank
+     * file can hold the replayed changes in place, a new snapshot is written
+     * and the journal emptied.
      *
      * @since 1.0.0
      * @version 1.0.0
      */
     private void loadAccounts() {
-        File f = new File(this.bankLoc);
-        FileReader fr = null;
-        BufferedReader reader = null;
-        BankController controller = this.project.getBankController();
-        try {
-            fr = new FileReader(f);
-            reader = new BufferedReader(fr);
-            String inLine;
-            while ((inLine = reader.readLine()) != null) {
-                String[] info = inLine.split(this.delimiter + "");
-                if (info.length == 4) {
-                    char type = info[1].charAt(0);
-                    try {
-                        int id = Integer.parseInt(info[0]);
-                        int pin = Integer.parseInt(info[2]);
-                        double bal = Double.parseDouble(info[3]);
-                        Account temp = this.makeAccount(type, id, pin, bal);
-                        temp.addObserver(controller);
-                        this.registerAccount(temp);
-                    } catch (NumberFormatException ex) {
-                        // don't uses
-                    }
-                }
+        if (this.cacheSize > 0) {
+            if (this.store instanceof IndexedAccountFile) {
+                this.indexAccounts((IndexedAccountFile) this.store);
+                return;
             }
-        } catch (FileNotFoundException ex) {
+            System.err.println("Warning: bank.cache.size needs a mapped bank file, loading every account");
+        }
+        long start = System.nanoTime();
+        try {
+            AccountStore loaded = new AccountStore(false);
+            this.store.load(loaded);
+            loaded.index();
+            this.accounts = loaded;
+        } catch (IOException ex) {
             System.err.println("Error: " + ex.getMessage());
+        }
+        long elapsed = System.nanoTime() - start;
+        int rejected = this.store.getRejected();
+        if (rejected > 0) {
+            System.err.println("Warning: " + rejected + " unreadable records in the bank file were skipped");
+        }
+        if (Boolean.getBoolean("bank.stats")) {
+            System.err.format("Loaded %d accounts in %.1f ms (%.0f records/sec), %d rejected%n",
+                    this.accounts.size(), elapsed / 1e6, this.accounts.size() * 1e9 / Math.max(1, elapsed), rejected);
+        }
+        try {
+            this.journal.replay(this.accounts);
         } catch (IOException ex) {
             System.err.println("Error: " + ex.getMessage());
-        } finally {
-            try {
-                if (fr != null) {
-                    fr.close();
-                }
-                if (reader != null) {
-                    reader.close();
-                }
-            } catch (IOException ex) {
-                System.err.println("Error: " + ex.getMessage());
-            }
+        }
+        ((AccountStore) this.accounts).setEvents(this.events, this.changes);
+        long size = this.journal.size();
+        if (size > this.compactSize || (size > 0 && this.store.isUpdatable())) {
+            this.saveAccounts();
         }
     }
 
     /**
-     * Saves accounts to the bank file
+     * Opens the index of the bank file instead of loading it, so accounts
+     * are only read when first used and at most {@code bank.cache.size} are
+     * kept in memory. Journaled changes are replayed into the file itself.
      *
      * @since 1.0.0
      * @version 1.0.0
+     *
+     * @param indexed The bank file to index
      */
-    private void saveAccounts() {
-        File old = new File(this.bankLoc);
-        old.renameTo(new File(this.bankLoc + ".old"));
-        old = new File(this.bankLoc + ".old");
-        old.deleteOnExit();
-        File f = new File(this.bankLoc);
-        if (f.exists()) {
-            f.delete();
+    private void indexAccounts(IndexedAccountFile indexed) {
+        long start = System.nanoTime();
+        try {
+            indexed.openIndex();
+            this.cache = new AccountCache(indexed, this, this.cacheSize);
+            this.accounts = this.cache;
+        } catch (IOException ex) {
+            System.err.println("Error: " + ex.getMessage());
+            return;
+        }
+        long elapsed = System.nanoTime() - start;
+        if (Boolean.getBoolean("bank.stats")) {
+            System.err.format("Indexed %d accounts in %.1f ms, caching up to %d%n",
+                    this.cache.size(), elapsed / 1e6, this.cache.getCapacity());
         }
-        FileWriter fw = null;
-        BufferedWriter writer = null;
         try {
-            f.createNewFile();
-            fw = new FileWriter(f);
-            writer = new BufferedWriter(fw);
-            for (Account acc : this.accounts.values()) {
-                writer.write(acc.formatWith(this.delimiter) + "\n");
+            this.journal.replay(this.accounts);
+            if (this.journal.size() > 0) {
+                this.cache.flush();
+                this.journal.reset();
             }
         } catch (IOException ex) {
             System.err.println("Error: " + ex.getMessage());
+        }
+    }
+
+    /**
+     * Saves accounts to the bank file, and empties the journal once every
+     * account has been written
+     *
+     * @since 1.0.0
+     * @version 1.0.0
+     */
+    private void saveAccounts() {
+        Snapshot snapshot = this.snapshot();
+        try {
+            this.store.save(snapshot);
+            this.journal.reset();
+        } catch (IOException ex) {
+            System.err.println("Error: " + ex.getMessage());
         } finally {
-            try {
-                if (writer != null) {
-                    writer.close();
-                }
-                if (fw != null) {
-                    fw.close();
-                }
-            } catch (IOException ex) {
-                System.err.println("Error: " + ex.getMessage());
+            snapshot.close();
+        }
+    }
+
+    /**
+     * Closes the bank file at shutdown. A bank file updated in place only
+     * needs a last checkpoint of the dirty accounts before the journal can
+     * be emptied.
+     *
+     * @since 1.0.0
+     * @version 1.0.0
+     */
+    private void closeAccounts() {
+        this.checkpointer.stop();
+        this.events.close();
+        try {
+            if (this.store.isUpdatable()) {
+                this.checkpointer.checkpoint(false);
+                this.journal.reset();
+            } else if (this.journal.size() > this.compactSize) {
+                this.saveAccounts();
             }
+            this.journal.close();
+            this.store.close();
+        } catch (IOException ex) {
+            System.err.println("Error: " + ex.getMessage());
         }
     }
 
+    /**
+     * Returns the {@link EventBus} tracked accounts publish their changes to.
+     * Changes are journaled and checkpointed by a listener on it.
+     *
+     * @since 1.0.0
+     * @version 1.0.0
+     *
+     * @return The account event bus
+     */
+    public EventBus getEvents() {
+        return this.events;
+    }
+
+    /**
+     * Attaches an account, and any other account held in the same
+     * {@link AccountStore}, to the bank so its changes are journaled and
+     * checkpointed, then published to the {@link EventBus}.
+     *
+     * @since 1.0.0
+     * @version 1.0.0
+     *
+     * @param account The account to track
+     */
+    void track(Account account) {
+        account.getStore().setEvents(this.events, this.changes);
+    }
+
     /**
      * Gets an account based on the char value
      *
@@ -206,6 +487,23 @@ public class DataManager {
      * @return The appropriate {@link Account} type, null if none exists
      */
     public Account makeAccount(char acc, int aid, int pin, double bal) {
+        return newAccount(acc, aid, pin, bal);
+    }
+
+    /**
+     * Creates an account based on the char value, without a
+     * {@link DataManager}. Used when reading bank files.
+     *
+     * @since 1.0.0
+     * @version 1.0.0
+     *
+     * @param acc The char-value of the account
+     * @param aid The account id
+     * @param pin The account pin
+     * @param bal The account balance
+     * @return The appropriate {@link Account} type, null if none exists
+     */
+    public static Account newAccount(char acc, int aid, int pin, double bal) {
         switch (Character.toLowerCase(acc)) {
             case 's':
                 return new SavingsAccount(aid, pin, bal);
@@ -218,7 +516,12 @@ public class DataManager {
     }
 
     /**
-     * Registers an account to the bank.
+     * Registers an account to the bank, journaling it as opened. The
+     * account is copied into the bank's {@link AccountStore}, so later
+     * changes must be made to the account returned by
+     * {@link #getAccount(int)}. Only
+     * registrations and removals of ids sharing a lock stripe wait on each
+     * other; the stripe count is set with {@code bank.lock.stripes}.
      *
      * @since 1.0.0
      * @version 1.0.0
@@ -227,16 +530,28 @@ public class DataManager {
      * @return If the account was successfully registered
      */
     public boolean registerAccount(Account account) {
-        if (this.accounts.containsKey(account.getID())) {
-            return false;
-        } else {
+        Account held;
+        Lock lock = this.registry.get(account.getID());
+        lock.lock();
+        try {
+            if (this.accounts.containsKey(account.getID())) {
+                return false;
+            }
             this.accounts.put(account.getID(), account);
-            return true;
+            held = this.accounts.get(account.getID());
+            this.checkpointer.markDirty(held.getID());
+            this.journal.logOpen(held);
+            this.track(held);
+        } finally {
+            lock.unlock();
         }
+        this.events.publish(held, UpdatePacket.CREATE, held.getCents());
+        return true;
     }
 
     /**
      * Unregisters an account from the bank, deleting all known information
+     * and journaling it as closed.
      *
      * @since 1.0.0
      * @version 1.0.0
@@ -245,7 +560,22 @@ public class DataManager {
      * @return The removed account, null if non-existent
      */
     public Account unregisterAccount(int id) {
-        return this.accounts.remove(id);
+        Account account;
+        Lock lock = this.registry.get(id);
+        lock.lock();
+        try {
+            account = this.accounts.remove(id);
+            if (account == null) {
+                return null;
+            }
+            account.detach();
+            this.checkpointer.markDirty(id);
+            this.journal.logClose(id);
+        } finally {
+            lock.unlock();
+        }
+        this.events.publish(account, UpdatePacket.DELETE, account.getCents());
+        return account;
     }
     
     /**
@@ -257,20 +587,25 @@ public class DataManager {
      * @param param The title of the bank data
      */
     public void displayBankData(String param) {
-        System.out.println("========== " + param + " Bank Data ==================");
-        System.out.println();
-        System.out.println("Account Type    Account Balance");
-        System.out.println("------------    ------- -----------");
-
-        List<Account> accs = new ArrayList<Account>(this.project.getBankController().getAccounts());
-        Collections.sort(accs);
-        for (Account account : accs) {
-            System.out.format("%-11s $   %7d $ %9.2f", account.getDisplayString(), account.getID(), account.getBalance());
-            System.out.println();
+        ReportSink out = ReportSink.stdout();
+        out.text("========== ").text(param).text(" Bank Data ==================").newline();
+        out.newline();
+        out.text("Account Type    Account Balance").newline();
+        out.text("------------    ------- -----------").newline();
+
+        Snapshot snapshot = this.snapshot().sort();
+        try {
+            for (int i = 0; i < snapshot.size(); i++) {
+                out.left(snapshot.getDisplayString(i), 11).text(" $   ").right(snapshot.getID(i), 7).text(" $ ")
+                        .money(snapshot.getBalance(i), 9).newline();
+            }
+        } finally {
+            snapshot.close();
         }
 
-        System.out.println();
-        System.out.println("===============================================");
-        System.out.println();
+        out.newline();
+        out.text("===============================================").newline();
+        out.newline();
+        out.flush();
     }
 }
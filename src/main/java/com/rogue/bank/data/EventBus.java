@@ -0,0 +1,237 @@
+/*
+ * Copyright (C) 2013 Spencer Alderman
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.rogue.bank.data;
+
+import java.util.Arrays;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Central dispatch of account events. Accounts hold a single reference to
+ * the bus they publish to instead of a list of observers of their own, and
+ * publishing takes no lock: listeners are held in an array which is copied
+ * whenever one subscribes, and read once per event.
+ *
+ * Synchronous listeners are called on the thread that changed the account.
+ * Asynchronous listeners each get a queue and a thread of their own, which
+ * delivers every event queued since it last ran in one go, so a slow
+ * listener never holds up a change.
+ *
+ * @since 1.0.0
+ * @author 1Rogue
+ * @version 1.0.0
+ */
+public class EventBus {
+
+    private volatile AccountListener[] listeners = new AccountListener[0];
+    private volatile Dispatcher[] dispatchers = new Dispatcher[0];
+
+    /**
+     * Subscribes a listener to be called on the thread that publishes each
+     * event.
+     *
+     * @since 1.0.0
+     * @version 1.0.0
+     *
+     * @param listener The listener to subscribe
+     */
+    public void subscribe(AccountListener listener) {
+        this.subscribe(listener, false);
+    }
+
+    /**
+     * Subscribes a listener.
+     *
+     * @since 1.0.0
+     * @version 1.0.0
+     *
+     * @param listener The listener to subscribe
+     * @param async True to deliver events on a listener thread, false to
+     *              call the listener on the publishing thread
+     */
+    public synchronized void subscribe(AccountListener listener, boolean async) {
+        if (async) {
+            Dispatcher dispatcher = new Dispatcher(listener);
+            Dispatcher[] next = Arrays.copyOf(this.dispatchers, this.dispatchers.length + 1);
+            next[next.length - 1] = dispatcher;
+            this.dispatchers = next;
+            dispatcher.thread.start();
+        } else {
+            AccountListener[] next = Arrays.copyOf(this.listeners, this.listeners.length + 1);
+            next[next.length - 1] = listener;
+            this.listeners = next;
+        }
+    }
+
+    /**
+     * Publishes an event to every listener.
+     *
+     * @since 1.0.0
+     * @version 1.0.0
+     *
+     * @param account The account the event is for
+     * @param type The type of event
+     * @param cents The account balance in cents after the event
+     */
+    public void publish(Account account, UpdatePacket type, long cents) {
+        for (AccountListener listener : this.listeners) {
+            listener.accountChanged(account, type, cents);
+        }
+        Dispatcher[] async = this.dispatchers;
+        if (async.length > 0) {
+            Event event = new Event(account, type, cents);
+            for (Dispatcher dispatcher : async) {
+                dispatcher.offer(event);
+            }
+        }
+    }
+
+    /**
+     * Stops the listener threads once they have delivered every event
+     * already published.
+     *
+     * @since 1.0.0
+     * @version 1.0.0
+     */
+    public synchronized void close() {
+        Dispatcher[] async = this.dispatchers;
+        this.dispatchers = new Dispatcher[0];
+        for (Dispatcher dispatcher : async) {
+            dispatcher.stop();
+        }
+    }
+
+    /**
+     * An event queued for an asynchronous listener
+     *
+     * @since 1.0.0
+     * @author 1Rogue
+     * @version 1.0.0
+     */
+    private static final class Event {
+
+        private final Account account;
+        private final UpdatePacket type;
+        private final long cents;
+
+        /**
+         * Event constructor
+         *
+         * @since 1.0.0
+         * @version 1.0.0
+         *
+         * @param account The account the event is for
+         * @param type The type of event
+         * @param cents The account balance in cents after the event
+         */
+        Event(Account account, UpdatePacket type, long cents) {
+            this.account = account;
+            this.type = type;
+            this.cents = cents;
+        }
+    }
+
+    /**
+     * Delivers queued events to an asynchronous listener on its own thread
+     *
+     * @since 1.0.0
+     * @author 1Rogue
+     * @version 1.0.0
+     */
+    private static final class Dispatcher implements Runnable {
+
+        private final AccountListener listener;
+        private final Queue<Event> queue = new ConcurrentLinkedQueue<Event>();
+        private final Thread thread;
+        private volatile boolean waiting;
+        private volatile boolean running = true;
+
+        /**
+         * Dispatcher constructor
+         *
+         * @since 1.0.0
+         * @version 1.0.0
+         *
+         * @param listener The listener to deliver to
+         */
+        Dispatcher(AccountListener listener) {
+            this.listener = listener;
+            this.thread = new Thread(this, "Bank-Events");
+            this.thread.setDaemon(true);
+        }
+
+        /**
+         * Queues an event, waking the listener thread if it is idle.
+         *
+         * @since 1.0.0
+         * @version 1.0.0
+         *
+         * @param event The event to queue
+         */
+        void offer(Event event) {
+            this.queue.offer(event);
+            if (this.waiting) {
+                LockSupport.unpark(this.thread);
+            }
+        }
+
+        /**
+         * Stops the listener thread after it empties the queue.
+         *
+         * @since 1.0.0
+         * @version 1.0.0
+         */
+        void stop() {
+            this.running = false;
+            LockSupport.unpark(this.thread);
+            try {
+                this.thread.join();
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+            }
+        }
+
+        /**
+         * Delivery loop
+         *
+         * @since 1.0.0
+         * @version 1.0.0
+         */
+        public void run() {
+            while (true) {
+                Event event;
+                while ((event = this.queue.poll()) != null) {
+                    try {
+                        this.listener.accountChanged(event.account, event.type, event.cents);
+                    } catch (RuntimeException ex) {
+                        System.err.println("Error: " + ex.getMessage());
+                    }
+                }
+                if (!this.running) {
+                    return;
+                }
+                this.waiting = true;
+                // an event offered before the flag was seen is picked up here
+                if (this.queue.isEmpty() && this.running) {
+                    LockSupport.park(this);
+                }
+                this.waiting = false;
+            }
+        }
+    }
+}
@@ -0,0 +1,551 @@
+/*
+ * Copyright (C) 2013 Spencer Alderman
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.rogue.bank.data;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Group-commit stage for the {@link Journal}. Records submitted by any
+ * number of threads are collected by a single writer thread, written
+ * together and forced to disk with one {@link FileChannel#force(boolean)}
+ * per batch. Each caller of {@link #submit(Entry)} only returns once the
+ * batch holding its record is durable. A caller with many records to
+ * commit can {@link #append(Entry)} each without waiting, and
+ * {@link #sync(long, long)} once for all of them, so they share forces
+ * even when they come from a single thread.
+ *
+ * A batch is closed when it reaches the maximum batch size, or when the
+ * maximum delay since its first record has passed. With no delay, batches
+ * form naturally from whatever arrives while the previous force runs.
+ *
+ * A batch that fails to be written is cut back off the end of the file, so
+ * later batches follow the last committed one and replay never stops at a
+ * torn record ahead of them. Every record of a failed batch fails its
+ * waiter, however many batches fail before it checks. If the file can not
+ * be cut back, every later batch fails too.
+ *
+ * @since 1.0.0
+ * @author 1Rogue
+ * @version 1.0.0
+ */
+class GroupCommit implements Runnable {
+
+    private final FileChannel channel;
+    private final int maxBatch;
+    private final long maxDelay;
+    private final boolean fsync;
+    private final ByteBuffer buffer;
+    private final Thread writer;
+    private final List<Entry> pending = new ArrayList<Entry>();
+    private long submitted;
+    private long committed;
+    private long size;
+    private final List<Failure> failed = new ArrayList<Failure>();
+    private IOException broken;
+    private boolean running = true;
+
+    private long commits;
+    private long records;
+    private long largestBatch;
+    private long commitNanos;
+
+    /**
+     * GroupCommit constructor. Starts the writer thread.
+     *
+     * @since 1.0.0
+     * @version 1.0.0
+     *
+     * @param file The file to append to
+     * @param maxBatch The maximum records forced together
+     * @param maxDelay The maximum time in microseconds to hold a batch open
+     * @param fsync Whether batches are forced to the disk
+     * @throws IOException If the file could not be opened
+     */
+    GroupCommit(File file, int maxBatch, long maxDelay, boolean fsync) throws IOException {
+        this(new RandomAccessFile(file, "rw").getChannel(), maxBatch, maxDelay, fsync);
+    }
+
+    /**
+     * GroupCommit constructor. Starts the writer thread.
+     *
+     * @since 1.0.0
+     * @version 1.0.0
+     *
+     * @param channel The channel to append to
+     * @param maxBatch The maximum records forced together
+     * @param maxDelay The maximum time in microseconds to hold a batch open
+     * @param fsync Whether batches are forced to the disk
+     * @throws IOException If the channel could not be read
+     */
+    GroupCommit(FileChannel channel, int maxBatch, long maxDelay, boolean fsync) throws IOException {
+        this.channel = channel;
+        this.size = this.channel.size();
+        this.channel.position(this.size);
+        this.maxBatch = Math.max(1, maxBatch);
+        this.maxDelay = Math.max(0, maxDelay) * 1000L;
+        this.fsync = fsync;
+        this.buffer = ByteBuffer.allocate(this.maxBatch * Entry.MAX_LENGTH);
+        this.writer = new Thread(this, "Bank-GroupCommit");
+        this.writer.setDaemon(true);
+        this.writer.start();
+    }
+
+    /**
+     * Submits a record and waits until it has been committed.
+     *
+     * @since 1.0.0
+     * @version 1.0.0
+     *
+     * @param entry The record to commit
+     * @throws IOException If the batch holding the record failed to commit
+     */
+    void submit(Entry entry) throws IOException {
+        synchronized (this.pending) {
+            long seq = this.append(entry);
+            this.await(seq, seq);
+        }
+    }
+
+    /**
+     * Submits a record without waiting for it to be committed.
+     *
+     * @since 1.0.0
+     * @version 1.0.0
+     *
+     * @param entry The record to commit
+     * @return The sequence number of the record, to pass to
+     *         {@link #sync(long, long)}
+     * @throws IOException If the stage has been closed
+     */
+    long append(Entry entry) throws IOException {
+        synchronized (this.pending) {
+            if (!this.running) {
+                throw new IOException("Journal is closed");
+            }
+            this.pending.add(entry);
+            this.pending.notifyAll();
+            return ++this.submitted;
+        }
+    }
+
+    /**
+     * Waits until a run of appended records has been committed.
+     *
+     * @since 1.0.0
+     * @version 1.0.0
+     *
+     * @param first The sequence number of the first record of the run
+     * @param last The sequence number of the last record of the run
+     * @throws IOException If a batch holding any of the records failed to
+     *                     commit
+     */
+    void sync(long first, long last) throws IOException {
+        synchronized (this.pending) {
+            this.await(first, last);
+        }
+    }
+
+    /**
+     * Waits until every record submitted so far has been committed, then
+     * truncates the file to empty, which also recovers from a write that
+     * could not be cut back.
+     *
+     * @since 1.0.0
+     * @version 1.0.0
+     *
+     * @throws IOException If the file could not be truncated
+     */
+    void truncate() throws IOException {
+        synchronized (this.pending) {
+            this.drain();
+            this.channel.truncate(0);
+            this.channel.position(0);
+            this.size = 0;
+            this.broken = null;
+        }
+    }
+
+    /**
+     * Waits until every record submitted so far has been committed, then
+     * moves the committed records onto the end of another file, leaving this
+     * one empty.
+     *
+     * @since 1.0.0
+     * @version 1.0.0
+     *
+     * @param to The file to move the records to
+     * @throws IOException If the records could not be moved
+     */
+    void rotate(File to) throws IOException {
+        synchronized (this.pending) {
+            this.drain();
+            transfer(this.channel, to);
+            this.channel.truncate(0);
+            this.channel.position(0);
+            this.size = 0;
+            this.broken = null;
+        }
+    }
+
+    /**
+     * Appends the whole contents of a channel onto the end of a file, and
+     * forces the file to disk.
+     *
+     * @since 1.0.0
+     * @version 1.0.0
+     *
+     * @param from The channel to copy
+     * @param to The file to append to
+     * @throws IOException If the contents could not be copied
+     */
+    static void transfer(FileChannel from, File to) throws IOException {
+        FileChannel out = new FileOutputStream(to, true).getChannel();
+        try {
+            long length = from.size();
+            long done = 0;
+            while (done < length) {
+                done += from.transferTo(done, length - done, out);
+            }
+            out.force(false);
+        } finally {
+            out.close();
+        }
+    }
+
+    /**
+     * Commits every outstanding record and stops the writer thread.
+     *
+     * @since 1.0.0
+     * @version 1.0.0
+     *
+     * @throws IOException If the file could not be closed
+     */
+    void close() throws IOException {
+        synchronized (this.pending) {
+            this.drain();
+            this.running = false;
+            this.pending.notifyAll();
+        }
+        try {
+            this.writer.join();
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        }
+        this.channel.close();
+    }
+
+    /**
+     * Returns the number of bytes committed to the file.
+     *
+     * @since 1.0.0
+     * @version 1.0.0
+     *
+     * @return The committed file size
+     */
+    long size() {
+        synchronized (this.pending) {
+            return this.size;
+        }
+    }
+
+    /**
+     * Returns the number of batches forced so far.
+     *
+     * @since 1.0.0
+     * @version 1.0.0
+     *
+     * @return The number of commits
+     */
+    long getCommits() {
+        synchronized (this.pending) {
+            return this.commits;
+        }
+    }
+
+    /**
+     * Returns the average number of records per forced batch.
+     *
+     * @since 1.0.0
+     * @version 1.0.0
+     *
+     * @return The average batch size
+     */
+    double getAverageBatchSize() {
+        synchronized (this.pending) {
+            return this.commits == 0 ? 0 : (double) this.records / this.commits;
+        }
+    }
+
+    /**
+     * Returns the largest number of records forced in one batch.
+     *
+     * @since 1.0.0
+     * @version 1.0.0
+     *
+     * @return The largest batch size
+     */
+    long getLargestBatchSize() {
+        synchronized (this.pending) {
+            return this.largestBatch;
+        }
+    }
+
+    /**
+     * Returns the average time in microseconds to write and force a batch.
+     *
+     * @since 1.0.0
+     * @version 1.0.0
+     *
+     * @return The average commit latency
+     */
+    double getAverageCommitLatency() {
+        synchronized (this.pending) {
+            return this.commits == 0 ? 0 : this.commitNanos / 1000.0 / this.commits;
+        }
+    }
+
+    /**
+     * Writer loop, collecting and committing batches until closed.
+     *
+     * @since 1.0.0
+     * @version 1.0.0
+     */
+    public void run() {
+        List<Entry> batch = new ArrayList<Entry>(this.maxBatch);
+        while (this.collect(batch)) {
+            long start = System.nanoTime();
+            IOException error = null;
+            this.buffer.clear();
+            for (Entry entry : batch) {
+                entry.write(this.buffer);
+            }
+            this.buffer.flip();
+            int length = this.buffer.remaining();
+            try {
+                if (this.broken != null) {
+                    throw this.broken;
+                }
+                while (this.buffer.hasRemaining()) {
+                    this.channel.write(this.buffer);
+                }
+                if (this.fsync) {
+                    this.channel.force(false);
+                }
+            } catch (IOException ex) {
+                error = ex;
+            }
+            long elapsed = System.nanoTime() - start;
+            synchronized (this.pending) {
+                if (error != null) {
+                    this.fail(error, this.committed + 1, this.committed + batch.size());
+                }
+                this.committed += batch.size();
+                if (error == null) {
+                    this.size += length;
+                    this.commits++;
+                    this.records += batch.size();
+                    this.commitNanos += elapsed;
+                    this.largestBatch = Math.max(this.largestBatch, batch.size());
+                }
+                this.pending.notifyAll();
+            }
+            batch.clear();
+        }
+    }
+
+    /**
+     * Records a batch that failed to be written, and cuts whatever part of
+     * it reached the file back off. Holds the pending lock.
+     *
+     * @since 1.0.0
+     * @version 1.0.0
+     *
+     * @param error The reason the batch failed
+     * @param first The sequence number of the first record of the batch
+     * @param last The sequence number of the last record of the batch
+     */
+    private void fail(IOException error, long first, long last) {
+        Failure previous = this.failed.isEmpty() ? null : this.failed.get(this.failed.size() - 1);
+        if (previous != null && previous.last == first - 1) {
+            previous.last = last;
+        } else {
+            this.failed.add(new Failure(error, first, last));
+        }
+        if (this.broken != null) {
+            return;
+        }
+        try {
+            this.channel.truncate(this.size);
+            this.channel.position(this.size);
+        } catch (IOException ex) {
+            this.broken = new IOException("Journal could not be restored after a failed write: " + ex.getMessage());
+        }
+    }
+
+    /**
+     * Blocks until a batch is ready, and moves it into the given list.
+     *
+     * @since 1.0.0
+     * @version 1.0.0
+     *
+     * @param batch The list to fill with the next batch
+     * @return False once closed with nothing left to commit
+     */
+    private boolean collect(List<Entry> batch) {
+        synchronized (this.pending) {
+            try {
+                while (this.pending.isEmpty()) {
+                    if (!this.running) {
+                        return false;
+                    }
+                    this.pending.wait();
+                }
+                if (this.maxDelay > 0) {
+                    long deadline = System.nanoTime() + this.maxDelay;
+                    long left;
+                    while (this.running && this.pending.size() < this.maxBatch
+                            && (left = deadline - System.nanoTime()) > 0) {
+                        this.pending.wait(left / 1000000L, (int) (left % 1000000L));
+                    }
+                }
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+            }
+            int count = Math.min(this.maxBatch, this.pending.size());
+            List<Entry> head = this.pending.subList(0, count);
+            batch.addAll(head);
+            head.clear();
+            return true;
+        }
+    }
+
+    /**
+     * Waits, holding the pending lock, until a run of records is committed.
+     *
+     * @since 1.0.0
+     * @version 1.0.0
+     *
+     * @param first The sequence number of the first record of the run
+     * @param last The sequence number of the last record to wait for
+     * @throws IOException If a failed batch held any of the records
+     */
+    private void await(long first, long last) throws IOException {
+        this.drain(last);
+        for (Failure failure : this.failed) {
+            if (last >= failure.first && first <= failure.last) {
+                throw failure.error;
+            }
+        }
+    }
+
+    /**
+     * Waits, holding the pending lock, until every record submitted so far
+     * has been written or has failed. Failures are left to the waiters of
+     * the records that failed.
+     *
+     * @since 1.0.0
+     * @version 1.0.0
+     */
+    private void drain() {
+        this.drain(this.submitted);
+    }
+
+    /**
+     * Waits, holding the pending lock, until a record has been written or
+     * has failed.
+     *
+     * @since 1.0.0
+     * @version 1.0.0
+     *
+     * @param last The sequence number of the record
+     */
+    private void drain(long last) {
+        boolean interrupted = false;
+        while (this.committed < last) {
+            try {
+                this.pending.wait();
+            } catch (InterruptedException ex) {
+                interrupted = true;
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * A run of records whose batches failed to be written. Runs of
+     * consecutive failed batches are kept as one, holding the first error.
+     *
+     * @since 1.0.0
+     * @author 1Rogue
+     * @version 1.0.0
+     */
+    private static final class Failure {
+
+        private final IOException error;
+        private final long first;
+        private long last;
+
+        /**
+         * Failure constructor
+         *
+         * @since 1.0.0
+         * @version 1.0.0
+         *
+         * @param error The reason the batch failed
+         * @param first The sequence number of the first failed record
+         * @param last The sequence number of the last failed record
+         */
+        Failure(IOException error, long first, long last) {
+            this.error = error;
+            this.first = first;
+            this.last = last;
+        }
+    }
+
+    /**
+     * A record waiting to be committed. Records are encoded by the writer
+     * thread, at the time they are written.
+     *
+     * @since 1.0.0
+     * @author 1Rogue
+     * @version 1.0.0
+     */
+    static abstract class Entry {
+
+        /** The largest encoded length of any record */
+        static final int MAX_LENGTH = 32;
+
+        /**
+         * Encodes this record into the batch buffer.
+         *
+         * @since 1.0.0
+         * @version 1.0.0
+         *
+         * @param buffer The batch buffer
+         */
+        abstract void write(ByteBuffer buffer);
+    }
+}
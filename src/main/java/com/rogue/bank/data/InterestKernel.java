@@ -0,0 +1,135 @@
+/*
+ * Copyright (C) 2013 Spencer Alderman
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.rogue.bank.data;
+
+/**
+ * Compiles interest on many accounts of an {@link AccountStore} at once.
+ * The balance words and type tags are read from the page columns into one
+ * primitive array grouped by account type tag, each group is run through
+ * the {@link InterestRule} of its type in a single branch-free loop, and
+ * the new balances are written back in the order the slots were given.
+ *
+ * Each balance is written back with compare-and-set against the state word
+ * it was read from. An account changed in between, or still owing lazily
+ * accrued interest, is compiled again on its own by
+ * {@link Account#compileInterest()}, so the result is always the same as
+ * compiling each account in turn.
+ *
+ * Reading and writing back the balance words dominates, so the kernel is no
+ * faster than compiling each account in turn; the interest command only
+ * uses it when {@code bank.interest.kernel} is set.
+ *
+ * @since 1.0.0
+ * @author 1Rogue
+ * @version 1.0.0
+ */
+public final class InterestKernel {
+
+    private static final int TAGS = 256;
+
+    private InterestKernel() {
+    }
+
+    /**
+     * Compiles interest on a run of slots of a store. States and type tags
+     * are read straight from the page columns; a view is only made of an
+     * account whose balance changes, to publish the change. An account
+     * still owing interest periods started while interest was accruing is
+     * compiled on its own.
+     *
+     * @since 1.0.0
+     * @version 1.0.0
+     *
+     * @param store The store holding the accounts
+     * @param slots The slots to compile
+     * @param start The first slot of the run
+     * @param end The slot after the last of the run
+     * @param before Filled with each account's balance in cents before
+     * @param after Filled with each account's balance in cents after
+     * @throws ArithmeticException If a new balance is out of range
+     */
+    public static void compile(AccountStore store, int[] slots, int start, int end, long[] before, long[] after) {
+        int n = end - start;
+        int period = store.getPeriod();
+        long[] states = new long[n];
+        byte[] tags = new byte[n];
+        int[] starts = new int[TAGS + 1];
+        for (int i = 0; i < n; i++) {
+            int slot = slots[start + i];
+            AccountPage page = store.page(slot);
+            int o = store.offset(slot);
+            states[i] = page.getState(o);
+            tags[i] = page.getPeriod(o) == period ? page.getType(o) : 0;
+            starts[(tags[i] & 0xFF) + 1]++;
+        }
+        // before holds the balances grouped by tag until it is filled below
+        int[] positions = group(tags, states, starts, before);
+        for (int t = 1; t < TAGS; t++) {
+            if (starts[t] < starts[t + 1]) {
+                Account first = store.create((byte) t, slots[start + positions[starts[t]]]);
+                first.getInterestRule().apply(before, starts[t], starts[t + 1]);
+            }
+        }
+        for (int k = 0; k < n; k++) {
+            after[positions[k]] = before[k];
+        }
+        for (int i = 0; i < n; i++) {
+            int slot = slots[start + i];
+            before[i] = Account.cents(states[i]);
+            if (tags[i] != 0 && after[i] == before[i]
+                    && store.page(slot).getState(store.offset(slot)) == states[i]) {
+                continue;
+            }
+            Account account = store.view(slot);
+            if (account == null) {
+                // closed since the run began
+                after[i] = before[i];
+            } else if (tags[i] == 0 || !account.compileInterest(states[i], after[i])) {
+                before[i] = account.getCents();
+                after[i] = Account.toCents(account.compileInterest());
+            }
+        }
+    }
+
+    /**
+     * Groups balances by type tag with a counting sort.
+     *
+     * @since 1.0.0
+     * @version 1.0.0
+     *
+     * @param tags The tag of each account
+     * @param states The state word of each account
+     * @param starts The number of accounts of each tag, at one past the
+     *               tag; turned into the start of each tag's group
+     * @param balances Filled with the balances, grouped by tag
+     * @return The account whose balance is at each position
+     */
+    private static int[] group(byte[] tags, long[] states, int[] starts, long[] balances) {
+        for (int t = 0; t < TAGS; t++) {
+            starts[t + 1] += starts[t];
+        }
+        int[] positions = new int[tags.length];
+        int[] next = new int[TAGS];
+        System.arraycopy(starts, 0, next, 0, TAGS);
+        for (int i = 0; i < tags.length; i++) {
+            int k = next[tags[i] & 0xFF]++;
+            positions[k] = i;
+            balances[k] = Account.cents(states[i]);
+        }
+        return positions;
+    }
+}
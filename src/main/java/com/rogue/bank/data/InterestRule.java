@@ -0,0 +1,127 @@
+/*
+ * Copyright (C) 2013 Spencer Alderman
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.rogue.bank.data;
+
+/**
+ * The monthly interest and fees of an account type. A balance at or above
+ * the minimum earns interest at the monthly rate, rounded to the nearest
+ * cent. A balance below it is charged the flat fee instead, or a share of
+ * the balance if that is no more than the fee.
+ *
+ * A rule applies to one balance at a time, as {@link Account} does, or to
+ * a whole array of balances of one account type, as {@link InterestKernel}
+ * does. Both give the same result.
+ *
+ * @since 1.0.0
+ * @author 1Rogue
+ * @version 1.0.0
+ */
+public final class InterestRule {
+
+    private final double rate;
+    private final long minimum;
+    private final long fee;
+    private final double feeRate;
+
+    /**
+     * InterestRule constructor, for an account type with no fees
+     *
+     * @since 1.0.0
+     * @version 1.0.0
+     *
+     * @param rate The monthly interest rate
+     */
+    public InterestRule(double rate) {
+        this.rate = rate;
+        this.minimum = Long.MIN_VALUE;
+        this.fee = 0;
+        this.feeRate = 0;
+    }
+
+    /**
+     * InterestRule constructor, for an account type charged a fee while
+     * below its minimum balance
+     *
+     * @since 1.0.0
+     * @version 1.0.0
+     *
+     * @param rate The monthly interest rate
+     * @param minimum The minimum balance
+     * @param fee The flat fee
+     * @param feeRate The share of the balance charged when the balance is
+     *                no more than the flat fee
+     */
+    public InterestRule(double rate, double minimum, double fee, double feeRate) {
+        this.rate = rate;
+        this.minimum = Account.toCents(minimum);
+        this.fee = Account.toCents(fee);
+        this.feeRate = feeRate;
+    }
+
+    /**
+     * Returns the monthly interest rate.
+     *
+     * @since 1.0.0
+     * @version 1.0.0
+     *
+     * @return The monthly interest rate
+     */
+    public double getRate() {
+        return this.rate;
+    }
+
+    /**
+     * Returns the balance after a month of interest and fees.
+     *
+     * @since 1.0.0
+     * @version 1.0.0
+     *
+     * @param balance The balance in cents
+     * @return The new balance in cents, which may be out of range
+     */
+    public long apply(long balance) {
+        if (balance < this.minimum) {
+            return balance - (balance > this.fee ? this.fee : Math.round(this.feeRate * balance));
+        }
+        return balance + Math.round(balance * this.rate);
+    }
+
+    /**
+     * Replaces each balance of a range with its balance after a month of
+     * interest and fees. Both outcomes are computed for every balance and
+     * one is selected, so the loop has no branch on the balance.
+     *
+     * @since 1.0.0
+     * @version 1.0.0
+     *
+     * @param balances The balances in cents
+     * @param start The first balance of the range
+     * @param end The balance after the last of the range
+     */
+    public void apply(long[] balances, int start, int end) {
+        double rate = this.rate;
+        long minimum = this.minimum;
+        long fee = this.fee;
+        double feeRate = this.feeRate;
+        for (int i = start; i < end; i++) {
+            long balance = balances[i];
+            long charged = balance - (balance > fee ? fee : Math.round(feeRate * balance));
+            long earned = balance + Math.round(balance * rate);
+            balances[i] = balance < minimum ? charged : earned;
+        }
+    }
+}
@@ -0,0 +1,545 @@
+/*
+ * Copyright (C) 2013 Spencer Alderman
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.rogue.bank.data;
+
+import com.rogue.bank.util.IntMap;
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+
+/**
+ * Append-only write-ahead journal of account mutations. Every record is
+ * written on top of the last bank file snapshot, and replayed over it when
+ * the bank is loaded again.
+ *
+ * Records are made durable by a {@link GroupCommit} stage: every caller
+ * waits until its record has been forced to disk, but concurrent callers
+ * share a single force. Balance records always hold the balance read at the
+ * time the record is written, so the last record for an account is never
+ * older than the last mutation that was journaled for it.
+ *
+ * A thread making many changes in a row, such as one running a batch file,
+ * can {@link #startDeferring()}: its records are then handed to the stage
+ * without waiting, and share forces with each other, until
+ * {@link #stopDeferring()} waits once for all of them. Interest records
+ * are never deferred, since the period they start begins as they are
+ * written.
+ *
+ * The group commit window is tuned with the {@code bank.journal.maxBatch}
+ * (records) and {@code bank.journal.maxDelay} (microseconds) properties.
+ *
+ * @since 1.0.0
+ * @author 1Rogue
+ * @version 1.0.0
+ */
+public class Journal {
+
+    private static final byte OPEN = 'O';
+    private static final byte BALANCE = 'B';
+    private static final byte CLOSE = 'C';
+    private static final byte INTEREST = 'I';
+    private static final int OPEN_LENGTH = 18;
+    private static final int BALANCE_LENGTH = 13;
+    private static final int CLOSE_LENGTH = 5;
+    private static final int INTEREST_LENGTH = 5;
+    private static final int MAX_BATCH = Integer.getInteger("bank.journal.maxBatch", 512);
+    private static final long MAX_DELAY = Long.getLong("bank.journal.maxDelay", 0L);
+    private static final boolean FSYNC = !Boolean.getBoolean("bank.journal.nofsync");
+
+    private final File file;
+    private final File rotated;
+    private GroupCommit commit;
+    private long size;
+    private final ThreadLocal<Deferral> deferral = new ThreadLocal<Deferral>();
+
+    /**
+     * Journal constructor
+     *
+     * @since 1.0.0
+     * @version 1.0.0
+     *
+     * @param file The journal file location
+     */
+    public Journal(File file) {
+        this.file = file;
+        this.rotated = new File(file.getPath() + ".prev");
+    }
+
+    /**
+     * Replays all complete records in the journal onto a map of accounts,
+     * starting with a rotated segment left by an unfinished checkpoint. A
+     * torn record at the end of the journal (from a crash mid-write) is
+     * truncated away so new records are appended after the last good one.
+     *
+     * @since 1.0.0
+     * @version 1.0.0
+     *
+     * @param accounts The accounts loaded from the last snapshot
+     * @return The number of records replayed
+     * @throws IOException If the journal could not be read
+     */
+    public synchronized int replay(IntMap<Account> accounts) throws IOException {
+        int count = 0;
+        if (this.rotated.exists()) {
+            count += this.replay(this.rotated, accounts);
+        }
+        if (this.file.exists()) {
+            count += this.replay(this.file, accounts);
+        }
+        return count;
+    }
+
+    /**
+     * Replays one journal file. A torn record at the end of the file is
+     * truncated away.
+     *
+     * @since 1.0.0
+     * @version 1.0.0
+     *
+     * @param journal The journal file to replay
+     * @param accounts The accounts to replay onto
+     * @return The number of records replayed
+     * @throws IOException If the journal could not be read
+     */
+    private int replay(File journal, IntMap<Account> accounts) throws IOException {
+        DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(journal)));
+        int count = 0;
+        long valid = 0;
+        try {
+            while (true) {
+                byte op = in.readByte();
+                int id = in.readInt();
+                switch (op) {
+                    case OPEN:
+                        char type = (char) in.readByte();
+                        int pin = in.readInt();
+                        double bal = in.readDouble();
+                        Account acc = DataManager.newAccount(type, id, pin, bal);
+                        if (acc != null) {
+                            accounts.put(id, acc);
+                        }
+                        valid += OPEN_LENGTH;
+                        break;
+                    case BALANCE:
+                        double balance = in.readDouble();
+                        Account known = accounts.get(id);
+                        if (known != null) {
+                            known.restoreBalance(balance);
+                            // put back, so accounts backed by a file see it
+                            accounts.put(id, known);
+                        }
+                        valid += BALANCE_LENGTH;
+                        break;
+                    case CLOSE:
+                        accounts.remove(id);
+                        valid += CLOSE_LENGTH;
+                        break;
+                    case INTEREST:
+                        if (accounts instanceof AccountStore) {
+                            ((AccountStore) accounts).accrue();
+                        } else {
+                            for (Account account : accounts.values()) {
+                                account.compileInterest();
+                                accounts.put(account.getID(), account);
+                            }
+                        }
+                        valid += INTEREST_LENGTH;
+                        break;
+                    default:
+                        throw new EOFException("Unknown journal record: " + op);
+                }
+                count++;
+            }
+        } catch (EOFException ex) {
+            // end of the journal, or a torn record from a crash
+        } finally {
+            in.close();
+        }
+        if (valid < journal.length()) {
+            RandomAccessFile raf = new RandomAccessFile(journal, "rw");
+            try {
+                raf.setLength(valid);
+            } finally {
+                raf.close();
+            }
+        }
+        if (journal == this.file) {
+            this.size = valid;
+        }
+        return count;
+    }
+
+    /**
+     * Records that an account was opened.
+     *
+     * @since 1.0.0
+     * @version 1.0.0
+     *
+     * @param account The opened {@link Account}
+     */
+    public void logOpen(Account account) {
+        this.submit(new Record(OPEN, account.getID(), account, null));
+    }
+
+    /**
+     * Records the current balance of an account.
+     *
+     * @since 1.0.0
+     * @version 1.0.0
+     *
+     * @param account The changed {@link Account}
+     */
+    public void logBalance(Account account) {
+        this.submit(new Record(BALANCE, account.getID(), account, null));
+    }
+
+    /**
+     * Records that an account was closed.
+     *
+     * @since 1.0.0
+     * @version 1.0.0
+     *
+     * @param id The id of the closed account
+     */
+    public void logClose(int id) {
+        this.submit(new Record(CLOSE, id, null, null));
+    }
+
+    /**
+     * Records that a new interest period has started, and starts it. The
+     * period starts as the record is written, so balance records written
+     * before it hold balances from the period before, and records written
+     * after it hold balances from the new one.
+     *
+     * @since 1.0.0
+     * @version 1.0.0
+     *
+     * @param accounts The store accruing interest
+     */
+    public void logInterest(AccountStore accounts) {
+        try {
+            this.open().submit(new Record(INTEREST, 0, null, accounts));
+        } catch (IOException ex) {
+            System.err.println("Error: " + ex.getMessage());
+        }
+    }
+
+    /**
+     * Starts deferring the records of the current thread: they are
+     * committed without the thread waiting for each, until it calls
+     * {@link #stopDeferring()}. Calls nest, and each must be matched by a
+     * call to stop.
+     *
+     * @since 1.0.0
+     * @version 1.0.0
+     */
+    public void startDeferring() {
+        Deferral d = this.deferral.get();
+        if (d == null) {
+            d = new Deferral();
+            this.deferral.set(d);
+        }
+        d.depth++;
+    }
+
+    /**
+     * Waits until every record the current thread has deferred is durable,
+     * and ends the deferral started by the matching call to
+     * {@link #startDeferring()}. Records are deferred until the outermost
+     * deferral ends.
+     *
+     * @since 1.0.0
+     * @version 1.0.0
+     */
+    public void stopDeferring() {
+        Deferral d = this.deferral.get();
+        if (d == null) {
+            return;
+        }
+        try {
+            if (d.last > 0) {
+                d.commit.sync(d.first, d.last);
+            }
+        } catch (IOException ex) {
+            System.err.println("Error: " + ex.getMessage());
+        } finally {
+            d.first = 0;
+            d.last = 0;
+            if (--d.depth == 0) {
+                this.deferral.remove();
+            }
+        }
+    }
+
+    /**
+     * Returns the number of bytes currently in the journal, including a
+     * rotated segment.
+     *
+     * @since 1.0.0
+     * @version 1.0.0
+     *
+     * @return The journal size in bytes
+     */
+    public synchronized long size() {
+        return (this.commit == null ? this.size : this.commit.size()) + this.rotated.length();
+    }
+
+    /**
+     * Returns the number of group commits forced so far.
+     *
+     * @since 1.0.0
+     * @version 1.0.0
+     *
+     * @return The number of commits
+     */
+    public synchronized long getCommits() {
+        return this.commit == null ? 0 : this.commit.getCommits();
+    }
+
+    /**
+     * Returns the average number of records per group commit.
+     *
+     * @since 1.0.0
+     * @version 1.0.0
+     *
+     * @return The average batch size
+     */
+    public synchronized double getAverageBatchSize() {
+        return this.commit == null ? 0 : this.commit.getAverageBatchSize();
+    }
+
+    /**
+     * Returns the largest number of records in one group commit.
+     *
+     * @since 1.0.0
+     * @version 1.0.0
+     *
+     * @return The largest batch size
+     */
+    public synchronized long getLargestBatchSize() {
+        return this.commit == null ? 0 : this.commit.getLargestBatchSize();
+    }
+
+    /**
+     * Returns the average time in microseconds to write and force a group
+     * commit.
+     *
+     * @since 1.0.0
+     * @version 1.0.0
+     *
+     * @return The average commit latency
+     */
+    public synchronized double getAverageCommitLatency() {
+        return this.commit == null ? 0 : this.commit.getAverageCommitLatency();
+    }
+
+    /**
+     * Empties the journal, including any rotated segment. Called once a
+     * snapshot covering every record has been written.
+     *
+     * @since 1.0.0
+     * @version 1.0.0
+     *
+     * @throws IOException If the journal could not be truncated
+     */
+    public synchronized void reset() throws IOException {
+        if (this.commit != null) {
+            this.commit.truncate();
+        } else {
+            new FileOutputStream(this.file).close();
+        }
+        this.size = 0;
+        this.dropRotated();
+    }
+
+    /**
+     * Moves every committed record into the rotated segment, so records
+     * submitted from now on start a new segment. A checkpoint rotates the
+     * journal before it starts, and drops the rotated segment once it is
+     * durable.
+     *
+     * @since 1.0.0
+     * @version 1.0.0
+     *
+     * @throws IOException If the journal could not be rotated
+     */
+    public synchronized void rotate() throws IOException {
+        if (this.commit != null) {
+            this.commit.rotate(this.rotated);
+        } else if (this.file.length() > 0) {
+            RandomAccessFile raf = new RandomAccessFile(this.file, "rw");
+            try {
+                GroupCommit.transfer(raf.getChannel(), this.rotated);
+                raf.setLength(0);
+            } finally {
+                raf.close();
+            }
+        }
+        this.size = 0;
+    }
+
+    /**
+     * Deletes the rotated segment.
+     *
+     * @since 1.0.0
+     * @version 1.0.0
+     *
+     * @throws IOException If the segment could not be deleted
+     */
+    public synchronized void dropRotated() throws IOException {
+        if (this.rotated.exists() && !this.rotated.delete()) {
+            throw new IOException("Could not delete " + this.rotated.getPath());
+        }
+    }
+
+    /**
+     * Commits outstanding records and closes the journal. Any later record
+     * reopens it.
+     *
+     * @since 1.0.0
+     * @version 1.0.0
+     *
+     * @throws IOException If the journal could not be closed
+     */
+    public synchronized void close() throws IOException {
+        if (this.commit != null) {
+            this.size = this.commit.size();
+            this.commit.close();
+            this.commit = null;
+        }
+    }
+
+    /**
+     * Hands a record to the group commit stage and waits until the record
+     * is durable, unless the current thread is deferring its records.
+     *
+     * @since 1.0.0
+     * @version 1.0.0
+     *
+     * @param record The record to commit
+     */
+    private void submit(Record record) {
+        try {
+            GroupCommit gc = this.open();
+            Deferral d = this.deferral.get();
+            if (d == null) {
+                gc.submit(record);
+                return;
+            }
+            long seq = gc.append(record);
+            if (d.commit != gc || d.last == 0) {
+                // a stage closed since was committed in full as it closed
+                d.commit = gc;
+                d.first = seq;
+            }
+            d.last = seq;
+        } catch (IOException ex) {
+            System.err.println("Error: " + ex.getMessage());
+        }
+    }
+
+    /**
+     * Returns the group commit stage, opening it if needed.
+     *
+     * @since 1.0.0
+     * @version 1.0.0
+     *
+     * @return The open stage
+     * @throws IOException If the journal file could not be opened
+     */
+    private synchronized GroupCommit open() throws IOException {
+        if (this.commit == null) {
+            this.commit = new GroupCommit(this.file, MAX_BATCH, MAX_DELAY, FSYNC);
+        }
+        return this.commit;
+    }
+
+    /**
+     * The records a thread has deferred since it last waited for them
+     *
+     * @since 1.0.0
+     * @author 1Rogue
+     * @version 1.0.0
+     */
+    private static final class Deferral {
+
+        private int depth;
+        private GroupCommit commit;
+        private long first;
+        private long last;
+    }
+
+    /**
+     * A single journal record. The balance of the account is read when the
+     * record is encoded by the group commit writer.
+     *
+     * @since 1.0.0
+     * @author 1Rogue
+     * @version 1.0.0
+     */
+    private static class Record extends GroupCommit.Entry {
+
+        private final byte op;
+        private final int id;
+        private final Account account;
+        private final AccountStore accounts;
+
+        /**
+         * Record constructor
+         *
+         * @since 1.0.0
+         * @version 1.0.0
+         *
+         * @param op The record type
+         * @param id The account id
+         * @param account The account, null for a close or interest record
+         * @param accounts The store starting an interest period, null for
+         *                 other records
+         */
+        Record(byte op, int id, Account account, AccountStore accounts) {
+            this.op = op;
+            this.id = id;
+            this.account = account;
+            this.accounts = accounts;
+        }
+
+        @Override
+        void write(ByteBuffer buffer) {
+            buffer.put(this.op);
+            buffer.putInt(this.id);
+            switch (this.op) {
+                case OPEN:
+                    buffer.put((byte) this.account.getDisplayCharacter());
+                    buffer.putInt(this.account.getPIN());
+                    buffer.putDouble(this.account.getBalance());
+                    break;
+                case BALANCE:
+                    buffer.putDouble(this.account.getBalance());
+                    break;
+                case INTEREST:
+                    this.accounts.accrue();
+                    break;
+            }
+        }
+    }
+}
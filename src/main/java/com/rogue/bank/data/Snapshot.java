@@ -0,0 +1,433 @@
+/*
+ * Copyright (C) 2013 Spencer Alderman
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.rogue.bank.data;
+
+import com.rogue.bank.util.StripedLock;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.concurrent.Semaphore;
+
+/**
+ * A point-in-time image of account balances, read while accounts keep
+ * changing. Opening a snapshot starts a new epoch and copies the account
+ * references; no balance is copied up front. The first change an account
+ * sees in a new epoch keeps its previous balance as a pre-image, so the
+ * snapshot can still read the balance it had when the epoch began. A
+ * snapshot of an {@link AccountStore} copies slot numbers and type tags
+ * instead of references, and only makes a view of an account when one is
+ * asked for. Only the epoch and the number of slots in use are taken while
+ * accounts are kept from being added or removed; the slots are read after,
+ * and the store records any account removed meanwhile. The store reuses
+ * no slot until the snapshot is closed.
+ *
+ * Only one snapshot is open at a time, since each account keeps a single
+ * pre-image. Snapshots must be closed once they have been read.
+ *
+ * @since 1.0.0
+ * @author 1Rogue
+ * @version 1.0.0
+ */
+public final class Snapshot {
+
+    private static final Semaphore OPEN = new Semaphore(1);
+    private static volatile int current;
+
+    private final int epoch;
+    private final Account[] members;
+    private final AccountStore store;
+    private final int[] slots;
+    private final byte[] tags;
+    private final String[] names;
+    private boolean closed;
+
+    /**
+     * Snapshot constructor
+     *
+     * @since 1.0.0
+     * @version 1.0.0
+     *
+     * @param epoch The epoch the snapshot reads
+     * @param members The accounts in the snapshot
+     */
+    private Snapshot(int epoch, Account[] members) {
+        this.epoch = epoch;
+        this.members = members;
+        this.store = null;
+        this.slots = null;
+        this.tags = null;
+        this.names = null;
+    }
+
+    /**
+     * Snapshot constructor, for slots of an {@link AccountStore}
+     *
+     * @since 1.0.0
+     * @version 1.0.0
+     *
+     * @param epoch The epoch the snapshot reads
+     * @param store The store holding the accounts
+     * @param slots The slots in the snapshot
+     * @param tags The type tag of each slot when the snapshot was opened
+     */
+    private Snapshot(int epoch, AccountStore store, int[] slots, byte[] tags) {
+        this.epoch = epoch;
+        this.members = null;
+        this.store = store;
+        this.slots = slots;
+        this.tags = tags;
+        this.names = new String[256];
+    }
+
+    /**
+     * Opens a snapshot of a collection of accounts which is not changing.
+     *
+     * @since 1.0.0
+     * @version 1.0.0
+     *
+     * @param accounts The accounts to snapshot
+     * @return The open snapshot
+     */
+    public static Snapshot of(Collection<Account> accounts) {
+        return open(accounts, null);
+    }
+
+    /**
+     * Opens a snapshot of every account of a store which is not changing.
+     *
+     * @since 1.0.0
+     * @version 1.0.0
+     *
+     * @param store The store to snapshot
+     * @return The open snapshot
+     */
+    public static Snapshot of(AccountStore store) {
+        return open(null, store, null);
+    }
+
+    /**
+     * Opens a snapshot, waiting for any other open snapshot to close.
+     *
+     * @since 1.0.0
+     * @version 1.0.0
+     *
+     * @param accounts The accounts to snapshot
+     * @param locks The locks held while accounts are added or removed, or
+     *              null if the accounts are not changing
+     * @return The open snapshot
+     */
+    static Snapshot open(Collection<Account> accounts, StripedLock locks) {
+        return open(accounts, null, locks);
+    }
+
+    /**
+     * Opens a snapshot of every account of a store, waiting for any other
+     * open snapshot to close.
+     *
+     * @since 1.0.0
+     * @version 1.0.0
+     *
+     * @param store The store to snapshot
+     * @param locks The locks held while accounts are added or removed
+     * @return The open snapshot
+     */
+    static Snapshot open(AccountStore store, StripedLock locks) {
+        return open(null, store, locks);
+    }
+
+    /**
+     * Opens a snapshot of a collection of accounts, or of a store.
+     *
+     * @since 1.0.0
+     * @version 1.0.0
+     *
+     * @param accounts The accounts to snapshot, or null
+     * @param store The store to snapshot if there are no accounts
+     * @param locks The locks held while accounts are added or removed, or
+     *              null if the accounts are not changing
+     * @return The open snapshot
+     */
+    private static Snapshot open(Collection<Account> accounts, AccountStore store, StripedLock locks) {
+        OPEN.acquireUninterruptibly();
+        int epoch;
+        int end;
+        if (locks != null) {
+            locks.lockAll();
+        }
+        try {
+            epoch = current + 1;
+            current = epoch;
+            if (accounts != null) {
+                return new Snapshot(epoch, accounts.toArray(new Account[accounts.size()]));
+            }
+            end = store.beginScan();
+        } finally {
+            if (locks != null) {
+                locks.unlockAll();
+            }
+        }
+        // the slots are read with the accounts free to change again; any
+        // removed meanwhile are recorded by the store
+        int[] slots = store.slots(end);
+        byte[] tags = new byte[slots.length];
+        for (int i = 0; i < slots.length; i++) {
+            tags[i] = store.getTag(slots[i]);
+        }
+        long[] removed = store.endScan();
+        if (removed.length > 0) {
+            return restore(epoch, store, end, slots, tags, removed);
+        }
+        return new Snapshot(epoch, store, slots, tags);
+    }
+
+    /**
+     * Makes a snapshot of the slots read from a store, adding back the
+     * accounts removed before their slots were read.
+     *
+     * @since 1.0.0
+     * @version 1.0.0
+     *
+     * @param epoch The epoch the snapshot reads
+     * @param store The store holding the accounts
+     * @param end The number of slots in use when the epoch began
+     * @param slots The filled slots read, in slot order
+     * @param tags The type tag read for each slot
+     * @param removed The slots removed while they were read, each shifted
+     *                left a byte and holding its type tag in the low byte
+     * @return The snapshot, in slot order
+     */
+    private static Snapshot restore(int epoch, AccountStore store, int end, int[] slots, byte[] tags, long[] removed) {
+        long[] all = new long[slots.length + removed.length];
+        int n = 0;
+        for (int i = 0; i < slots.length; i++) {
+            all[n++] = ((long) slots[i] << 8) | (tags[i] & 0xFF);
+        }
+        for (long entry : removed) {
+            int slot = (int) (entry >>> 8);
+            if (slot < end && Arrays.binarySearch(slots, slot) < 0) {
+                all[n++] = entry;
+            }
+        }
+        Arrays.sort(all, 0, n);
+        int[] kept = new int[n];
+        byte[] kinds = new byte[n];
+        for (int i = 0; i < n; i++) {
+            kept[i] = (int) (all[i] >>> 8);
+            kinds[i] = (byte) all[i];
+        }
+        return new Snapshot(epoch, store, kept, kinds);
+    }
+
+    /**
+     * Returns the epoch new balance changes belong to.
+     *
+     * @since 1.0.0
+     * @version 1.0.0
+     *
+     * @return The current epoch
+     */
+    static int currentEpoch() {
+        return current;
+    }
+
+    /**
+     * Returns the epoch this snapshot reads.
+     *
+     * @since 1.0.0
+     * @version 1.0.0
+     *
+     * @return The snapshot epoch
+     */
+    public int getEpoch() {
+        return this.epoch;
+    }
+
+    /**
+     * Returns the number of accounts in the snapshot.
+     *
+     * @since 1.0.0
+     * @version 1.0.0
+     *
+     * @return The number of accounts
+     */
+    public int size() {
+        return this.members != null ? this.members.length : this.slots.length;
+    }
+
+    /**
+     * Returns an account in the snapshot.
+     *
+     * @since 1.0.0
+     * @version 1.0.0
+     *
+     * @param index The index of the account
+     * @return The account
+     */
+    public Account getAccount(int index) {
+        return this.members != null ? this.members[index] : this.store.create(this.tags[index], this.slots[index]);
+    }
+
+    /**
+     * Returns the id of an account in the snapshot.
+     *
+     * @since 1.0.0
+     * @version 1.0.0
+     *
+     * @param index The index of the account
+     * @return The account id
+     */
+    public int getID(int index) {
+        return this.members != null ? this.members[index].getID() : this.store.getId(this.slots[index]);
+    }
+
+    /**
+     * Returns the name of the type of an account in the snapshot.
+     *
+     * @since 1.0.0
+     * @version 1.0.0
+     *
+     * @param index The index of the account
+     * @return The account type name
+     */
+    public String getDisplayString(int index) {
+        if (this.members != null) {
+            return this.members[index].getDisplayString();
+        }
+        int tag = this.tags[index] & 0xFF;
+        if (this.names[tag] == null) {
+            this.names[tag] = this.getAccount(index).getDisplayString();
+        }
+        return this.names[tag];
+    }
+
+    /**
+     * Returns the balance an account had when the snapshot was opened.
+     *
+     * @since 1.0.0
+     * @version 1.0.0
+     *
+     * @param index The index of the account
+     * @return The snapshot balance
+     */
+    public double getBalance(int index) {
+        return this.getCents(index) / 100.0;
+    }
+
+    /**
+     * Returns the balance in cents an account had when the snapshot was
+     * opened.
+     *
+     * @since 1.0.0
+     * @version 1.0.0
+     *
+     * @param index The index of the account
+     * @return The snapshot balance in cents
+     */
+    public long getCents(int index) {
+        if (this.members != null) {
+            return this.members[index].balanceAt(this.epoch);
+        }
+        int slot = this.slots[index];
+        return Account.balanceAt(this.store.page(slot), this.store.offset(slot), this.epoch);
+    }
+
+    /**
+     * Orders the snapshot by account id.
+     *
+     * @since 1.0.0
+     * @version 1.0.0
+     *
+     * @return This snapshot
+     */
+    public Snapshot sort() {
+        if (this.members != null) {
+            Arrays.sort(this.members);
+        } else {
+            this.store.sortById(this.slots, this.tags);
+        }
+        return this;
+    }
+
+    /**
+     * Splits the snapshot into parts which read the same epoch. The parts
+     * do not need closing; they are only valid until this snapshot is
+     * closed.
+     *
+     * @since 1.0.0
+     * @version 1.0.0
+     *
+     * @param parts The part number of each account in the snapshot
+     * @param count The number of parts
+     * @return The parts, keeping the snapshot order within each part
+     */
+    public Snapshot[] split(int[] parts, int count) {
+        int[] sizes = new int[count];
+        for (int part : parts) {
+            sizes[part]++;
+        }
+        Snapshot[] split = new Snapshot[count];
+        if (this.members != null) {
+            Account[][] members = new Account[count][];
+            for (int i = 0; i < count; i++) {
+                members[i] = new Account[sizes[i]];
+                sizes[i] = 0;
+            }
+            for (int i = 0; i < this.members.length; i++) {
+                members[parts[i]][sizes[parts[i]]++] = this.members[i];
+            }
+            for (int i = 0; i < count; i++) {
+                split[i] = new Snapshot(this.epoch, members[i]);
+            }
+        } else {
+            int[][] slots = new int[count][];
+            byte[][] tags = new byte[count][];
+            for (int i = 0; i < count; i++) {
+                slots[i] = new int[sizes[i]];
+                tags[i] = new byte[sizes[i]];
+                sizes[i] = 0;
+            }
+            for (int i = 0; i < this.slots.length; i++) {
+                int k = sizes[parts[i]]++;
+                slots[parts[i]][k] = this.slots[i];
+                tags[parts[i]][k] = this.tags[i];
+            }
+            for (int i = 0; i < count; i++) {
+                split[i] = new Snapshot(this.epoch, this.store, slots[i], tags[i]);
+            }
+        }
+        for (Snapshot part : split) {
+            part.closed = true;
+        }
+        return split;
+    }
+
+    /**
+     * Closes the snapshot, letting the next one open and the store reuse
+     * the slots of closed accounts.
+     *
+     * @since 1.0.0
+     * @version 1.0.0
+     */
+    public synchronized void close() {
+        if (!this.closed) {
+            this.closed = true;
+            if (this.store != null) {
+                this.store.endSnapshot();
+            }
+            OPEN.release();
+        }
+    }
+}
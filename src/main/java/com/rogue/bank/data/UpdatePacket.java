@@ -19,7 +19,7 @@ package com.rogue.bank.data;
 import java.util.ArrayList;
 
 /**
- * UpdatePacket for distinguishing types of Observer updates.
+ * UpdatePacket for distinguishing types of account events.
  * 
  * @since 1.0.0
  * @author CrypticStorm
@@ -17,6 +17,8 @@
 package com.rogue.bank.data.accounts;
 
 import com.rogue.bank.data.Account;
+import com.rogue.bank.data.AccountStore;
+import com.rogue.bank.data.InterestRule;
 
 /**
  * CDAccount implementation.
@@ -27,6 +29,9 @@ import com.rogue.bank.data.Account;
  */
 public final class CDAccount extends Account {
 
+    private static final double MINIMUM = 500.0;
+    private static final InterestRule INTEREST = new InterestRule(0.05 / 12);
+
     /**
      * CDAccount constructor
      *
@@ -39,13 +44,31 @@ public final class CDAccount extends Account {
      */
     public CDAccount(final int id, final int pin, final double balance) {
         super(id, pin, balance);
-        if (this.balance < this.getMinimumBalance()) {
+        if (!this.canOpen(this.getCents())) {
             throw new IllegalArgumentException();
         }
     }
 
+    /**
+     * CDAccount constructor, for a view of a slot of an {@link AccountStore}
+     *
+     * @since 1.0.0
+     * @version 1.0.0
+     *
+     * @param store The store holding the account
+     * @param slot The slot the account is held in
+     */
+    public CDAccount(final AccountStore store, final int slot) {
+        super(store, slot);
+    }
+
+    @Override
+    protected boolean canOpen(long balance) {
+        return balance >= toCents(this.getMinimumBalance());
+    }
+
     @Override
-    public boolean canWithdraw(double amount) {
+    protected boolean canWithdraw(long balance, long amount) {
         return false;
     }
 
@@ -61,11 +84,11 @@ public final class CDAccount extends Account {
 
     @Override
     public double getMinimumBalance() {
-        return 500.0;
+        return MINIMUM;
     }
 
     @Override
-    public double getMonthlyInterestRate() {
-        return 0.05 / 12;
+    public InterestRule getInterestRule() {
+        return INTEREST;
     }
 }
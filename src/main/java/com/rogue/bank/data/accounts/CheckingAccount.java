@@ -17,6 +17,8 @@
 package com.rogue.bank.data.accounts;
 
 import com.rogue.bank.data.Account;
+import com.rogue.bank.data.AccountStore;
+import com.rogue.bank.data.InterestRule;
 
 /**
  * CheckingAccount implementation.
@@ -27,6 +29,9 @@ import com.rogue.bank.data.Account;
  */
 public final class CheckingAccount extends Account {
 
+    private static final double MINIMUM = 50.0;
+    private static final InterestRule INTEREST = new InterestRule(0.0, MINIMUM, 5.0, 0.1);
+
     /**
      * CheckingAccount constructor
      *
@@ -41,6 +46,19 @@ public final class CheckingAccount extends Account {
         super(id, pin, balance);
     }
 
+    /**
+     * CheckingAccount constructor, for a view of a slot of an {@link AccountStore}
+     *
+     * @since 1.0.0
+     * @version 1.0.0
+     *
+     * @param store The store holding the account
+     * @param slot The slot the account is held in
+     */
+    public CheckingAccount(final AccountStore store, final int slot) {
+        super(store, slot);
+    }
+
     @Override
     public char getDisplayCharacter() {
         return 'x';
@@ -53,19 +71,11 @@ public final class CheckingAccount extends Account {
 
     @Override
     public double getMinimumBalance() {
-        return 50.0;
-    }
-
-    @Override
-    public double getMonthlyInterestRate() {
-        return 0.0;
+        return MINIMUM;
     }
 
     @Override
-    public double compileInterest() {
-        if (this.balance < this.getMinimumBalance()) {
-            return this.balance -= this.balance > 5.0 ? 5.0 : 0.1 * this.balance;
-        }
-        return this.balance;
+    public InterestRule getInterestRule() {
+        return INTEREST;
     }
 }
@@ -17,6 +17,8 @@
 package com.rogue.bank.data.accounts;
 
 import com.rogue.bank.data.Account;
+import com.rogue.bank.data.AccountStore;
+import com.rogue.bank.data.InterestRule;
 
 /**
  * CheckingAccount implementation.
@@ -27,6 +29,9 @@ import com.rogue.bank.data.Account;
  */
 public final class SavingsAccount extends Account {
 
+    private static final double MINIMUM = 200.0;
+    private static final InterestRule INTEREST = new InterestRule(0.005 / 12, MINIMUM, 10.0, 0.1);
+
     /**
      * SavingsAccount constructor
      *
@@ -41,6 +46,19 @@ public final class SavingsAccount extends Account {
         super(id, pin, balance);
     }
 
+    /**
+     * SavingsAccount constructor, for a view of a slot of an {@link AccountStore}
+     *
+     * @since 1.0.0
+     * @version 1.0.0
+     *
+     * @param store The store holding the account
+     * @param slot The slot the account is held in
+     */
+    public SavingsAccount(final AccountStore store, final int slot) {
+        super(store, slot);
+    }
+
     @Override
     public char getDisplayCharacter() {
         return 's';
@@ -53,20 +71,11 @@ public final class SavingsAccount extends Account {
 
     @Override
     public double getMinimumBalance() {
-        return 200.0;
-    }
-
-    @Override
-    public double getMonthlyInterestRate() {
-        return 0.005 / 12;
+        return MINIMUM;
     }
 
     @Override
-    public double compileInterest() {
-        if (this.balance < this.getMinimumBalance()) {
-            return this.balance -= this.balance > 10.0 ? 10.0 : 0.1 * this.balance;
-        } else {
-            return super.compileInterest();
-        }
+    public InterestRule getInterestRule() {
+        return INTEREST;
     }
 }
@@ -0,0 +1,124 @@
+/*
+ * Copyright (C) 2013 Spencer Alderman
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.rogue.bank.data.storage;
+
+import com.rogue.bank.data.Account;
+import com.rogue.bank.data.AccountStore;
+import com.rogue.bank.data.Snapshot;
+import java.io.IOException;
+
+/**
+ * An on-disk bank file format
+ *
+ * @since 1.0.0
+ * @author 1Rogue
+ * @version 1.0.0
+ */
+public interface AccountFile {
+
+    /**
+     * Loads every account in the file into a store, in file order, without
+     * making an object per account. If an id appears more than once, the
+     * later account replaces the earlier one, once the store is indexed if
+     * it is not yet.
+     *
+     * @since 1.0.0
+     * @version 1.0.0
+     *
+     * @param into The store to add the accounts to
+     * @throws IOException If the file could not be read
+     */
+    public void load(AccountStore into) throws IOException;
+
+    /**
+     * Returns the number of records the last {@link #load(AccountStore)} could not
+     * read.
+     *
+     * @since 1.0.0
+     * @version 1.0.0
+     *
+     * @return The number of rejected records
+     */
+    public int getRejected();
+
+    /**
+     * Replaces the contents of the file with the accounts of a snapshot,
+     * in snapshot order.
+     *
+     * @since 1.0.0
+     * @version 1.0.0
+     *
+     * @param snapshot The {@link Snapshot} to save
+     * @throws IOException If the file could not be written
+     */
+    public void save(Snapshot snapshot) throws IOException;
+
+    /**
+     * Returns whether single records can be written in place with
+     * {@link #update(Account)} and {@link #remove(int)}. Formats that can
+     * not are only written by {@link #save(Snapshot)}.
+     *
+     * @since 1.0.0
+     * @version 1.0.0
+     *
+     * @return If records can be updated in place
+     */
+    public boolean isUpdatable();
+
+    /**
+     * Writes the current state of a single account in place.
+     *
+     * @since 1.0.0
+     * @version 1.0.0
+     *
+     * @param account The account to write
+     * @throws IOException If the record could not be written
+     */
+    public void update(Account account) throws IOException;
+
+    /**
+     * Removes a single account in place.
+     *
+     * @since 1.0.0
+     * @version 1.0.0
+     *
+     * @param id The id of the account to remove
+     * @throws IOException If the record could not be removed
+     */
+    public void remove(int id) throws IOException;
+
+    /**
+     * Forces in-place updates to the disk.
+     *
+     * @since 1.0.0
+     * @version 1.0.0
+     *
+     * @throws IOException If the file could not be forced
+     */
+    public void flush() throws IOException;
+
+    /**
+     * Releases the file.
+     *
+     * @since 1.0.0
+     * @version 1.0.0
+     *
+     * @throws IOException If the file could not be closed
+     */
+    public void close() throws IOException;
+
+}
@@ -0,0 +1,86 @@
+/*
+ * Copyright (C) 2013 Spencer Alderman
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.rogue.bank.data.storage;
+
+import com.rogue.bank.data.AccountStore;
+import com.rogue.bank.data.DataManager;
+import com.rogue.bank.data.Snapshot;
+import java.io.IOException;
+
+/**
+ * Converts bank files between formats. The format of each file is chosen
+ * the same way as the bank chooses it, see
+ * {@link DataManager#openBankFile(String)}.
+ *
+ * @since 1.0.0
+ * @author 1Rogue
+ * @version 1.0.0
+ */
+public class AccountFileConverter {
+
+    /**
+     * Converts one bank file into another
+     *
+     * @since 1.0.0
+     * @version 1.0.0
+     *
+     * @param args Command-line arguments
+     */
+    public static void main(String[] args) {
+        if (args.length != 2) {
+            System.err.println("Usage: java AccountFileConverter inFile outFile");
+            System.exit(1);
+        }
+        try {
+            int count = convert(DataManager.openBankFile(args[0]), DataManager.openBankFile(args[1]));
+            System.out.println("Converted " + count + " accounts");
+        } catch (IOException ex) {
+            System.err.println("Error: " + ex.getMessage());
+            System.exit(1);
+        }
+    }
+
+    /**
+     * Copies every account from one bank file to another, in id order, and
+     * closes both files.
+     *
+     * @since 1.0.0
+     * @version 1.0.0
+     *
+     * @param in The file to read
+     * @param out The file to write
+     * @return The number of accounts converted
+     * @throws IOException If either file could not be accessed
+     */
+    public static int convert(AccountFile in, AccountFile out) throws IOException {
+        try {
+            AccountStore accounts = new AccountStore();
+            in.load(accounts);
+            Snapshot snapshot = Snapshot.of(accounts).sort();
+            try {
+                out.save(snapshot);
+                return snapshot.size();
+            } finally {
+                snapshot.close();
+            }
+        } finally {
+            in.close();
+            out.close();
+        }
+    }
+
+}
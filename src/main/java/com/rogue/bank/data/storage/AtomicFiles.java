@@ -0,0 +1,97 @@
+/*
+ * Copyright (C) 2013 Spencer Alderman
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.rogue.bank.data.storage;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Swaps a newly written bank file in for the current one, so that a crash
+ * at any point leaves either the whole old file or the whole new one.
+ *
+ * @since 1.0.0
+ * @author 1Rogue
+ * @version 1.0.0
+ */
+final class AtomicFiles {
+
+    private AtomicFiles() {
+    }
+
+    /**
+     * Renames a file over another in one step, and forces the rename to
+     * the disk. The new file must already have been forced.
+     *
+     * @since 1.0.0
+     * @version 1.0.0
+     *
+     * @param tmp The new file, written and forced
+     * @param target The file it replaces
+     * @param backup A name to keep the replaced file under, or null to
+     *               discard it
+     * @throws IOException If the file could not be replaced
+     */
+    static void replace(File tmp, File target, File backup) throws IOException {
+        if (backup != null && target.exists()) {
+            backup.delete();
+            try {
+                Files.createLink(backup.toPath(), target.toPath());
+            } catch (IOException ex) {
+                // the backup is a convenience, the swap does not need it
+            } catch (UnsupportedOperationException ex) {
+                // no hard links on this file system
+            }
+        }
+        try {
+            Files.move(tmp.toPath(), target.toPath(), StandardCopyOption.ATOMIC_MOVE,
+                    StandardCopyOption.REPLACE_EXISTING);
+        } catch (AtomicMoveNotSupportedException ex) {
+            Files.move(tmp.toPath(), target.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        }
+        syncDirectory(target.getAbsoluteFile().getParentFile());
+    }
+
+    /**
+     * Forces the entries of a directory to the disk, where the platform
+     * allows a directory to be opened.
+     *
+     * @since 1.0.0
+     * @version 1.0.0
+     *
+     * @param dir The directory
+     */
+    private static void syncDirectory(File dir) {
+        if (dir == null) {
+            return;
+        }
+        try {
+            FileChannel channel = FileChannel.open(dir.toPath(), StandardOpenOption.READ);
+            try {
+                channel.force(true);
+            } finally {
+                channel.close();
+            }
+        } catch (IOException ex) {
+            // directories can not be opened on every platform
+        }
+    }
+}
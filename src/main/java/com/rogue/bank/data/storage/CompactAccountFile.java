@@ -0,0 +1,475 @@
+/*
+ * Copyright (C) 2013 Spencer Alderman
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.rogue.bank.data.storage;
+
+import com.rogue.bank.data.Account;
+import com.rogue.bank.data.AccountStore;
+import com.rogue.bank.data.Snapshot;
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.SequenceInputStream;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+
+/**
+ * Compressed bank snapshot, written and read in a single streaming pass.
+ * Accounts are stored sorted by id, with each id stored as the difference
+ * from the one before. Ids, pins and balances in cents are variable length
+ * integers; the format also allows a raw double balance. The records
+ * are deflated unless {@code bank.snapshot.deflate} is false.
+ *
+ * The file starts with a 6 byte header (magic, version, flags), followed by
+ * the record count and the records:
+ * <pre>
+ * id delta  zigzag varint
+ * tag       byte, account type in bits 0-1, bit 2 set for a raw balance
+ * pin       varint
+ * balance   zigzag varint of cents, or 8 byte double if bit 2 is set
+ * </pre>
+ *
+ * A save writes and forces a new file beside the old one and then renames
+ * it over the old one in one step, keeping the previous snapshot as
+ * ".old".
+ *
+ * @since 1.0.0
+ * @author 1Rogue
+ * @version 1.0.0
+ */
+public class CompactAccountFile implements AccountFile {
+
+    /** Magic number identifying a compact bank file, "BNKZ" */
+    public static final int MAGIC = 0x424E4B5A;
+    private static final int VERSION = 1;
+    private static final int FLAG_DEFLATE = 1;
+    private static final int TAG_RAW = 4;
+    private static final String TYPES = "sxc";
+    private static final int BUFFER_SIZE = 1 << 16;
+
+    private final String bankLoc;
+    private final boolean deflate = !"false".equals(System.getProperty("bank.snapshot.deflate"));
+    private int rejected;
+
+    /**
+     * CompactAccountFile constructor
+     *
+     * @since 1.0.0
+     * @version 1.0.0
+     *
+     * @param bankFile String for bank file location
+     */
+    public CompactAccountFile(String bankFile) {
+        this.bankLoc = bankFile;
+    }
+
+    /**
+     * Returns whether a file is a compact bank file.
+     *
+     * @since 1.0.0
+     * @version 1.0.0
+     *
+     * @param file The file to check
+     * @return True if the file begins with the compact bank file magic
+     *         number
+     */
+    public static boolean isCompact(File file) {
+        if (file.length() < 6) {
+            return false;
+        }
+        try {
+            DataInputStream in = new DataInputStream(new FileInputStream(file));
+            try {
+                return in.readInt() == MAGIC;
+            } finally {
+                in.close();
+            }
+        } catch (IOException ex) {
+            return false;
+        }
+    }
+
+    public void load(AccountStore into) throws IOException {
+        File f = new File(this.bankLoc);
+        this.rejected = 0;
+        if (!f.exists()) {
+            System.err.println("Error: " + f.getPath() + " (No such file or directory)");
+            return;
+        }
+        InputStream file = new FileInputStream(f);
+        try {
+            Decoder in = new Decoder(file);
+            if (in.readInt() != MAGIC || in.readByte() != VERSION) {
+                throw new IOException(this.bankLoc + " is not a compact bank file");
+            }
+            int flags = in.readByte();
+            if ((flags & FLAG_DEFLATE) != 0) {
+                in = new Decoder(new InflaterInputStream(in.remaining(), new Inflater(), BUFFER_SIZE));
+            }
+            int count = (int) in.readVarint();
+            int id = 0;
+            for (int i = 0; i < count; i++) {
+                id += (int) unzigzag(in.readVarint());
+                int tag = in.readByte();
+                int pin = (int) in.readVarint();
+                double balance = (tag & TAG_RAW) != 0
+                        ? Double.longBitsToDouble(in.readLong())
+                        : unzigzag(in.readVarint()) / 100.0;
+                int type = tag & 3;
+                if (type >= TYPES.length() || into.addSlot(TYPES.charAt(type), id, pin, balance) < 0) {
+                    this.rejected++;
+                }
+            }
+        } catch (EOFException ex) {
+            throw new IOException(this.bankLoc + " is truncated");
+        } finally {
+            file.close();
+        }
+    }
+
+    public int getRejected() {
+        return this.rejected;
+    }
+
+    /**
+     * Writes the snapshot, in id order, to a new file and swaps it in for
+     * the current one.
+     *
+     * @since 1.0.0
+     * @version 1.0.0
+     *
+     * @param snapshot The {@link Snapshot} to save
+     * @throws IOException If the file could not be written
+     */
+    public void save(Snapshot snapshot) throws IOException {
+        snapshot.sort();
+        File tmp = new File(this.bankLoc + ".tmp");
+        FileOutputStream file = new FileOutputStream(tmp);
+        try {
+            Encoder out = new Encoder(file);
+            out.writeInt(MAGIC);
+            out.writeByte(VERSION);
+            out.writeByte(this.deflate ? FLAG_DEFLATE : 0);
+            if (this.deflate) {
+                out.flush();
+                out = new Encoder(new DeflaterOutputStream(file, new Deflater(), BUFFER_SIZE));
+            }
+            out.writeVarint(snapshot.size());
+            int last = 0;
+            for (int i = 0; i < snapshot.size(); i++) {
+                Account acc = snapshot.getAccount(i);
+                out.writeVarint(zigzag((long) acc.getID() - last));
+                last = acc.getID();
+                out.writeByte(TYPES.indexOf(Character.toLowerCase(acc.getDisplayCharacter())));
+                out.writeVarint(acc.getPIN() & 0xFFFFFFFFL);
+                out.writeVarint(zigzag(snapshot.getCents(i)));
+            }
+            out.finish();
+            file.getFD().sync();
+        } finally {
+            file.close();
+        }
+        AtomicFiles.replace(tmp, new File(this.bankLoc), new File(this.bankLoc + ".old"));
+    }
+
+    public boolean isUpdatable() {
+        return false;
+    }
+
+    public void update(Account account) {
+        throw new UnsupportedOperationException("Compact bank files are only written by save");
+    }
+
+    public void remove(int id) {
+        throw new UnsupportedOperationException("Compact bank files are only written by save");
+    }
+
+    public void flush() {
+    }
+
+    public void close() {
+    }
+
+    /**
+     * Zigzag encodes a signed value so small negative values stay short.
+     *
+     * @since 1.0.0
+     * @version 1.0.0
+     *
+     * @param value The signed value
+     * @return The encoded value
+     */
+    private static long zigzag(long value) {
+        return (value << 1) ^ (value >> 63);
+    }
+
+    /**
+     * Decodes a zigzag encoded value.
+     *
+     * @since 1.0.0
+     * @version 1.0.0
+     *
+     * @param value The encoded value
+     * @return The signed value
+     */
+    private static long unzigzag(long value) {
+        return (value >>> 1) ^ -(value & 1);
+    }
+
+    /**
+     * Buffered writer of bytes and varints. Unlike a
+     * {@link java.io.DataOutputStream} it takes no lock per byte.
+     *
+     * @since 1.0.0
+     * @author 1Rogue
+     * @version 1.0.0
+     */
+    private static class Encoder {
+
+        private final OutputStream out;
+        private final byte[] buf = new byte[BUFFER_SIZE];
+        private int pos;
+
+        /**
+         * Encoder constructor
+         *
+         * @since 1.0.0
+         * @version 1.0.0
+         *
+         * @param out The stream to write to
+         */
+        Encoder(OutputStream out) {
+            this.out = out;
+        }
+
+        /**
+         * Writes a single byte.
+         *
+         * @since 1.0.0
+         * @version 1.0.0
+         *
+         * @param b The byte to write
+         * @throws IOException If the stream could not be written
+         */
+        void writeByte(int b) throws IOException {
+            if (this.pos == this.buf.length) {
+                this.flush();
+            }
+            this.buf[this.pos++] = (byte) b;
+        }
+
+        /**
+         * Writes a big-endian int.
+         *
+         * @since 1.0.0
+         * @version 1.0.0
+         *
+         * @param v The int to write
+         * @throws IOException If the stream could not be written
+         */
+        void writeInt(int v) throws IOException {
+            for (int shift = 24; shift >= 0; shift -= 8) {
+                this.writeByte(v >>> shift);
+            }
+        }
+
+        /**
+         * Writes a big-endian long.
+         *
+         * @since 1.0.0
+         * @version 1.0.0
+         *
+         * @param v The long to write
+         * @throws IOException If the stream could not be written
+         */
+        void writeLong(long v) throws IOException {
+            for (int shift = 56; shift >= 0; shift -= 8) {
+                this.writeByte((int) (v >>> shift));
+            }
+        }
+
+        /**
+         * Writes an unsigned value 7 bits at a time, low bits first.
+         *
+         * @since 1.0.0
+         * @version 1.0.0
+         *
+         * @param v The value to write
+         * @throws IOException If the stream could not be written
+         */
+        void writeVarint(long v) throws IOException {
+            while ((v & ~0x7FL) != 0) {
+                this.writeByte((int) (v & 0x7F) | 0x80);
+                v >>>= 7;
+            }
+            this.writeByte((int) v);
+        }
+
+        /**
+         * Writes out the buffered bytes.
+         *
+         * @since 1.0.0
+         * @version 1.0.0
+         *
+         * @throws IOException If the stream could not be written
+         */
+        void flush() throws IOException {
+            this.out.write(this.buf, 0, this.pos);
+            this.pos = 0;
+        }
+
+        /**
+         * Writes out the buffered bytes and finishes any compression,
+         * without closing the underlying file.
+         *
+         * @since 1.0.0
+         * @version 1.0.0
+         *
+         * @throws IOException If the stream could not be written
+         */
+        void finish() throws IOException {
+            this.flush();
+            if (this.out instanceof DeflaterOutputStream) {
+                ((DeflaterOutputStream) this.out).finish();
+            }
+            this.out.flush();
+        }
+    }
+
+    /**
+     * Buffered reader of bytes and varints.
+     *
+     * @since 1.0.0
+     * @author 1Rogue
+     * @version 1.0.0
+     */
+    private static class Decoder {
+
+        private final InputStream in;
+        private final byte[] buf = new byte[BUFFER_SIZE];
+        private int pos;
+        private int limit;
+
+        /**
+         * Decoder constructor
+         *
+         * @since 1.0.0
+         * @version 1.0.0
+         *
+         * @param in The stream to read from
+         */
+        Decoder(InputStream in) {
+            this.in = in;
+        }
+
+        /**
+         * Reads a single byte.
+         *
+         * @since 1.0.0
+         * @version 1.0.0
+         *
+         * @return The byte read, from 0 to 255
+         * @throws IOException If the stream could not be read
+         */
+        int readByte() throws IOException {
+            if (this.pos == this.limit) {
+                this.limit = this.in.read(this.buf, 0, this.buf.length);
+                this.pos = 0;
+                if (this.limit <= 0) {
+                    this.limit = 0;
+                    throw new EOFException();
+                }
+            }
+            return this.buf[this.pos++] & 0xFF;
+        }
+
+        /**
+         * Reads a big-endian int.
+         *
+         * @since 1.0.0
+         * @version 1.0.0
+         *
+         * @return The int read
+         * @throws IOException If the stream could not be read
+         */
+        int readInt() throws IOException {
+            int v = 0;
+            for (int i = 0; i < 4; i++) {
+                v = (v << 8) | this.readByte();
+            }
+            return v;
+        }
+
+        /**
+         * Reads a big-endian long.
+         *
+         * @since 1.0.0
+         * @version 1.0.0
+         *
+         * @return The long read
+         * @throws IOException If the stream could not be read
+         */
+        long readLong() throws IOException {
+            long v = 0;
+            for (int i = 0; i < 8; i++) {
+                v = (v << 8) | this.readByte();
+            }
+            return v;
+        }
+
+        /**
+         * Reads an unsigned value written by {@code writeVarint}.
+         *
+         * @since 1.0.0
+         * @version 1.0.0
+         *
+         * @return The value read
+         * @throws IOException If the stream could not be read
+         */
+        long readVarint() throws IOException {
+            long v = 0;
+            for (int shift = 0; shift < 64; shift += 7) {
+                int b = this.readByte();
+                v |= (long) (b & 0x7F) << shift;
+                if ((b & 0x80) == 0) {
+                    return v;
+                }
+            }
+            throw new IOException("Malformed varint");
+        }
+
+        /**
+         * Returns a stream of the bytes not yet read, starting with any
+         * already buffered.
+         *
+         * @since 1.0.0
+         * @version 1.0.0
+         *
+         * @return The rest of the stream
+         */
+        InputStream remaining() {
+            return new SequenceInputStream(new ByteArrayInputStream(this.buf, this.pos, this.limit - this.pos), this.in);
+        }
+    }
+}
@@ -0,0 +1,86 @@
+/*
+ * Copyright (C) 2013 Spencer Alderman
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.rogue.bank.data.storage;
+
+import com.rogue.bank.data.Account;
+import com.rogue.bank.data.AccountStore;
+import java.io.IOException;
+
+/**
+ * A bank file whose records can be read one at a time by id, through an
+ * index, without loading the whole file.
+ *
+ * @since 1.0.0
+ * @author 1Rogue
+ * @version 1.0.0
+ */
+public interface IndexedAccountFile extends AccountFile {
+
+    /**
+     * Opens the id index instead of loading every account. Used in place of
+     * {@link #load(AccountStore)}.
+     *
+     * @since 1.0.0
+     * @version 1.0.0
+     *
+     * @throws IOException If the index could not be read or rebuilt
+     */
+    public void openIndex() throws IOException;
+
+    /**
+     * Returns whether an account is stored in the file.
+     *
+     * @since 1.0.0
+     * @version 1.0.0
+     *
+     * @param id The account id
+     * @return True if the account is stored
+     */
+    public boolean contains(int id);
+
+    /**
+     * Reads a single account from the file.
+     *
+     * @since 1.0.0
+     * @version 1.0.0
+     *
+     * @param id The account id
+     * @return A new {@link Account} read from the file, null if the account
+     *         is not stored
+     */
+    public Account read(int id);
+
+    /**
+     * Returns the number of accounts stored in the file.
+     *
+     * @since 1.0.0
+     * @version 1.0.0
+     *
+     * @return The number of accounts
+     */
+    public int size();
+
+    /**
+     * Returns the ids of every account stored in the file.
+     *
+     * @since 1.0.0
+     * @version 1.0.0
+     *
+     * @return The stored account ids
+     */
+    public int[] ids();
+}
@@ -0,0 +1,473 @@
+/*
+ * Copyright (C) 2013 Spencer Alderman
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.rogue.bank.data.storage;
+
+import com.rogue.bank.data.Account;
+import com.rogue.bank.data.AccountStore;
+import com.rogue.bank.data.DataManager;
+import com.rogue.bank.data.Snapshot;
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Binary bank file of fixed-width records, accessed through a
+ * {@link MappedByteBuffer}. Loading reads records straight out of the
+ * mapping, and updates write the changed record in place.
+ *
+ * Instead of loading every account, the file can be opened through a
+ * sorted id index kept in a ".idx" file beside it, and read one record at
+ * a time. Ids added or removed since the index was written are kept in a
+ * small overlay. A flag in the header marks the index stale on the first
+ * such change, so an index left behind by a crash is rebuilt by scanning
+ * the records.
+ *
+ * The file starts with a 16 byte header (magic, version, slot count, index
+ * stale flag), followed by 24 byte records:
+ * <pre>
+ * 0  id       int
+ * 4  pin      int
+ * 8  balance  double
+ * 16 type     byte, 0 for a free slot
+ * </pre>
+ *
+ * @since 1.0.0
+ * @author 1Rogue
+ * @version 1.0.0
+ */
+public class MappedAccountFile implements IndexedAccountFile {
+
+    /** Magic number identifying a mapped bank file, "BANK" */
+    public static final int MAGIC = 0x42414E4B;
+    private static final int VERSION = 1;
+    private static final int HEADER = 16;
+    private static final int RECORD = 24;
+    private static final int SLOTS_OFFSET = 8;
+    private static final int STALE_OFFSET = 12;
+    private static final int MIN_CAPACITY = 1024;
+    private static final int INDEX_MAGIC = 0x42494458;
+    private static final int INDEX_HEADER = 16;
+
+    private final String indexLoc;
+    private final RandomAccessFile raf;
+    private final FileChannel channel;
+    private final Map<Integer, Integer> slots = new HashMap<Integer, Integer>();
+    private final Deque<Integer> free = new ArrayDeque<Integer>();
+    private MappedByteBuffer map;
+    private MappedByteBuffer index;
+    private int indexCount;
+    private int live;
+    private int capacity;
+    private int used;
+    private int rejected;
+
+    /**
+     * MappedAccountFile constructor. Creates the file if it does not exist.
+     *
+     * @since 1.0.0
+     * @version 1.0.0
+     *
+     * @param bankFile String for bank file location
+     * @throws IOException If the file could not be opened or is not a mapped
+     *                     bank file
+     */
+    public MappedAccountFile(String bankFile) throws IOException {
+        this.indexLoc = bankFile + ".idx";
+        this.raf = new RandomAccessFile(bankFile, "rw");
+        this.channel = this.raf.getChannel();
+        if (this.raf.length() < HEADER) {
+            this.remap(MIN_CAPACITY);
+            this.map.putInt(0, MAGIC);
+            this.map.putInt(4, VERSION);
+            this.map.putInt(SLOTS_OFFSET, 0);
+        } else {
+            int slotCount = (int) ((this.raf.length() - HEADER) / RECORD);
+            this.remap(Math.max(MIN_CAPACITY, slotCount));
+            if (this.map.getInt(0) != MAGIC || this.map.getInt(4) != VERSION) {
+                this.close();
+                throw new IOException(bankFile + " is not a mapped bank file");
+            }
+            this.used = this.map.getInt(SLOTS_OFFSET);
+        }
+    }
+
+    /**
+     * Returns whether a file is a mapped bank file.
+     *
+     * @since 1.0.0
+     * @version 1.0.0
+     *
+     * @param file The file to check
+     * @return True if the file begins with the mapped bank file magic number
+     */
+    public static boolean isMapped(File file) {
+        if (file.length() < HEADER) {
+            return false;
+        }
+        try {
+            DataInputStream in = new DataInputStream(new FileInputStream(file));
+            try {
+                return in.readInt() == MAGIC;
+            } finally {
+                in.close();
+            }
+        } catch (IOException ex) {
+            return false;
+        }
+    }
+
+    public synchronized void load(AccountStore into) {
+        this.index = null;
+        this.rejected = 0;
+        this.slots.clear();
+        this.free.clear();
+        for (int slot = 0; slot < this.used; slot++) {
+            int pos = HEADER + slot * RECORD;
+            char type = (char) this.map.get(pos + 16);
+            if (type == 0) {
+                this.free.add(slot);
+                continue;
+            }
+            int id = this.map.getInt(pos);
+            if (into.addSlot(type, id, this.map.getInt(pos + 4), this.map.getDouble(pos + 8)) >= 0) {
+                this.slots.put(id, slot);
+            } else {
+                this.rejected++;
+            }
+        }
+    }
+
+    public synchronized int getRejected() {
+        return this.rejected;
+    }
+
+    public synchronized void save(Snapshot snapshot) throws IOException {
+        this.markStale();
+        this.index = null;
+        this.slots.clear();
+        this.free.clear();
+        if (snapshot.size() > this.capacity) {
+            this.remap(snapshot.size());
+        }
+        int slot = 0;
+        for (int i = 0; i < snapshot.size(); i++) {
+            Account acc = snapshot.getAccount(i);
+            this.write(slot, acc, snapshot.getBalance(i));
+            this.slots.put(acc.getID(), slot++);
+        }
+        for (int i = slot; i < this.used; i++) {
+            this.map.put(HEADER + i * RECORD + 16, (byte) 0);
+        }
+        this.used = slot;
+        this.map.putInt(SLOTS_OFFSET, this.used);
+        this.map.force();
+    }
+
+    public boolean isUpdatable() {
+        return true;
+    }
+
+    public synchronized void update(Account account) throws IOException {
+        int slot = this.lookup(account.getID());
+        if (slot < 0) {
+            this.markStale();
+            Integer reused = this.free.poll();
+            if (reused == null) {
+                if (this.used == this.capacity) {
+                    this.remap(this.capacity * 2);
+                }
+                slot = this.used++;
+                this.map.putInt(SLOTS_OFFSET, this.used);
+            } else {
+                slot = reused;
+            }
+            this.slots.put(account.getID(), slot);
+            this.live++;
+        }
+        this.write(slot, account, account.getBalance());
+    }
+
+    public synchronized void remove(int id) {
+        int slot = this.lookup(id);
+        if (slot >= 0) {
+            this.markStale();
+            if (this.searchIndex(id) >= 0) {
+                this.slots.put(id, -1);
+            } else {
+                this.slots.remove(id);
+            }
+            this.map.put(HEADER + slot * RECORD + 16, (byte) 0);
+            this.free.add(slot);
+            this.live--;
+        }
+    }
+
+    public synchronized void openIndex() throws IOException {
+        this.slots.clear();
+        this.free.clear();
+        this.rejected = 0;
+        File file = new File(this.indexLoc);
+        if (this.map.get(STALE_OFFSET) != 0 || !file.exists() || !this.mapIndex(file)) {
+            this.writeIndex(file);
+        }
+    }
+
+    public synchronized boolean contains(int id) {
+        return this.lookup(id) >= 0;
+    }
+
+    public synchronized Account read(int id) {
+        int slot = this.lookup(id);
+        if (slot < 0) {
+            return null;
+        }
+        int pos = HEADER + slot * RECORD;
+        return DataManager.newAccount((char) this.map.get(pos + 16), id, this.map.getInt(pos + 4), this.map.getDouble(pos + 8));
+    }
+
+    public synchronized int size() {
+        return this.index == null ? this.slots.size() : this.live;
+    }
+
+    public synchronized int[] ids() {
+        int[] ids = new int[this.size()];
+        int n = 0;
+        for (int i = 0; this.index != null && i < this.indexCount; i++) {
+            int id = this.index.getInt(INDEX_HEADER + i * 8);
+            if (!this.slots.containsKey(id)) {
+                ids[n++] = id;
+            }
+        }
+        for (Map.Entry<Integer, Integer> slot : this.slots.entrySet()) {
+            if (slot.getValue() >= 0) {
+                ids[n++] = slot.getKey();
+            }
+        }
+        return ids;
+    }
+
+    public synchronized void flush() {
+        this.map.force();
+    }
+
+    public synchronized void close() throws IOException {
+        if (this.index != null && this.map.get(STALE_OFFSET) != 0) {
+            this.map.force();
+            this.writeIndex(new File(this.indexLoc));
+        }
+        if (this.map != null) {
+            this.map.force();
+        }
+        this.channel.close();
+        this.raf.close();
+    }
+
+    /**
+     * Finds the slot of an account, in the overlay of changes first and
+     * then in the index.
+     *
+     * @since 1.0.0
+     * @version 1.0.0
+     *
+     * @param id The account id
+     * @return The slot of the account, or -1 if it is not stored
+     */
+    private int lookup(int id) {
+        Integer slot = this.slots.get(id);
+        if (slot != null) {
+            return slot;
+        }
+        return this.searchIndex(id);
+    }
+
+    /**
+     * Binary searches the index for an account.
+     *
+     * @since 1.0.0
+     * @version 1.0.0
+     *
+     * @param id The account id
+     * @return The indexed slot of the account, or -1 if it is not indexed
+     */
+    private int searchIndex(int id) {
+        if (this.index == null) {
+            return -1;
+        }
+        int low = 0;
+        int high = this.indexCount - 1;
+        while (low <= high) {
+            int mid = (low + high) >>> 1;
+            int found = this.index.getInt(INDEX_HEADER + mid * 8);
+            if (found < id) {
+                low = mid + 1;
+            } else if (found > id) {
+                high = mid - 1;
+            } else {
+                return this.index.getInt(INDEX_HEADER + mid * 8 + 4);
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Marks the index stale before the first change to which ids are in
+     * which slots. The flag is forced to disk so a crash can not leave a
+     * stale index looking current.
+     *
+     * @since 1.0.0
+     * @version 1.0.0
+     */
+    private void markStale() {
+        if (this.map.get(STALE_OFFSET) == 0) {
+            this.map.put(STALE_OFFSET, (byte) 1);
+            this.map.force();
+        }
+    }
+
+    /**
+     * Maps an existing index file, if it matches the records.
+     *
+     * @since 1.0.0
+     * @version 1.0.0
+     *
+     * @param file The index file
+     * @return False if the index does not match and must be rebuilt
+     * @throws IOException If the index could not be read
+     */
+    private boolean mapIndex(File file) throws IOException {
+        RandomAccessFile in = new RandomAccessFile(file, "r");
+        try {
+            if (in.length() < INDEX_HEADER) {
+                return false;
+            }
+            MappedByteBuffer idx = in.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, in.length());
+            int count = idx.getInt(4);
+            int freeCount = idx.getInt(12);
+            if (idx.getInt(0) != INDEX_MAGIC || idx.getInt(8) != this.used
+                    || in.length() != INDEX_HEADER + count * 8L + freeCount * 4L) {
+                return false;
+            }
+            for (int i = 0; i < freeCount; i++) {
+                this.free.add(idx.getInt(INDEX_HEADER + count * 8 + i * 4));
+            }
+            this.index = idx;
+            this.indexCount = count;
+            this.live = count;
+            return true;
+        } finally {
+            in.close();
+        }
+    }
+
+    /**
+     * Rebuilds the index by scanning every record, writes it out with the
+     * free slots, and clears the stale flag.
+     *
+     * @since 1.0.0
+     * @version 1.0.0
+     *
+     * @param file The index file
+     * @throws IOException If the index could not be written
+     */
+    private void writeIndex(File file) throws IOException {
+        long[] entries = new long[this.used];
+        int count = 0;
+        this.free.clear();
+        for (int slot = 0; slot < this.used; slot++) {
+            int pos = HEADER + slot * RECORD;
+            if (this.map.get(pos + 16) == 0) {
+                this.free.add(slot);
+            } else {
+                entries[count++] = (long) this.map.getInt(pos) << 32 | slot;
+            }
+        }
+        Arrays.sort(entries, 0, count);
+        RandomAccessFile out = new RandomAccessFile(file, "rw");
+        try {
+            long length = INDEX_HEADER + count * 8L + this.free.size() * 4L;
+            out.setLength(length);
+            MappedByteBuffer idx = out.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, length);
+            idx.putInt(0, INDEX_MAGIC);
+            idx.putInt(4, count);
+            idx.putInt(8, this.used);
+            idx.putInt(12, this.free.size());
+            for (int i = 0; i < count; i++) {
+                idx.putInt(INDEX_HEADER + i * 8, (int) (entries[i] >> 32));
+                idx.putInt(INDEX_HEADER + i * 8 + 4, (int) entries[i]);
+            }
+            int i = 0;
+            for (int slot : this.free) {
+                idx.putInt(INDEX_HEADER + count * 8 + i++ * 4, slot);
+            }
+            idx.force();
+            this.index = idx;
+        } finally {
+            out.close();
+        }
+        this.slots.clear();
+        this.indexCount = count;
+        this.live = count;
+        this.map.put(STALE_OFFSET, (byte) 0);
+        this.map.force();
+    }
+
+    /**
+     * Writes an account into a record slot.
+     *
+     * @since 1.0.0
+     * @version 1.0.0
+     *
+     * @param slot The slot to write to
+     * @param account The account to write
+     * @param balance The balance to write
+     */
+    private void write(int slot, Account account, double balance) {
+        int pos = HEADER + slot * RECORD;
+        this.map.putInt(pos, account.getID());
+        this.map.putInt(pos + 4, account.getPIN());
+        this.map.putDouble(pos + 8, balance);
+        this.map.put(pos + 16, (byte) account.getDisplayCharacter());
+    }
+
+    /**
+     * Maps the file with room for the given number of records, growing the
+     * file if needed.
+     *
+     * @since 1.0.0
+     * @version 1.0.0
+     *
+     * @param records The number of records to map
+     * @throws IOException If the file could not be mapped
+     */
+    private void remap(int records) throws IOException {
+        if (this.map != null) {
+            this.map.force();
+        }
+        this.capacity = records;
+        this.map = this.channel.map(FileChannel.MapMode.READ_WRITE, 0, HEADER + (long) records * RECORD);
+    }
+
+}
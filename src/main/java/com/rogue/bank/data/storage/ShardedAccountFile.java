@@ -0,0 +1,450 @@
+/*
+ * Copyright (C) 2013 Spencer Alderman
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.rogue.bank.data.storage;
+
+import com.rogue.bank.data.Account;
+import com.rogue.bank.data.AccountStore;
+import com.rogue.bank.data.DataManager;
+import com.rogue.bank.data.Snapshot;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * A bank partitioned by account id into several shard files, which are
+ * loaded and saved in parallel. Shards are named after the bank file with
+ * the shard number before the extension ({@code bank.txt} is stored as
+ * {@code bank.shard0.txt}, {@code bank.shard1.txt}...) and use the same
+ * format the single file would.
+ *
+ * A full save only rewrites the shards whose contents changed since they
+ * were last loaded or saved. If there are no shards yet but a single bank
+ * file exists, or the shard count has changed, the accounts are re-sharded
+ * when loaded and the old files moved aside.
+ *
+ * @since 1.0.0
+ * @author 1Rogue
+ * @version 1.0.0
+ */
+public class ShardedAccountFile implements AccountFile {
+
+    private static final int THREADS = Integer.getInteger("bank.shard.threads", Runtime.getRuntime().availableProcessors());
+    private static final long UNKNOWN = 0;
+
+    private final String bankLoc;
+    private final AccountFile[] shards;
+    private final long[] fingerprints;
+    private final int found;
+    private int rejected;
+    private int written;
+
+    /**
+     * ShardedAccountFile constructor
+     *
+     * @since 1.0.0
+     * @version 1.0.0
+     *
+     * @param bankFile String for the single bank file location
+     * @param count The number of shards
+     * @throws IOException If a shard could not be opened
+     */
+    public ShardedAccountFile(String bankFile, int count) throws IOException {
+        this.bankLoc = bankFile;
+        this.found = countShards(bankFile);
+        this.shards = new AccountFile[count];
+        this.fingerprints = new long[count];
+        File single = new File(bankFile);
+        File first = new File(shardName(bankFile, 0));
+        boolean mapped = bankFile.endsWith(".bin") || MappedAccountFile.isMapped(single) || MappedAccountFile.isMapped(first);
+        boolean compact = bankFile.endsWith(".cbank") || CompactAccountFile.isCompact(single) || CompactAccountFile.isCompact(first);
+        for (int i = 0; i < count; i++) {
+            String name = shardName(bankFile, i);
+            if (mapped) {
+                this.shards[i] = new MappedAccountFile(name);
+            } else if (compact) {
+                this.shards[i] = new CompactAccountFile(name);
+            } else {
+                this.shards[i] = new TextAccountFile(name);
+            }
+        }
+    }
+
+    /**
+     * Returns the file name of a shard.
+     *
+     * @since 1.0.0
+     * @version 1.0.0
+     *
+     * @param bankFile String for the single bank file location
+     * @param shard The shard number
+     * @return The shard file name
+     */
+    public static String shardName(String bankFile, int shard) {
+        int dot = bankFile.lastIndexOf('.');
+        if (dot <= bankFile.lastIndexOf(File.separatorChar) + 1) {
+            return bankFile + ".shard" + shard;
+        }
+        return bankFile.substring(0, dot) + ".shard" + shard + bankFile.substring(dot);
+    }
+
+    /**
+     * Counts the shard files already on disk for a bank.
+     *
+     * @since 1.0.0
+     * @version 1.0.0
+     *
+     * @param bankFile String for the single bank file location
+     * @return The number of consecutive shard files found
+     */
+    public static int countShards(String bankFile) {
+        int count = 0;
+        while (new File(shardName(bankFile, count)).exists()) {
+            count++;
+        }
+        return count;
+    }
+
+    /**
+     * Returns the shard an account id belongs to.
+     *
+     * @since 1.0.0
+     * @version 1.0.0
+     *
+     * @param id The account id
+     * @param count The number of shards
+     * @return The shard number
+     */
+    public static int shardOf(int id, int count) {
+        int h = id * 0x9E3779B9;
+        return ((h ^ (h >>> 16)) & 0x7FFFFFFF) % count;
+    }
+
+    /**
+     * Loads every shard in parallel. Shards left by a different shard count,
+     * or a single bank file when there are no shards, are read instead and
+     * written back out as the current shards.
+     *
+     * @since 1.0.0
+     * @version 1.0.0
+     *
+     * @param into The store to add the accounts to, in shard order
+     * @throws IOException If a shard could not be read
+     */
+    public void load(AccountStore into) throws IOException {
+        int found = this.found;
+        if (found == this.shards.length) {
+            this.loadShards(this.shards, into);
+            return;
+        }
+        AccountFile[] old;
+        if (found == 0) {
+            old = new AccountFile[] { DataManager.openBankFile(this.bankLoc, 1) };
+        } else {
+            old = new AccountFile[found];
+            for (int i = 0; i < found; i++) {
+                old[i] = i < this.shards.length ? this.shards[i] : DataManager.openBankFile(shardName(this.bankLoc, i), 1);
+            }
+        }
+        AccountStore accounts = new AccountStore(false);
+        this.loadShards(old, accounts);
+        int rejectedOld = this.rejected;
+        for (int i = this.shards.length; i < old.length; i++) {
+            old[i].close();
+            new File(shardName(this.bankLoc, i)).delete();
+        }
+        if (found == 0) {
+            old[0].close();
+        }
+        Arrays.fill(this.fingerprints, UNKNOWN);
+        Snapshot snapshot = Snapshot.of(accounts);
+        try {
+            this.save(snapshot);
+        } finally {
+            snapshot.close();
+        }
+        if (found == 0) {
+            File single = new File(this.bankLoc);
+            if (single.exists()) {
+                single.renameTo(new File(this.bankLoc + ".old"));
+            }
+        }
+        this.rejected = rejectedOld;
+        into.append(accounts);
+    }
+
+    /**
+     * Loads a set of files in parallel, each into a store of its own, and
+     * appends those to a store in file order, remembering the fingerprint
+     * of each current shard.
+     *
+     * @since 1.0.0
+     * @version 1.0.0
+     *
+     * @param files The files to load
+     * @param into The store to add the accounts to
+     * @throws IOException If a file could not be read
+     */
+    private void loadShards(final AccountFile[] files, AccountStore into) throws IOException {
+        List<Callable<AccountStore>> tasks = new ArrayList<Callable<AccountStore>>(files.length);
+        for (final AccountFile file : files) {
+            tasks.add(new Callable<AccountStore>() {
+
+                public AccountStore call() throws IOException {
+                    AccountStore part = new AccountStore(false);
+                    file.load(part);
+                    return part;
+                }
+
+            });
+        }
+        List<AccountStore> loaded = this.runAll(tasks);
+        this.rejected = 0;
+        for (int i = 0; i < files.length; i++) {
+            AccountStore part = loaded.get(i);
+            this.rejected += files[i].getRejected();
+            if (files == this.shards) {
+                this.fingerprints[i] = fingerprint(part);
+            }
+            into.append(part);
+        }
+    }
+
+    public int getRejected() {
+        return this.rejected;
+    }
+
+    /**
+     * Splits the snapshot by shard and rewrites, in parallel, only the
+     * shards whose contents differ from what was last loaded or saved.
+     *
+     * @since 1.0.0
+     * @version 1.0.0
+     *
+     * @param snapshot The {@link Snapshot} to save
+     * @throws IOException If a shard could not be written
+     */
+    public synchronized void save(Snapshot snapshot) throws IOException {
+        int count = this.shards.length;
+        int[] parts = new int[snapshot.size()];
+        long[] prints = new long[count];
+        int[] sizes = new int[count];
+        for (int i = 0; i < parts.length; i++) {
+            int shard = shardOf(snapshot.getID(i), count);
+            parts[i] = shard;
+            prints[shard] = mix(prints[shard], snapshot.getAccount(i), snapshot.getBalance(i));
+            sizes[shard]++;
+        }
+        final Snapshot[] split = snapshot.split(parts, count);
+        List<Callable<Void>> tasks = new ArrayList<Callable<Void>>();
+        final List<Integer> changed = new ArrayList<Integer>();
+        for (int i = 0; i < count; i++) {
+            long print = finish(prints[i], sizes[i]);
+            if (print != this.fingerprints[i] || this.fingerprints[i] == UNKNOWN) {
+                final int shard = i;
+                changed.add(shard);
+                this.fingerprints[i] = print;
+                tasks.add(new Callable<Void>() {
+
+                    public Void call() throws IOException {
+                        shards[shard].save(split[shard]);
+                        return null;
+                    }
+
+                });
+            }
+        }
+        try {
+            this.runAll(tasks);
+        } catch (IOException ex) {
+            for (int shard : changed) {
+                this.fingerprints[shard] = UNKNOWN;
+            }
+            throw ex;
+        }
+        this.written = changed.size();
+    }
+
+    /**
+     * Returns the number of shards rewritten by the last full save.
+     *
+     * @since 1.0.0
+     * @version 1.0.0
+     *
+     * @return The number of shards written
+     */
+    public synchronized int getShardsWritten() {
+        return this.written;
+    }
+
+    /**
+     * Returns the number of shards.
+     *
+     * @since 1.0.0
+     * @version 1.0.0
+     *
+     * @return The shard count
+     */
+    public int getShardCount() {
+        return this.shards.length;
+    }
+
+    public boolean isUpdatable() {
+        for (AccountFile shard : this.shards) {
+            if (!shard.isUpdatable()) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    public synchronized void update(Account account) throws IOException {
+        int shard = shardOf(account.getID(), this.shards.length);
+        this.fingerprints[shard] = UNKNOWN;
+        this.shards[shard].update(account);
+    }
+
+    public synchronized void remove(int id) throws IOException {
+        int shard = shardOf(id, this.shards.length);
+        this.fingerprints[shard] = UNKNOWN;
+        this.shards[shard].remove(id);
+    }
+
+    public void flush() throws IOException {
+        for (AccountFile shard : this.shards) {
+            shard.flush();
+        }
+    }
+
+    public void close() throws IOException {
+        IOException failed = null;
+        for (AccountFile shard : this.shards) {
+            try {
+                shard.close();
+            } catch (IOException ex) {
+                failed = ex;
+            }
+        }
+        if (failed != null) {
+            throw failed;
+        }
+    }
+
+    /**
+     * Runs tasks on a pool of up to one thread per task.
+     *
+     * @since 1.0.0
+     * @version 1.0.0
+     *
+     * @param <T> The task result type
+     * @param tasks The tasks to run
+     * @return The task results, in task order
+     * @throws IOException If any task failed
+     */
+    private <T> List<T> runAll(List<Callable<T>> tasks) throws IOException {
+        List<T> results = new ArrayList<T>(tasks.size());
+        if (tasks.size() <= 1 || THREADS <= 1) {
+            for (Callable<T> task : tasks) {
+                try {
+                    results.add(task.call());
+                } catch (IOException ex) {
+                    throw ex;
+                } catch (Exception ex) {
+                    throw new IOException(ex);
+                }
+            }
+            return results;
+        }
+        ExecutorService pool = Executors.newFixedThreadPool(Math.min(THREADS, tasks.size()));
+        try {
+            for (Future<T> future : pool.invokeAll(tasks)) {
+                results.add(future.get());
+            }
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted accessing shards");
+        } catch (ExecutionException ex) {
+            if (ex.getCause() instanceof IOException) {
+                throw (IOException) ex.getCause();
+            }
+            throw new IOException(ex.getCause());
+        } finally {
+            pool.shutdown();
+        }
+        return results;
+    }
+
+    /**
+     * Fingerprints the accounts of a shard as loaded.
+     *
+     * @since 1.0.0
+     * @version 1.0.0
+     *
+     * @param accounts The store the shard was loaded into
+     * @return The shard fingerprint
+     */
+    private static long fingerprint(AccountStore accounts) {
+        int[] slots = accounts.slots();
+        long print = 0;
+        for (int slot : slots) {
+            Account acc = accounts.view(slot);
+            print = mix(print, acc, acc.getBalance());
+        }
+        return finish(print, slots.length);
+    }
+
+    /**
+     * Adds one account to a running fingerprint. Accounts are summed, so
+     * the fingerprint does not depend on their order.
+     *
+     * @since 1.0.0
+     * @version 1.0.0
+     *
+     * @param print The fingerprint so far
+     * @param acc The account to add
+     * @param balance The balance of the account
+     * @return The new fingerprint
+     */
+    private static long mix(long print, Account acc, double balance) {
+        long h = ((long) acc.getID() << 32 | (acc.getPIN() & 0xFFFFFFFFL)) * 0x9E3779B97F4A7C15L;
+        h ^= Double.doubleToLongBits(balance) * 0xC2B2AE3D27D4EB4FL;
+        h ^= acc.getDisplayCharacter();
+        return print + (h ^ (h >>> 29));
+    }
+
+    /**
+     * Completes a fingerprint with the number of accounts it covers.
+     *
+     * @since 1.0.0
+     * @version 1.0.0
+     *
+     * @param print The fingerprint so far
+     * @param size The number of accounts
+     * @return The finished fingerprint, never {@link #UNKNOWN}
+     */
+    private static long finish(long print, int size) {
+        long h = (print ^ size) * 0xFF51AFD7ED558CCDL;
+        h ^= h >>> 33;
+        return h == UNKNOWN ? 1 : h;
+    }
+}
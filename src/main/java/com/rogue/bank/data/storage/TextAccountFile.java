@@ -0,0 +1,337 @@
+/*
+ * Copyright (C) 2013 Spencer Alderman
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.rogue.bank.data.storage;
+
+import com.rogue.bank.data.Account;
+import com.rogue.bank.data.AccountStore;
+import com.rogue.bank.data.Snapshot;
+import com.rogue.bank.util.ByteTokenizer;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.RandomAccessFile;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+
+/**
+ * Delimited text bank file, one account per line. Large files are parsed
+ * in parallel, tuned with the {@code bank.load.chunkSize} (bytes) and
+ * {@code bank.load.threads} properties.
+ *
+ * A save writes and forces the whole bank to a new file beside the old
+ * one, then renames it over the old one in one step, so a crash leaves one
+ * complete bank file or the other.
+ *
+ * @since 1.0.0
+ * @author Spencer Alderman
+ * @version 1.0.0
+ */
+public class TextAccountFile implements AccountFile {
+
+    private static final long CHUNK_SIZE = Math.min(Integer.MAX_VALUE, Long.getLong("bank.load.chunkSize", 16L << 20));
+    private static final int THREADS = Integer.getInteger("bank.load.threads", Runtime.getRuntime().availableProcessors());
+
+    private final String bankLoc;
+    private final char delimiter = '\t';
+    private int rejected;
+
+    /**
+     * TextAccountFile constructor
+     *
+     * @since 1.0.0
+     * @version 1.0.0
+     *
+     * @param bankFile String for bank file location
+     */
+    public TextAccountFile(String bankFile) {
+        this.bankLoc = bankFile;
+    }
+
+    /**
+     * Loads the bank file. Files larger than the chunk size are split into
+     * newline-aligned byte ranges which are parsed in parallel on a
+     * {@link ForkJoinPool}. The first range is parsed straight into the
+     * store, and each later one into a store of its own whose pages are
+     * appended after it, in file order.
+     *
+     * @since 1.0.0
+     * @version 1.0.0
+     *
+     * @param into The store to add the accounts to
+     * @throws IOException If the file could not be read
+     */
+    public void load(AccountStore into) throws IOException {
+        File f = new File(this.bankLoc);
+        if (!f.exists()) {
+            System.err.println("Error: " + f.getPath() + " (No such file or directory)");
+            this.rejected = 0;
+            return;
+        }
+        RandomAccessFile raf = new RandomAccessFile(f, "r");
+        Chunk loaded;
+        try {
+            FileChannel channel = raf.getChannel();
+            ChunkTask task = new ChunkTask(channel, 0, channel.size(), into);
+            if (channel.size() <= CHUNK_SIZE) {
+                loaded = task.compute();
+            } else {
+                ForkJoinPool pool = new ForkJoinPool(THREADS);
+                try {
+                    loaded = pool.invoke(task);
+                } finally {
+                    pool.shutdown();
+                }
+            }
+        } catch (RuntimeException ex) {
+            if (ex.getCause() instanceof IOException) {
+                throw (IOException) ex.getCause();
+            }
+            throw ex;
+        } finally {
+            raf.close();
+        }
+        this.rejected = loaded.rejected;
+    }
+
+    public int getRejected() {
+        return this.rejected;
+    }
+
+    /**
+     * Parses the current line of a tokenizer into a chunk.
+     *
+     * @since 1.0.0
+     * @version 1.0.0
+     *
+     * @param tok The tokenizer positioned on the line
+     * @param chunk The chunk to add the account to
+     */
+    private void parseLine(ByteTokenizer tok, Chunk chunk) {
+        byte delim = (byte) this.delimiter;
+        try {
+            if (tok.nextField(delim)) {
+                int id = tok.parseInt();
+                if (tok.nextField(delim)) {
+                    char type = tok.firstChar();
+                    if (tok.nextField(delim)) {
+                        int pin = tok.parseInt();
+                        if (tok.nextField(delim) && !tok.hasMoreFields()) {
+                            double bal = tok.parseDecimal();
+                            if (chunk.store.addSlot(type, id, pin, bal) >= 0) {
+                                return;
+                            }
+                        }
+                    }
+                }
+            }
+        } catch (NumberFormatException ex) {
+            // counted as rejected below
+        } catch (IllegalArgumentException ex) {
+            // below the minimum balance for the account type
+        }
+        chunk.rejected++;
+    }
+
+    public void save(Snapshot snapshot) throws IOException {
+        File tmp = new File(this.bankLoc + ".tmp");
+        FileOutputStream file = new FileOutputStream(tmp);
+        try {
+            Writer writer = new BufferedWriter(new OutputStreamWriter(file));
+            for (int i = 0; i < snapshot.size(); i++) {
+                writer.write(snapshot.getAccount(i).formatWith(this.delimiter, snapshot.getBalance(i)) + "\n");
+            }
+            writer.flush();
+            file.getFD().sync();
+        } finally {
+            file.close();
+        }
+        AtomicFiles.replace(tmp, new File(this.bankLoc), null);
+    }
+
+    public boolean isUpdatable() {
+        return false;
+    }
+
+    public void update(Account account) {
+        throw new UnsupportedOperationException("Text bank files are only written by save");
+    }
+
+    public void remove(int id) {
+        throw new UnsupportedOperationException("Text bank files are only written by save");
+    }
+
+    public void flush() {
+    }
+
+    public void close() {
+    }
+
+    /**
+     * Accounts parsed from a range of the bank file
+     *
+     * @since 1.0.0
+     * @author 1Rogue
+     * @version 1.0.0
+     */
+    private static class Chunk {
+
+        private final AccountStore store;
+        private int rejected;
+
+        /**
+         * Chunk constructor
+         *
+         * @since 1.0.0
+         * @version 1.0.0
+         *
+         * @param store The store to hold parsed accounts
+         */
+        Chunk(AccountStore store) {
+            this.store = store;
+        }
+
+        /**
+         * Appends a later chunk onto this one, taking over its store.
+         *
+         * @since 1.0.0
+         * @version 1.0.0
+         *
+         * @param later The chunk following this one in the file
+         * @return This chunk
+         */
+        Chunk merge(Chunk later) {
+            this.store.append(later.store);
+            this.rejected += later.rejected;
+            return this;
+        }
+    }
+
+    /**
+     * Parses a byte range of the bank file, splitting it in two at a line
+     * boundary while it is larger than the chunk size.
+     *
+     * @since 1.0.0
+     * @author 1Rogue
+     * @version 1.0.0
+     */
+    private class ChunkTask extends RecursiveTask<Chunk> {
+
+        private static final long serialVersionUID = 1L;
+
+        private final FileChannel channel;
+        private final long start;
+        private final long end;
+        private final AccountStore into;
+
+        /**
+         * ChunkTask constructor
+         *
+         * @since 1.0.0
+         * @version 1.0.0
+         *
+         * @param channel The bank file channel
+         * @param start The first byte of the range, at the start of a line
+         * @param end The end of the range, just after a line break
+         * @param into The store to add the range's accounts to, or null to
+         *             parse them into a new store
+         */
+        ChunkTask(FileChannel channel, long start, long end, AccountStore into) {
+            this.channel = channel;
+            this.start = start;
+            this.end = end;
+            this.into = into;
+        }
+
+        @Override
+        protected Chunk compute() {
+            try {
+                if (this.end - this.start > CHUNK_SIZE) {
+                    long mid = this.lineAfter(this.start + (this.end - this.start) / 2);
+                    if (mid > this.start && mid < this.end) {
+                        ChunkTask right = new ChunkTask(this.channel, mid, this.end, null);
+                        right.fork();
+                        Chunk left = new ChunkTask(this.channel, this.start, mid, this.into).compute();
+                        return left.merge(right.join());
+                    }
+                }
+                return this.parse();
+            } catch (IOException ex) {
+                throw new RuntimeException(ex);
+            }
+        }
+
+        /**
+         * Finds the start of the first line after a position.
+         *
+         * @since 1.0.0
+         * @version 1.0.0
+         *
+         * @param pos The position to search from
+         * @return The position following the next line break, or the end of
+         *         the range if there is none
+         * @throws IOException If the file could not be read
+         */
+        private long lineAfter(long pos) throws IOException {
+            ByteBuffer buf = ByteBuffer.allocate(256);
+            while (pos < this.end) {
+                buf.clear();
+                int read = this.channel.read(buf, pos);
+                if (read <= 0) {
+                    break;
+                }
+                for (int i = 0; i < read; i++) {
+                    if (buf.get(i) == '\n') {
+                        return pos + i + 1;
+                    }
+                }
+                pos += read;
+            }
+            return this.end;
+        }
+
+        /**
+         * Parses every line in the range.
+         *
+         * @since 1.0.0
+         * @version 1.0.0
+         *
+         * @return The parsed chunk
+         * @throws IOException If the file could not be read
+         */
+        private Chunk parse() throws IOException {
+            int length = (int) (this.end - this.start);
+            Chunk chunk = new Chunk(this.into != null ? this.into : new AccountStore(false));
+            if (length == 0) {
+                return chunk;
+            }
+            MappedByteBuffer buf = this.channel.map(FileChannel.MapMode.READ_ONLY, this.start, length);
+            ByteTokenizer tok = new ByteTokenizer().reset(buf, 0, length);
+            while (tok.nextLine()) {
+                if (tok.getLineLength() > 0) {
+                    parseLine(tok, chunk);
+                }
+            }
+            return chunk;
+        }
+    }
+}
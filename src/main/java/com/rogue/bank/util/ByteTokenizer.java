@@ -0,0 +1,370 @@
+/*
+ * Copyright (C) 2013 Spencer Alderman
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.rogue.bank.util;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Splits lines and fields out of a {@link ByteBuffer} of ASCII text, and
+ * parses numeric fields in place. Nothing is allocated per line or per field;
+ * a single tokenizer is reset onto each buffer to scan.
+ *
+ * Numbers that the fast paths can not parse exactly (exponents, more than 15
+ * significant digits, surrounding whitespace) fall back to the JDK parsers,
+ * so results are always the same as {@link Integer#parseInt(String)} and
+ * {@link Double#parseDouble(String)}.
+ *
+ * @since 1.0.0
+ * @author 1Rogue
+ * @version 1.0.0
+ */
+public final class ByteTokenizer {
+
+    private static final double[] POW10 = new double[23];
+
+    static {
+        POW10[0] = 1;
+        for (int i = 1; i < POW10.length; i++) {
+            POW10[i] = POW10[i - 1] * 10;
+        }
+    }
+
+    private ByteBuffer buf;
+    private int pos;
+    private int limit;
+    private int lineStart;
+    private int lineEnd;
+    private int cursor;
+    private int fieldStart;
+    private int fieldEnd;
+
+    /**
+     * Resets the tokenizer onto a range of a buffer. The buffer's own
+     * position and limit are not used or changed.
+     *
+     * @since 1.0.0
+     * @version 1.0.0
+     *
+     * @param buffer The buffer to scan
+     * @param start The first byte to scan
+     * @param end The end of the range to scan
+     * @return This tokenizer
+     */
+    public ByteTokenizer reset(ByteBuffer buffer, int start, int end) {
+        this.buf = buffer;
+        this.pos = start;
+        this.limit = end;
+        this.lineStart = this.lineEnd = this.cursor = start;
+        this.fieldStart = this.fieldEnd = start;
+        return this;
+    }
+
+    /**
+     * Returns the buffer being scanned.
+     *
+     * @since 1.0.0
+     * @version 1.0.0
+     *
+     * @return The buffer being scanned
+     */
+    public ByteBuffer getBuffer() {
+        return this.buf;
+    }
+
+    /**
+     * Advances to the next line. A trailing carriage return is not part of
+     * the line.
+     *
+     * @since 1.0.0
+     * @version 1.0.0
+     *
+     * @return False if there are no more lines
+     */
+    public boolean nextLine() {
+        if (this.pos >= this.limit) {
+            return false;
+        }
+        int end = this.pos;
+        while (end < this.limit && this.buf.get(end) != '\n') {
+            end++;
+        }
+        this.lineStart = this.pos;
+        this.pos = end + 1;
+        if (end > this.lineStart && this.buf.get(end - 1) == '\r') {
+            end--;
+        }
+        this.lineEnd = end;
+        this.cursor = this.lineStart;
+        return true;
+    }
+
+    /**
+     * Returns whether the last line returned by {@link #nextLine()} ended
+     * with a line break. Only the final line of a range can be unterminated.
+     *
+     * @since 1.0.0
+     * @version 1.0.0
+     *
+     * @return True if the line was terminated
+     */
+    public boolean isLineTerminated() {
+        return this.pos <= this.limit;
+    }
+
+    /**
+     * Returns the position scanning continues from, just after the line
+     * break of the current line.
+     *
+     * @since 1.0.0
+     * @version 1.0.0
+     *
+     * @return The buffer index of the next line
+     */
+    public int getPosition() {
+        return Math.min(this.pos, this.limit);
+    }
+
+    /**
+     * Returns the position the current line started at.
+     *
+     * @since 1.0.0
+     * @version 1.0.0
+     *
+     * @return The buffer index of the start of the line
+     */
+    public int getLineStart() {
+        return this.lineStart;
+    }
+
+    /**
+     * Returns the length of the current line.
+     *
+     * @since 1.0.0
+     * @version 1.0.0
+     *
+     * @return The line length, excluding the line break
+     */
+    public int getLineLength() {
+        return this.lineEnd - this.lineStart;
+    }
+
+    /**
+     * Advances to the next field of the current line.
+     *
+     * @since 1.0.0
+     * @version 1.0.0
+     *
+     * @param delimiter The field delimiter
+     * @return False if the line has no more fields
+     */
+    public boolean nextField(byte delimiter) {
+        if (this.cursor > this.lineEnd) {
+            return false;
+        }
+        int end = this.cursor;
+        while (end < this.lineEnd && this.buf.get(end) != delimiter) {
+            end++;
+        }
+        this.fieldStart = this.cursor;
+        this.fieldEnd = end;
+        this.cursor = end + 1;
+        return true;
+    }
+
+    /**
+     * Returns whether the current line has fields left.
+     *
+     * @since 1.0.0
+     * @version 1.0.0
+     *
+     * @return True if {@link #nextField(byte)} would find another field
+     */
+    public boolean hasMoreFields() {
+        return this.cursor <= this.lineEnd;
+    }
+
+    /**
+     * Returns the position the current field started at.
+     *
+     * @since 1.0.0
+     * @version 1.0.0
+     *
+     * @return The buffer index of the start of the field
+     */
+    public int getFieldStart() {
+        return this.fieldStart;
+    }
+
+    /**
+     * Returns the position the current field ended at.
+     *
+     * @since 1.0.0
+     * @version 1.0.0
+     *
+     * @return The buffer index just after the field
+     */
+    public int getFieldEnd() {
+        return this.fieldEnd;
+    }
+
+    /**
+     * Returns the first character of the current field.
+     *
+     * @since 1.0.0
+     * @version 1.0.0
+     *
+     * @return The first character, or 0 for an empty field
+     */
+    public char firstChar() {
+        return this.fieldEnd > this.fieldStart ? (char) (this.buf.get(this.fieldStart) & 0xFF) : 0;
+    }
+
+    /**
+     * Parses the current field as an int.
+     *
+     * @since 1.0.0
+     * @version 1.0.0
+     *
+     * @return The parsed int
+     * @throws NumberFormatException If the field is not an int
+     */
+    public int parseInt() {
+        return parseInt(this.buf, this.fieldStart, this.fieldEnd);
+    }
+
+    /**
+     * Parses the current field as a decimal number.
+     *
+     * @since 1.0.0
+     * @version 1.0.0
+     *
+     * @return The parsed number
+     * @throws NumberFormatException If the field is not a number
+     */
+    public double parseDecimal() {
+        return parseDecimal(this.buf, this.fieldStart, this.fieldEnd);
+    }
+
+    /**
+     * Parses a range of a buffer as an int.
+     *
+     * @since 1.0.0
+     * @version 1.0.0
+     *
+     * @param buf The buffer to read
+     * @param start The first byte of the number
+     * @param end The end of the number
+     * @return The parsed int
+     * @throws NumberFormatException If the range is not an int
+     */
+    public static int parseInt(ByteBuffer buf, int start, int end) {
+        int i = start;
+        boolean neg = false;
+        if (i < end && (buf.get(i) == '-' || buf.get(i) == '+')) {
+            neg = buf.get(i) == '-';
+            i++;
+        }
+        if (i == end || end - i > 10) {
+            return Integer.parseInt(toString(buf, start, end));
+        }
+        long value = 0;
+        for (; i < end; i++) {
+            int d = buf.get(i) - '0';
+            if (d < 0 || d > 9) {
+                return Integer.parseInt(toString(buf, start, end));
+            }
+            value = value * 10 + d;
+        }
+        value = neg ? -value : value;
+        if (value < Integer.MIN_VALUE || value > Integer.MAX_VALUE) {
+            throw new NumberFormatException("For input string: \"" + toString(buf, start, end) + "\"");
+        }
+        return (int) value;
+    }
+
+    /**
+     * Parses a range of a buffer as a decimal number. Plain numbers of up to
+     * 15 significant digits are parsed exactly without allocating.
+     *
+     * @since 1.0.0
+     * @version 1.0.0
+     *
+     * @param buf The buffer to read
+     * @param start The first byte of the number
+     * @param end The end of the number
+     * @return The parsed number
+     * @throws NumberFormatException If the range is not a number
+     */
+    public static double parseDecimal(ByteBuffer buf, int start, int end) {
+        int i = start;
+        boolean neg = false;
+        if (i < end && (buf.get(i) == '-' || buf.get(i) == '+')) {
+            neg = buf.get(i) == '-';
+            i++;
+        }
+        long mantissa = 0;
+        int digits = 0;
+        int scale = 0;
+        boolean dot = false;
+        boolean any = false;
+        for (; i < end; i++) {
+            byte b = buf.get(i);
+            if (b >= '0' && b <= '9') {
+                if (digits > 15) {
+                    return Double.parseDouble(toString(buf, start, end));
+                }
+                mantissa = mantissa * 10 + (b - '0');
+                if (mantissa != 0) {
+                    digits++;
+                }
+                if (dot) {
+                    scale++;
+                }
+                any = true;
+            } else if (b == '.' && !dot) {
+                dot = true;
+            } else {
+                return Double.parseDouble(toString(buf, start, end));
+            }
+        }
+        if (!any || digits > 15 || scale >= POW10.length) {
+            return Double.parseDouble(toString(buf, start, end));
+        }
+        double value = scale == 0 ? mantissa : mantissa / POW10[scale];
+        return neg ? -value : value;
+    }
+
+    /**
+     * Decodes a range of a buffer as an ASCII String. Only used off the fast
+     * paths.
+     *
+     * @since 1.0.0
+     * @version 1.0.0
+     *
+     * @param buf The buffer to read
+     * @param start The first byte of the range
+     * @param end The end of the range
+     * @return The decoded String
+     */
+    public static String toString(ByteBuffer buf, int start, int end) {
+        char[] chars = new char[end - start];
+        for (int i = start; i < end; i++) {
+            chars[i - start] = (char) (buf.get(i) & 0xFF);
+        }
+        return new String(chars);
+    }
+}
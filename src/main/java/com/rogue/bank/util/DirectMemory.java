@@ -0,0 +1,369 @@
+/*
+ * Copyright (C) 2013 Spencer Alderman
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.rogue.bank.util;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.Field;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/**
+ * A block of memory outside the Java heap, held in a direct
+ * {@link ByteBuffer} so it is freed when the block is collected. Every
+ * access is checked against the bounds of the block.
+ *
+ * Ints and longs can also be read and written with the ordering of
+ * {@link java.util.concurrent.atomic.AtomicLongArray}, and longs
+ * compared-and-set, which a buffer alone can not do. Where the JVM offers
+ * {@code sun.misc.Unsafe}, these accesses go straight to the memory, as
+ * lock-free as an {@code AtomicLongArray}: it is found by reflection and
+ * called through method handles, which the JIT inlines to the same
+ * instructions as a direct call. Otherwise each block guards them with
+ * locks of its own, striped by offset, so they stay correct but every
+ * atomic access, reads included, takes a lock. Blocks never share locks,
+ * so accesses to different blocks never wait on each other.
+ *
+ * @since 1.0.0
+ * @author 1Rogue
+ * @version 1.0.0
+ */
+public final class DirectMemory {
+
+    private static final int STRIPES = 64;
+    private static final MethodHandle GET_LONG;
+    private static final MethodHandle GET_LONG_VOLATILE;
+    private static final MethodHandle PUT_LONG_VOLATILE;
+    private static final MethodHandle GET_INT_VOLATILE;
+    private static final MethodHandle PUT_INT_VOLATILE;
+    private static final MethodHandle COMPARE_AND_SWAP_LONG;
+    private static final long ADDRESS;
+
+    static {
+        MethodHandle getLong = null;
+        MethodHandle getLongVolatile = null;
+        MethodHandle putLongVolatile = null;
+        MethodHandle getIntVolatile = null;
+        MethodHandle putIntVolatile = null;
+        MethodHandle compareAndSwapLong = null;
+        long address = -1;
+        try {
+            Class<?> type = Class.forName("sun.misc.Unsafe");
+            Field field = type.getDeclaredField("theUnsafe");
+            field.setAccessible(true);
+            Object unsafe = field.get(null);
+            MethodHandles.Lookup lookup = MethodHandles.lookup();
+            getLong = lookup.findVirtual(type, "getLong",
+                    MethodType.methodType(long.class, Object.class, long.class)).bindTo(unsafe);
+            getLongVolatile = lookup.findVirtual(type, "getLongVolatile",
+                    MethodType.methodType(long.class, Object.class, long.class)).bindTo(unsafe);
+            putLongVolatile = lookup.findVirtual(type, "putLongVolatile",
+                    MethodType.methodType(void.class, Object.class, long.class, long.class)).bindTo(unsafe);
+            getIntVolatile = lookup.findVirtual(type, "getIntVolatile",
+                    MethodType.methodType(int.class, Object.class, long.class)).bindTo(unsafe);
+            putIntVolatile = lookup.findVirtual(type, "putIntVolatile",
+                    MethodType.methodType(void.class, Object.class, long.class, int.class)).bindTo(unsafe);
+            compareAndSwapLong = lookup.findVirtual(type, "compareAndSwapLong",
+                    MethodType.methodType(boolean.class, Object.class, long.class, long.class, long.class))
+                    .bindTo(unsafe);
+            MethodHandle fieldOffset = lookup.findVirtual(type, "objectFieldOffset",
+                    MethodType.methodType(long.class, Field.class)).bindTo(unsafe);
+            address = (Long) fieldOffset.invoke(Buffer.class.getDeclaredField("address"));
+        } catch (Throwable ex) {
+            compareAndSwapLong = null;
+        }
+        GET_LONG = getLong;
+        GET_LONG_VOLATILE = getLongVolatile;
+        PUT_LONG_VOLATILE = putLongVolatile;
+        GET_INT_VOLATILE = getIntVolatile;
+        PUT_INT_VOLATILE = putIntVolatile;
+        COMPARE_AND_SWAP_LONG = compareAndSwapLong;
+        ADDRESS = compareAndSwapLong == null ? -1 : address;
+    }
+
+    private final ByteBuffer buffer;
+    private final int capacity;
+    private final long address;
+    private final Object[] locks;
+
+    /**
+     * DirectMemory constructor, allocating zeroed memory
+     *
+     * @since 1.0.0
+     * @version 1.0.0
+     *
+     * @param bytes The number of bytes
+     */
+    public DirectMemory(int bytes) {
+        this.buffer = ByteBuffer.allocateDirect(bytes).order(ByteOrder.nativeOrder());
+        this.capacity = bytes;
+        long base = -1;
+        if (ADDRESS >= 0) {
+            try {
+                base = (long) GET_LONG.invokeExact((Object) this.buffer, ADDRESS);
+            } catch (Throwable ex) {
+                base = -1;
+            }
+        }
+        this.address = base;
+        if (base < 0) {
+            this.locks = new Object[STRIPES];
+            for (int i = 0; i < STRIPES; i++) {
+                this.locks[i] = new Object();
+            }
+        } else {
+            this.locks = null;
+        }
+    }
+
+    /**
+     * Returns whether atomic accesses on this JVM go straight to the
+     * memory, rather than through locks.
+     *
+     * @since 1.0.0
+     * @version 1.0.0
+     *
+     * @return True if atomic accesses are lock-free
+     */
+    public static boolean isLockFree() {
+        return ADDRESS >= 0;
+    }
+
+    /**
+     * Returns the number of bytes in the block.
+     *
+     * @since 1.0.0
+     * @version 1.0.0
+     *
+     * @return The size of the block
+     */
+    public int capacity() {
+        return this.capacity;
+    }
+
+    /**
+     * Reads an int.
+     *
+     * @since 1.0.0
+     * @version 1.0.0
+     *
+     * @param offset The offset of the int
+     * @return The value
+     */
+    public int getInt(int offset) {
+        return this.buffer.getInt(offset);
+    }
+
+    /**
+     * Writes an int.
+     *
+     * @since 1.0.0
+     * @version 1.0.0
+     *
+     * @param offset The offset of the int
+     * @param value The value
+     */
+    public void putInt(int offset, int value) {
+        this.buffer.putInt(offset, value);
+    }
+
+    /**
+     * Reads an int with volatile semantics.
+     *
+     * @since 1.0.0
+     * @version 1.0.0
+     *
+     * @param offset The offset of the int, a multiple of 4
+     * @return The value
+     */
+    public int getIntVolatile(int offset) {
+        this.check(offset, 4);
+        if (this.locks == null) {
+            try {
+                return (int) GET_INT_VOLATILE.invokeExact((Object) null, this.address + offset);
+            } catch (Throwable ex) {
+                throw new IllegalStateException(ex);
+            }
+        }
+        synchronized (this.lock(offset)) {
+            return this.buffer.getInt(offset);
+        }
+    }
+
+    /**
+     * Writes an int with volatile semantics.
+     *
+     * @since 1.0.0
+     * @version 1.0.0
+     *
+     * @param offset The offset of the int, a multiple of 4
+     * @param value The value
+     */
+    public void putIntVolatile(int offset, int value) {
+        this.check(offset, 4);
+        if (this.locks == null) {
+            try {
+                PUT_INT_VOLATILE.invokeExact((Object) null, this.address + offset, value);
+            } catch (Throwable ex) {
+                throw new IllegalStateException(ex);
+            }
+            return;
+        }
+        synchronized (this.lock(offset)) {
+            this.buffer.putInt(offset, value);
+        }
+    }
+
+    /**
+     * Reads a byte.
+     *
+     * @since 1.0.0
+     * @version 1.0.0
+     *
+     * @param offset The offset of the byte
+     * @return The value
+     */
+    public byte getByte(int offset) {
+        return this.buffer.get(offset);
+    }
+
+    /**
+     * Writes a byte.
+     *
+     * @since 1.0.0
+     * @version 1.0.0
+     *
+     * @param offset The offset of the byte
+     * @param value The value
+     */
+    public void putByte(int offset, byte value) {
+        this.buffer.put(offset, value);
+    }
+
+    /**
+     * Reads a long with volatile semantics.
+     *
+     * @since 1.0.0
+     * @version 1.0.0
+     *
+     * @param offset The offset of the long, a multiple of 8
+     * @return The value
+     */
+    public long getLongVolatile(int offset) {
+        this.check(offset, 8);
+        if (this.locks == null) {
+            try {
+                return (long) GET_LONG_VOLATILE.invokeExact((Object) null, this.address + offset);
+            } catch (Throwable ex) {
+                throw new IllegalStateException(ex);
+            }
+        }
+        synchronized (this.lock(offset)) {
+            return this.buffer.getLong(offset);
+        }
+    }
+
+    /**
+     * Writes a long with volatile semantics.
+     *
+     * @since 1.0.0
+     * @version 1.0.0
+     *
+     * @param offset The offset of the long, a multiple of 8
+     * @param value The value
+     */
+    public void putLongVolatile(int offset, long value) {
+        this.check(offset, 8);
+        if (this.locks == null) {
+            try {
+                PUT_LONG_VOLATILE.invokeExact((Object) null, this.address + offset, value);
+            } catch (Throwable ex) {
+                throw new IllegalStateException(ex);
+            }
+            return;
+        }
+        synchronized (this.lock(offset)) {
+            this.buffer.putLong(offset, value);
+        }
+    }
+
+    /**
+     * Sets a long if it holds an expected value, atomically.
+     *
+     * @since 1.0.0
+     * @version 1.0.0
+     *
+     * @param offset The offset of the long, a multiple of 8
+     * @param expect The expected value
+     * @param update The new value
+     * @return False if the long did not hold the expected value
+     */
+    public boolean compareAndSetLong(int offset, long expect, long update) {
+        this.check(offset, 8);
+        if (this.locks == null) {
+            try {
+                return (boolean) COMPARE_AND_SWAP_LONG.invokeExact((Object) null, this.address + offset, expect, update);
+            } catch (Throwable ex) {
+                throw new IllegalStateException(ex);
+            }
+        }
+        synchronized (this.lock(offset)) {
+            if (this.buffer.getLong(offset) != expect) {
+                return false;
+            }
+            this.buffer.putLong(offset, update);
+            return true;
+        }
+    }
+
+    /**
+     * Checks that an atomic access lies within the block and is aligned to
+     * its size.
+     *
+     * @since 1.0.0
+     * @version 1.0.0
+     *
+     * @param offset The offset of the value
+     * @param size The size of the value in bytes
+     * @throws IndexOutOfBoundsException If the value is not in the block
+     * @throws IllegalArgumentException If the offset is not aligned
+     */
+    private void check(int offset, int size) {
+        if (offset < 0 || offset > this.capacity - size) {
+            throw new IndexOutOfBoundsException("Offset " + offset + " outside " + this.capacity + " bytes");
+        }
+        if ((offset & (size - 1)) != 0) {
+            throw new IllegalArgumentException("Offset " + offset + " is not aligned to " + size + " bytes");
+        }
+    }
+
+    /**
+     * Returns the lock guarding atomic access to an offset, when accesses
+     * are not lock-free. Neighbouring longs fall on different locks.
+     *
+     * @since 1.0.0
+     * @version 1.0.0
+     *
+     * @param offset The offset
+     * @return The lock
+     */
+    private Object lock(int offset) {
+        return this.locks[(offset >>> 3) & (STRIPES - 1)];
+    }
+}
@@ -0,0 +1,771 @@
+/*
+ * Copyright (C) 2013 Spencer Alderman
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.rogue.bank.util;
+
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Concurrent map from int keys to non-negative int values, such as
+ * positions in an array, for keys which are mostly allocated in contiguous
+ * runs, such as account ids. Neither keys nor values are boxed.
+ *
+ * Keys are split into pages of {@value #PAGE_SIZE}. Once
+ * {@value #PROMOTE_AT} keys of a page have been added, the page is promoted
+ * to an array indexed directly by the key, so looking up a key in a dense
+ * run is a bounds check and an array load. Pages are never demoted. Keys in
+ * sparse pages, and keys outside the range the page directory covers, are
+ * kept in an open-addressing hash table, where each entry is a single long
+ * holding the key in its high half and the value plus one in its low half,
+ * so an entry is published with one volatile store and a reader never sees
+ * a key without its value.
+ *
+ * Reads take no lock; writes are serialized on the index. A promoted key is
+ * copied into its page before the page is published and removed from the
+ * hash table after, and a reader which misses a key in the table while a
+ * page was promoted looks again. A key removed from the table leaves a
+ * tombstone which only the same key can reuse, and tombstones are cleared
+ * by publishing a rebuilt table.
+ *
+ * The table and the pages can be kept outside the heap, in
+ * {@link DirectMemory}, so an index of many keys adds nothing to the heap
+ * the garbage collector has to manage.
+ *
+ * @since 1.0.0
+ * @author 1Rogue
+ * @version 1.0.0
+ */
+public class IntIndex {
+
+    private static final long VALUE_MASK = 0xFFFFFFFFL;
+    private static final long TOMBSTONE = VALUE_MASK;
+    private static final int MIN_CAPACITY = 16;
+
+    private static final int PAGE_SHIFT = 10;
+    private static final int PAGE_SIZE = 1 << PAGE_SHIFT;
+    private static final int PAGE_MASK = PAGE_SIZE - 1;
+    private static final int PROMOTE_AT = PAGE_SIZE / 4;
+    private static final int MAX_PAGES = 1 << 16;
+
+    private static final int SEGMENT_SHIFT = 24;
+
+    private final boolean direct;
+    private volatile Directory dir = new Directory(0, 0);
+    private volatile Table table;
+    private volatile int promotions;
+    private volatile int size;
+    private int hashed;
+    private int used;
+    private int dense;
+    private int[] counts = new int[0];
+
+    /**
+     * IntIndex constructor
+     *
+     * @since 1.0.0
+     * @version 1.0.0
+     */
+    public IntIndex() {
+        this(0);
+    }
+
+    /**
+     * IntIndex constructor, sized to hold a number of keys without
+     * rebuilding.
+     *
+     * @since 1.0.0
+     * @version 1.0.0
+     *
+     * @param expected The number of keys expected
+     */
+    public IntIndex(int expected) {
+        this(expected, false);
+    }
+
+    /**
+     * IntIndex constructor, sized to hold a number of keys without
+     * rebuilding.
+     *
+     * @since 1.0.0
+     * @version 1.0.0
+     *
+     * @param expected The number of keys expected
+     * @param direct True to keep the table and pages outside the heap
+     */
+    public IntIndex(int expected, boolean direct) {
+        this.direct = direct;
+        this.table = this.newTable(capacityFor(expected));
+    }
+
+    /**
+     * Returns the value for a key.
+     *
+     * @since 1.0.0
+     * @version 1.0.0
+     *
+     * @param key The key to look up
+     * @return The value, or -1 if there is none
+     */
+    public int get(int key) {
+        while (true) {
+            int moved = this.promotions;
+            Table page = this.dir.page(key);
+            if (page != null) {
+                return (int) page.get(key & PAGE_MASK) - 1;
+            }
+            int value = lookup(this.table, key);
+            // a key missing from the table may have just moved to a page
+            if (value >= 0 || this.promotions == moved) {
+                return value;
+            }
+        }
+    }
+
+    /**
+     * Sets the value for a key.
+     *
+     * @since 1.0.0
+     * @version 1.0.0
+     *
+     * @param key The key to set
+     * @param value The value, which may not be negative
+     * @return The previous value, or -1 if there was none
+     */
+    public synchronized int put(int key, int value) {
+        if (value < 0) {
+            throw new IllegalArgumentException("Negative values are not supported");
+        }
+        Table page = this.dir.page(key);
+        if (page != null) {
+            long old = page.get(key & PAGE_MASK);
+            page.set(key & PAGE_MASK, value + 1L);
+            if (old == 0) {
+                this.size++;
+                return -1;
+            }
+            return (int) old - 1;
+        }
+        int old = this.insert(key, value);
+        if (old < 0) {
+            this.size++;
+            int p = this.cover(key);
+            if (p >= 0 && ++this.counts[p] >= PROMOTE_AT) {
+                this.promote(p);
+            }
+        }
+        return old;
+    }
+
+    /**
+     * Removes a key.
+     *
+     * @since 1.0.0
+     * @version 1.0.0
+     *
+     * @param key The key to remove
+     * @return The value it had, or -1 if there was none
+     */
+    public synchronized int remove(int key) {
+        Table page = this.dir.page(key);
+        int old;
+        if (page != null) {
+            old = (int) page.get(key & PAGE_MASK) - 1;
+            page.set(key & PAGE_MASK, 0);
+        } else {
+            old = this.delete(this.table, key);
+        }
+        if (old >= 0) {
+            this.size--;
+        }
+        return old;
+    }
+
+    /**
+     * Grows the table, if needed, so a number of keys can be held without
+     * rebuilding again. Used before adding many keys at once; the table
+     * shrinks again once most of them have moved to pages.
+     *
+     * @since 1.0.0
+     * @version 1.0.0
+     *
+     * @param expected The number of keys expected
+     */
+    public synchronized void ensureCapacity(int expected) {
+        if (capacityFor(expected) > this.table.length()) {
+            this.rebuild(expected);
+        }
+    }
+
+    /**
+     * Returns the number of keys with a value.
+     *
+     * @since 1.0.0
+     * @version 1.0.0
+     *
+     * @return The number of keys
+     */
+    public int size() {
+        return this.size;
+    }
+
+    /**
+     * Returns every key with a value, in ascending order. Keys added or
+     * removed while the keys are read may or may not be returned.
+     *
+     * @since 1.0.0
+     * @version 1.0.0
+     *
+     * @return The keys
+     */
+    public int[] keys() {
+        int[] keys = new int[Math.max(MIN_CAPACITY, this.size)];
+        int n = 0;
+        Directory d = this.dir;
+        for (int p = 0; p < d.pages.length(); p++) {
+            Table page = d.pages.get(p);
+            if (page == null) {
+                continue;
+            }
+            int first = d.base + (p << PAGE_SHIFT);
+            for (int i = 0; i < PAGE_SIZE; i++) {
+                if (page.get(i) != 0) {
+                    if (n == keys.length) {
+                        keys = Arrays.copyOf(keys, n * 2);
+                    }
+                    keys[n++] = first + i;
+                }
+            }
+        }
+        Table t = this.table;
+        for (int i = 0; i < t.length(); i++) {
+            long entry = t.get(i);
+            if (entry != 0 && (entry & VALUE_MASK) != TOMBSTONE) {
+                if (n == keys.length) {
+                    keys = Arrays.copyOf(keys, n * 2);
+                }
+                keys[n++] = (int) (entry >>> 32);
+            }
+        }
+        Arrays.sort(keys, 0, n);
+        // a key being promoted can be read from both its page and the table
+        int unique = 0;
+        for (int i = 0; i < n; i++) {
+            if (unique == 0 || keys[i] != keys[unique - 1]) {
+                keys[unique++] = keys[i];
+            }
+        }
+        return unique == keys.length ? keys : Arrays.copyOf(keys, unique);
+    }
+
+    /**
+     * Returns the number of bytes the table takes outside the heap.
+     *
+     * @since 1.0.0
+     * @version 1.0.0
+     *
+     * @return The direct bytes, or 0 if the index is on the heap
+     */
+    public long getDirectBytes() {
+        return this.direct ? (this.table.length() + (long) this.dense * PAGE_SIZE) * 8L : 0;
+    }
+
+    /**
+     * Adds a key to the hash table, or sets its value there.
+     *
+     * @since 1.0.0
+     * @version 1.0.0
+     *
+     * @param key The key to set
+     * @param value The value
+     * @return The previous value, or -1 if there was none
+     */
+    private int insert(int key, int value) {
+        Table t = this.table;
+        int slot = find(t, key);
+        long old = slot < 0 ? 0 : t.get(slot) & VALUE_MASK;
+        if (slot < 0) {
+            if ((this.used + 1) * 4L > t.length() * 3L) {
+                t = this.rebuild(this.hashed + 1);
+            }
+            slot = free(t, key);
+            this.used++;
+        }
+        t.set(slot, entry(key, value));
+        if (old == 0 || old == TOMBSTONE) {
+            this.hashed++;
+            return -1;
+        }
+        return (int) old - 1;
+    }
+
+    /**
+     * Removes a key from a hash table, leaving a tombstone.
+     *
+     * @since 1.0.0
+     * @version 1.0.0
+     *
+     * @param t The table
+     * @param key The key to remove
+     * @return The value it had, or -1 if there was none
+     */
+    private int delete(Table t, int key) {
+        int slot = find(t, key);
+        if (slot < 0) {
+            return -1;
+        }
+        long old = t.get(slot) & VALUE_MASK;
+        if (old == TOMBSTONE) {
+            return -1;
+        }
+        t.set(slot, ((long) key << 32) | TOMBSTONE);
+        this.hashed--;
+        return (int) old - 1;
+    }
+
+    /**
+     * Returns the page of the directory holding a key, growing the
+     * directory to cover it if it can. While no page has been promoted, a
+     * key too far from the others to be covered starts the directory over
+     * from its own page.
+     *
+     * @since 1.0.0
+     * @version 1.0.0
+     *
+     * @param key The key
+     * @return The page, or -1 if the key stays in the hash table
+     */
+    private int cover(int key) {
+        Directory d = this.dir;
+        int p = d.index(key);
+        if (p >= 0) {
+            return p;
+        }
+        int first = key & ~PAGE_MASK;
+        int length = d.pages.length();
+        long end = d.base + ((long) length << PAGE_SHIFT);
+        long base = Math.min(d.base, first);
+        long needed = (Math.max(end, first + (long) PAGE_SIZE) - base) >> PAGE_SHIFT;
+        if (length == 0 || needed > MAX_PAGES) {
+            if (this.dense > 0) {
+                return -1;
+            }
+            this.counts = new int[1];
+            this.dir = new Directory(first, 1);
+            return 0;
+        }
+        // grow by at least the current length, so a run grows it rarely
+        long pages = Math.min(MAX_PAGES, Math.max(needed, 2L * length));
+        if (first < d.base) {
+            base = Math.max(Integer.MIN_VALUE, end - (pages << PAGE_SHIFT));
+        } else {
+            pages = Math.min(pages, ((1L << 31) - base) >> PAGE_SHIFT);
+        }
+        Directory grown = new Directory((int) base, (int) pages);
+        int shift = (int) ((d.base - base) >> PAGE_SHIFT);
+        int[] counted = new int[(int) pages];
+        System.arraycopy(this.counts, 0, counted, shift, length);
+        for (int i = 0; i < length; i++) {
+            grown.pages.set(shift + i, d.pages.get(i));
+        }
+        this.counts = counted;
+        this.dir = grown;
+        return grown.index(key);
+    }
+
+    /**
+     * Moves the keys of a page of the directory from the hash table into an
+     * array of their own, and shrinks a large table if it is left mostly
+     * empty.
+     *
+     * @since 1.0.0
+     * @version 1.0.0
+     *
+     * @param p The page
+     */
+    private void promote(int p) {
+        Directory d = this.dir;
+        int first = d.base + (p << PAGE_SHIFT);
+        Table t = this.table;
+        Table page = this.newTable(PAGE_SIZE);
+        for (int i = 0; i < PAGE_SIZE; i++) {
+            int value = lookup(t, first + i);
+            if (value >= 0) {
+                page.set(i, value + 1L);
+            }
+        }
+        d.pages.set(p, page);
+        this.dense++;
+        this.promotions++;
+        this.counts[p] = 0;
+        // only removed once the page is published
+        for (int i = 0; i < PAGE_SIZE; i++) {
+            if (page.get(i) != 0) {
+                this.delete(t, first + i);
+            }
+        }
+        if (t.length() > 4 * PAGE_SIZE && this.hashed * 8L < t.length()) {
+            this.rebuild(this.hashed);
+        }
+    }
+
+    /**
+     * Copies every live entry into a new table sized for a number of keys,
+     * and publishes it.
+     *
+     * @since 1.0.0
+     * @version 1.0.0
+     *
+     * @param expected The number of keys the new table should hold
+     * @return The new table
+     */
+    private Table rebuild(int expected) {
+        Table old = this.table;
+        Table t = this.newTable(capacityFor(Math.max(expected, this.hashed)));
+        for (int i = 0; i < old.length(); i++) {
+            long entry = old.get(i);
+            if (entry != 0 && (entry & VALUE_MASK) != TOMBSTONE) {
+                t.set(free(t, (int) (entry >>> 32)), entry);
+            }
+        }
+        this.used = this.hashed;
+        this.table = t;
+        return t;
+    }
+
+    /**
+     * Makes an empty table, on or off the heap.
+     *
+     * @since 1.0.0
+     * @version 1.0.0
+     *
+     * @param capacity The number of entries, a power of two
+     * @return The table
+     */
+    private Table newTable(int capacity) {
+        return this.direct ? new DirectTable(capacity) : new HeapTable(capacity);
+    }
+
+    /**
+     * Looks up a key in a hash table.
+     *
+     * @since 1.0.0
+     * @version 1.0.0
+     *
+     * @param t The table to search
+     * @param key The key to look up
+     * @return The value, or -1 if there is none
+     */
+    private static int lookup(Table t, int key) {
+        int mask = t.length() - 1;
+        for (int i = hash(key) & mask;; i = (i + 1) & mask) {
+            long entry = t.get(i);
+            if (entry == 0) {
+                return -1;
+            }
+            if ((int) (entry >>> 32) == key) {
+                return (entry & VALUE_MASK) == TOMBSTONE ? -1 : (int) (entry & VALUE_MASK) - 1;
+            }
+        }
+    }
+
+    /**
+     * Finds the slot holding a key, live or removed.
+     *
+     * @since 1.0.0
+     * @version 1.0.0
+     *
+     * @param t The table to search
+     * @param key The key to find
+     * @return The slot, or -1 if the key was never added
+     */
+    private static int find(Table t, int key) {
+        int mask = t.length() - 1;
+        for (int i = hash(key) & mask;; i = (i + 1) & mask) {
+            long entry = t.get(i);
+            if (entry == 0) {
+                return -1;
+            }
+            if ((int) (entry >>> 32) == key) {
+                return i;
+            }
+        }
+    }
+
+    /**
+     * Finds the empty slot a new key goes in.
+     *
+     * @since 1.0.0
+     * @version 1.0.0
+     *
+     * @param t The table to search
+     * @param key The key to add
+     * @return The first empty slot on the key's probe sequence
+     */
+    private static int free(Table t, int key) {
+        int mask = t.length() - 1;
+        int i = hash(key) & mask;
+        while (t.get(i) != 0) {
+            i = (i + 1) & mask;
+        }
+        return i;
+    }
+
+    /**
+     * Packs a key and value into an entry. The value is stored plus one, so
+     * no live entry is zero.
+     *
+     * @since 1.0.0
+     * @version 1.0.0
+     *
+     * @param key The key
+     * @param value The value
+     * @return The entry
+     */
+    private static long entry(int key, int value) {
+        return ((long) key << 32) | (value + 1L);
+    }
+
+    /**
+     * Returns the table capacity needed to hold a number of keys within the
+     * load factor.
+     *
+     * @since 1.0.0
+     * @version 1.0.0
+     *
+     * @param expected The number of keys
+     * @return A power of two capacity
+     */
+    private static int capacityFor(int expected) {
+        long needed = expected * 4L / 3 + 1;
+        int capacity = MIN_CAPACITY;
+        while (capacity < needed && capacity < (1 << 30)) {
+            capacity <<= 1;
+        }
+        return capacity;
+    }
+
+    /**
+     * Spreads the bits of a key. Keys are spread in blocks of 64, so a run
+     * of sequential ids, as accounts are usually numbered, fills
+     * neighbouring entries instead of a cache line per id.
+     *
+     * @since 1.0.0
+     * @version 1.0.0
+     *
+     * @param key The key to hash
+     * @return The hash
+     */
+    private static int hash(int key) {
+        int h = (key >>> 6) * 0x9E3779B9;
+        return ((h ^ (h >>> 16)) << 6) | (key & 63);
+    }
+
+    /**
+     * The pages of directly indexed keys, covering a range of keys from a
+     * base which is a multiple of the page size. Pages are added in place;
+     * the directory is replaced when the range grows.
+     *
+     * @since 1.0.0
+     * @author 1Rogue
+     * @version 1.0.0
+     */
+    private static final class Directory {
+
+        private final int base;
+        private final AtomicReferenceArray<Table> pages;
+
+        /**
+         * Directory constructor
+         *
+         * @since 1.0.0
+         * @version 1.0.0
+         *
+         * @param base The first key covered
+         * @param length The number of pages covered
+         */
+        Directory(int base, int length) {
+            this.base = base;
+            this.pages = new AtomicReferenceArray<Table>(length);
+        }
+
+        /**
+         * Returns the page of the directory covering a key.
+         *
+         * @since 1.0.0
+         * @version 1.0.0
+         *
+         * @param key The key
+         * @return The page number, or -1 if the key is not covered
+         */
+        int index(int key) {
+            long offset = (long) key - this.base;
+            if (offset < 0 || offset >= (long) this.pages.length() << PAGE_SHIFT) {
+                return -1;
+            }
+            return (int) (offset >>> PAGE_SHIFT);
+        }
+
+        /**
+         * Returns the promoted page holding a key.
+         *
+         * @since 1.0.0
+         * @version 1.0.0
+         *
+         * @param key The key
+         * @return The page, or null if the key is kept in the hash table
+         */
+        Table page(int key) {
+            int p = this.index(key);
+            return p < 0 ? null : this.pages.get(p);
+        }
+    }
+
+    /**
+     * The entries of one generation of the hash table, or of one page
+     *
+     * @since 1.0.0
+     * @author 1Rogue
+     * @version 1.0.0
+     */
+    private abstract static class Table {
+
+        /**
+         * Returns the number of entries.
+         *
+         * @since 1.0.0
+         * @version 1.0.0
+         *
+         * @return The number of entries
+         */
+        abstract int length();
+
+        /**
+         * Reads an entry, with volatile semantics.
+         *
+         * @since 1.0.0
+         * @version 1.0.0
+         *
+         * @param i The entry
+         * @return The entry value
+         */
+        abstract long get(int i);
+
+        /**
+         * Writes an entry, with volatile semantics.
+         *
+         * @since 1.0.0
+         * @version 1.0.0
+         *
+         * @param i The entry
+         * @param value The entry value
+         */
+        abstract void set(int i, long value);
+    }
+
+    /**
+     * A table held in an {@link AtomicLongArray}
+     *
+     * @since 1.0.0
+     * @author 1Rogue
+     * @version 1.0.0
+     */
+    private static final class HeapTable extends Table {
+
+        private final AtomicLongArray entries;
+
+        /**
+         * HeapTable constructor
+         *
+         * @since 1.0.0
+         * @version 1.0.0
+         *
+         * @param capacity The number of entries
+         */
+        HeapTable(int capacity) {
+            this.entries = new AtomicLongArray(capacity);
+        }
+
+        int length() {
+            return this.entries.length();
+        }
+
+        long get(int i) {
+            return this.entries.get(i);
+        }
+
+        void set(int i, long value) {
+            this.entries.set(i, value);
+        }
+    }
+
+    /**
+     * A table held outside the heap, in segments of up to
+     * 2<sup>24</sup> entries since a buffer can not reach 2GB
+     *
+     * @since 1.0.0
+     * @author 1Rogue
+     * @version 1.0.0
+     */
+    private static final class DirectTable extends Table {
+
+        private final int length;
+        private final DirectMemory[] segments;
+
+        /**
+         * DirectTable constructor
+         *
+         * @since 1.0.0
+         * @version 1.0.0
+         *
+         * @param capacity The number of entries, a power of two
+         */
+        DirectTable(int capacity) {
+            this.length = capacity;
+            int per = Math.min(capacity, 1 << SEGMENT_SHIFT);
+            this.segments = new DirectMemory[capacity / per];
+            for (int i = 0; i < this.segments.length; i++) {
+                this.segments[i] = new DirectMemory(per * 8);
+            }
+        }
+
+        int length() {
+            return this.length;
+        }
+
+        long get(int i) {
+            return this.segments[i >>> SEGMENT_SHIFT].getLongVolatile(offset(i));
+        }
+
+        void set(int i, long value) {
+            this.segments[i >>> SEGMENT_SHIFT].putLongVolatile(offset(i), value);
+        }
+
+        /**
+         * Returns the offset of an entry within its segment.
+         *
+         * @since 1.0.0
+         * @version 1.0.0
+         *
+         * @param i The entry
+         * @return The offset
+         */
+        private static int offset(int i) {
+            return (i & ((1 << SEGMENT_SHIFT) - 1)) << 3;
+        }
+    }
+}
@@ -0,0 +1,75 @@
+/*
+ * Copyright (C) 2013 Spencer Alderman
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.rogue.bank.util;
+
+import java.util.Map;
+
+/**
+ * A {@link Map} keyed by int which can be used without boxing its keys
+ *
+ * @since 1.0.0
+ * @author 1Rogue
+ * @version 1.0.0
+ */
+public interface IntMap<V> extends Map<Integer, V> {
+
+    /**
+     * Returns the value for a key.
+     *
+     * @since 1.0.0
+     * @version 1.0.0
+     *
+     * @param key The key to look up
+     * @return The value, or null if there is none
+     */
+    public V get(int key);
+
+    /**
+     * Returns whether there is a value for a key.
+     *
+     * @since 1.0.0
+     * @version 1.0.0
+     *
+     * @param key The key to look up
+     * @return True if the key has a value
+     */
+    public boolean containsKey(int key);
+
+    /**
+     * Sets the value for a key.
+     *
+     * @since 1.0.0
+     * @version 1.0.0
+     *
+     * @param key The key to set
+     * @param value The value, which may not be null
+     * @return The previous value, or null if there was none
+     */
+    public V put(int key, V value);
+
+    /**
+     * Removes the value for a key.
+     *
+     * @since 1.0.0
+     * @version 1.0.0
+     *
+     * @param key The key to remove
+     * @return The removed value, or null if there was none
+     */
+    public V remove(int key);
+
+}
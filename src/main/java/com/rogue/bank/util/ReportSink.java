@@ -0,0 +1,447 @@
+/*
+ * Copyright (C) 2013 Spencer Alderman
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.rogue.bank.util;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.text.DecimalFormatSymbols;
+import java.util.Arrays;
+import java.util.Locale;
+
+/**
+ * Where report lines are written. Text, ids and money are formatted
+ * straight into a reusable byte buffer, in the same fixed-width columns
+ * {@link java.util.Formatter} gives for {@code %-7d}, {@code %7d},
+ * {@code %-11s} and {@code %9.2f}, without parsing a format string for
+ * each line. Ids and money are written with the digits and decimal
+ * separator of the default locale, as
+ * {@link String#format(String, Object...)} writes them.
+ *
+ * A sink made for a stream writes its buffer to the stream whenever the
+ * buffer fills, and on {@link #flush()}. A sink made without one keeps
+ * every line in memory, growing as needed, until it is cleared or
+ * appended to another sink. Each thread has one sink for standard output,
+ * which writes through whatever {@link System#out} is when it flushes, so
+ * it keeps in order with anything else printed there.
+ *
+ * @since 1.0.0
+ * @author 1Rogue
+ * @version 1.0.0
+ */
+public final class ReportSink {
+
+    private static final int STDOUT_SIZE = 64 * 1024;
+    private static final byte[] NEWLINE = System.getProperty("line.separator").getBytes();
+    // doubles below this many cents are less than a fifth of a cent apart
+    private static final long MAX_CENTS = 1000000000000000L;
+    private static final DecimalFormatSymbols SYMBOLS = DecimalFormatSymbols.getInstance(
+            Locale.getDefault(Locale.Category.FORMAT));
+    private static final char DECIMAL = SYMBOLS.getDecimalSeparator();
+    // locales with digits or a separator outside ASCII are left to Formatter
+    private static final boolean ASCII_DIGITS = SYMBOLS.getZeroDigit() == '0' && DECIMAL < 0x80;
+
+    private static final OutputStream STDOUT = new OutputStream() {
+
+        @Override
+        public void write(int b) {
+            System.out.write(b);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) {
+            System.out.write(b, off, len);
+        }
+
+        @Override
+        public void flush() {
+            System.out.flush();
+        }
+
+    };
+
+    private static final ThreadLocal<ReportSink> STDOUT_SINK = new ThreadLocal<ReportSink>() {
+
+        @Override
+        protected ReportSink initialValue() {
+            return new ReportSink(STDOUT, STDOUT_SIZE);
+        }
+
+    };
+
+    private final OutputStream out;
+    private byte[] buf;
+    private int size;
+    private final byte[] digits = new byte[20];
+
+    /**
+     * ReportSink constructor, for a sink kept in memory
+     *
+     * @since 1.0.0
+     * @version 1.0.0
+     */
+    public ReportSink() {
+        this(null, 256);
+    }
+
+    /**
+     * ReportSink constructor
+     *
+     * @since 1.0.0
+     * @version 1.0.0
+     *
+     * @param out The stream the buffer is written to, or null to keep the
+     *            lines in memory
+     * @param capacity The size of the buffer
+     */
+    public ReportSink(OutputStream out, int capacity) {
+        this.out = out;
+        this.buf = new byte[Math.max(64, capacity)];
+    }
+
+    /**
+     * Returns the current thread's sink for standard output. The sink and
+     * its buffer are reused by every caller on the thread, so what one
+     * caller leaves unflushed is written ahead of the next caller's lines.
+     *
+     * @since 1.0.0
+     * @version 1.0.0
+     *
+     * @return The sink
+     */
+    public static ReportSink stdout() {
+        return STDOUT_SINK.get();
+    }
+
+    /**
+     * Writes text. Characters outside of ASCII are written as {@code ?}.
+     *
+     * @since 1.0.0
+     * @version 1.0.0
+     *
+     * @param text The text
+     * @return This sink
+     */
+    public ReportSink text(String text) {
+        int length = text.length();
+        this.ensure(length);
+        for (int i = 0; i < length; i++) {
+            char c = text.charAt(i);
+            this.buf[this.size++] = c < 0x80 ? (byte) c : (byte) '?';
+        }
+        return this;
+    }
+
+    /**
+     * Writes one character of text, as {@link #text(String)} would.
+     *
+     * @since 1.0.0
+     * @version 1.0.0
+     *
+     * @param c The character
+     * @return This sink
+     */
+    public ReportSink text(char c) {
+        this.ensure(1);
+        this.buf[this.size++] = c < 0x80 ? (byte) c : (byte) '?';
+        return this;
+    }
+
+    /**
+     * Writes text left-justified in a column, as {@code %-Ns} would.
+     *
+     * @since 1.0.0
+     * @version 1.0.0
+     *
+     * @param text The text
+     * @param width The column width
+     * @return This sink
+     */
+    public ReportSink left(String text, int width) {
+        this.text(text);
+        return this.pad(width - text.length());
+    }
+
+    /**
+     * Writes a number left-justified in a column, as {@code %-Nd} would.
+     *
+     * @since 1.0.0
+     * @version 1.0.0
+     *
+     * @param value The number
+     * @param width The column width
+     * @return This sink
+     */
+    public ReportSink left(long value, int width) {
+        if (!ASCII_DIGITS) {
+            return this.formatted(String.format("%d", value), width, true);
+        }
+        int length = this.digits(value < 0 ? -value : value, 0, value < 0);
+        this.writeDigits(length);
+        return this.pad(width - length);
+    }
+
+    /**
+     * Writes a number right-justified in a column, as {@code %Nd} would.
+     *
+     * @since 1.0.0
+     * @version 1.0.0
+     *
+     * @param value The number
+     * @param width The column width
+     * @return This sink
+     */
+    public ReportSink right(long value, int width) {
+        if (!ASCII_DIGITS) {
+            return this.formatted(String.format("%d", value), width, false);
+        }
+        int length = this.digits(value < 0 ? -value : value, 0, value < 0);
+        this.pad(width - length);
+        return this.writeDigits(length);
+    }
+
+    /**
+     * Writes an amount of money with two decimal places, right-justified in
+     * a column, as {@code %N.2f} would. Amounts which are not a whole
+     * number of cents are rounded half up from their shortest decimal form,
+     * as {@link java.util.Formatter} rounds them.
+     *
+     * @since 1.0.0
+     * @version 1.0.0
+     *
+     * @param value The amount
+     * @param width The column width
+     * @return This sink
+     */
+    public ReportSink money(double value, int width) {
+        double scaled = value * 100;
+        long cents = Math.round(scaled);
+        // far enough from half a cent that the shortest form rounds the same
+        if (!ASCII_DIGITS || Math.abs(cents) >= MAX_CENTS || !(Math.abs(scaled - cents) <= 0.25)
+                || (cents == 0 && Double.doubleToRawLongBits(value) != 0)) {
+            return this.formatted(String.format("%.2f", value), width, false);
+        }
+        int length = this.digits(Math.abs(cents), 2, cents < 0);
+        this.pad(width - length);
+        return this.writeDigits(length);
+    }
+
+    /**
+     * Ends the line.
+     *
+     * @since 1.0.0
+     * @version 1.0.0
+     *
+     * @return This sink
+     */
+    public ReportSink newline() {
+        this.ensure(NEWLINE.length);
+        System.arraycopy(NEWLINE, 0, this.buf, this.size, NEWLINE.length);
+        this.size += NEWLINE.length;
+        return this;
+    }
+
+    /**
+     * Writes part of what another sink holds in memory.
+     *
+     * @since 1.0.0
+     * @version 1.0.0
+     *
+     * @param from The sink to copy from
+     * @param start The first byte to copy
+     * @param end The byte after the last to copy
+     * @return This sink
+     */
+    public ReportSink append(ReportSink from, int start, int end) {
+        int length = end - start;
+        if (this.out != null && length > this.buf.length - this.size) {
+            this.flush();
+            if (length > this.buf.length) {
+                this.write(from.buf, start, length);
+                return this;
+            }
+        }
+        this.ensure(length);
+        System.arraycopy(from.buf, start, this.buf, this.size, length);
+        this.size += length;
+        return this;
+    }
+
+    /**
+     * Returns the number of bytes held in the buffer.
+     *
+     * @since 1.0.0
+     * @version 1.0.0
+     *
+     * @return The bytes held
+     */
+    public int size() {
+        return this.size;
+    }
+
+    /**
+     * Discards what the buffer holds.
+     *
+     * @since 1.0.0
+     * @version 1.0.0
+     */
+    public void clear() {
+        this.size = 0;
+    }
+
+    /**
+     * Writes the buffer to the stream, if the sink has one, and flushes the
+     * stream.
+     *
+     * @since 1.0.0
+     * @version 1.0.0
+     */
+    public void flush() {
+        if (this.out == null || this.size == 0) {
+            return;
+        }
+        this.write(this.buf, 0, this.size);
+        this.size = 0;
+    }
+
+    /**
+     * Writes bytes to the stream and flushes it.
+     *
+     * @since 1.0.0
+     * @version 1.0.0
+     *
+     * @param bytes The bytes to write
+     * @param start The first byte to write
+     * @param length The number of bytes
+     */
+    private void write(byte[] bytes, int start, int length) {
+        try {
+            this.out.write(bytes, start, length);
+            this.out.flush();
+        } catch (IOException ex) {
+            System.err.println("Error: " + ex.getMessage());
+        }
+    }
+
+    /**
+     * Makes room for more bytes, flushing to the stream or growing the
+     * buffer.
+     *
+     * @since 1.0.0
+     * @version 1.0.0
+     *
+     * @param length The number of bytes to be written
+     */
+    private void ensure(int length) {
+        if (length <= this.buf.length - this.size) {
+            return;
+        }
+        if (this.out != null) {
+            this.flush();
+        }
+        if (length > this.buf.length - this.size) {
+            this.buf = Arrays.copyOf(this.buf, Math.max(this.buf.length * 2, this.size + length));
+        }
+    }
+
+    /**
+     * Writes text {@link java.util.Formatter} made, justified in a column,
+     * in the default charset rather than as ASCII.
+     *
+     * @since 1.0.0
+     * @version 1.0.0
+     *
+     * @param text The formatted text
+     * @param width The column width
+     * @param left True to left-justify the text, false to right-justify it
+     * @return This sink
+     */
+    private ReportSink formatted(String text, int width, boolean left) {
+        if (!left) {
+            this.pad(width - text.length());
+        }
+        byte[] bytes = text.getBytes();
+        this.ensure(bytes.length);
+        System.arraycopy(bytes, 0, this.buf, this.size, bytes.length);
+        this.size += bytes.length;
+        return left ? this.pad(width - text.length()) : this;
+    }
+
+    /**
+     * Writes spaces.
+     *
+     * @since 1.0.0
+     * @version 1.0.0
+     *
+     * @param count The number of spaces, none if not positive
+     * @return This sink
+     */
+    private ReportSink pad(int count) {
+        if (count > 0) {
+            this.ensure(count);
+            Arrays.fill(this.buf, this.size, this.size + count, (byte) ' ');
+            this.size += count;
+        }
+        return this;
+    }
+
+    /**
+     * Formats a number into the digit scratch, ending at its last byte.
+     *
+     * @since 1.0.0
+     * @version 1.0.0
+     *
+     * @param magnitude The number without its sign, which may only be
+     *                  negative for {@link Long#MIN_VALUE}
+     * @param decimals The number of digits after a decimal point
+     * @param negative True to write a minus sign
+     * @return The number of bytes formatted
+     */
+    private int digits(long magnitude, int decimals, boolean negative) {
+        int i = this.digits.length;
+        for (int d = 0; d < decimals; d++) {
+            this.digits[--i] = (byte) ('0' + Math.abs(magnitude % 10));
+            magnitude /= 10;
+        }
+        if (decimals > 0) {
+            this.digits[--i] = (byte) DECIMAL;
+        }
+        do {
+            this.digits[--i] = (byte) ('0' + Math.abs(magnitude % 10));
+            magnitude /= 10;
+        } while (magnitude != 0);
+        if (negative) {
+            this.digits[--i] = '-';
+        }
+        return this.digits.length - i;
+    }
+
+    /**
+     * Writes the last bytes of the digit scratch.
+     *
+     * @since 1.0.0
+     * @version 1.0.0
+     *
+     * @param length The number of bytes
+     * @return This sink
+     */
+    private ReportSink writeDigits(int length) {
+        this.ensure(length);
+        System.arraycopy(this.digits, this.digits.length - length, this.buf, this.size, length);
+        this.size += length;
+        return this;
+    }
+}
@@ -0,0 +1,199 @@
+/*
+ * Copyright (C) 2013 Spencer Alderman
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.rogue.bank.util;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * A bounded queue between exactly one producer thread and one consumer
+ * thread. Items are held in a power of two array of slots; the producer
+ * only writes the tail and the consumer only writes the head, so neither
+ * takes a lock. A thread finding the queue full or empty yields for a
+ * while, then sleeps briefly between checks.
+ *
+ * The queue also keeps statistics for each side: how deep the queue was
+ * when items were put, and how long each side waited. They are written by
+ * one side only, so they should be read once both threads are done.
+ *
+ * @since 1.0.0
+ * @author 1Rogue
+ * @version 1.0.0
+ *
+ * @param <T> The type of item queued
+ */
+public final class RingBuffer<T> {
+
+    private static final int SPINS = 64;
+    private static final long PARK_NANOS = 50000;
+
+    private final Object[] slots;
+    private final int mask;
+    private final AtomicLong head = new AtomicLong();
+    private final AtomicLong tail = new AtomicLong();
+    private long puts;
+    private long depths;
+    private int maxDepth;
+    private long putWait;
+    private long takeWait;
+
+    /**
+     * RingBuffer constructor
+     *
+     * @since 1.0.0
+     * @version 1.0.0
+     *
+     * @param capacity The minimum number of items held, rounded up to a
+     *                 power of two
+     */
+    public RingBuffer(int capacity) {
+        int size = capacity <= 1 ? 1 : Integer.highestOneBit(Math.min(capacity, 1 << 30) - 1) << 1;
+        this.slots = new Object[size];
+        this.mask = size - 1;
+    }
+
+    /**
+     * Adds an item, waiting while the queue is full. Only the producer
+     * thread may call this.
+     *
+     * @since 1.0.0
+     * @version 1.0.0
+     *
+     * @param item The item to add
+     */
+    public void put(T item) {
+        long t = this.tail.get();
+        long h = this.head.get();
+        if (t - h == this.slots.length) {
+            long began = System.nanoTime();
+            for (int spins = 0; t - h == this.slots.length; spins++) {
+                pause(spins);
+                h = this.head.get();
+            }
+            this.putWait += System.nanoTime() - began;
+        }
+        int depth = (int) (t - h) + 1;
+        this.puts++;
+        this.depths += depth;
+        this.maxDepth = Math.max(this.maxDepth, depth);
+        this.slots[(int) t & this.mask] = item;
+        this.tail.lazySet(t + 1);
+    }
+
+    /**
+     * Removes the oldest item, waiting while the queue is empty. Only the
+     * consumer thread may call this.
+     *
+     * @since 1.0.0
+     * @version 1.0.0
+     *
+     * @return The oldest item
+     */
+    @SuppressWarnings("unchecked")
+    public T take() {
+        long h = this.head.get();
+        if (this.tail.get() == h) {
+            long began = System.nanoTime();
+            for (int spins = 0; this.tail.get() == h; spins++) {
+                pause(spins);
+            }
+            this.takeWait += System.nanoTime() - began;
+        }
+        int slot = (int) h & this.mask;
+        T item = (T) this.slots[slot];
+        this.slots[slot] = null;
+        this.head.lazySet(h + 1);
+        return item;
+    }
+
+    /**
+     * Returns the number of items the queue holds when full.
+     *
+     * @since 1.0.0
+     * @version 1.0.0
+     *
+     * @return The capacity
+     */
+    public int getCapacity() {
+        return this.slots.length;
+    }
+
+    /**
+     * Returns the average number of items queued just after an item was
+     * put.
+     *
+     * @since 1.0.0
+     * @version 1.0.0
+     *
+     * @return The average depth
+     */
+    public double getAverageDepth() {
+        return this.puts == 0 ? 0 : (double) this.depths / this.puts;
+    }
+
+    /**
+     * Returns the most items ever queued at once.
+     *
+     * @since 1.0.0
+     * @version 1.0.0
+     *
+     * @return The maximum depth
+     */
+    public int getMaxDepth() {
+        return this.maxDepth;
+    }
+
+    /**
+     * Returns the time the producer spent waiting on a full queue.
+     *
+     * @since 1.0.0
+     * @version 1.0.0
+     *
+     * @return The wait in nanoseconds
+     */
+    public long getPutWait() {
+        return this.putWait;
+    }
+
+    /**
+     * Returns the time the consumer spent waiting on an empty queue.
+     *
+     * @since 1.0.0
+     * @version 1.0.0
+     *
+     * @return The wait in nanoseconds
+     */
+    public long getTakeWait() {
+        return this.takeWait;
+    }
+
+    /**
+     * Waits a little before the queue is checked again.
+     *
+     * @since 1.0.0
+     * @version 1.0.0
+     *
+     * @param spins The number of checks so far
+     */
+    private static void pause(int spins) {
+        if (spins < SPINS) {
+            Thread.yield();
+        } else {
+            LockSupport.parkNanos(PARK_NANOS);
+        }
+    }
+}
@@ -0,0 +1,104 @@
+/*
+ * Copyright (C) 2013 Spencer Alderman
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.rogue.bank.util;
+
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * A fixed table of locks keyed by int, so work on different keys rarely
+ * waits on the same lock. Keys are spread over a power of two number of
+ * stripes; two keys may share a stripe, but a key always maps to the same
+ * one. Work spanning every key can take all of the stripes, always in the
+ * same order so it can not deadlock with itself.
+ *
+ * @since 1.0.0
+ * @author 1Rogue
+ * @version 1.0.0
+ */
+public final class StripedLock {
+
+    private final ReentrantLock[] stripes;
+    private final int mask;
+
+    /**
+     * StripedLock constructor
+     *
+     * @since 1.0.0
+     * @version 1.0.0
+     *
+     * @param count The minimum number of stripes, rounded up to a power of
+     *              two
+     */
+    public StripedLock(int count) {
+        int size = count <= 1 ? 1 : Integer.highestOneBit(Math.min(count, 1 << 16) - 1) << 1;
+        this.stripes = new ReentrantLock[size];
+        for (int i = 0; i < this.stripes.length; i++) {
+            this.stripes[i] = new ReentrantLock();
+        }
+        this.mask = this.stripes.length - 1;
+    }
+
+    /**
+     * Returns the lock for a key.
+     *
+     * @since 1.0.0
+     * @version 1.0.0
+     *
+     * @param key The key to lock
+     * @return The stripe the key maps to
+     */
+    public ReentrantLock get(int key) {
+        int h = key * 0x9E3779B9;
+        return this.stripes[(h ^ (h >>> 16)) & this.mask];
+    }
+
+    /**
+     * Takes every stripe, in order.
+     *
+     * @since 1.0.0
+     * @version 1.0.0
+     */
+    public void lockAll() {
+        for (ReentrantLock stripe : this.stripes) {
+            stripe.lock();
+        }
+    }
+
+    /**
+     * Releases every stripe taken by {@link #lockAll()}.
+     *
+     * @since 1.0.0
+     * @version 1.0.0
+     */
+    public void unlockAll() {
+        for (int i = this.stripes.length - 1; i >= 0; i--) {
+            this.stripes[i].unlock();
+        }
+    }
+
+    /**
+     * Returns the number of stripes.
+     *
+     * @since 1.0.0
+     * @version 1.0.0
+     *
+     * @return The number of stripes
+     */
+    public int size() {
+        return this.stripes.length;
+    }
+}
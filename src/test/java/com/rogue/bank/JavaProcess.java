@@ -0,0 +1,119 @@
+/*
+ * Copyright (C) 2013 Spencer Alderman
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.rogue.bank;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Starts a class of the test classpath in a JVM of its own, for tests that
+ * compare runs made with different system properties or that kill a bank
+ * part way through.
+ *
+ * @since 1.0.0
+ * @author 1Rogue
+ * @version 1.0.0
+ */
+public final class JavaProcess {
+
+    private JavaProcess() {
+    }
+
+    /**
+     * Starts a main class.
+     *
+     * @since 1.0.0
+     * @version 1.0.0
+     *
+     * @param dir The working directory
+     * @param properties System properties, as "name=value"
+     * @param main The main class
+     * @param args The program arguments
+     * @return The started process, its error stream sent to a file in the
+     *         working directory
+     * @throws IOException If the process could not be started
+     */
+    public static Process start(File dir, List<String> properties, Class<?> main, String... args) throws IOException {
+        List<String> command = new ArrayList<String>();
+        command.add(new File(new File(System.getProperty("java.home"), "bin"), "java").getPath());
+        for (String property : properties) {
+            command.add("-D" + property);
+        }
+        command.add("-cp");
+        command.add(System.getProperty("java.class.path"));
+        command.add(main.getName());
+        command.addAll(Arrays.asList(args));
+        ProcessBuilder builder = new ProcessBuilder(command).directory(dir);
+        builder.redirectError(ProcessBuilder.Redirect.appendTo(new File(dir, "err.txt")));
+        return builder.start();
+    }
+
+    /**
+     * Runs a main class to the end.
+     *
+     * @since 1.0.0
+     * @version 1.0.0
+     *
+     * @param dir The working directory
+     * @param properties System properties, as "name=value"
+     * @param main The main class
+     * @param args The program arguments
+     * @return Everything the process wrote to its output
+     * @throws IOException If the process could not be run, or failed
+     */
+    public static String run(File dir, List<String> properties, Class<?> main, String... args) throws IOException {
+        Process process = start(dir, properties, main, args);
+        process.getOutputStream().close();
+        String out = read(process.getInputStream());
+        try {
+            int status = process.waitFor();
+            if (status != 0) {
+                throw new IOException(main.getSimpleName() + " exited with " + status);
+            }
+        } catch (InterruptedException ex) {
+            process.destroy();
+            throw new IOException("Interrupted waiting for " + main.getSimpleName());
+        }
+        return out;
+    }
+
+    /**
+     * Reads a stream to its end.
+     *
+     * @since 1.0.0
+     * @version 1.0.0
+     *
+     * @param in The stream
+     * @return The text read
+     * @throws IOException If the stream could not be read
+     */
+    private static String read(InputStream in) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buf = new byte[8192];
+        int n;
+        while ((n = in.read(buf)) > 0) {
+            out.write(buf, 0, n);
+        }
+        in.close();
+        return out.toString();
+    }
+}
@@ -0,0 +1,128 @@
+/*
+ * Copyright (C) 2013 Spencer Alderman
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.rogue.bank.batch;
+
+import com.rogue.bank.batch.commands.DepositCommand;
+import com.rogue.bank.batch.commands.OpenCommand;
+import com.rogue.bank.util.Allocations;
+import com.rogue.bank.util.ByteTokenizer;
+import java.nio.ByteBuffer;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assume.assumeTrue;
+import org.junit.Test;
+
+/**
+ * Tests for {@link BatchArguments}, as read from a batch file by
+ * {@link BatchManager}
+ *
+ * @since 1.0.0
+ * @author 1Rogue
+ * @version 1.0.0
+ */
+public class BatchArgumentsTest {
+
+    private static final int LINES = 100000;
+
+    private final BatchManager manager = new BatchManager(null, "batch.txt");
+
+    @Test
+    public void readsArguments() {
+        ByteBuffer buf = bytes("o S 6000 1234 100.50\n\nx 1\n");
+        ByteTokenizer tok = new ByteTokenizer().reset(buf, 0, buf.limit());
+        BatchArguments args = new BatchArguments();
+        assertTrue(tok.nextLine());
+        assertTrue(this.manager.parse(tok, args) instanceof OpenCommand);
+        assertEquals(4, args.size());
+        assertEquals('S', args.getChar(0));
+        assertEquals(6000, args.getInt(1));
+        assertEquals(1234, args.getInt(2));
+        assertEquals(100.5, args.getDouble(3), 0);
+        assertTrue(tok.nextLine());
+        assertNull(this.manager.parse(tok, args));
+        assertTrue(tok.nextLine());
+        assertNull(this.manager.parse(tok, args));
+    }
+
+    @Test
+    public void matchesStringArguments() {
+        BatchArguments args = BatchArguments.of(new String[] {"5000", "12.75"});
+        assertEquals(2, args.size());
+        assertEquals(5000, args.getInt(0));
+        assertEquals(12.75, args.getDouble(1), 0);
+        assertEquals("12.75", args.getString(1));
+    }
+
+    @Test(expected = NumberFormatException.class)
+    public void rejectsMissingArguments() {
+        BatchArguments.of(new String[] {"5000"}).getDouble(1);
+    }
+
+    @Test
+    public void parsesWithoutAllocating() {
+        assumeTrue(Allocations.isMeasurable());
+        StringBuilder text = new StringBuilder();
+        for (int i = 0; i < LINES; i++) {
+            text.append("d ").append(5000 + i).append(' ').append(i % 1000).append(".50\n");
+        }
+        ByteBuffer buf = bytes(text.toString());
+        ByteTokenizer tok = new ByteTokenizer();
+        BatchArguments args = new BatchArguments();
+        long expected = this.parseAll(tok, args, buf);
+        long before = Allocations.allocated();
+        long sum = this.parseAll(tok, args, buf);
+        long allocated = Allocations.allocated() - before;
+        assertEquals(expected, sum);
+        assertTrue(allocated + " bytes allocated parsing " + LINES + " commands", allocated < 1024);
+    }
+
+    /**
+     * Reads every command of a buffer as a deposit.
+     *
+     * @since 1.0.0
+     * @version 1.0.0
+     *
+     * @param tok The tokenizer to read lines with
+     * @param args The arguments to read into
+     * @param buf The commands
+     * @return A sum of the parsed arguments
+     */
+    private long parseAll(ByteTokenizer tok, BatchArguments args, ByteBuffer buf) {
+        long sum = 0;
+        tok.reset(buf, 0, buf.limit());
+        while (tok.nextLine()) {
+            if (this.manager.parse(tok, args) instanceof DepositCommand) {
+                sum += args.getInt(0) + (long) (args.getDouble(1) * 100);
+            }
+        }
+        return sum;
+    }
+
+    /**
+     * Returns the bytes of a String in a buffer.
+     *
+     * @since 1.0.0
+     * @version 1.0.0
+     *
+     * @param text The text
+     * @return A buffer holding the text
+     */
+    private static ByteBuffer bytes(String text) {
+        return ByteBuffer.wrap(text.getBytes());
+    }
+}
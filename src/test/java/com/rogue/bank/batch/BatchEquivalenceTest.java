@@ -0,0 +1,276 @@
+/*
+ * Copyright (C) 2013 Spencer Alderman
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.rogue.bank.batch;
+
+import com.rogue.bank.Bank;
+import com.rogue.bank.JavaProcess;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.Random;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import org.junit.BeforeClass;
+import org.junit.ClassRule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * Runs the same generated bank and batch file through each of the ways a
+ * batch can be executed, and checks every one prints what the plain
+ * sequential run prints and leaves the same bank behind.
+ *
+ * Each run is a {@link Bank} in a JVM of its own, since the paths are
+ * chosen by system properties read once, and is followed by a run with an
+ * empty batch file, which prints the bank as it was saved.
+ *
+ * @since 1.0.0
+ * @author 1Rogue
+ * @version 1.0.0
+ */
+public class BatchEquivalenceTest {
+
+    private static final int ACCOUNTS = 2000;
+    private static final int FIRST = 5000;
+    private static final int COMMANDS = 6000;
+    private static final int INTEREST_EVERY = 1500;
+    private static final char[] TYPES = { 's', 'x', 'c' };
+    private static final double[] MINIMUMS = { 200.0, 50.0, 500.0 };
+    private static final String INTEREST_REPORT = "============== Interest Report ==============";
+
+    @ClassRule
+    public static final TemporaryFolder FOLDER = new TemporaryFolder();
+
+    private static String[] sequential;
+
+    @BeforeClass
+    public static void runSequentially() throws IOException {
+        sequential = run();
+    }
+
+    @Test
+    public void interestKernelMatchesScalarRules() throws IOException {
+        assertSameRun(sequential, run("bank.interest.kernel=true"));
+    }
+
+    @Test
+    public void lazyAccrualMatchesEagerInterest() throws IOException {
+        // lazy accrual has no adjustments to report, but every balance
+        // printed after it, and the bank saved, must be the same
+        assertSameRun(withoutInterestReports(sequential),
+                withoutInterestReports(run("bank.interest.lazy=true")));
+    }
+
+    @Test
+    public void workersMatchSequentialRun() throws IOException {
+        assertSameRun(sequential, run("bank.batch.threads=4"));
+    }
+
+    @Test
+    public void pipelineMatchesSequentialRun() throws IOException {
+        assertSameRun(sequential, run("bank.batch.pipeline=true"));
+    }
+
+    @Test
+    public void compiledProgramMatchesSequentialRun() throws IOException {
+        File dir = FOLDER.newFolder();
+        generate(dir);
+        assertSameRun(sequential, run(dir, "bank.batch.compile=true", "bank.stats=true"));
+        assertTrue(errors(dir).contains("batch: " + COMMANDS + " commands in 1 programs, compiled"));
+
+        // a fresh bank, run from the programs compiled for the same batch
+        File cached = FOLDER.newFolder();
+        generate(cached);
+        Files.copy(new File(dir, "batch.txt.compiled").toPath(), new File(cached, "batch.txt.compiled").toPath());
+        assertTrue(new File(cached, "batch.txt").setLastModified(new File(dir, "batch.txt").lastModified()));
+        assertSameRun(sequential, run(cached, "bank.batch.compile=true", "bank.stats=true"));
+        assertTrue(errors(cached).contains("read from cache"));
+    }
+
+    /**
+     * Runs the generated batch in a new directory, then reloads the bank it
+     * saved.
+     *
+     * @since 1.0.0
+     * @version 1.0.0
+     *
+     * @param properties System properties for both runs, as "name=value"
+     * @return What the batch run printed, then what the reload printed
+     * @throws IOException If a run failed
+     */
+    private static String[] run(String... properties) throws IOException {
+        File dir = FOLDER.newFolder();
+        generate(dir);
+        return run(dir, properties);
+    }
+
+    /**
+     * Runs the batch of a directory, then reloads the bank it saved.
+     *
+     * @since 1.0.0
+     * @version 1.0.0
+     *
+     * @param dir The directory holding the generated files
+     * @param properties System properties for both runs, as "name=value"
+     * @return What the batch run printed, then what the reload printed
+     * @throws IOException If a run failed
+     */
+    private static String[] run(File dir, String... properties) throws IOException {
+        List<String> props = new ArrayList<String>(Arrays.asList(properties));
+        props.add("bank.journal.nofsync=true");
+        String out = JavaProcess.run(dir, props, Bank.class, "bank.txt", "batch.txt");
+        String reload = JavaProcess.run(dir, props, Bank.class, "bank.txt", "empty.txt");
+        return new String[] { out, reload };
+    }
+
+    /**
+     * Returns what the runs in a directory printed as errors.
+     *
+     * @since 1.0.0
+     * @version 1.0.0
+     *
+     * @param dir The directory
+     * @return The error output
+     * @throws IOException If it could not be read
+     */
+    private static String errors(File dir) throws IOException {
+        return new String(Files.readAllBytes(new File(dir, "err.txt").toPath()), "UTF-8");
+    }
+
+    /**
+     * Leaves the body of each interest report out of a run, keeping the
+     * report's banners.
+     *
+     * @since 1.0.0
+     * @version 1.0.0
+     *
+     * @param run What the run printed
+     * @return The run without the interest reports' bodies
+     */
+    private static String[] withoutInterestReports(String[] run) {
+        String[] kept = new String[run.length];
+        for (int n = 0; n < run.length; n++) {
+            StringBuilder out = new StringBuilder();
+            boolean report = false;
+            for (String line : run[n].split("\r?\n")) {
+                if (report && line.startsWith("=")) {
+                    report = false;
+                }
+                if (!report) {
+                    out.append(line).append('\n');
+                }
+                report |= line.equals(INTEREST_REPORT);
+            }
+            kept[n] = out.toString();
+        }
+        return kept;
+    }
+
+    /**
+     * Checks two runs printed the same, line by line.
+     *
+     * @since 1.0.0
+     * @version 1.0.0
+     *
+     * @param expected The run compared against
+     * @param actual The run to check
+     */
+    private static void assertSameRun(String[] expected, String[] actual) {
+        String[] names = { "batch", "reload" };
+        for (int n = 0; n < expected.length; n++) {
+            String[] want = expected[n].split("\r?\n");
+            String[] got = actual[n].split("\r?\n");
+            for (int i = 0; i < Math.min(want.length, got.length); i++) {
+                assertEquals(names[n] + " line " + (i + 1), want[i], got[i]);
+            }
+            assertEquals(names[n] + " lines", want.length, got.length);
+        }
+    }
+
+    /**
+     * Writes the bank file, batch file and an empty batch file into a
+     * directory. The same files are written every time.
+     *
+     * @since 1.0.0
+     * @version 1.0.0
+     *
+     * @param dir The directory
+     * @throws IOException If a file could not be written
+     */
+    private static void generate(File dir) throws IOException {
+        Random random = new Random(ACCOUNTS);
+        PrintWriter bank = writer(new File(dir, "bank.txt"));
+        try {
+            for (int i = 0; i < ACCOUNTS; i++) {
+                int type = random.nextInt(TYPES.length);
+                // some balances fall below the minimum once used, so fees apply
+                double balance = MINIMUMS[type] + random.nextInt(500000) / 100.0;
+                bank.printf(Locale.ROOT, "%d\t%c\t%d\t%.2f%n", FIRST + i, TYPES[type],
+                        1000 + random.nextInt(9000), balance);
+            }
+        } finally {
+            bank.close();
+        }
+        PrintWriter batch = writer(new File(dir, "batch.txt"));
+        try {
+            for (int n = 1; n <= COMMANDS; n++) {
+                if (n % INTEREST_EVERY == 0) {
+                    batch.println("a");
+                    continue;
+                }
+                // a few ids past the end, which are opened or stay unknown
+                int id = FIRST + random.nextInt(ACCOUNTS + ACCOUNTS / 20);
+                int c = random.nextInt(100);
+                if (c < 45) {
+                    batch.printf(Locale.ROOT, "d %d %.2f%n", id, random.nextInt(60000) / 100.0);
+                } else if (c < 90) {
+                    batch.printf(Locale.ROOT, "w %d %.2f%n", id, random.nextInt(90000) / 100.0);
+                } else if (c < 94) {
+                    batch.printf("c %d%n", id);
+                } else {
+                    int type = random.nextInt(TYPES.length);
+                    batch.printf(Locale.ROOT, "o %c %d %d %.2f%n", TYPES[type], id, 1000 + random.nextInt(9000),
+                            MINIMUMS[type] - 100 + random.nextInt(300000) / 100.0);
+                }
+            }
+        } finally {
+            batch.close();
+        }
+        writer(new File(dir, "empty.txt")).close();
+    }
+
+    /**
+     * Opens a file for writing text.
+     *
+     * @since 1.0.0
+     * @version 1.0.0
+     *
+     * @param file The file
+     * @return The writer
+     * @throws IOException If the file could not be opened
+     */
+    private static PrintWriter writer(File file) throws IOException {
+        return new PrintWriter(new OutputStreamWriter(new FileOutputStream(file), "UTF-8"));
+    }
+}
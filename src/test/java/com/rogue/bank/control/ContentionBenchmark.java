@@ -0,0 +1,226 @@
+/*
+ * Copyright (C) 2013 Spencer Alderman
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.rogue.bank.control;
+
+import com.rogue.bank.Bank;
+import com.rogue.bank.data.Account;
+import com.rogue.bank.data.DataManager;
+import com.rogue.bank.data.Snapshot;
+import com.rogue.bank.data.storage.TextAccountFile;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+
+/**
+ * Measures {@link BankController} throughput as threads are added. Each
+ * thread logs in to random accounts and deposits, withdraws and checks
+ * balances, opening and closing an account of its own every so often. The
+ * {@code global} option wraps every operation in one lock on the
+ * controller, as the controller used to, for comparison.
+ *
+ * The journal is not forced to disk while benchmarking, so the numbers show
+ * the cost of locking rather than of the disk.
+ *
+ * @since 1.0.0
+ * @author 1Rogue
+ * @version 1.0.0
+ */
+public class ContentionBenchmark {
+
+    private static final int ACCOUNTS = 10000;
+    private static final int PIN = 1234;
+
+    /**
+     * Runs the benchmark
+     *
+     * @since 1.0.0
+     * @version 1.0.0
+     *
+     * @param args Command-line arguments
+     */
+    public static void main(String[] args) {
+        if (args.length > 3) {
+            System.err.println("Usage: java ContentionBenchmark [seconds] [maxThreads] [global]");
+            System.exit(1);
+        }
+        double seconds = args.length > 0 ? Double.parseDouble(args[0]) : 2;
+        int maxThreads = args.length > 1 ? Integer.parseInt(args[1])
+                : Runtime.getRuntime().availableProcessors() * 2;
+        boolean global = args.length > 2 && "global".equals(args[2]);
+        System.setProperty("bank.journal.nofsync", "true");
+        System.setProperty("bank.checkpoint.interval", "0");
+        PrintStream out = System.out;
+        // the bank prints every account when it starts and exits
+        System.setOut(new PrintStream(new OutputStream() {
+
+            @Override
+            public void write(int b) {
+            }
+
+        }));
+        try {
+            File dir = File.createTempFile("bank", "bench");
+            dir.delete();
+            dir.mkdir();
+            File bankFile = new File(dir, "bench.txt");
+            File batchFile = new File(dir, "empty.txt");
+            batchFile.createNewFile();
+            writeAccounts(bankFile);
+            BankController control = new Bank(bankFile.getPath(), batchFile.getPath()).getBankController();
+            out.format("%d accounts, %s locking, %.1f s per run%n", ACCOUNTS, global ? "global" : "striped", seconds);
+            out.println("threads      ops/s  speedup");
+            double base = 0;
+            for (int threads = 1; threads <= maxThreads; threads *= 2) {
+                double rate = run(control, threads, (long) (seconds * 1e9), global);
+                if (base == 0) {
+                    base = rate;
+                }
+                out.format("%7d %10.0f %7.2fx%n", threads, rate, rate / base);
+            }
+            for (File f : dir.listFiles()) {
+                f.deleteOnExit();
+            }
+            dir.deleteOnExit();
+        } catch (IOException ex) {
+            System.err.println("Error: " + ex.getMessage());
+        } catch (InterruptedException ex) {
+            System.err.println("Error: " + ex.getMessage());
+        }
+    }
+
+    /**
+     * Writes a bank file of savings accounts.
+     *
+     * @since 1.0.0
+     * @version 1.0.0
+     *
+     * @param bankFile The file to write
+     * @throws IOException If the file could not be written
+     */
+    private static void writeAccounts(File bankFile) throws IOException {
+        List<Account> accounts = new ArrayList<Account>(ACCOUNTS);
+        for (int i = 1; i <= ACCOUNTS; i++) {
+            accounts.add(DataManager.newAccount('s', i, PIN, 10000));
+        }
+        Snapshot snapshot = Snapshot.of(accounts);
+        try {
+            new TextAccountFile(bankFile.getPath()).save(snapshot);
+        } finally {
+            snapshot.close();
+        }
+    }
+
+    /**
+     * Runs the workload on a number of threads for a fixed time.
+     *
+     * @since 1.0.0
+     * @version 1.0.0
+     *
+     * @param control The controller to drive
+     * @param threads The number of threads
+     * @param nanos How long to run for
+     * @param global True to hold one lock around every operation
+     * @return The operations completed per second
+     * @throws InterruptedException If interrupted while waiting for the
+     *                              threads
+     */
+    private static double run(final BankController control, int threads, final long nanos, final boolean global)
+            throws InterruptedException {
+        final CountDownLatch start = new CountDownLatch(1);
+        final long[] counts = new long[threads];
+        Thread[] workers = new Thread[threads];
+        for (int t = 0; t < threads; t++) {
+            final int index = t;
+            workers[t] = new Thread(new Runnable() {
+
+                public void run() {
+                    Random random = new Random(index);
+                    Session sess = new Session();
+                    // ids well above the loaded accounts, unique to this thread
+                    int ownId = ACCOUNTS + 1 + index * 1000000;
+                    long ops = 0;
+                    try {
+                        start.await();
+                    } catch (InterruptedException ex) {
+                        return;
+                    }
+                    long end = System.nanoTime() + nanos;
+                    while ((ops & 0xFF) != 0 || System.nanoTime() < end) {
+                        if (global) {
+                            synchronized (control) {
+                                operate(control, sess, random, ownId + (int) (ops % 1000000));
+                            }
+                        } else {
+                            operate(control, sess, random, ownId + (int) (ops % 1000000));
+                        }
+                        ops++;
+                    }
+                    counts[index] = ops;
+                }
+
+            }, "Bench-" + t);
+            workers[t].start();
+        }
+        long began = System.nanoTime();
+        start.countDown();
+        for (Thread worker : workers) {
+            worker.join();
+        }
+        long elapsed = System.nanoTime() - began;
+        long total = 0;
+        for (long count : counts) {
+            total += count;
+        }
+        return total / (elapsed / 1e9);
+    }
+
+    /**
+     * Performs one random operation.
+     *
+     * @since 1.0.0
+     * @version 1.0.0
+     *
+     * @param control The controller to drive
+     * @param sess The thread's session
+     * @param random The thread's random numbers
+     * @param ownId An id no other thread uses, for opening and closing
+     */
+    private static void operate(BankController control, Session sess, Random random, int ownId) {
+        int op = random.nextInt(100);
+        if (op < 2) {
+            control.createAccount('s', ownId, PIN, 5000);
+            control.deleteAccount(ownId);
+            return;
+        }
+        if (!control.validLogin(sess, 1 + random.nextInt(ACCOUNTS), PIN)) {
+            return;
+        }
+        if (op < 50) {
+            control.deposit(sess, 1 + random.nextInt(100));
+        } else if (op < 90) {
+            control.withdraw(sess, 1 + random.nextInt(100));
+        } else {
+            control.getBalance(sess);
+        }
+    }
+
+}
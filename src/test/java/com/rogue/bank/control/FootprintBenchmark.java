@@ -0,0 +1,191 @@
+/*
+ * Copyright (C) 2013 Spencer Alderman
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.rogue.bank.control;
+
+import com.rogue.bank.data.AccountStore;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Compares the heap footprint and garbage collection pauses of the ways
+ * accounts can be held: one object per account in a
+ * {@code HashMap<Integer, Account>}, as the bank used to, and an
+ * {@link AccountStore} with its columns on the heap or outside it.
+ *
+ * For each layout the benchmark fills a store with savings accounts, then
+ * reports the heap still in use, the memory held outside the heap, the
+ * median time of a full collection, and the time spent in collections
+ * while short-lived garbage is allocated, as a bank under load would.
+ * Run it with a heap large enough for the object layout, such as
+ * {@code -Xmx4g} for ten million accounts.
+ *
+ * @since 1.0.0
+ * @author 1Rogue
+ * @version 1.0.0
+ */
+public class FootprintBenchmark {
+
+    private static final int PIN = 1234;
+    private static final int FULL_COLLECTIONS = 5;
+    private static final long GARBAGE_BYTES = 2L << 30;
+
+    private static volatile Object sink;
+
+    /**
+     * Runs the benchmark
+     *
+     * @since 1.0.0
+     * @version 1.0.0
+     *
+     * @param args Command-line arguments
+     */
+    public static void main(String[] args) {
+        if (args.length > 1) {
+            System.err.println("Usage: java FootprintBenchmark [accounts]");
+            System.exit(1);
+        }
+        int accounts = args.length > 0 ? Integer.parseInt(args[0]) : 1000000;
+        System.out.format("%d accounts, %d MB heap%n", accounts, Runtime.getRuntime().maxMemory() >> 20);
+        System.out.println("layout       heap MB  direct MB  full gc ms  churn gc ms");
+        measure("objects", objects(accounts), 0);
+        AccountStore heap = columns(accounts, false);
+        measure("columns", heap, heap.getDirectBytes());
+        heap = null;
+        AccountStore direct = columns(accounts, true);
+        measure("off-heap", direct, direct.getDirectBytes());
+    }
+
+    /**
+     * Holds one object per account, keyed by boxed id.
+     *
+     * @since 1.0.0
+     * @version 1.0.0
+     *
+     * @param accounts The number of accounts
+     * @return The accounts
+     */
+    private static Map<Integer, LegacyAccount> objects(int accounts) {
+        Map<Integer, LegacyAccount> map = new HashMap<Integer, LegacyAccount>();
+        for (int i = 1; i <= accounts; i++) {
+            map.put(i, new LegacyAccount(i, PIN, 100000));
+        }
+        return map;
+    }
+
+    /**
+     * Holds the accounts in a column store.
+     *
+     * @since 1.0.0
+     * @version 1.0.0
+     *
+     * @param accounts The number of accounts
+     * @param direct True to keep the columns outside the heap
+     * @return The store
+     */
+    private static AccountStore columns(int accounts, boolean direct) {
+        AccountStore store = new AccountStore(true, direct);
+        for (int i = 1; i <= accounts; i++) {
+            store.add('s', i, PIN, 1000);
+        }
+        return store;
+    }
+
+    /**
+     * Measures and prints one layout while it is reachable.
+     *
+     * @since 1.0.0
+     * @version 1.0.0
+     *
+     * @param layout The name of the layout
+     * @param accounts The accounts, kept reachable while measuring
+     * @param directBytes The memory the accounts hold outside the heap
+     */
+    private static void measure(String layout, Object accounts, long directBytes) {
+        sink = accounts;
+        Runtime runtime = Runtime.getRuntime();
+        long[] full = new long[FULL_COLLECTIONS];
+        for (int i = 0; i < full.length; i++) {
+            long began = System.nanoTime();
+            System.gc();
+            full[i] = System.nanoTime() - began;
+        }
+        Arrays.sort(full);
+        long used = runtime.totalMemory() - runtime.freeMemory();
+        long collecting = collectionMillis();
+        for (long made = 0; made < GARBAGE_BYTES; made += 1024) {
+            sink = new byte[1000];
+        }
+        collecting = collectionMillis() - collecting;
+        System.out.format("%-10s %9.1f %10.1f %11.1f %12d%n", layout, used / 1048576.0, directBytes / 1048576.0,
+                full[full.length / 2] / 1e6, collecting);
+        sink = null;
+        System.gc();
+    }
+
+    /**
+     * Returns the time spent collecting garbage since the JVM started.
+     *
+     * @since 1.0.0
+     * @version 1.0.0
+     *
+     * @return The total collection time in milliseconds
+     */
+    private static long collectionMillis() {
+        long total = 0;
+        for (GarbageCollectorMXBean bean : ManagementFactory.getGarbageCollectorMXBeans()) {
+            total += Math.max(0, bean.getCollectionTime());
+        }
+        return total;
+    }
+
+    /**
+     * The fields an account object held before accounts were stored in
+     * columns: its id and PIN, its balance word and snapshot pre-image, and
+     * the event bus it publishes to.
+     *
+     * @since 1.0.0
+     * @author 1Rogue
+     * @version 1.0.0
+     */
+    private static final class LegacyAccount {
+
+        private final int id;
+        private final int pin;
+        private volatile long state;
+        private volatile long preImage;
+        private volatile Object events;
+
+        /**
+         * LegacyAccount constructor
+         *
+         * @since 1.0.0
+         * @version 1.0.0
+         *
+         * @param id The account id
+         * @param pin The account pin
+         * @param cents The balance in cents
+         */
+        LegacyAccount(int id, int pin, long cents) {
+            this.id = id;
+            this.pin = pin;
+            this.state = cents;
+        }
+    }
+}
@@ -0,0 +1,118 @@
+/*
+ * Copyright (C) 2013 Spencer Alderman
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.rogue.bank.data;
+
+import com.rogue.bank.JavaProcess;
+import com.rogue.bank.data.storage.MappedAccountFile;
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.List;
+import static org.junit.Assert.assertEquals;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * Checks that an {@link AccountCache} writes changed accounts back to the
+ * bank file when it evicts them, and only then.
+ *
+ * The test runs the bank in a JVM of its own, through {@link #main}, and
+ * halts it once it has worked through the cache, so nothing is written back
+ * by closing the bank. The test then reads the bank file directly.
+ *
+ * @since 1.0.0
+ * @author 1Rogue
+ * @version 1.0.0
+ */
+public class AccountCacheTest {
+
+    private static final int ACCOUNTS = 1000;
+    private static final int CAPACITY = 100;
+    private static final List<String> PROPERTIES = Arrays.asList("bank.checkpoint.interval=0",
+            "bank.cache.size=" + CAPACITY);
+
+    @Rule
+    public final TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void writesBackChangedAccountsOnEviction() throws Exception {
+        File dir = this.folder.getRoot();
+        String bankLoc = new File(dir, "bank.bin").getPath();
+        AccountStore seed = new AccountStore();
+        for (int i = 0; i < ACCOUNTS; i++) {
+            seed.add('s', 1000 + i, 1234, 100.0);
+        }
+        MappedAccountFile bank = new MappedAccountFile(bankLoc);
+        Snapshot snapshot = Snapshot.of(seed);
+        try {
+            bank.save(snapshot);
+        } finally {
+            snapshot.close();
+            bank.close();
+        }
+
+        String out = JavaProcess.run(dir, PROPERTIES, AccountCacheTest.class, bankLoc).trim();
+        // 1999, then 1000 to 1098, were pushed out by reading 1099 to 1199
+        assertEquals((1 + CAPACITY) + " 51", out);
+
+        bank = new MappedAccountFile(bankLoc);
+        try {
+            bank.openIndex();
+            // changed, then evicted
+            for (int id = 1000; id < 1050; id++) {
+                assertEquals("account " + id, 10100, bank.read(id).getCents());
+            }
+            // evicted, then changed through a view held outside the cache
+            assertEquals(10500, bank.read(1999).getCents());
+            // changed, but still cached
+            assertEquals(10000, bank.read(1199).getCents());
+            for (int id = 1050; id < 1199; id++) {
+                assertEquals("account " + id, 10000, bank.read(id).getCents());
+            }
+        } finally {
+            bank.close();
+        }
+    }
+
+    /**
+     * Opens the bank with its cache, changes some accounts while pushing
+     * others out of the cache, prints the cache's eviction and write-back
+     * counts and halts.
+     *
+     * @since 1.0.0
+     * @version 1.0.0
+     *
+     * @param args The bank file
+     */
+    public static void main(String[] args) {
+        DataManager data = new DataManager(null, args[0]);
+        AccountCache cache = data.getCache();
+        Account held = data.getAccount(1999);
+        for (int id = 1000; id < 1050; id++) {
+            data.getAccount(id).deposit(1.0);
+        }
+        for (int id = 1050; id < 1200; id++) {
+            data.getAccount(id);
+        }
+        held.deposit(5.0);
+        data.getAccount(1199).deposit(1.0);
+        System.out.println(cache.getEvictions() + " " + cache.getWriteBacks());
+        System.out.flush();
+        Runtime.getRuntime().halt(0);
+    }
+}
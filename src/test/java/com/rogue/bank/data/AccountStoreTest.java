@@ -0,0 +1,232 @@
+/*
+ * Copyright (C) 2013 Spencer Alderman
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.rogue.bank.data;
+
+import com.rogue.bank.util.Threads;
+import java.util.Random;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import org.junit.Test;
+
+/**
+ * Tests the scans of {@link AccountStore} in account id order, and the
+ * reuse of closed slots, on stores held on the heap and outside it.
+ *
+ * @since 1.0.0
+ * @author 1Rogue
+ * @version 1.0.0
+ */
+public class AccountStoreTest {
+
+    private static final int STABLE = 5000;
+    private static final int THREADS = 4;
+    private static final int ROUNDS = 200;
+    private static final int BATCH = 50;
+    private static final int FEW = 10;
+
+    @Test
+    public void scansShuffledAccountsInIdOrder() {
+        for (AccountStore store : stores()) {
+            int[] ids = shuffled(STABLE);
+            for (int id : ids) {
+                store.add('s', id, 1234, id / 100.0);
+            }
+            int[] slots = store.slotsById();
+            assertEquals(STABLE, slots.length);
+            for (int i = 0; i < slots.length; i++) {
+                assertEquals(stable(i), store.getId(slots[i]));
+            }
+            Snapshot snapshot = Snapshot.of(store).sort();
+            try {
+                assertEquals(STABLE, snapshot.size());
+                for (int i = 0; i < STABLE; i++) {
+                    assertEquals(stable(i), snapshot.getID(i));
+                    assertEquals(stable(i), snapshot.getCents(i));
+                    assertEquals(stable(i), snapshot.getAccount(i).getID());
+                }
+            } finally {
+                snapshot.close();
+            }
+        }
+    }
+
+    @Test
+    public void scansInIdOrderWhileAccountsChange() throws InterruptedException {
+        for (final AccountStore store : stores()) {
+            for (int id : shuffled(STABLE)) {
+                store.add('x', id, 1234, 1.0);
+            }
+            final int[] threads = new int[1];
+            Threads.runAll(THREADS, new Runnable() {
+
+                public void run() {
+                    int t;
+                    synchronized (threads) {
+                        t = threads[0]++;
+                    }
+                    for (int r = 0; r < ROUNDS; r++) {
+                        if (t % 2 == 0) {
+                            // odd ids between the stable ones, each used once
+                            int first = 2 * (t * ROUNDS * BATCH + r * BATCH) + 1;
+                            for (int i = 0; i < BATCH; i++) {
+                                store.add('s', first + 2 * i, 1234, 1.0);
+                            }
+                            for (int i = 0; i < BATCH; i++) {
+                                assertEquals(first + 2 * i, store.remove(first + 2 * i).getID());
+                            }
+                        } else {
+                            int[] slots = store.slotsById();
+                            int stable = 0;
+                            int last = Integer.MIN_VALUE;
+                            for (int slot : slots) {
+                                int id = store.getId(slot);
+                                assertTrue(id > last);
+                                if (id % 2 == 0) {
+                                    assertEquals(stable(stable++), id);
+                                }
+                                last = id;
+                            }
+                            assertEquals(STABLE, stable);
+                        }
+                    }
+                }
+
+            });
+            assertEquals(STABLE, store.size());
+            assertEquals(STABLE, store.slotsById().length);
+        }
+    }
+
+    @Test
+    public void reusesClosedSlotsAfterTwoRecycles() {
+        for (AccountStore store : stores()) {
+            fill(store);
+            // leave a pre-image in the slot from an earlier epoch
+            Snapshot earlier = Snapshot.of(store);
+            store.get(3).deposit(5.0);
+            earlier.close();
+            store.remove(3);
+            assertEquals(FEW, store.addSlot('s', 100, 1234, 1.0));
+            store.recycle();
+            assertEquals(FEW + 1, store.addSlot('s', 101, 1234, 1.0));
+            store.recycle();
+            assertEquals(3, store.addSlot('x', 102, 4321, 7.0));
+            assertEquals(FEW + 2, store.addSlot('s', 103, 1234, 1.0));
+            assertNull(store.get(3));
+            Account reused = store.get(102);
+            assertEquals(102, reused.getID());
+            assertEquals(4321, reused.getPIN());
+            assertEquals('x', reused.getDisplayCharacter());
+            assertEquals(700, reused.getCents());
+            assertEquals(FEW + 3, store.size());
+            Snapshot snapshot = Snapshot.of(store).sort();
+            try {
+                reused.deposit(1.0);
+                assertEquals(800, reused.getCents());
+                assertEquals(102, snapshot.getID(FEW + 1));
+                assertEquals(700, snapshot.getCents(FEW + 1));
+            } finally {
+                snapshot.close();
+            }
+        }
+    }
+
+    @Test
+    public void keepsSlotsWhileASnapshotIsOpen() {
+        for (AccountStore store : stores()) {
+            fill(store);
+            Snapshot snapshot = Snapshot.of(store);
+            try {
+                store.remove(3);
+                store.recycle();
+                store.recycle();
+                assertEquals(FEW, store.addSlot('s', 100, 1234, 1.0));
+                assertEquals(FEW, snapshot.size());
+                assertEquals(3, snapshot.getID(3));
+                assertEquals(300, snapshot.getCents(3));
+            } finally {
+                snapshot.close();
+            }
+            assertEquals(3, store.addSlot('s', 101, 1234, 1.0));
+        }
+    }
+
+    /**
+     * Adds accounts with ids 0 to {@value #FEW}, exclusive, each holding
+     * its id in dollars, to an empty store.
+     *
+     * @since 1.0.0
+     * @version 1.0.0
+     *
+     * @param store The store
+     */
+    private static void fill(AccountStore store) {
+        for (int id = 0; id < FEW; id++) {
+            assertEquals(id, store.addSlot('s', id, 1234, id));
+        }
+    }
+
+    /**
+     * Returns the id of a stable account, by its position in id order.
+     *
+     * @since 1.0.0
+     * @version 1.0.0
+     *
+     * @param i The position
+     * @return The account id
+     */
+    private static int stable(int i) {
+        return 2 * i;
+    }
+
+    /**
+     * Returns the ids of the stable accounts in a random order.
+     *
+     * @since 1.0.0
+     * @version 1.0.0
+     *
+     * @param count The number of accounts
+     * @return The shuffled ids
+     */
+    private static int[] shuffled(int count) {
+        int[] ids = new int[count];
+        for (int i = 0; i < count; i++) {
+            ids[i] = stable(i);
+        }
+        Random random = new Random(count);
+        for (int i = count - 1; i > 0; i--) {
+            int j = random.nextInt(i + 1);
+            int id = ids[i];
+            ids[i] = ids[j];
+            ids[j] = id;
+        }
+        return ids;
+    }
+
+    /**
+     * Makes an empty indexed store on the heap and one outside it.
+     *
+     * @since 1.0.0
+     * @version 1.0.0
+     *
+     * @return The stores
+     */
+    private static AccountStore[] stores() {
+        return new AccountStore[] { new AccountStore(true, false), new AccountStore(true, true) };
+    }
+}
@@ -0,0 +1,138 @@
+/*
+ * Copyright (C) 2013 Spencer Alderman
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.rogue.bank.data;
+
+import com.rogue.bank.util.Threads;
+import java.util.concurrent.atomic.AtomicInteger;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import org.junit.Test;
+
+/**
+ * Tests the atomic balance operations of {@link Account}, on accounts held
+ * on the heap and outside it.
+ *
+ * @since 1.0.0
+ * @author 1Rogue
+ * @version 1.0.0
+ */
+public class AccountTest {
+
+    private static final double MAX_BALANCE = 87960930222.07;
+    private static final int THREADS = 8;
+    private static final int CHANGES = 20000;
+
+    @Test
+    public void tryDepositFailsOutOfRange() {
+        for (AccountStore store : stores()) {
+            Account account = store.add('s', 1000, 1234, 100.0);
+            assertFalse(account.tryDeposit(-0.01));
+            assertFalse(account.tryDeposit(Double.NaN));
+            assertFalse(account.tryDeposit(Double.POSITIVE_INFINITY));
+            assertFalse(account.tryDeposit(MAX_BALANCE + 1));
+            assertEquals(10000, account.getCents());
+
+            Account full = store.add('s', 1001, 1234, MAX_BALANCE - 0.07);
+            assertTrue(full.tryDeposit(0.07));
+            assertEquals(MAX_BALANCE, full.getBalance(), 0);
+            assertFalse(full.tryDeposit(0.01));
+            assertEquals(MAX_BALANCE, full.getBalance(), 0);
+            try {
+                full.deposit(0.01);
+                fail("deposited past the largest balance");
+            } catch (ArithmeticException ex) {
+                // expected
+            }
+            assertEquals(MAX_BALANCE, full.getBalance(), 0);
+        }
+    }
+
+    @Test
+    public void tryWithdrawFailsOutOfRange() {
+        for (AccountStore store : stores()) {
+            Account account = store.add('s', 1000, 1234, 100.0);
+            assertFalse(account.tryWithdraw(100.01));
+            assertFalse(account.tryWithdraw(-0.01));
+            assertFalse(account.tryWithdraw(Double.NaN));
+            assertFalse(account.tryWithdraw(MAX_BALANCE + 1));
+            assertEquals(10000, account.getCents());
+            assertTrue(account.tryWithdraw(100.0));
+            assertEquals(0, account.getCents());
+            assertFalse(account.tryWithdraw(0.01));
+
+            Account cd = store.add('c', 1001, 1234, 1000.0);
+            assertFalse(cd.tryWithdraw(1.0));
+            assertEquals(100000, cd.getCents());
+        }
+    }
+
+    @Test
+    public void concurrentDepositsLoseNoUpdates() throws InterruptedException {
+        for (AccountStore store : stores()) {
+            final Account account = store.add('x', 1000, 1234, 0.0);
+            Threads.runAll(THREADS, new Runnable() {
+
+                public void run() {
+                    for (int i = 0; i < CHANGES; i++) {
+                        if (i % 2 == 0) {
+                            account.deposit(0.01);
+                        } else {
+                            assertTrue(account.tryDeposit(0.02));
+                        }
+                    }
+                }
+
+            });
+            assertEquals((long) THREADS * CHANGES * 3 / 2, account.getCents());
+        }
+    }
+
+    @Test
+    public void concurrentWithdrawalsNeverOverdraw() throws InterruptedException {
+        for (AccountStore store : stores()) {
+            final Account account = store.add('s', 1000, 1234, CHANGES / 100.0);
+            final AtomicInteger withdrawn = new AtomicInteger();
+            Threads.runAll(THREADS, new Runnable() {
+
+                public void run() {
+                    for (int i = 0; i < CHANGES; i++) {
+                        if (account.tryWithdraw(0.01)) {
+                            withdrawn.incrementAndGet();
+                        }
+                    }
+                }
+
+            });
+            assertEquals(CHANGES, withdrawn.get());
+            assertEquals(0, account.getCents());
+        }
+    }
+
+    /**
+     * Makes an empty store on the heap and one outside it.
+     *
+     * @since 1.0.0
+     * @version 1.0.0
+     *
+     * @return The stores
+     */
+    private static AccountStore[] stores() {
+        return new AccountStore[] { new AccountStore(true, false), new AccountStore(true, true) };
+    }
+}
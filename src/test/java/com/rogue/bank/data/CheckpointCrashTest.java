@@ -0,0 +1,181 @@
+/*
+ * Copyright (C) 2013 Spencer Alderman
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.rogue.bank.data;
+
+import com.rogue.bank.JavaProcess;
+import com.rogue.bank.data.storage.AccountFileConverter;
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.Writer;
+import java.util.Arrays;
+import java.util.List;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * Kills a bank part way through a full checkpoint and checks that every
+ * acknowledged change is rebuilt from the bank file and journal.
+ *
+ * The test runs the bank in a JVM of its own, through {@link #main}: each
+ * round deposits into every account, waits for the journal to make the
+ * deposits durable, then writes a full checkpoint. The test kills the
+ * process once the last round's checkpoint has started writing the new
+ * bank file beside the old one.
+ *
+ * @since 1.0.0
+ * @author 1Rogue
+ * @version 1.0.0
+ */
+public class CheckpointCrashTest {
+
+    private static final int ACCOUNTS = 200000;
+    private static final int ROUNDS = 3;
+    private static final List<String> PROPERTIES = Arrays.asList("bank.checkpoint.interval=0");
+
+    @Rule
+    public final TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void rebuildsTextBankKilledMidCheckpoint() throws Exception {
+        this.killMidCheckpoint("bank.txt");
+    }
+
+    @Test
+    public void rebuildsCompactBankKilledMidCheckpoint() throws Exception {
+        this.killMidCheckpoint("bank.cbank");
+    }
+
+    /**
+     * Seeds a bank, kills it during the last checkpoint of its rounds and
+     * checks the bank it leaves behind.
+     *
+     * @since 1.0.0
+     * @version 1.0.0
+     *
+     * @param name The bank file name, whose extension picks the format
+     * @throws Exception If the bank could not be run
+     */
+    private void killMidCheckpoint(String name) throws Exception {
+        File dir = this.folder.getRoot();
+        File seed = new File(dir, "seed.txt");
+        Writer out = new FileWriter(seed);
+        try {
+            for (int i = 0; i < ACCOUNTS; i++) {
+                out.write((1000 + i) + "\ts\t1234\t100.00\n");
+            }
+        } finally {
+            out.close();
+        }
+        if (name.endsWith(".txt")) {
+            assertTrue(seed.renameTo(new File(dir, name)));
+        } else {
+            JavaProcess.run(dir, PROPERTIES, AccountFileConverter.class, seed.getName(), name);
+        }
+
+        Process bank = JavaProcess.start(dir, PROPERTIES, CheckpointCrashTest.class, "crash", name);
+        BufferedReader in = new BufferedReader(new InputStreamReader(bank.getInputStream()));
+        OutputStream go = bank.getOutputStream();
+        try {
+            for (int round = 1; round <= ROUNDS; round++) {
+                go.write('\n');
+                go.flush();
+                await(in, (round < ROUNDS ? "saved " : "saving ") + round);
+            }
+            File tmp = new File(dir, name + ".tmp");
+            long deadline = System.currentTimeMillis() + 60000;
+            while (tmp.length() == 0) {
+                assertTrue("the checkpoint never started writing", System.currentTimeMillis() < deadline);
+                Thread.sleep(1);
+            }
+        } finally {
+            bank.destroyForcibly();
+            bank.waitFor();
+        }
+
+        String check = JavaProcess.run(dir, PROPERTIES, CheckpointCrashTest.class, "check", name).trim();
+        long cents = ACCOUNTS * (10000L + ROUNDS * 100L);
+        assertEquals(ACCOUNTS + " " + cents, check.substring(check.lastIndexOf('\n') + 1));
+    }
+
+    /**
+     * Reads the output of the bank until a line.
+     *
+     * @since 1.0.0
+     * @version 1.0.0
+     *
+     * @param in The output of the bank
+     * @param line The line to wait for
+     * @throws IOException If the bank ended first
+     */
+    private static void await(BufferedReader in, String line) throws IOException {
+        String read;
+        do {
+            read = in.readLine();
+            assertNotNull("bank ended before " + line, read);
+        } while (!read.equals(line));
+    }
+
+    /**
+     * Runs the bank for the test. With "crash", runs rounds of deposits and
+     * checkpoints, one for each line read from the input, until killed.
+     * With "check", loads the bank and prints the number of accounts and
+     * their total balance in cents.
+     *
+     * @since 1.0.0
+     * @version 1.0.0
+     *
+     * @param args The mode and the bank file
+     * @throws IOException If a checkpoint could not be written
+     */
+    public static void main(String[] args) throws IOException {
+        DataManager data = new DataManager(null, args[1]);
+        if ("check".equals(args[0])) {
+            long cents = 0;
+            for (Account account : data.getAccounts()) {
+                cents += account.getCents();
+            }
+            System.out.println(data.getAccounts().size() + " " + cents);
+            System.out.flush();
+            Runtime.getRuntime().halt(0);
+        }
+        BufferedReader in = new BufferedReader(new InputStreamReader(System.in));
+        for (int round = 1; in.readLine() != null; round++) {
+            data.getJournal().startDeferring();
+            try {
+                for (Account account : data.getAccounts()) {
+                    account.tryDeposit(1);
+                }
+            } finally {
+                data.getJournal().stopDeferring();
+            }
+            System.out.println("saving " + round);
+            System.out.flush();
+            data.getCheckpointer().checkpoint(true);
+            System.out.println("saved " + round);
+            System.out.flush();
+        }
+        Runtime.getRuntime().halt(0);
+    }
+}
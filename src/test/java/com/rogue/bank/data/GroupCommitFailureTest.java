@@ -0,0 +1,120 @@
+/*
+ * Copyright (C) 2013 Spencer Alderman
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.rogue.bank.data;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * Tests that a {@link GroupCommit} batch which fails to be written leaves
+ * nothing behind in the file, and fails every waiter it held.
+ *
+ * @since 1.0.0
+ * @author 1Rogue
+ * @version 1.0.0
+ */
+public class GroupCommitFailureTest {
+
+    @Rule
+    public final TemporaryFolder folder = new TemporaryFolder();
+
+    private File file;
+    private TestChannel channel;
+    private GroupCommit commit;
+
+    @Before
+    public void open() throws IOException {
+        this.file = this.folder.newFile("journal");
+        this.channel = new TestChannel(new RandomAccessFile(this.file, "rw").getChannel());
+        this.commit = new GroupCommit(this.channel, 1, 0, true);
+    }
+
+    @After
+    public void close() throws IOException {
+        this.commit.close();
+    }
+
+    @Test
+    public void cutsFailedBatchOffTheFile() throws IOException {
+        this.commit.submit(new LongEntry(1));
+        this.channel.failWrites = 1;
+        try {
+            this.commit.submit(new LongEntry(2));
+            fail("the failed write was acknowledged");
+        } catch (IOException ex) {
+            // expected
+        }
+        this.commit.submit(new LongEntry(3));
+        assertEquals(16, this.commit.size());
+        assertArrayEquals(new long[] {1, 3}, this.channel.readLongs());
+    }
+
+    @Test
+    public void failsEveryFailedBatch() throws IOException {
+        this.channel.failWrites = 2;
+        long first = this.commit.append(new LongEntry(1));
+        long second = this.commit.append(new LongEntry(2));
+        long third = this.commit.append(new LongEntry(3));
+        this.commit.sync(third, third);
+        this.assertFails(first, first);
+        this.assertFails(second, second);
+        this.assertFails(first, third);
+        assertArrayEquals(new long[] {3}, this.channel.readLongs());
+    }
+
+    @Test
+    public void failsEveryLaterBatchOnceTheFileCanNotBeRestored() throws IOException {
+        this.commit.submit(new LongEntry(1));
+        this.channel.failWrites = 1;
+        this.channel.failTruncate = true;
+        long torn = this.commit.append(new LongEntry(2));
+        long later = this.commit.append(new LongEntry(3));
+        this.assertFails(torn, torn);
+        this.assertFails(later, later);
+        this.channel.failTruncate = false;
+        this.commit.truncate();
+        this.commit.submit(new LongEntry(4));
+        assertArrayEquals(new long[] {4}, this.channel.readLongs());
+    }
+
+    /**
+     * Asserts that waiting for a run of records fails.
+     *
+     * @since 1.0.0
+     * @version 1.0.0
+     *
+     * @param first The first record of the run
+     * @param last The last record of the run
+     */
+    private void assertFails(long first, long last) {
+        try {
+            this.commit.sync(first, last);
+            fail("records " + first + " to " + last + " were acknowledged");
+        } catch (IOException ex) {
+            // expected
+        }
+    }
+}
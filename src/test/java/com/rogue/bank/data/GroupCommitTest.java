@@ -0,0 +1,196 @@
+/*
+ * Copyright (C) 2013 Spencer Alderman
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.rogue.bank.data;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * Tests that a {@link GroupCommit} acknowledges a record only once it is
+ * forced, and forces records which arrive together in one batch.
+ *
+ * @since 1.0.0
+ * @author 1Rogue
+ * @version 1.0.0
+ */
+public class GroupCommitTest {
+
+    @Rule
+    public final TemporaryFolder folder = new TemporaryFolder();
+
+    private TestChannel channel;
+    private GroupCommit commit;
+
+    @Before
+    public void open() throws IOException {
+        this.channel = new TestChannel(new RandomAccessFile(this.folder.newFile("journal"), "rw").getChannel());
+    }
+
+    @After
+    public void close() throws IOException {
+        if (this.commit != null) {
+            this.channel.holdForces = null;
+            this.commit.close();
+        }
+    }
+
+    @Test
+    public void acknowledgesOnlyForcedRecords() throws Exception {
+        this.commit = new GroupCommit(this.channel, 512, 0, true);
+        CountDownLatch hold = new CountDownLatch(1);
+        this.channel.holdForces = hold;
+        Submitter submitter = new Submitter(new LongEntry(1));
+        submitter.start();
+        assertTrue(this.channel.forcing.tryAcquire(10, TimeUnit.SECONDS));
+        submitter.join(100);
+        assertTrue("acknowledged before the force finished", submitter.isAlive());
+        hold.countDown();
+        submitter.join();
+        assertNull(submitter.error.get());
+        assertEquals(1, this.channel.forces.get());
+        assertEquals(8, this.commit.size());
+        assertArrayEquals(new long[] {1}, this.channel.readLongs());
+    }
+
+    @Test
+    public void forcesRecordsWaitingTogether() throws Exception {
+        this.commit = new GroupCommit(this.channel, 512, 0, true);
+        CountDownLatch hold = new CountDownLatch(1);
+        this.channel.holdForces = hold;
+        long first = this.commit.append(new LongEntry(0));
+        assertTrue(this.channel.forcing.tryAcquire(10, TimeUnit.SECONDS));
+        // queued while the first record is being forced
+        long last = 0;
+        for (int i = 1; i <= 100; i++) {
+            last = this.commit.append(new LongEntry(i));
+        }
+        hold.countDown();
+        this.commit.sync(first, last);
+        assertEquals(2, this.commit.getCommits());
+        assertEquals(2, this.channel.forces.get());
+        assertEquals(100, this.commit.getLargestBatchSize());
+        assertEquals(101 * 8, this.commit.size());
+        assertEquals(101, this.channel.readLongs().length);
+        assertEquals(100, this.channel.readLongs()[100]);
+    }
+
+    @Test
+    public void splitsBatchesAtTheMaximumSize() throws Exception {
+        this.commit = new GroupCommit(this.channel, 4, 0, true);
+        CountDownLatch hold = new CountDownLatch(1);
+        this.channel.holdForces = hold;
+        long first = this.commit.append(new LongEntry(0));
+        assertTrue(this.channel.forcing.tryAcquire(10, TimeUnit.SECONDS));
+        long last = 0;
+        for (int i = 1; i <= 10; i++) {
+            last = this.commit.append(new LongEntry(i));
+        }
+        hold.countDown();
+        this.commit.sync(first, last);
+        assertEquals(4, this.commit.getCommits());
+        assertEquals(4, this.commit.getLargestBatchSize());
+        assertEquals(11, this.channel.readLongs().length);
+    }
+
+    @Test
+    public void holdsBatchesOpenForTheMaximumDelay() throws Exception {
+        // a second is far longer than appending takes, even on a busy host
+        this.commit = new GroupCommit(this.channel, 8, 1000000, true);
+        long first = this.commit.append(new LongEntry(0));
+        long last = first;
+        for (int i = 1; i < 8; i++) {
+            last = this.commit.append(new LongEntry(i));
+        }
+        this.commit.sync(first, last);
+        assertEquals(1, this.commit.getCommits());
+        assertEquals(8, this.commit.getLargestBatchSize());
+    }
+
+    @Test
+    public void acknowledgesEveryWaiterOfABatch() throws Exception {
+        this.commit = new GroupCommit(this.channel, 512, 0, true);
+        CountDownLatch hold = new CountDownLatch(1);
+        this.channel.holdForces = hold;
+        long first = this.commit.append(new LongEntry(0));
+        assertTrue(this.channel.forcing.tryAcquire(10, TimeUnit.SECONDS));
+        Submitter[] submitters = new Submitter[8];
+        for (int i = 0; i < submitters.length; i++) {
+            submitters[i] = new Submitter(new LongEntry(i + 1));
+            submitters[i].start();
+        }
+        for (Submitter submitter : submitters) {
+            while (submitter.getState() != Thread.State.WAITING) {
+                Thread.sleep(1);
+            }
+        }
+        hold.countDown();
+        this.commit.sync(first, first);
+        for (Submitter submitter : submitters) {
+            submitter.join();
+            assertNull(submitter.error.get());
+        }
+        assertEquals(2, this.commit.getCommits());
+        assertEquals(2, this.channel.forces.get());
+        assertEquals(1 + submitters.length, this.channel.readLongs().length);
+    }
+
+    /**
+     * A thread submitting one record and waiting for it
+     *
+     * @since 1.0.0
+     * @author 1Rogue
+     * @version 1.0.0
+     */
+    private final class Submitter extends Thread {
+
+        private final LongEntry entry;
+        private final AtomicReference<IOException> error = new AtomicReference<IOException>();
+
+        /**
+         * Submitter constructor
+         *
+         * @since 1.0.0
+         * @version 1.0.0
+         *
+         * @param entry The record to submit
+         */
+        Submitter(LongEntry entry) {
+            this.entry = entry;
+        }
+
+        @Override
+        public void run() {
+            try {
+                commit.submit(this.entry);
+            } catch (IOException ex) {
+                this.error.set(ex);
+            }
+        }
+    }
+}
@@ -0,0 +1,159 @@
+/*
+ * Copyright (C) 2013 Spencer Alderman
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.rogue.bank.data;
+
+import com.rogue.bank.data.accounts.CheckingAccount;
+import com.rogue.bank.data.accounts.SavingsAccount;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * Tests that a {@link Journal} replays what it recorded, and recovers from
+ * a record torn by a crash.
+ *
+ * @since 1.0.0
+ * @author 1Rogue
+ * @version 1.0.0
+ */
+public class JournalTest {
+
+    private static final int OPEN_LENGTH = 18;
+    private static final int BALANCE_LENGTH = 13;
+
+    @Rule
+    public final TemporaryFolder folder = new TemporaryFolder();
+
+    private File file;
+
+    @Before
+    public void create() throws IOException {
+        this.file = new File(this.folder.getRoot(), "bank.txt.journal");
+    }
+
+    @Test
+    public void replaysEveryRecord() throws IOException {
+        Journal journal = new Journal(this.file);
+        Account savings = new SavingsAccount(1000, 1111, 100.0);
+        journal.logOpen(savings);
+        journal.logOpen(new CheckingAccount(1001, 2222, 50.0));
+        savings.deposit(25.0);
+        journal.logBalance(savings);
+        journal.logClose(1001);
+        journal.close();
+
+        AccountStore accounts = new AccountStore();
+        assertEquals(4, new Journal(this.file).replay(accounts));
+        assertEquals(1, accounts.size());
+        assertEquals(1111, accounts.get(1000).getPIN());
+        assertEquals(125.0, accounts.get(1000).getBalance(), 0);
+        assertNull(accounts.get(1001));
+    }
+
+    @Test
+    public void skipsBalanceOfUnknownAccount() throws IOException {
+        Journal journal = new Journal(this.file);
+        journal.logBalance(new SavingsAccount(1000, 1111, 100.0));
+        journal.close();
+
+        AccountStore accounts = new AccountStore();
+        assertEquals(1, new Journal(this.file).replay(accounts));
+        assertEquals(0, accounts.size());
+    }
+
+    @Test
+    public void replaysInterestPeriods() throws IOException {
+        Journal journal = new Journal(this.file);
+        journal.logOpen(new SavingsAccount(1000, 1111, 1000.0));
+        journal.logInterest(new AccountStore());
+        journal.close();
+
+        Account expected = new SavingsAccount(1000, 1111, 1000.0);
+        expected.compileInterest();
+        AccountStore accounts = new AccountStore();
+        assertEquals(2, new Journal(this.file).replay(accounts));
+        assertEquals(expected.getCents(), accounts.get(1000).getCents());
+    }
+
+    @Test
+    public void replaysRotatedSegmentFirst() throws IOException {
+        Journal journal = new Journal(this.file);
+        Account savings = new SavingsAccount(1000, 1111, 100.0);
+        journal.logOpen(savings);
+        journal.rotate();
+        savings.deposit(50.0);
+        journal.logBalance(savings);
+        journal.close();
+        assertTrue(new File(this.file.getPath() + ".prev").exists());
+
+        AccountStore accounts = new AccountStore();
+        assertEquals(2, new Journal(this.file).replay(accounts));
+        assertEquals(150.0, accounts.get(1000).getBalance(), 0);
+    }
+
+    @Test
+    public void cutsTornRecordOffTheTail() throws IOException {
+        Journal journal = new Journal(this.file);
+        Account savings = new SavingsAccount(1000, 1111, 100.0);
+        journal.logOpen(savings);
+        savings.deposit(10.0);
+        journal.logBalance(savings);
+        journal.close();
+        long valid = OPEN_LENGTH + BALANCE_LENGTH;
+        assertEquals(valid, this.file.length());
+        // a balance record cut off by a crash, part way into its balance
+        OutputStream out = new FileOutputStream(this.file, true);
+        try {
+            out.write(new byte[] {'B', 0, 0, 3, (byte) 0xE8, 0x40, 0x5E});
+        } finally {
+            out.close();
+        }
+
+        Journal reopened = new Journal(this.file);
+        AccountStore accounts = new AccountStore();
+        assertEquals(2, reopened.replay(accounts));
+        assertEquals(110.0, accounts.get(1000).getBalance(), 0);
+        assertEquals(valid, this.file.length());
+        assertEquals(valid, reopened.size());
+
+        // new records follow the last good one, so they replay as well
+        Account replayed = accounts.get(1000);
+        replayed.deposit(5.0);
+        reopened.logBalance(replayed);
+        reopened.close();
+        assertEquals(valid + BALANCE_LENGTH, this.file.length());
+        accounts = new AccountStore();
+        assertEquals(3, new Journal(this.file).replay(accounts));
+        assertEquals(115.0, accounts.get(1000).getBalance(), 0);
+    }
+
+    @Test
+    public void replaysNothingWithoutAJournal() throws IOException {
+        AccountStore accounts = new AccountStore();
+        assertEquals(0, new Journal(this.file).replay(accounts));
+        assertFalse(this.file.exists());
+    }
+}
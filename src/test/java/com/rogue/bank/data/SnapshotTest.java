@@ -0,0 +1,183 @@
+/*
+ * Copyright (C) 2013 Spencer Alderman
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.rogue.bank.data;
+
+import com.rogue.bank.util.StripedLock;
+import com.rogue.bank.util.Threads;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.locks.Lock;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import org.junit.Test;
+
+/**
+ * Tests that a {@link Snapshot} of an {@link AccountStore} holds exactly the
+ * accounts there were when it was opened, while accounts are added and
+ * removed under the locks it takes.
+ *
+ * @since 1.0.0
+ * @author 1Rogue
+ * @version 1.0.0
+ */
+public class SnapshotTest {
+
+    private static final int ACCOUNTS = 100000;
+    private static final int CHANGES = 50000;
+    private static final int SNAPSHOTS = 20;
+
+    @Test
+    public void holdsTheAccountsOfItsEpoch() throws InterruptedException {
+        for (boolean direct : new boolean[] { false, true }) {
+            final AccountStore store = new AccountStore(true, direct);
+            final StripedLock locks = new StripedLock(16);
+            for (int id = 0; id < ACCOUNTS; id++) {
+                store.add('s', id, 1234, id / 100.0);
+            }
+            // the epoch current when each account was closed or opened, or
+            // -1; accounts are closed from the top id down, so the slots
+            // read last are the ones closed
+            final AtomicIntegerArray closedAt = epochs();
+            final AtomicIntegerArray openedAt = epochs();
+            final AtomicInteger done = new AtomicInteger();
+            final int[] threads = new int[1];
+            Threads.runAll(2, new Runnable() {
+
+                public void run() {
+                    int t;
+                    synchronized (threads) {
+                        t = threads[0]++;
+                    }
+                    if (t == 0) {
+                        for (int n = 0; n < CHANGES && done.get() == 0; n++) {
+                            change(store, locks.get(closing(n)), closing(n), false, closedAt, n);
+                            change(store, locks.get(ACCOUNTS + n), ACCOUNTS + n, true, openedAt, n);
+                        }
+                        return;
+                    }
+                    try {
+                        for (int n = 0; n < SNAPSHOTS; n++) {
+                            Snapshot snapshot = Snapshot.open(store, locks);
+                            try {
+                                check(snapshot, closedAt, openedAt);
+                            } finally {
+                                snapshot.close();
+                            }
+                        }
+                    } finally {
+                        done.set(1);
+                    }
+                }
+
+            });
+        }
+    }
+
+    /**
+     * Makes a record of the epoch of each change, none made yet.
+     *
+     * @since 1.0.0
+     * @version 1.0.0
+     *
+     * @return The epochs, each -1
+     */
+    private static AtomicIntegerArray epochs() {
+        AtomicIntegerArray epochs = new AtomicIntegerArray(CHANGES);
+        for (int n = 0; n < CHANGES; n++) {
+            epochs.set(n, -1);
+        }
+        return epochs;
+    }
+
+    /**
+     * Returns the id of an account closed during the test.
+     *
+     * @since 1.0.0
+     * @version 1.0.0
+     *
+     * @param n The number of accounts closed before it
+     * @return The account id
+     */
+    private static int closing(int n) {
+        return ACCOUNTS - 1 - n;
+    }
+
+    /**
+     * Adds or removes an account under its lock, recording the epoch.
+     *
+     * @since 1.0.0
+     * @version 1.0.0
+     *
+     * @param store The store
+     * @param lock The lock of the account's id
+     * @param id The account id
+     * @param add True to add the account, false to remove it
+     * @param epochs Where the epoch of each change is recorded
+     * @param n The number of the change
+     */
+    private static void change(AccountStore store, Lock lock, int id, boolean add, AtomicIntegerArray epochs,
+            int n) {
+        lock.lock();
+        try {
+            if (add) {
+                store.add('s', id, 1234, id / 100.0);
+            } else {
+                assertEquals(id, store.remove(id).getID());
+            }
+            epochs.set(n, Snapshot.currentEpoch());
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Checks a snapshot holds each account open when its epoch began, once,
+     * with its balance, and no other.
+     *
+     * @since 1.0.0
+     * @version 1.0.0
+     *
+     * @param snapshot The snapshot
+     * @param closedAt The epoch each closed account was closed in, or -1
+     * @param openedAt The epoch each added account was opened in, or -1
+     */
+    private static void check(Snapshot snapshot, AtomicIntegerArray closedAt, AtomicIntegerArray openedAt) {
+        int epoch = snapshot.getEpoch();
+        boolean[] held = new boolean[ACCOUNTS + CHANGES];
+        int last = -1;
+        snapshot.sort();
+        for (int i = 0; i < snapshot.size(); i++) {
+            int id = snapshot.getID(i);
+            assertTrue(id > last);
+            assertEquals(id, snapshot.getCents(i));
+            held[id] = true;
+            last = id;
+        }
+        for (int id = 0; id < ACCOUNTS - CHANGES; id++) {
+            assertTrue("account " + id, held[id]);
+        }
+        // a change made before the snapshot was opened had its epoch
+        // recorded under the lock the snapshot took, so -1 is a change
+        // made after
+        for (int n = 0; n < CHANGES; n++) {
+            int closed = closedAt.get(n);
+            int opened = openedAt.get(n);
+            assertEquals("closed account " + closing(n), closed < 0 || closed >= epoch, held[closing(n)]);
+            assertEquals("opened account " + (ACCOUNTS + n), opened >= 0 && opened < epoch, held[ACCOUNTS + n]);
+        }
+    }
+}
@@ -0,0 +1,204 @@
+/*
+ * Copyright (C) 2013 Spencer Alderman
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.rogue.bank.data;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A file channel for tests of {@link GroupCommit}. Its writes can be made to
+ * fail part way through, its truncation can be made to fail, and its forces
+ * can be held back and counted.
+ *
+ * @since 1.0.0
+ * @author 1Rogue
+ * @version 1.0.0
+ */
+final class TestChannel extends FileChannel {
+
+    private final FileChannel file;
+    volatile int failWrites;
+    volatile boolean failTruncate;
+    volatile CountDownLatch holdForces;
+    final Semaphore forcing = new Semaphore(0);
+    final AtomicInteger forces = new AtomicInteger();
+
+    /**
+     * TestChannel constructor
+     *
+     * @since 1.0.0
+     * @version 1.0.0
+     *
+     * @param file The channel to write to
+     */
+    TestChannel(FileChannel file) {
+        this.file = file;
+    }
+
+    /**
+     * Reads the file as a run of {@link LongEntry} records.
+     *
+     * @since 1.0.0
+     * @version 1.0.0
+     *
+     * @return The values, in file order
+     * @throws IOException If the file could not be read
+     */
+    long[] readLongs() throws IOException {
+        ByteBuffer bytes = ByteBuffer.allocate((int) this.file.size());
+        while (bytes.hasRemaining()) {
+            if (this.file.read(bytes, bytes.position()) < 0) {
+                break;
+            }
+        }
+        bytes.flip();
+        if (bytes.remaining() % 8 != 0) {
+            throw new IOException("Torn record at " + (bytes.remaining() & ~7));
+        }
+        long[] values = new long[bytes.remaining() / 8];
+        for (int i = 0; i < values.length; i++) {
+            values[i] = bytes.getLong();
+        }
+        return values;
+    }
+
+    @Override
+    public int write(ByteBuffer src) throws IOException {
+        if (this.failWrites > 0) {
+            this.failWrites--;
+            ByteBuffer half = src.duplicate();
+            half.limit(half.position() + half.remaining() / 2);
+            this.file.write(half);
+            throw new IOException("Injected write failure");
+        }
+        return this.file.write(src);
+    }
+
+    @Override
+    public FileChannel truncate(long size) throws IOException {
+        if (this.failTruncate) {
+            throw new IOException("Injected truncate failure");
+        }
+        this.file.truncate(size);
+        return this;
+    }
+
+    @Override
+    public int read(ByteBuffer dst) throws IOException {
+        return this.file.read(dst);
+    }
+
+    @Override
+    public long read(ByteBuffer[] dsts, int offset, int length) throws IOException {
+        return this.file.read(dsts, offset, length);
+    }
+
+    @Override
+    public long write(ByteBuffer[] srcs, int offset, int length) throws IOException {
+        return this.file.write(srcs, offset, length);
+    }
+
+    @Override
+    public long position() throws IOException {
+        return this.file.position();
+    }
+
+    @Override
+    public FileChannel position(long newPosition) throws IOException {
+        this.file.position(newPosition);
+        return this;
+    }
+
+    @Override
+    public long size() throws IOException {
+        return this.file.size();
+    }
+
+    /**
+     * Forces the file, first waiting for {@link #holdForces} to be
+     * released if it is set. Each force releases a permit of
+     * {@link #forcing} as it starts.
+     *
+     * @since 1.0.0
+     * @version 1.0.0
+     *
+     * @param metaData Whether to force the file's metadata as well
+     * @throws IOException If the file could not be forced
+     */
+    @Override
+    public void force(boolean metaData) throws IOException {
+        this.forcing.release();
+        CountDownLatch hold = this.holdForces;
+        if (hold != null) {
+            try {
+                hold.await();
+            } catch (InterruptedException ex) {
+                throw new IOException(ex);
+            }
+        }
+        this.file.force(metaData);
+        this.forces.incrementAndGet();
+    }
+
+    @Override
+    public long transferTo(long position, long count, WritableByteChannel target) throws IOException {
+        return this.file.transferTo(position, count, target);
+    }
+
+    @Override
+    public long transferFrom(ReadableByteChannel src, long position, long count) throws IOException {
+        return this.file.transferFrom(src, position, count);
+    }
+
+    @Override
+    public int read(ByteBuffer dst, long position) throws IOException {
+        return this.file.read(dst, position);
+    }
+
+    @Override
+    public int write(ByteBuffer src, long position) throws IOException {
+        return this.file.write(src, position);
+    }
+
+    @Override
+    public MappedByteBuffer map(MapMode mode, long position, long size) throws IOException {
+        return this.file.map(mode, position, size);
+    }
+
+    @Override
+    public FileLock lock(long position, long size, boolean shared) throws IOException {
+        return this.file.lock(position, size, shared);
+    }
+
+    @Override
+    public FileLock tryLock(long position, long size, boolean shared) throws IOException {
+        return this.file.tryLock(position, size, shared);
+    }
+
+    @Override
+    protected void implCloseChannel() throws IOException {
+        this.file.close();
+    }
+}
@@ -0,0 +1,241 @@
+/*
+ * Copyright (C) 2013 Spencer Alderman
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.rogue.bank.data.storage;
+
+import com.rogue.bank.data.Account;
+import com.rogue.bank.data.AccountStore;
+import com.rogue.bank.data.Snapshot;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.Random;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * Tests that a {@link CompactAccountFile} reads back what it wrote, with
+ * and without deflating it.
+ *
+ * @since 1.0.0
+ * @author 1Rogue
+ * @version 1.0.0
+ */
+public class CompactAccountFileTest {
+
+    private static final int ACCOUNTS = 20000;
+
+    @Rule
+    public final TemporaryFolder folder = new TemporaryFolder();
+
+    private String bankLoc;
+    private AccountStore accounts;
+
+    @Before
+    public void create() {
+        this.bankLoc = new File(this.folder.getRoot(), "bank.cbank").getPath();
+        this.accounts = new AccountStore();
+        Random random = new Random(42);
+        String types = "sxc";
+        int id = 0;
+        for (int i = 0; i < ACCOUNTS; i++) {
+            // gaps of one byte, several bytes and more between ids
+            id += 1 + (i % 100 == 0 ? random.nextInt(1 << 24) : random.nextInt(100));
+            this.accounts.add(types.charAt(i % 3), id, random.nextInt(10000), 500 + random.nextInt(1000000) / 100.0);
+        }
+        // values at the edges of each field
+        this.accounts.add('x', Integer.MIN_VALUE, -1, -2500.75);
+        this.accounts.add('s', Integer.MAX_VALUE, Integer.MAX_VALUE, 80000000000.01);
+        this.accounts.add('x', -1, 0, 0.0);
+    }
+
+    @After
+    public void reset() {
+        System.clearProperty("bank.snapshot.deflate");
+    }
+
+    @Test
+    public void roundTripsDeflated() throws IOException {
+        System.setProperty("bank.snapshot.deflate", "false");
+        long plain = this.save();
+        System.clearProperty("bank.snapshot.deflate");
+        long size = this.save();
+        assertEquals(1, this.flags());
+        assertTrue(CompactAccountFile.isCompact(new File(this.bankLoc)));
+        this.assertLoads();
+        assertTrue(size + " bytes deflated, " + plain + " not", size < plain);
+    }
+
+    @Test
+    public void roundTripsWithoutDeflating() throws IOException {
+        System.setProperty("bank.snapshot.deflate", "false");
+        long size = this.save();
+        assertEquals(0, this.flags());
+        this.assertLoads();
+        // varints take half of the 24 byte records of a mapped file
+        assertTrue(size + " bytes", size < (long) ACCOUNTS * 12);
+    }
+
+    @Test
+    public void readsRawBalances() throws IOException {
+        DataOutputStream out = new DataOutputStream(new FileOutputStream(this.bankLoc));
+        try {
+            out.writeInt(CompactAccountFile.MAGIC);
+            out.writeByte(1);
+            out.writeByte(0);
+            writeVarint(out, 2);
+            writeVarint(out, 5000 << 1);
+            out.writeByte(4);
+            writeVarint(out, 1234);
+            out.writeDouble(2709.25);
+            writeVarint(out, 1 << 1);
+            out.writeByte(1);
+            writeVarint(out, 42);
+            writeVarint(out, 185150 << 1);
+        } finally {
+            out.close();
+        }
+        AccountStore loaded = new AccountStore();
+        new CompactAccountFile(this.bankLoc).load(loaded);
+        assertEquals(2, loaded.size());
+        assertEquals(2709.25, loaded.get(5000).getBalance(), 0);
+        assertEquals('s', loaded.get(5000).getDisplayCharacter());
+        assertEquals(1851.5, loaded.get(5001).getBalance(), 0);
+        assertEquals('x', loaded.get(5001).getDisplayCharacter());
+        assertEquals(42, loaded.get(5001).getPIN());
+    }
+
+    @Test
+    public void rejectsATruncatedFile() throws IOException {
+        this.save();
+        RandomAccessFile raf = new RandomAccessFile(this.bankLoc, "rw");
+        try {
+            raf.setLength(raf.length() / 2);
+        } finally {
+            raf.close();
+        }
+        try {
+            new CompactAccountFile(this.bankLoc).load(new AccountStore());
+            fail("a truncated file was loaded");
+        } catch (IOException ex) {
+            assertTrue(ex.getMessage(), ex.getMessage().endsWith("is truncated"));
+        }
+    }
+
+    @Test
+    public void keepsThePreviousSnapshot() throws IOException {
+        this.save();
+        long first = new File(this.bankLoc).length();
+        this.accounts.remove(Integer.MAX_VALUE);
+        this.save();
+        assertEquals(first, new File(this.bankLoc + ".old").length());
+        this.assertLoads();
+    }
+
+    /**
+     * Saves the accounts to the bank file.
+     *
+     * @since 1.0.0
+     * @version 1.0.0
+     *
+     * @return The size of the file
+     * @throws IOException If the file could not be written
+     */
+    private long save() throws IOException {
+        Snapshot snapshot = Snapshot.of(this.accounts);
+        try {
+            new CompactAccountFile(this.bankLoc).save(snapshot);
+        } finally {
+            snapshot.close();
+        }
+        return new File(this.bankLoc).length();
+    }
+
+    /**
+     * Returns the flags byte of the bank file header.
+     *
+     * @since 1.0.0
+     * @version 1.0.0
+     *
+     * @return The flags
+     * @throws IOException If the file could not be read
+     */
+    private int flags() throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(this.bankLoc, "r");
+        try {
+            raf.seek(5);
+            return raf.readByte();
+        } finally {
+            raf.close();
+        }
+    }
+
+    /**
+     * Asserts that loading the bank file gives back the accounts, in id
+     * order.
+     *
+     * @since 1.0.0
+     * @version 1.0.0
+     *
+     * @throws IOException If the file could not be read
+     */
+    private void assertLoads() throws IOException {
+        AccountStore loaded = new AccountStore(false);
+        CompactAccountFile bank = new CompactAccountFile(this.bankLoc);
+        bank.load(loaded);
+        assertEquals(0, bank.getRejected());
+        int[] slots = loaded.slots();
+        assertEquals(this.accounts.size(), slots.length);
+        for (int i = 1; i < slots.length; i++) {
+            assertTrue(loaded.getId(slots[i - 1]) < loaded.getId(slots[i]));
+        }
+        for (int slot : slots) {
+            Account actual = loaded.view(slot);
+            Account expected = this.accounts.get(actual.getID());
+            assertNotNull("account " + actual.getID(), expected);
+            assertEquals(expected.getDisplayCharacter(), actual.getDisplayCharacter());
+            assertEquals(expected.getPIN(), actual.getPIN());
+            assertEquals(expected.getCents(), actual.getCents());
+        }
+    }
+
+    /**
+     * Writes a varint the way the format stores it.
+     *
+     * @since 1.0.0
+     * @version 1.0.0
+     *
+     * @param out The stream to write to
+     * @param value The value to write
+     * @throws IOException If the value could not be written
+     */
+    private static void writeVarint(DataOutputStream out, long value) throws IOException {
+        while ((value & ~0x7FL) != 0) {
+            out.writeByte((int) (value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        out.writeByte((int) value);
+    }
+}
@@ -0,0 +1,280 @@
+/*
+ * Copyright (C) 2013 Spencer Alderman
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.rogue.bank.data.storage;
+
+import com.rogue.bank.data.Account;
+import com.rogue.bank.data.AccountStore;
+import com.rogue.bank.data.Snapshot;
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.Random;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * Tests that a {@link MappedAccountFile} and its ".idx" index read back
+ * what was written to them.
+ *
+ * @since 1.0.0
+ * @author 1Rogue
+ * @version 1.0.0
+ */
+public class MappedAccountFileTest {
+
+    private static final int ACCOUNTS = 5000;
+
+    @Rule
+    public final TemporaryFolder folder = new TemporaryFolder();
+
+    private String bankLoc;
+    private AccountStore accounts;
+
+    @Before
+    public void create() {
+        this.bankLoc = new File(this.folder.getRoot(), "bank.bin").getPath();
+        this.accounts = new AccountStore();
+        Random random = new Random(42);
+        String types = "sxc";
+        for (int i = 0; i < ACCOUNTS; i++) {
+            // ids out of order, so the index has to sort them
+            int id = 1000 + (i * 7919) % ACCOUNTS;
+            this.accounts.add(types.charAt(i % 3), id, random.nextInt(10000), 500 + random.nextInt(1000000) / 100.0);
+        }
+    }
+
+    @Test
+    public void loadsWhatWasSaved() throws IOException {
+        this.save();
+        assertTrue(MappedAccountFile.isMapped(new File(this.bankLoc)));
+        this.assertLoads();
+    }
+
+    @Test
+    public void loadsRecordsUpdatedInPlace() throws IOException {
+        this.save();
+        MappedAccountFile bank = new MappedAccountFile(this.bankLoc);
+        try {
+            bank.load(new AccountStore(false));
+            this.accounts.get(1000).deposit(12.34);
+            bank.update(this.accounts.get(1000));
+            this.accounts.remove(1001);
+            bank.remove(1001);
+            this.accounts.add('s', 99999, 1234, 5.0);
+            bank.update(this.accounts.get(99999));
+        } finally {
+            bank.close();
+        }
+        this.assertLoads();
+        // the new account took the removed one's slot
+        assertEquals(ACCOUNTS, this.slotCount());
+    }
+
+    @Test
+    public void readsThroughTheIndex() throws IOException {
+        this.save();
+        File index = new File(this.bankLoc + ".idx");
+        MappedAccountFile bank = new MappedAccountFile(this.bankLoc);
+        try {
+            bank.openIndex();
+            this.assertReads(bank);
+        } finally {
+            bank.close();
+        }
+        assertTrue(index.exists());
+        byte[] written = Files.readAllBytes(index.toPath());
+
+        bank = new MappedAccountFile(this.bankLoc);
+        try {
+            bank.openIndex();
+            this.assertReads(bank);
+        } finally {
+            bank.close();
+        }
+        // a current index is mapped as it is, not rebuilt
+        assertArrayEquals(written, Files.readAllBytes(index.toPath()));
+    }
+
+    @Test
+    public void keepsChangesOverTheIndex() throws IOException {
+        this.save();
+        MappedAccountFile bank = new MappedAccountFile(this.bankLoc);
+        try {
+            bank.openIndex();
+            this.accounts.remove(1002);
+            bank.remove(1002);
+            this.accounts.add('x', 99999, 1234, 5.0);
+            bank.update(this.accounts.get(99999));
+            this.accounts.get(1003).withdraw(1.0);
+            bank.update(this.accounts.get(1003));
+            this.assertReads(bank);
+        } finally {
+            bank.close();
+        }
+        bank = new MappedAccountFile(this.bankLoc);
+        try {
+            bank.openIndex();
+            this.assertReads(bank);
+        } finally {
+            bank.close();
+        }
+    }
+
+    @Test
+    public void rebuildsAnIndexLeftStaleByACrash() throws IOException {
+        this.save();
+        MappedAccountFile bank = new MappedAccountFile(this.bankLoc);
+        try {
+            bank.openIndex();
+            bank.close();
+            bank = new MappedAccountFile(this.bankLoc);
+            bank.openIndex();
+            this.accounts.add('s', 99999, 1234, 5.0);
+            bank.update(this.accounts.get(99999));
+            bank.flush();
+            // copied as a crash would leave them: the old index, and
+            // records changed since it was written
+            Files.copy(new File(this.bankLoc).toPath(), this.folder.getRoot().toPath().resolve("crash.bin"));
+            Files.copy(new File(this.bankLoc + ".idx").toPath(), this.folder.getRoot().toPath().resolve("crash.bin.idx"));
+        } finally {
+            bank.close();
+        }
+        MappedAccountFile crashed = new MappedAccountFile(new File(this.folder.getRoot(), "crash.bin").getPath());
+        try {
+            crashed.openIndex();
+            this.assertReads(crashed);
+        } finally {
+            crashed.close();
+        }
+    }
+
+    /**
+     * Saves the accounts to a new mapped bank file.
+     *
+     * @since 1.0.0
+     * @version 1.0.0
+     *
+     * @throws IOException If the file could not be written
+     */
+    private void save() throws IOException {
+        MappedAccountFile bank = new MappedAccountFile(this.bankLoc);
+        Snapshot snapshot = Snapshot.of(this.accounts);
+        try {
+            bank.save(snapshot);
+        } finally {
+            snapshot.close();
+            bank.close();
+        }
+    }
+
+    /**
+     * Asserts that loading the bank file gives back the accounts.
+     *
+     * @since 1.0.0
+     * @version 1.0.0
+     *
+     * @throws IOException If the file could not be read
+     */
+    private void assertLoads() throws IOException {
+        AccountStore loaded = new AccountStore();
+        MappedAccountFile bank = new MappedAccountFile(this.bankLoc);
+        try {
+            bank.load(loaded);
+            assertEquals(0, bank.getRejected());
+        } finally {
+            bank.close();
+        }
+        assertEquals(this.accounts.size(), loaded.size());
+        for (Account acc : this.accounts.values()) {
+            assertAccount(acc, loaded.get(acc.getID()));
+        }
+    }
+
+    /**
+     * Returns the number of record slots the bank file header says are in
+     * use.
+     *
+     * @since 1.0.0
+     * @version 1.0.0
+     *
+     * @return The slot count
+     * @throws IOException If the file could not be read
+     */
+    private int slotCount() throws IOException {
+        DataInputStream in = new DataInputStream(new FileInputStream(this.bankLoc));
+        try {
+            in.readLong();
+            return in.readInt();
+        } finally {
+            in.close();
+        }
+    }
+
+    /**
+     * Asserts that every account, and only those, can be read from a bank
+     * file through its index.
+     *
+     * @since 1.0.0
+     * @version 1.0.0
+     *
+     * @param bank The bank file, with its index open
+     */
+    private void assertReads(MappedAccountFile bank) {
+        assertEquals(this.accounts.size(), bank.size());
+        int[] ids = bank.ids();
+        Arrays.sort(ids);
+        int[] expected = new int[this.accounts.size()];
+        int n = 0;
+        for (Account acc : this.accounts.values()) {
+            expected[n++] = acc.getID();
+            assertAccount(acc, bank.read(acc.getID()));
+        }
+        Arrays.sort(expected);
+        assertArrayEquals(expected, ids);
+        assertFalse(bank.contains(ACCOUNTS + 1000));
+        assertNull(bank.read(ACCOUNTS + 1000));
+    }
+
+    /**
+     * Asserts that an account has the same id, type, PIN and balance as
+     * another.
+     *
+     * @since 1.0.0
+     * @version 1.0.0
+     *
+     * @param expected The account written
+     * @param actual The account read back
+     */
+    private static void assertAccount(Account expected, Account actual) {
+        assertNotNull("account " + expected.getID(), actual);
+        assertEquals(expected.getID(), actual.getID());
+        assertEquals(expected.getDisplayCharacter(), actual.getDisplayCharacter());
+        assertEquals(expected.getPIN(), actual.getPIN());
+        assertEquals(expected.getCents(), actual.getCents());
+    }
+}
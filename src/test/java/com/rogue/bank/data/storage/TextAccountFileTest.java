@@ -0,0 +1,109 @@
+/*
+ * Copyright (C) 2013 Spencer Alderman
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.rogue.bank.data.storage;
+
+import com.rogue.bank.data.Account;
+import com.rogue.bank.data.AccountStore;
+import com.rogue.bank.util.Allocations;
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.Writer;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assume.assumeTrue;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * Tests for {@link TextAccountFile}
+ *
+ * @since 1.0.0
+ * @author 1Rogue
+ * @version 1.0.0
+ */
+public class TextAccountFileTest {
+
+    private static final int ACCOUNTS = 20000;
+
+    /**
+     * The bytes a whole load may allocate on the heap, whatever the number
+     * of accounts: the mapped file, the tokenizer and the directory of the
+     * store's pages. A single object per line would take several times
+     * this.
+     */
+    private static final int BYTES_PER_LOAD = 16 * 1024;
+
+    @Rule
+    public final TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void loadsAccounts() throws IOException {
+        File file = this.write("5000\tS\t1234\t2709.25\n5001\tC\t42\t1851.5\n5002\tX\n5003\tS\t1\tabc\n");
+        TextAccountFile bank = new TextAccountFile(file.getPath());
+        AccountStore accounts = new AccountStore();
+        bank.load(accounts);
+        assertEquals(2, accounts.size());
+        assertEquals(2, bank.getRejected());
+        Account first = accounts.get(5000);
+        assertEquals(1234, first.getPIN());
+        assertEquals(2709.25, first.getBalance(), 0);
+        assertEquals(1851.5, accounts.get(5001).getBalance(), 0);
+    }
+
+    @Test
+    public void loadsWithoutGarbagePerLine() throws IOException {
+        assumeTrue(Allocations.isMeasurable());
+        StringBuilder text = new StringBuilder();
+        for (int i = 0; i < ACCOUNTS; i++) {
+            text.append(5000 + i).append("\tS\t1234\t").append(i % 1000).append(".25\n");
+        }
+        File file = this.write(text.toString());
+        new TextAccountFile(file.getPath()).load(new AccountStore(false, true));
+        // the columns of an off-heap store are not on the heap, so all that
+        // is left to count is what loading makes for each line
+        AccountStore accounts = new AccountStore(false, true);
+        long before = Allocations.allocated();
+        new TextAccountFile(file.getPath()).load(accounts);
+        long allocated = Allocations.allocated() - before;
+        assertEquals(ACCOUNTS, accounts.slots().length);
+        assertTrue(allocated + " bytes allocated loading " + ACCOUNTS + " accounts",
+                allocated < BYTES_PER_LOAD);
+    }
+
+    /**
+     * Writes a bank file.
+     *
+     * @since 1.0.0
+     * @version 1.0.0
+     *
+     * @param text The contents of the file
+     * @return The file
+     * @throws IOException If the file could not be written
+     */
+    private File write(String text) throws IOException {
+        File file = this.folder.newFile("bank.txt");
+        Writer out = new FileWriter(file);
+        try {
+            out.write(text);
+        } finally {
+            out.close();
+        }
+        return file;
+    }
+}
@@ -0,0 +1,117 @@
+/*
+ * Copyright (C) 2013 Spencer Alderman
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.rogue.bank.util;
+
+import java.nio.ByteBuffer;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assume.assumeTrue;
+import org.junit.Test;
+
+/**
+ * Tests for {@link ByteTokenizer}
+ *
+ * @since 1.0.0
+ * @author 1Rogue
+ * @version 1.0.0
+ */
+public class ByteTokenizerTest {
+
+    private static final int LINES = 100000;
+
+    @Test
+    public void parsesFields() {
+        ByteBuffer buf = bytes("5000\tS\t1234\t-2709.25\n17\tC");
+        ByteTokenizer tok = new ByteTokenizer().reset(buf, 0, buf.limit());
+        assertTrue(tok.nextLine());
+        assertTrue(tok.isLineTerminated());
+        assertTrue(tok.nextField((byte) '\t'));
+        assertEquals(5000, tok.parseInt());
+        assertTrue(tok.nextField((byte) '\t'));
+        assertEquals('S', tok.firstChar());
+        assertTrue(tok.nextField((byte) '\t'));
+        assertEquals(1234, tok.parseInt());
+        assertTrue(tok.nextField((byte) '\t'));
+        assertEquals(-2709.25, tok.parseDecimal(), 0);
+        assertFalse(tok.hasMoreFields());
+        assertTrue(tok.nextLine());
+        assertFalse(tok.isLineTerminated());
+        assertFalse(tok.nextLine());
+    }
+
+    @Test(expected = NumberFormatException.class)
+    public void rejectsMalformedInts() {
+        ByteTokenizer.parseInt(bytes("12x4"), 0, 4);
+    }
+
+    @Test
+    public void parsesWithoutAllocating() {
+        assumeTrue(Allocations.isMeasurable());
+        StringBuilder text = new StringBuilder();
+        for (int i = 0; i < LINES; i++) {
+            text.append(5000 + i).append("\tS\t1234\t").append(i % 1000).append(".25\n");
+        }
+        ByteBuffer buf = bytes(text.toString());
+        ByteTokenizer tok = new ByteTokenizer();
+        long expected = parseAll(tok, buf);
+        long before = Allocations.allocated();
+        long sum = parseAll(tok, buf);
+        long allocated = Allocations.allocated() - before;
+        assertEquals(expected, sum);
+        assertTrue(allocated + " bytes allocated parsing " + LINES + " lines", allocated < 1024);
+    }
+
+    /**
+     * Parses every line of a buffer as an account record.
+     *
+     * @since 1.0.0
+     * @version 1.0.0
+     *
+     * @param tok The tokenizer to parse with
+     * @param buf The records
+     * @return A sum of the parsed fields
+     */
+    private static long parseAll(ByteTokenizer tok, ByteBuffer buf) {
+        long sum = 0;
+        tok.reset(buf, 0, buf.limit());
+        while (tok.nextLine()) {
+            tok.nextField((byte) '\t');
+            sum += tok.parseInt();
+            tok.nextField((byte) '\t');
+            sum += tok.firstChar();
+            tok.nextField((byte) '\t');
+            sum += tok.parseInt();
+            tok.nextField((byte) '\t');
+            sum += (long) (tok.parseDecimal() * 100);
+        }
+        return sum;
+    }
+
+    /**
+     * Returns the bytes of a String in a buffer.
+     *
+     * @since 1.0.0
+     * @version 1.0.0
+     *
+     * @param text The text
+     * @return A buffer holding the text
+     */
+    private static ByteBuffer bytes(String text) {
+        return ByteBuffer.wrap(text.getBytes());
+    }
+}
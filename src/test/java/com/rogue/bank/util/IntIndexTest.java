@@ -0,0 +1,232 @@
+/*
+ * Copyright (C) 2013 Spencer Alderman
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.rogue.bank.util;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import static org.junit.Assert.assertEquals;
+import org.junit.Test;
+
+/**
+ * Tests {@link IntIndex}, on the heap and outside it.
+ *
+ * @since 1.0.0
+ * @author 1Rogue
+ * @version 1.0.0
+ */
+public class IntIndexTest {
+
+    private static final int THREADS = 4;
+    private static final int ROUNDS = 300;
+    private static final int BATCH = 64;
+    private static final int STABLE = 500;
+    private static final int DENSE = 200000;
+    private static final int FIRST = 9111;
+    // wider than a page, so no page collects enough keys to be promoted
+    private static final int STRIDE = 4099;
+    private static final int PAGE = 1024;
+
+    @Test
+    public void reinsertsRemovedKeys() {
+        for (IntIndex index : indexes()) {
+            for (int i = 0; i < 1000; i++) {
+                assertEquals(-1, index.put(i * STRIDE, i));
+            }
+            for (int i = 0; i < 1000; i += 2) {
+                assertEquals(i, index.remove(i * STRIDE));
+                assertEquals(-1, index.remove(i * STRIDE));
+            }
+            assertEquals(500, index.size());
+            for (int i = 0; i < 1000; i++) {
+                assertEquals(i % 2 == 0 ? -1 : i, index.get(i * STRIDE));
+            }
+            for (int i = 0; i < 1000; i += 2) {
+                assertEquals(-1, index.put(i * STRIDE, i + 1));
+            }
+            assertEquals(1000, index.size());
+            for (int i = 0; i < 1000; i++) {
+                assertEquals(i % 2 == 0 ? i + 1 : i, index.get(i * STRIDE));
+            }
+        }
+    }
+
+    @Test
+    public void concurrentRemovalsKeepOtherKeys() throws InterruptedException {
+        for (final IntIndex index : indexes()) {
+            for (int i = 0; i < STABLE; i++) {
+                index.put(-1 - i * STRIDE, i);
+            }
+            final int[] threads = new int[1];
+            Threads.runAll(THREADS, new Runnable() {
+
+                public void run() {
+                    int t;
+                    synchronized (threads) {
+                        t = threads[0]++;
+                    }
+                    // every round adds keys never seen before, so the table
+                    // fills with tombstones and is rebuilt under the readers
+                    for (int r = 0; r < ROUNDS; r++) {
+                        for (int i = 0; i < BATCH; i++) {
+                            assertEquals(-1, index.put(key(t, r, i), i));
+                        }
+                        for (int i = 0; i < STABLE; i += 7) {
+                            assertEquals(i, index.get(-1 - i * STRIDE));
+                        }
+                        for (int i = 0; i < BATCH; i++) {
+                            assertEquals(i, index.get(key(t, r, i)));
+                            assertEquals(i, index.remove(key(t, r, i)));
+                            assertEquals(-1, index.get(key(t, r, i)));
+                            assertEquals(-1, index.put(key(t, r, i), i + 1));
+                            assertEquals(i + 1, index.remove(key(t, r, i)));
+                        }
+                    }
+                }
+
+            });
+            assertEquals(STABLE, index.size());
+            for (int i = 0; i < STABLE; i++) {
+                assertEquals(i, index.get(-1 - i * STRIDE));
+            }
+        }
+    }
+
+    @Test
+    public void promotesPagesUnderReaders() throws InterruptedException {
+        for (final IntIndex index : indexes()) {
+            final AtomicInteger added = new AtomicInteger();
+            final int[] threads = new int[1];
+            Threads.runAll(THREADS, new Runnable() {
+
+                public void run() {
+                    int t;
+                    synchronized (threads) {
+                        t = threads[0]++;
+                    }
+                    if (t == 0) {
+                        // a sparse key stays hashed beside the dense pages
+                        index.put(-FIRST, 0);
+                        for (int i = 0; i < DENSE; i++) {
+                            index.put(FIRST + i, i);
+                            added.set(i + 1);
+                        }
+                        return;
+                    }
+                    // every key added so far must be found while its page
+                    // moves out of the hash table and the directory grows
+                    while (added.get() < DENSE) {
+                        int seen = added.get();
+                        for (int i = Math.max(0, seen - 2048); i < seen; i++) {
+                            assertEquals(i, index.get(FIRST + i));
+                        }
+                        assertEquals(-1, index.get(FIRST + DENSE + seen % PAGE));
+                        if (seen > 0) {
+                            assertEquals(0, index.get(-FIRST));
+                        }
+                    }
+                }
+
+            });
+            assertEquals(DENSE + 1, index.size());
+            for (int i = 0; i < DENSE; i++) {
+                assertEquals(i, index.get(FIRST + i));
+            }
+            assertEquals(0, index.get(-FIRST));
+            assertEquals(-1, index.get(FIRST - 1));
+            assertEquals(-1, index.get(FIRST + DENSE));
+        }
+    }
+
+    @Test
+    public void keepsRemovalsFromPromotedPages() {
+        for (IntIndex index : indexes()) {
+            for (int i = 0; i < 4096; i++) {
+                index.put(FIRST + i, i);
+            }
+            for (int i = 0; i < 4096; i += 3) {
+                assertEquals(i, index.remove(FIRST + i));
+                assertEquals(-1, index.get(FIRST + i));
+            }
+            for (int i = 0; i < 4096; i += 3) {
+                assertEquals(-1, index.put(FIRST + i, i + 1));
+            }
+            assertEquals(4096, index.size());
+            for (int i = 0; i < 4096; i++) {
+                assertEquals(i % 3 == 0 ? i + 1 : i, index.get(FIRST + i));
+            }
+            assertEquals(4096, index.size());
+        }
+    }
+
+    @Test
+    public void listsKeysInOrder() {
+        for (IntIndex index : indexes()) {
+            assertEquals(0, index.keys().length);
+            // a dense run promoted to pages, and sparse keys either side
+            for (int i = 0; i < 4096; i++) {
+                index.put(FIRST + i, i);
+            }
+            for (int i = 1; i <= 100; i++) {
+                index.put(-i * STRIDE, i);
+                index.put(Integer.MAX_VALUE - i * STRIDE, i);
+            }
+            for (int i = 0; i < 4096; i += 2) {
+                index.remove(FIRST + i);
+            }
+            index.remove(-STRIDE);
+            int[] keys = index.keys();
+            assertEquals(index.size(), keys.length);
+            int n = 0;
+            for (int i = 100; i > 1; i--) {
+                assertEquals(-i * STRIDE, keys[n++]);
+            }
+            for (int i = 1; i < 4096; i += 2) {
+                assertEquals(FIRST + i, keys[n++]);
+            }
+            for (int i = 100; i >= 1; i--) {
+                assertEquals(Integer.MAX_VALUE - i * STRIDE, keys[n++]);
+            }
+            assertEquals(keys.length, n);
+        }
+    }
+
+    /**
+     * Returns a key only one thread uses, in one round.
+     *
+     * @since 1.0.0
+     * @version 1.0.0
+     *
+     * @param thread The thread
+     * @param round The round
+     * @param i The key of the round
+     * @return The key
+     */
+    private static int key(int thread, int round, int i) {
+        return (thread + THREADS * (round * BATCH + i)) * STRIDE;
+    }
+
+    /**
+     * Makes an empty index on the heap and one outside it.
+     *
+     * @since 1.0.0
+     * @version 1.0.0
+     *
+     * @return The indexes
+     */
+    private static IntIndex[] indexes() {
+        return new IntIndex[] { new IntIndex(0, false), new IntIndex(0, true) };
+    }
+}
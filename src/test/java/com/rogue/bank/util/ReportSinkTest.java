@@ -0,0 +1,184 @@
+/*
+ * Copyright (C) 2013 Spencer Alderman
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.rogue.bank.util;
+
+import com.rogue.bank.JavaProcess;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import static org.junit.Assert.assertEquals;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * Checks {@link ReportSink} writes ids and money as
+ * {@link String#format(String, Object...)} writes them with {@code %-7d},
+ * {@code %7d} and {@code %9.2f}, including the amounts it leaves to
+ * {@link java.util.Formatter}, in the test's locale and in locales with
+ * another decimal separator or other digits.
+ *
+ * @since 1.0.0
+ * @author 1Rogue
+ * @version 1.0.0
+ */
+public class ReportSinkTest {
+
+    private static final int RANDOM = 100000;
+    private static final int SHOWN = 20;
+    private static final long[] IDS = { 0, 1, -1, 9, 10, 999999, 1000000, 9999999, 10000000, -999999,
+            -1000000, Integer.MAX_VALUE, Integer.MIN_VALUE, Long.MAX_VALUE, Long.MIN_VALUE };
+    private static final double[] AMOUNTS = { 0.0, -0.0, 0.01, -0.01, 0.1, 1.0, 9999.99, 100000.0,
+            87960930222.07, -87960930222.08, 9999999999999.99, 1e13, 1e15, 1.5e17, 1e300,
+            Double.MAX_VALUE, -Double.MAX_VALUE };
+    // not a whole number of cents, so each is left to Formatter
+    private static final double[] FALLBACKS = { 0.001, -0.001, 0.004, -0.004, 0.005, 0.015, 1.005, 2.675,
+            1.125, -1.125, 0.333, 2.0 / 3, 1e-300, Double.MIN_VALUE, -Double.MIN_VALUE, Double.NaN,
+            Double.POSITIVE_INFINITY, Double.NEGATIVE_INFINITY };
+
+    @Rule
+    public final TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void writesIdsAsFormatter() {
+        assertEquals(new ArrayList<String>(), idMismatches());
+    }
+
+    @Test
+    public void writesMoneyAsFormatter() {
+        assertEquals(new ArrayList<String>(), moneyMismatches());
+    }
+
+    @Test
+    public void writesAsFormatterWithACommaSeparator() throws IOException {
+        assertEquals("ok", this.runIn("de", "DE"));
+    }
+
+    @Test
+    public void writesAsFormatterWithOtherDigits() throws IOException {
+        assertEquals("ok", this.runIn("ar", "EG"));
+    }
+
+    /**
+     * Runs the checks in a JVM with another default locale.
+     *
+     * @since 1.0.0
+     * @version 1.0.0
+     *
+     * @param language The locale's language
+     * @param country The locale's country
+     * @return What the checks printed
+     * @throws IOException If the JVM could not be run
+     */
+    private String runIn(String language, String country) throws IOException {
+        return JavaProcess.run(this.folder.getRoot(), Arrays.asList("user.language=" + language,
+                "user.country=" + country), ReportSinkTest.class).trim();
+    }
+
+    /**
+     * Runs the checks in the default locale, and prints "ok" or the values
+     * written differently.
+     *
+     * @since 1.0.0
+     * @version 1.0.0
+     *
+     * @param args Unused
+     */
+    public static void main(String[] args) {
+        List<String> mismatches = idMismatches();
+        mismatches.addAll(moneyMismatches());
+        System.out.println(mismatches.isEmpty() ? "ok" : mismatches.toString());
+    }
+
+    /**
+     * Writes ids both ways.
+     *
+     * @since 1.0.0
+     * @version 1.0.0
+     *
+     * @return The first ids written differently, as text
+     */
+    private static List<String> idMismatches() {
+        List<String> mismatches = new ArrayList<String>();
+        Random random = new Random(RANDOM);
+        for (int i = 0; i < IDS.length + RANDOM; i++) {
+            long id = i < IDS.length ? IDS[i] : random.nextInt();
+            if (!Arrays.equals(String.format("%-7d", id).getBytes(), written(new ReportSink(null, 64).left(id, 7)))
+                    || !Arrays.equals(String.format("%7d", id).getBytes(),
+                            written(new ReportSink(null, 64).right(id, 7)))) {
+                if (mismatches.size() < SHOWN) {
+                    mismatches.add(Long.toString(id));
+                }
+            }
+        }
+        return mismatches;
+    }
+
+    /**
+     * Writes amounts of money both ways: exact cents, the amounts left to
+     * Formatter, and random amounts of every size.
+     *
+     * @since 1.0.0
+     * @version 1.0.0
+     *
+     * @return The first amounts written differently, as text
+     */
+    private static List<String> moneyMismatches() {
+        List<String> mismatches = new ArrayList<String>();
+        Random random = new Random(RANDOM);
+        int fixed = AMOUNTS.length + FALLBACKS.length;
+        for (int i = 0; i < fixed + 2 * RANDOM; i++) {
+            double amount;
+            if (i < AMOUNTS.length) {
+                amount = AMOUNTS[i];
+            } else if (i < fixed) {
+                amount = FALLBACKS[i - AMOUNTS.length];
+            } else if (i % 2 == 0) {
+                amount = (random.nextInt(2000000000) - 1000000000) / 100.0;
+            } else {
+                amount = (random.nextDouble() - 0.5) * Math.pow(10, random.nextInt(18));
+            }
+            if (!Arrays.equals(String.format("%9.2f", amount).getBytes(),
+                    written(new ReportSink(null, 64).money(amount, 9)))) {
+                if (mismatches.size() < SHOWN) {
+                    mismatches.add(Double.toString(amount));
+                }
+            }
+        }
+        return mismatches;
+    }
+
+    /**
+     * Returns the bytes a sink kept in memory holds.
+     *
+     * @since 1.0.0
+     * @version 1.0.0
+     *
+     * @param sink The sink
+     * @return Its bytes
+     */
+    private static byte[] written(ReportSink sink) {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        ReportSink out = new ReportSink(bytes, 64);
+        out.append(sink, 0, sink.size());
+        out.flush();
+        return bytes.toByteArray();
+    }
+}